@@ -0,0 +1,332 @@
+import java.io.*;
+
+/**
+ * Class to code a stream with an adaptive Huffman code (algorithm FGK), so
+ * that nothing needs to be known about the input in advance.
+ *
+ * Encoder and decoder both start with a tree holding just the NYT ("not yet
+ * transmitted") leaf, and update it the same way after every symbol.  A
+ * symbol seen for the first time is sent as the code of NYT followed by the
+ * symbol in 9 bits.  Besides the 256 byte values there are two more symbols:
+ * EOF ends the stream, and FLUSH pads to a whole byte so that everything up
+ * to that point can be sent at once, which is what makes the code usable on
+ * live streams.
+ *
+ * The tree is the same as a HuffmanTree, but kept in parallel arrays.  Nodes
+ * are numbered so that weights never decrease with the number and siblings
+ * are next to each other (the sibling property); the root has the highest
+ * number and NYT the lowest.  When the root's weight reaches MAX_WEIGHT all
+ * weights are halved and the tree rebuilt, so memory use and the weights
+ * stay bounded however long the stream is.
+ */
+class AdaptiveHuffman {
+   static final int EOF = 256, FLUSH = 257;     // Symbols besides the bytes.
+   static final int SYMBOLS = 258;
+   static final int SYMBOL_BITS = 9;            // Bits to send a new symbol in.
+   static final int MAX_WEIGHT = 1 << 16;       // Root weight that makes the weights halve.
+
+   private static final int NODES = 2 * SYMBOLS + 1;   // All symbols and NYT.
+   private static final int ROOT = NODES - 1;
+
+   // The tree; node n is the one numbered n.
+   private int[] weight = new int[NODES];
+   private int[] parent = new int[NODES];
+   private int[] left = new int[NODES];         // Children, or -1 for a leaf.
+   private int[] right = new int[NODES];
+   private int[] symbol = new int[NODES];       // The symbol of a leaf; -1 for NYT and inner nodes.
+   private int[] leaf = new int[SYMBOLS];       // Node of each symbol, or -1 if not yet seen.
+   private int nyt;                             // The NYT node.
+
+   private int[] path = new int[NODES];         // Scratch for encode().
+
+   // Where decodeBit() has got to.
+   private int node = ROOT;
+   private int raw = -1;                        // Bits of a new symbol so far, or -1.
+   private int rawBits;
+
+   /**
+    * Creates a coder with an empty tree.
+    */
+   public AdaptiveHuffman() {
+      java.util.Arrays.fill( leaf, -1 );
+      nyt = ROOT;
+      makeLeaf( ROOT, -1, -1 );
+   }
+
+   private void makeLeaf( int n, int s, int p ) {
+      weight[n] = 0;
+      parent[n] = p;
+      left[n] = right[n] = -1;
+      symbol[n] = s;
+   }
+
+   /**
+    * Writes the code of a symbol and updates the tree.
+    */
+   public void encode( int s, BitStreamWriter out ) throws IOException {
+      int n = leaf[s] >= 0 ? leaf[s] : nyt;
+
+      // Collect the path from the leaf up, then write it from the root down.
+      int depth = 0;
+      for( ; n != ROOT; n = parent[n] )
+         path[depth++] = right[parent[n]] == n ? 1 : 0;
+      while( depth > 0 )
+         out.writeBit( path[--depth] );
+
+      if( leaf[s] < 0 )
+         out.writeBits( s, SYMBOL_BITS );
+      update( s );
+   }
+
+   /**
+    * Feeds the next bit of the coded stream to the decoder.  Returns the
+    * symbol once its code is complete, and -1 until then.  Throws an
+    * IOException if the stream is corrupt.
+    */
+   public int decodeBit( int bit ) throws IOException {
+      if( raw >= 0 ) {                       // Reading a new symbol.
+         raw = ( raw << 1 ) | bit;
+         if( ++rawBits < SYMBOL_BITS )
+            return -1;
+         if( raw >= SYMBOLS || leaf[raw] >= 0 )
+            throw new IOException( "Corrupt adaptive stream." );
+         return found( raw );
+      }
+
+      node = bit == 1 ? right[node] : left[node];
+      if( left[node] >= 0 )
+         return -1;
+      if( node == nyt ) {
+         raw = 0;
+         rawBits = 0;
+         return -1;
+      }
+      return found( symbol[node] );
+   }
+
+   /**
+    * Updates the tree for a decoded symbol and gets ready for the next.
+    */
+   private int found( int s ) {
+      update( s );
+      startCode();
+      return s;
+   }
+
+   /**
+    * Starts decoding a new code.  Used when a stream starts, and after
+    * FLUSH, once the padding has been skipped.
+    */
+   public void startCode() {
+      node = ROOT;
+      raw = -1;
+      if( nyt == ROOT ) {        // Still empty: the code of NYT has no bits.
+         raw = 0;
+         rawBits = 0;
+      }
+   }
+
+   /**
+    * Adds one to the weight of a symbol, keeping the sibling property.
+    */
+   private void update( int s ) {
+      int q = leaf[s];
+
+      if( q < 0 ) {
+         // Split NYT into a new NYT and a leaf for the symbol.
+         int old = nyt;
+         nyt = old - 2;
+         q = old - 1;
+         left[old] = nyt;
+         right[old] = q;
+         symbol[old] = -1;
+         makeLeaf( nyt, -1, old );
+         makeLeaf( q, s, old );
+         leaf[s] = q;
+      }
+
+      while( true ) {
+         // Move q to the highest number with its weight (but never above its
+         // parent), so that adding one keeps the weights in order.
+         int w = weight[q], top = q;
+         while( top < ROOT && weight[top + 1] == w )
+            top++;
+         if( top == parent[q] )
+            top--;
+         if( top != q ) {
+            swap( q, top );
+            q = top;
+         }
+
+         weight[q]++;
+         if( q == ROOT )
+            break;
+         q = parent[q];
+      }
+
+      if( weight[ROOT] >= MAX_WEIGHT )
+         rescale();
+   }
+
+   /**
+    * Swaps the subtrees at nodes a and b, which keep their places in the
+    * numbering and their parents.
+    */
+   private void swap( int a, int b ) {
+      int t;
+      t = weight[a]; weight[a] = weight[b]; weight[b] = t;
+      t = left[a]; left[a] = left[b]; left[b] = t;
+      t = right[a]; right[a] = right[b]; right[b] = t;
+      t = symbol[a]; symbol[a] = symbol[b]; symbol[b] = t;
+      relink( a );
+      relink( b );
+      if( nyt == a )
+         nyt = b;
+      else if( nyt == b )
+         nyt = a;
+   }
+
+   /**
+    * Points the children or symbol of node n back at n.
+    */
+   private void relink( int n ) {
+      if( left[n] >= 0 ) {
+         parent[left[n]] = n;
+         parent[right[n]] = n;
+      }
+      else if( symbol[n] >= 0 )
+         leaf[symbol[n]] = n;
+   }
+
+   /**
+    * Halves all weights and rebuilds the tree.  Nodes are numbered in the
+    * order a Huffman build takes them off the queue, which gives the
+    * sibling property.
+    */
+   private void rescale() {
+      // The leaves, in order of weight; ties keep their old order.
+      int count = 0;
+      int[] w = new int[NODES], l = new int[NODES], r = new int[NODES], sym = new int[NODES];
+      for( int n = nyt; n <= ROOT; n++ ) {
+         if( left[n] < 0 ) {
+            w[count] = n == nyt ? 0 : ( weight[n] + 1 ) / 2;
+            l[count] = r[count] = -1;
+            sym[count] = symbol[n];
+            count++;
+         }
+      }
+      Integer[] order = new Integer[count];
+      for( int i = 0; i < count; i++ )
+         order[i] = i;
+      final int[] fw = w;
+      java.util.Arrays.sort( order, new java.util.Comparator<Integer>() {
+         public int compare( Integer a, Integer b ) {
+            return fw[a] != fw[b] ? Integer.compare( fw[a], fw[b] ) : Integer.compare( a, b );
+         }
+      } );
+
+      // Two-queue Huffman build over temporary ids; taken[] lists the ids in
+      // the order they are taken, which becomes their numbering.
+      int[] inner = new int[count], taken = new int[2 * count - 1];
+      int nextLeaf = 0, innerHead = 0, innerTail = 0, ntaken = 0, next = count;
+      int[] pair = new int[2];
+      while( ( count - nextLeaf ) + ( innerTail - innerHead ) > 1 ) {
+         for( int k = 0; k < 2; k++ ) {
+            if( innerHead == innerTail || ( nextLeaf < count && w[order[nextLeaf]] <= w[inner[innerHead]] ) )
+               pair[k] = order[nextLeaf++];
+            else
+               pair[k] = inner[innerHead++];
+            taken[ntaken++] = pair[k];
+         }
+         w[next] = w[pair[0]] + w[pair[1]];
+         l[next] = pair[0];
+         r[next] = pair[1];
+         sym[next] = -1;
+         inner[innerTail++] = next++;
+      }
+      taken[ntaken++] = innerHead < innerTail ? inner[innerHead] : order[nextLeaf];
+
+      // Copy into the arrays, the root at the top.
+      int[] place = new int[next];
+      int base = NODES - ntaken;
+      for( int i = 0; i < ntaken; i++ )
+         place[taken[i]] = base + i;
+      for( int i = 0; i < ntaken; i++ ) {
+         int id = taken[i], n = base + i;
+         weight[n] = w[id];
+         symbol[n] = sym[id];
+         left[n] = l[id] < 0 ? -1 : place[l[id]];
+         right[n] = r[id] < 0 ? -1 : place[r[id]];
+      }
+      parent[ROOT] = -1;
+      for( int n = base; n <= ROOT; n++ ) {
+         relink( n );
+         if( left[n] < 0 && symbol[n] < 0 )
+            nyt = n;
+      }
+   }
+
+   /**
+    * Codes everything from in to out, a symbol at a time.  Whenever the
+    * input has nothing more available for the moment, a FLUSH is written
+    * and out flushed, so the decoder gets everything read so far without
+    * waiting for more.  Neither stream is closed.
+    */
+   public static void compress( InputStream in, OutputStream out ) throws IOException {
+      AdaptiveHuffman coder = new AdaptiveHuffman();
+      BitStreamWriter bsw = new BitStreamWriter( out );
+      byte[] buf = new byte[0x10000];
+      int n;
+
+      while( ( n = in.read( buf ) ) > 0 ) {
+         for( int i = 0; i < n; i++ )
+            coder.encode( buf[i] & 0xff, bsw );
+         if( in.available() == 0 ) {
+            coder.encode( FLUSH, bsw );
+            bsw.flush();
+         }
+      }
+
+      coder.encode( EOF, bsw );
+      bsw.flush();
+   }
+
+   /**
+    * Decodes a stream written by compress() from in to out.  Decoded bytes
+    * are flushed to out at every FLUSH.  Neither stream is closed.
+    */
+   public static void decompress( InputStream in, OutputStream out ) throws IOException {
+      AdaptiveHuffman coder = new AdaptiveHuffman();
+      byte[] outbuf = new byte[0x10000];
+      int outpos = 0, b;
+
+      coder.startCode();
+      while( ( b = in.read() ) >= 0 ) {
+         for( int i = 7; i >= 0; i-- ) {
+            int s = coder.decodeBit( ( b >>> i ) & 1 );
+            if( s < 0 )
+               continue;
+
+            if( s == EOF ) {
+               out.write( outbuf, 0, outpos );
+               out.flush();
+               return;
+            }
+            if( s == FLUSH ) {
+               out.write( outbuf, 0, outpos );
+               out.flush();
+               outpos = 0;
+               coder.startCode();
+               break;               // The rest of the byte is padding.
+            }
+
+            outbuf[outpos++] = (byte)s;
+            if( outpos == outbuf.length ) {
+               out.write( outbuf, 0, outpos );
+               outpos = 0;
+            }
+         }
+      }
+      throw new EOFException( "Unexpected end of adaptive stream." );
+   }
+}
@@ -0,0 +1,302 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class to compress or decompress many files in one go, as single-file
+ * containers, several at a time.
+ *
+ * Each file is coded whole on one thread.  The coders, with their buffers
+ * and any shared table, belong to a fixed set of workers that tasks borrow
+ * and give back, so nothing big is allocated per file and at most as many
+ * files are coded at once as there are workers.  Tasks run on a pool of that
+ * many threads, or on virtual threads if asked for and the JVM has them
+ * (they are looked up by reflection, so this still runs on older JVMs).
+ *
+ * A file that fails is reported and any partial output removed, and the
+ * batch goes on with the rest.
+ */
+class BatchCodec implements EncoderSettings {
+   /**
+    * What a batch did.
+    */
+   static class Summary {
+      int files, failed;
+      long bytesIn, bytesOut;
+      long nanos;
+
+      public String toString() {
+         double seconds = nanos / 1e9;
+         return String.format( "%d files, %d failed, %d -> %d bytes in %.2f s (%.1f MB/s)",
+                               files, failed, bytesIn, bytesOut, seconds,
+                               seconds > 0 ? bytesIn / seconds / 1e6 : 0.0 );
+      }
+   }
+
+   /**
+    * The coders a task uses for one file.
+    */
+   private static class Worker {
+      BlockEncoder encoder;
+      BlockDecoder decoder = new BlockDecoder();
+   }
+
+   private int threads, blockSize;
+   private Boolean virtual = false;
+   private CodeTableStore.Table table;    // Shared table to code with, if any.
+   private CodeTableStore tables;         // Where to find shared tables when decoding.
+   private double minSaving = Huffman.MIN_SAVING;
+   private double maxDrift = Double.POSITIVE_INFINITY;   // See BlockEncoder.setMaxDrift().
+   private int order;
+   private String transforms;             // Names of the transforms to run, if any.
+
+   /**
+    * Creates a batch coder that codes up to threads files at once, in blocks
+    * of blockSize bytes.
+    */
+   public BatchCodec( int threads, int blockSize ) {
+      if( threads < 1 )
+         throw new IllegalArgumentException( "Need at least one thread." );
+      BlockEncoder.checkBlockSize( blockSize );
+
+      this.threads = threads;
+      this.blockSize = blockSize;
+   }
+
+   /**
+    * Sets whether tasks run on virtual threads, where the JVM has them.
+    * Returns false if it doesn't, in which case a pool is used anyway.
+    */
+   public Boolean setVirtual( Boolean virtual ) {
+      this.virtual = virtual && virtualExecutor() != null;
+      return this.virtual == virtual;
+   }
+
+   /**
+    * Sets a shared table to code every block with, or null to give each
+    * block its own code.
+    */
+   public void setTable( CodeTableStore.Table table ) {
+      BlockEncoder.checkPayload( blockSize, table, transforms );
+      this.table = table;
+   }
+
+   /**
+    * Sets where shared tables are found when decoding.
+    */
+   public void setTables( CodeTableStore tables ) {
+      this.tables = tables;
+   }
+
+   /**
+    * Sets the least part of a block that coding must save.  See
+    * BlockEncoder.setMinSaving().
+    */
+   public void setMinSaving( double minSaving ) {
+      BlockEncoder.checkMinSaving( minSaving );
+      this.minSaving = minSaving;
+   }
+
+   /**
+    * Sets how much worse than its own code a shared table may code a
+    * block.  See BlockEncoder.setMaxDrift().
+    */
+   public void setMaxDrift( double maxDrift ) {
+      BlockEncoder.checkMaxDrift( maxDrift );
+      this.maxDrift = maxDrift;
+   }
+
+   /**
+    * Sets the order of the model, 0 or 1.  See BlockEncoder.setOrder().
+    */
+   public void setOrder( int order ) {
+      BlockEncoder.checkOrder( order );
+      this.order = order;
+   }
+
+   /**
+    * Sets the transforms each block is run through before coding, by name,
+    * or null for none.  See BlockEncoder.setTransforms().
+    */
+   public void setTransforms( String transforms ) {
+      BlockEncoder.checkPayload( blockSize, table, transforms );
+      this.transforms = transforms;
+   }
+
+   /**
+    * Returns an executor that starts a virtual thread per task, or null if
+    * the JVM has no virtual threads.
+    */
+   static ExecutorService virtualExecutor() {
+      try {
+         return (ExecutorService)Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+      }
+      catch( ReflectiveOperationException e ) {
+         return null;
+      }
+   }
+
+   /**
+    * Turns names into the list of files they stand for.  A name can be a
+    * file; a directory, for every file under it; a glob such as
+    * logs/*.txt or data/**.csv; or @ and the name of a file listing more
+    * names, one per line.  Under directories, only containers are picked
+    * when decoding and everything but containers when encoding.
+    */
+   static List<File> expand( List<String> names, final Boolean encode ) throws IOException {
+      final Set<File> files = new LinkedHashSet<File>();
+
+      for( String name : names ) {
+         if( name.startsWith( "@" ) ) {
+            files.addAll( expand( Files.readAllLines( Paths.get( name.substring( 1 ) ) ), encode ) );
+            continue;
+         }
+
+         // A glob: walk the directory before the first wildcard, and match
+         // what is under it against the rest.
+         int wild = indexOfWildcard( name );
+         if( wild >= 0 ) {
+            int cut = Math.max( name.lastIndexOf( '/', wild ), name.lastIndexOf( File.separatorChar, wild ) ) + 1;
+            final Path base = Paths.get( cut == 0 ? "." : name.substring( 0, cut ) );
+            final PathMatcher matcher = FileSystems.getDefault().getPathMatcher( "glob:" + name.substring( cut ) );
+            if( !Files.isDirectory( base ) )
+               continue;
+
+            Files.walkFileTree( base, new SimpleFileVisitor<Path>() {
+               public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) {
+                  if( attrs.isRegularFile() && matcher.matches( base.relativize( file ) ) )
+                     files.add( file.toFile() );
+                  return FileVisitResult.CONTINUE;
+               }
+            } );
+            continue;
+         }
+
+         File file = new File( name );
+         if( !file.isDirectory() ) {
+            files.add( file );        // If it doesn't exist, that is reported with the rest.
+            continue;
+         }
+
+         Files.walkFileTree( file.toPath(), new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile( Path path, BasicFileAttributes attrs ) {
+               Boolean container = path.toString().endsWith( Huffman.CONTAINER_FILE_EXTENSION );
+               if( attrs.isRegularFile() && container != encode )
+                  files.add( path.toFile() );
+               return FileVisitResult.CONTINUE;
+            }
+         } );
+      }
+      return new ArrayList<File>( files );
+   }
+
+   /**
+    * Returns where the first wildcard in a glob is, or -1 if there is none.
+    */
+   private static int indexOfWildcard( String name ) {
+      for( int i = 0; i < name.length(); i++ ) {
+         if( "*?[{".indexOf( name.charAt( i ) ) >= 0 )
+            return i;
+      }
+      return -1;
+   }
+
+   /**
+    * Compresses (if encode) or decompresses every file, each to the name
+    * Huffman.containerOutputName() gives it.  Failures are written to log as
+    * they happen, and don't stop the rest.
+    */
+   public Summary run( List<File> files, final Boolean encode, final PrintStream log ) throws IOException {
+      final BlockingQueue<Worker> workers = new ArrayBlockingQueue<Worker>( threads );
+      for( int i = 0; i < threads; i++ ) {
+         Worker w = new Worker();
+         if( encode ) {
+            w.encoder = new BlockEncoder( blockSize, Huffman.MAX_CODE_LENGTH );
+            w.encoder.setTable( table );
+            w.encoder.setMinSaving( minSaving );
+            w.encoder.setMaxDrift( maxDrift );
+            w.encoder.setOrder( order );
+            w.encoder.setTransforms( transforms );
+         }
+         w.decoder.setTables( tables );
+         workers.add( w );
+      }
+
+      ExecutorService pool = virtual ? virtualExecutor() : Executors.newFixedThreadPool( threads, new ThreadFactory() {
+         public Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, "huffman-batch" );
+            t.setDaemon( true );
+            return t;
+         }
+      } );
+
+      final Summary summary = new Summary();
+      long start = System.nanoTime();
+      try {
+         List<Future<long[]>> done = new ArrayList<Future<long[]>>();
+         for( final File file : files ) {
+            done.add( pool.submit( new Callable<long[]>() {
+               public long[] call() throws InterruptedException {
+                  Worker w = workers.take();
+                  try {
+                     return code( w, file, encode );
+                  }
+                  catch( IOException e ) {
+                     log.println( file + ": " + e.getMessage() );
+                  }
+                  catch( RuntimeException e ) {
+                     log.println( file + ": " + e );
+                  }
+                  finally {
+                     workers.add( w );
+                  }
+                  return null;
+               }
+            } ) );
+         }
+
+         for( Future<long[]> f : done ) {
+            long[] sizes = await( f );
+            summary.files++;
+            if( sizes == null )
+               summary.failed++;
+            else {
+               summary.bytesIn += sizes[0];
+               summary.bytesOut += sizes[1];
+            }
+         }
+      }
+      finally {
+         pool.shutdownNow();
+      }
+      summary.nanos = System.nanoTime() - start;
+      return summary;
+   }
+
+   /**
+    * Codes one file with a worker's coders.  Returns the bytes read and
+    * written.
+    */
+   private static long[] code( Worker w, File file, Boolean encode ) throws IOException {
+      File output = new File( Huffman.containerOutputName( file.getPath(), encode ) );
+      return Huffman.codeFile( file, output, encode, w.encoder, w.decoder, 0x10000 );
+   }
+
+   /**
+    * Waits for a file to be done.
+    */
+   private static long[] await( Future<long[]> f ) throws IOException {
+      try {
+         return f.get();
+      }
+      catch( InterruptedException e ) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException( "Interrupted." );
+      }
+      catch( ExecutionException e ) {
+         throw new IOException( e.getCause() );
+      }
+   }
+}
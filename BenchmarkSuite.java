@@ -0,0 +1,312 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * The standard benchmark suite: times every main code path over a fixed
+ * corpus, and compares the results with an earlier run.
+ *
+ * The corpus is random, text-like, skewed (each byte value half as likely as
+ * the one before), single-value and empty inputs, at several sizes, always
+ * generated from the same seed.  For each benchmark the best of several runs
+ * is reported in MB/s of input, together with the bytes allocated per run
+ * and the allocation rate.  Results can be saved as CSV, and a saved CSV
+ * given as the baseline to print the change against it.
+ *
+ * The same benchmarks run under JMH from jmh/; see jmh/pom.xml.
+ *
+ * Usage: java BenchmarkSuite [-s <sizes in KiB, comma separated>]
+ *                            [-o <results.csv>] [-b <baseline.csv>]
+ */
+class BenchmarkSuite {
+   static final String[] KINDS = { "random", "text", "skewed", "single", "empty" };
+   static final int MIN_TIME_MS = 300;    // Keep repeating a benchmark for at least this long.
+
+   private File dir;                      // Where the corpus and outputs go.
+   private PrintStream csv;               // Where results are saved, if anywhere.
+   private Map<String, double[]> baseline = new HashMap<String, double[]>();
+
+   /**
+    * Makes size bytes of the given kind of input.  HuffmanBenchmark and the
+    * JMH benchmarks draw their inputs from here too.
+    */
+   static byte[] corpus( String kind, int size ) {
+      Random rnd = new Random( 42 );
+      byte[] data = new byte[kind.equals( "empty" ) ? 0 : size];
+
+      if( kind.equals( "random" ) )
+         rnd.nextBytes( data );
+      else if( kind.equals( "text" ) ) {
+         String alphabet = "eeeeeeeeeetttttttaaaaaaoooooiiiiinnnnnsssssrrrrhhhhlllddcumfpgwybvkxjqz      \n.,EAT";
+         for( int i = 0; i < data.length; i++ )
+            data[i] = (byte)alphabet.charAt( rnd.nextInt( alphabet.length() ) );
+      }
+      else if( kind.equals( "skewed" ) ) {
+         for( int i = 0; i < data.length; i++ )
+            data[i] = (byte)Math.min( Long.numberOfTrailingZeros( rnd.nextLong() | ( 1L << 62 ) ), 0xff );
+      }
+      else if( kind.equals( "single" ) )
+         Arrays.fill( data, (byte)'x' );
+
+      return data;
+   }
+
+   /**
+    * Times one benchmark and reports it.  bytes is the input size the
+    * throughput is counted over.
+    */
+   void measure( String name, String input, long bytes, HuffmanBenchmark.Task task ) throws IOException {
+      long alloc = HuffmanBenchmark.allocation( task );   // Also warms up.
+
+      long best = Long.MAX_VALUE, total = 0;
+      for( int runs = 0; runs < HuffmanBenchmark.RUNS || total < MIN_TIME_MS * 1000000L; runs++ ) {
+         long start = System.nanoTime();
+         task.run();
+         long t = System.nanoTime() - start;
+         best = Math.min( best, t );
+         total += t;
+      }
+
+      double ms = best / 1e6;
+      double mbps = bytes / 1e6 / ( best / 1e9 );
+      String key = name + "," + input;
+      String change = "";
+
+      double[] base = baseline.get( key );
+      if( base != null )
+         change = String.format( "  %+7.1f%% time  %+10.0f B alloc", 100 * ( ms - base[0] ) / base[0], alloc - base[2] );
+
+      System.out.printf( "%-24s %-14s %10.3f ms %9.1f MB/s %12d B alloc %9.1f MB/s alloc%s%n",
+                         name, input, ms, mbps, alloc, alloc / 1e6 / ( best / 1e9 ), change );
+      if( csv != null )
+         csv.printf( Locale.ROOT, "%s,%.4f,%.2f,%d%n", key, ms, mbps, alloc );
+   }
+
+   /**
+    * Reads a CSV written by an earlier run.
+    */
+   void loadBaseline( String filename ) throws IOException {
+      BufferedReader in = new BufferedReader( new FileReader( filename ) );
+      try {
+         String line;
+         while( ( line = in.readLine() ) != null ) {
+            String[] f = line.split( "," );
+            if( f.length != 5 || f[0].equals( "benchmark" ) )
+               continue;
+            baseline.put( f[0] + "," + f[1], new double[] {
+               Double.parseDouble( f[2] ), Double.parseDouble( f[3] ), Double.parseDouble( f[4] ) } );
+         }
+      }
+      finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Names a corpus file in results, as in "text-256K".
+    */
+   static String input( String kind, int size ) {
+      return kind + ( kind.equals( "empty" ) ? "" : "-" + ( size >> 10 ) + "K" );
+   }
+
+   /**
+    * Returns every benchmark on one corpus file, by name, in the order they
+    * run.  Their files go in dir.
+    */
+   static Map<String, HuffmanBenchmark.Task> tasks( String kind, int size, File dir ) throws IOException {
+      final byte[] data = corpus( kind, size );
+      final String input = input( kind, size );
+      final long bytes = data.length;
+      final File file = HuffmanBenchmark.writeFile( dir, input, data );
+      final String name = file.getPath();
+      final File out = new File( dir, input + ".out" );
+
+      Map<String, HuffmanBenchmark.Task> tasks = new LinkedHashMap<String, HuffmanBenchmark.Task>();
+
+      final long[] frequencies = new long[0x100];
+      for( byte b : data )
+         frequencies[b & 0xff]++;
+
+      // The two-file format.
+      tasks.put( "HuffmanEncode", new HuffmanBenchmark.Task() {
+         public void run() throws IOException {
+            Huffman.HuffmanEncode( name );
+         }
+      } );
+      if( bytes > 0 ) {
+         Huffman.HuffmanEncode( name );
+         tasks.put( "HuffmanDecode", new HuffmanBenchmark.Task() {
+            public void run() throws IOException {
+               Huffman.HuffmanDecode( name + Huffman.TREE_FILE_EXTENSION, name + Huffman.ENC_FILE_EXTENSION, out.getPath() );
+            }
+         } );
+      }
+
+      // Counting alone, in memory and from the file.
+      final ByteHistogram histogram = new ByteHistogram();
+      tasks.put( "ByteHistogram", new HuffmanBenchmark.Task() {
+         public void run() {
+            histogram.clear();
+            histogram.add( data, 0, data.length );
+         }
+      } );
+      tasks.put( "ByteHistogram.of", new HuffmanBenchmark.Task() {
+         public void run() throws IOException {
+            ByteHistogram.of( name );
+         }
+      } );
+
+      // Code construction.
+      tasks.put( "HuffmanTree.build", new HuffmanBenchmark.Task() {
+         public void run() {
+            Huffman.buildTree( frequencies );
+         }
+      } );
+      if( bytes > 0 ) {
+         final HuffmanTree htree = Huffman.buildTree( frequencies );
+         tasks.put( "getDictionary", new HuffmanBenchmark.Task() {
+            public void run() {
+               htree.getDictionary();
+            }
+         } );
+      }
+
+      // The single-file container.
+      final ByteArrayOutputStream container = new ByteArrayOutputStream();
+      final BlockEncoder encoder = new BlockEncoder();
+      final BlockDecoder decoder = new BlockDecoder();
+      tasks.put( "BlockEncoder", new HuffmanBenchmark.Task() {
+         public void run() throws IOException {
+            container.reset();
+            encoder.compress( new ByteArrayInputStream( data ), container );
+         }
+      } );
+      encoder.compress( new ByteArrayInputStream( data ), container );
+      final byte[] coded = container.toByteArray();
+      tasks.put( "BlockDecoder", new HuffmanBenchmark.Task() {
+         public void run() throws IOException {
+            decoder.decompress( new ByteArrayInputStream( coded ), new HuffmanBenchmark.NullOutputStream() );
+         }
+      } );
+
+      // Four interleaved code streams per block.
+      final BlockEncoder encoder4 = new BlockEncoder( BlockFormat.DEFAULT_BLOCK_SIZE, Huffman.MAX_CODE_LENGTH, 4 );
+      container.reset();
+      encoder4.compress( new ByteArrayInputStream( data ), container );
+      final byte[] coded4 = container.toByteArray();
+      tasks.put( "BlockDecoder.4streams", new HuffmanBenchmark.Task() {
+         public void run() throws IOException {
+            decoder.decompress( new ByteArrayInputStream( coded4 ), new HuffmanBenchmark.NullOutputStream() );
+         }
+      } );
+
+      // Raw bit I/O, over as many bits as there are in the input.
+      tasks.put( "BitFileWriter.writeBit", new HuffmanBenchmark.Task() {
+         public void run() throws IOException {
+            BitFileWriter w = new BitFileWriter( out.getPath() );
+            for( int i = 0; i < data.length; i++ ) {
+               for( int j = 7; j >= 0; j-- )
+                  w.writeBit( ( ( data[i] >> j ) & 1 ) == 1 );
+            }
+            w.close();
+         }
+      } );
+      tasks.put( "BitFileWriter.writeByte", new HuffmanBenchmark.Task() {
+         public void run() throws IOException {
+            BitFileWriter w = new BitFileWriter( out.getPath() );
+            for( int i = 0; i < data.length; i++ )
+               w.writeByte( data[i] & 0xff );
+            w.close();
+         }
+      } );
+      tasks.put( "BitFileReader.readBit", new HuffmanBenchmark.Task() {
+         public void run() throws IOException {
+            BitFileReader r = new BitFileReader( name );
+            while( !r.isAtEnd() )
+               r.readBit();
+            r.close();
+         }
+      } );
+      tasks.put( "BitFileReader.readByte", new HuffmanBenchmark.Task() {
+         public void run() throws IOException {
+            BitFileReader r = new BitFileReader( name );
+            while( !r.isAtEnd() )
+               r.readByte();
+            r.close();
+         }
+      } );
+      return tasks;
+   }
+
+   /**
+    * Returns the benchmarks as above, as Callables for code outside the
+    * default package: the JMH benchmarks.
+    */
+   public static Map<String, java.util.concurrent.Callable<Object>> callables( String kind, int size, File dir ) throws IOException {
+      Map<String, java.util.concurrent.Callable<Object>> callables = new LinkedHashMap<String, java.util.concurrent.Callable<Object>>();
+      for( Map.Entry<String, HuffmanBenchmark.Task> e : tasks( kind, size, dir ).entrySet() ) {
+         final HuffmanBenchmark.Task task = e.getValue();
+         callables.put( e.getKey(), new java.util.concurrent.Callable<Object>() {
+            public Object call() throws IOException {
+               task.run();
+               return null;
+            }
+         } );
+      }
+      return callables;
+   }
+
+   /**
+    * Runs every benchmark on one corpus file.
+    */
+   void run( String kind, int size ) throws IOException {
+      String input = input( kind, size );
+      long bytes = corpus( kind, size ).length;
+      for( Map.Entry<String, HuffmanBenchmark.Task> e : tasks( kind, size, dir ).entrySet() )
+         measure( e.getKey(), input, bytes, e.getValue() );
+   }
+
+   public static void main( String[] args ) throws IOException {
+      int[] sizes = { 4 << 10, 256 << 10, 4 << 20 };
+      String output = null, base = null;
+
+      for( int i = 0; i + 1 < args.length; i += 2 ) {
+         if( args[i].equals( "-s" ) ) {
+            String[] s = args[i + 1].split( "," );
+            sizes = new int[s.length];
+            for( int j = 0; j < s.length; j++ )
+               sizes[j] = Integer.parseInt( s[j].trim() ) << 10;
+         }
+         else if( args[i].equals( "-o" ) )
+            output = args[i + 1];
+         else if( args[i].equals( "-b" ) )
+            base = args[i + 1];
+      }
+
+      BenchmarkSuite suite = new BenchmarkSuite();
+      suite.dir = java.nio.file.Files.createTempDirectory( "huffsuite" ).toFile();
+      if( base != null )
+         suite.loadBaseline( base );
+      if( output != null ) {
+         suite.csv = new PrintStream( new FileOutputStream( output ) );
+         suite.csv.println( "benchmark,input,ms,MBps,allocBytes" );
+      }
+
+      try {
+         for( String kind : KINDS ) {
+            if( kind.equals( "empty" ) )
+               suite.run( kind, 0 );
+            else {
+               for( int size : sizes )
+                  suite.run( kind, size );
+            }
+         }
+      }
+      finally {
+         if( suite.csv != null )
+            suite.csv.close();
+         for( File f : suite.dir.listFiles() )
+            f.delete();
+         suite.dir.delete();
+      }
+   }
+}
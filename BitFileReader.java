@@ -1,20 +1,18 @@
 import java.io.*;
 
 /**
- * Class to read from a file bit by bit.
+ * Class to read from a file bit by bit.  The actual work is done by a
+ * BitStreamReader, which can also read many bits at a time.
  */
 public class BitFileReader {
-   private BufferedInputStream reader; // Our internal file reader.
-   private Integer lastReadBit,        // How many bits remain to be read from the buffered byte.
-            lastReadByte;              // The buffered byte read from the file.
+   private BitStreamReader reader;     // Our internal bit reader.
 
    /**
     * Creates a BitFileReader object from a file name; opens the file for reading.
     */
    public BitFileReader( String filename ) throws FileNotFoundException, SecurityException, IOException {
-      reader = new BufferedInputStream( new FileInputStream( filename ) );
-      loadByte();       // Load the first byte into the buffer.
-      lastReadBit = 8;  // Nothing read yet, there are still 8 bits left to read from the byte.
+      reader = new BitStreamReader( new FileInputStream( filename ) );
+      reader.fill();    // Load the first bits, so isAtEnd() knows if there are any.
    }
 
    /**
@@ -22,50 +20,55 @@ public class BitFileReader {
     * and true if it was 1.
     */
    public Boolean readBit() throws IOException {
-      // The bit we want is counted from the end.
-      Integer lastBit = ( ( lastReadByte >> --lastReadBit ) & 1 );
-
-      // If lastReadBit is 0 we need to read a new byte.
-      if( lastReadBit == 0 ) {
-         loadByte();
-         lastReadBit = 8;
-      }
-
-      return lastBit == 1;
+      Boolean bit = reader.readBit() == 1;
+      if( reader.buffered() == 0 )
+         reader.fill();
+      return bit;
    }
 
    /**
     * Reads 8 bits from the file and returns them as an integer.
     */
    public Integer readByte() throws IOException {
-      Integer last = lastReadByte;     // We're going to need to load one more
-      loadByte();                      // byte no matter what.
+      return readBits( 8 );
+   }
 
-      // Since we are reading 8 bits, lastReadBit will stay the same.  Just combine
-      // the bits we need from the previous and the new read byte.
-      return ( ( last << ( 8 - lastReadBit ) ) | ( lastReadByte >> lastReadBit ) ) & 0xff;
+   /**
+    * Reads the next n bits (at most 32) from the file.
+    */
+   public int readBits( int n ) throws IOException {
+      int bits = reader.readBits( n );
+      if( reader.buffered() == 0 )
+         reader.fill();
+      return bits;
    }
 
    /**
-    * Returns true iff the file-reading has reached EOF.
+    * Returns the next n bits (at most 32) without reading them.
     */
-   public Boolean isAtEnd() {
-      return lastReadByte == -1 || reader == null;
+   public int peekBits( int n ) throws IOException {
+      return reader.peekBits( n );
    }
 
    /**
-    * Closes the file reader.  Always do this when you're done!
+    * Skips the next n bits (at most 32).
     */
-   public void close() throws IOException{
-      if( reader != null )
-         reader.close();
+   public void skipBits( int n ) throws IOException {
+      readBits( n );
    }
 
    /**
-    * Reads a byte from the file and stores it in the buffer.
+    * Returns true iff the file-reading has reached EOF.
     */
-   protected void loadByte() throws IOException {
-      lastReadByte = reader.read();
+   public Boolean isAtEnd() {
+      return reader.buffered() == 0;
+   }
+
+   /**
+    * Closes the file reader.  Always do this when you're done!
+    */
+   public void close() throws IOException{
+      reader.close();
    }
 
    /**
@@ -0,0 +1,178 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads bits from a stream or buffer, many at a time.
+ *
+ * Bytes are loaded from a large buffer into a 64-bit accumulator, and
+ * readBits(), peekBits() and skipBits() work on the accumulator with a few
+ * shifts.  Bits are read most significant first, the same order that
+ * BitFileReader has always used.  Reading past the end gives 0 bits.
+ */
+class BitStreamReader {
+   static final int BUFFER_SIZE = 0x10000;
+
+   private InputStream in;       // Where to load more bytes from, if anywhere.
+   private ByteBuffer source;    // Or a direct buffer to copy bytes from.
+   private byte[] buf;           // Bytes loaded but not yet in the accumulator.
+   private int pos, len;         // Position and end of the unread bytes in buf.
+   private long acc;             // The accumulator; the next bit is bit count - 1.
+   private int count;            // How many bits in acc are still unread.
+   private long loaded;          // How many bytes have gone into acc in total.
+
+   /**
+    * Creates a reader on an input stream.
+    */
+   public BitStreamReader( InputStream in ) {
+      this.in = in;
+      buf = new byte[BUFFER_SIZE];
+   }
+
+   /**
+    * Creates a reader on part of a byte array.  The array is not copied.
+    */
+   public BitStreamReader( byte[] data, int off, int length ) {
+      buf = data;
+      pos = off;
+      len = off + length;
+   }
+
+   /**
+    * Creates a reader on the remaining bytes of a buffer.  Heap buffers are
+    * read in place; direct buffers are copied a chunk at a time.  The
+    * buffer's position is not changed.
+    */
+   public BitStreamReader( ByteBuffer data ) {
+      if( data.hasArray() ) {
+         buf = data.array();
+         pos = data.arrayOffset() + data.position();
+         len = data.arrayOffset() + data.limit();
+      }
+      else {
+         source = data.slice();
+         buf = new byte[BUFFER_SIZE];
+      }
+   }
+
+   /**
+    * Loads more bytes into buf.  Returns false if there are none.
+    */
+   private Boolean load() throws IOException {
+      if( in != null ) {
+         int n = in.read( buf, 0, buf.length );
+         pos = 0;
+         len = Math.max( n, 0 );
+      }
+      else if( source != null ) {
+         int n = Math.min( buf.length, source.remaining() );
+         source.get( buf, 0, n );
+         pos = 0;
+         len = n;
+      }
+      return pos < len;
+   }
+
+   /**
+    * Tops up the accumulator so that it holds more than 32 bits, unless the
+    * input runs out first.  Returns the number of bits buffered.
+    */
+   public int fill() throws IOException {
+      if( count > 32 )
+         return count;
+
+      // Fast path: load four bytes at once.
+      if( len - pos >= 4 ) {
+         acc = ( acc << 32 ) | ( ( buf[pos] & 0xffL ) << 24 ) | ( ( buf[pos + 1] & 0xff ) << 16 )
+                            | ( ( buf[pos + 2] & 0xff ) << 8 ) | ( buf[pos + 3] & 0xff );
+         pos += 4;
+         count += 32;
+         loaded += 4;
+         return count;
+      }
+
+      while( count <= 56 ) {
+         if( pos == len && !load() )
+            break;
+         acc = ( acc << 8 ) | ( buf[pos++] & 0xff );
+         count += 8;
+         loaded++;
+      }
+      return count;
+   }
+
+   /**
+    * Returns the number of bits currently buffered.  fill() first to be sure
+    * this is as many as there are.
+    */
+   public int buffered() {
+      return count;
+   }
+
+   /**
+    * Returns the next n bits (at most 32) without consuming them.  Bits past
+    * the end of the input read as 0.
+    */
+   public int peekBits( int n ) throws IOException {
+      if( count < n )
+         fill();
+      if( count >= n )
+         return (int)( acc >>> ( count - n ) ) & (int)( ( 1L << n ) - 1 );
+      return (int)( acc << ( n - count ) ) & (int)( ( 1L << n ) - 1 );
+   }
+
+   /**
+    * Consumes n bits (at most 32).
+    */
+   public void skipBits( int n ) throws IOException {
+      if( count < n )
+         fill();
+      count = Math.max( count - n, 0 );
+   }
+
+   /**
+    * Reads the next n bits (at most 32).
+    */
+   public int readBits( int n ) throws IOException {
+      int bits = peekBits( n );
+      count = Math.max( count - n, 0 );
+      return bits;
+   }
+
+   /**
+    * Reads a single bit.
+    */
+   public int readBit() throws IOException {
+      if( count == 0 && fill() == 0 )
+         return 0;
+      return (int)( acc >>> --count ) & 1;
+   }
+
+   /**
+    * Skips to the next byte boundary.
+    */
+   public void alignToByte() {
+      count -= count & 7;
+   }
+
+   /**
+    * Returns true if all bits have been read.
+    */
+   public Boolean isAtEnd() throws IOException {
+      return count == 0 && fill() == 0;
+   }
+
+   /**
+    * Returns the number of bits read so far.
+    */
+   public long position() {
+      return loaded * 8 - count;
+   }
+
+   /**
+    * Closes the underlying stream, if any.
+    */
+   public void close() throws IOException {
+      if( in != null )
+         in.close();
+   }
+}
@@ -0,0 +1,184 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes bits to a stream or buffer, many at a time.
+ *
+ * Codes are shifted into a 64-bit accumulator and moved to a large byte
+ * buffer a word at a time.  Bits are written most significant first, the
+ * same order that BitFileWriter has always used, and the last byte is padded
+ * with 0s.
+ *
+ * On a channel, full buffers are gathered in a large direct buffer, so the
+ * file gets a few big writes and no hidden copies.
+ */
+class BitStreamWriter {
+   static final int BUFFER_SIZE = 0x10000;
+   static final int CHANNEL_BUFFER_SIZE = 0x100000;   // 1 MB of direct buffer per channel.
+
+   private OutputStream out;     // Where full buffers go, if anywhere.
+   private WritableByteChannel channel;   // Or the channel target is written to.
+   private ByteBuffer target;    // Or the buffer to write into.
+   private byte[] buf;           // Bytes not yet written out.
+   private int pos;              // Number of bytes in buf.
+   private long acc;             // The accumulator; the low count bits are pending.
+   private int count;            // Number of pending bits in acc.
+   private long written;         // Number of bytes written out of buf so far.
+
+   /**
+    * Creates a writer on an output stream.
+    */
+   public BitStreamWriter( OutputStream out ) {
+      this.out = out;
+      buf = new byte[BUFFER_SIZE];
+   }
+
+   /**
+    * Creates a writer that puts its bytes in a buffer, starting at the
+    * buffer's position.  The position is moved as bytes are written out, at
+    * the latest by flush().
+    */
+   public BitStreamWriter( ByteBuffer target ) {
+      this.target = target;
+      buf = new byte[BUFFER_SIZE];
+   }
+
+   /**
+    * Creates a writer on a channel, such as a FileChannel.
+    */
+   public BitStreamWriter( WritableByteChannel channel ) {
+      this.channel = channel;
+      target = ByteBuffer.allocateDirect( CHANNEL_BUFFER_SIZE );
+      buf = new byte[BUFFER_SIZE];
+   }
+
+   /**
+    * Starts over on a new target buffer, reusing this writer's own buffer.
+    * Anything not flushed yet is thrown away.
+    */
+   public void reset( ByteBuffer target ) {
+      this.out = null;
+      this.channel = null;
+      this.target = target;
+      pos = 0;
+      acc = 0;
+      count = 0;
+      written = 0;
+   }
+
+   /**
+    * Moves the buffered bytes to the stream or target buffer.
+    */
+   private void drain() throws IOException {
+      if( out != null )
+         out.write( buf, 0, pos );
+      else {
+         if( channel != null && target.remaining() < pos )
+            writeChannel();
+         target.put( buf, 0, pos );
+      }
+      written += pos;
+      pos = 0;
+   }
+
+   /**
+    * Writes the direct buffer to the channel.
+    */
+   private void writeChannel() throws IOException {
+      target.flip();
+      while( target.hasRemaining() )
+         channel.write( target );
+      target.clear();
+   }
+
+   /**
+    * Moves whole bytes from the accumulator to buf, leaving fewer than 8
+    * pending bits.
+    */
+   private void spill() throws IOException {
+      if( pos > buf.length - 8 )
+         drain();
+
+      if( count >= 32 ) {
+         count -= 32;
+         int word = (int)( acc >>> count );
+         buf[pos] = (byte)( word >>> 24 );
+         buf[pos + 1] = (byte)( word >>> 16 );
+         buf[pos + 2] = (byte)( word >>> 8 );
+         buf[pos + 3] = (byte)word;
+         pos += 4;
+      }
+      while( count >= 8 ) {
+         count -= 8;
+         buf[pos++] = (byte)( acc >>> count );
+      }
+   }
+
+   /**
+    * Writes the low len bits of code, most significant first.
+    */
+   public void writeBits( long code, int len ) throws IOException {
+      if( len == 0 )
+         return;
+      if( len > 56 ) {                    // Too big to add in one go; split it.
+         writeBits( code >>> 32, len - 32 );
+         len = 32;
+      }
+      if( count + len > 64 )
+         spill();
+
+      acc = ( acc << len ) | ( code & ( -1L >>> ( 64 - len ) ) );
+      count += len;
+   }
+
+   /**
+    * Writes a single bit.
+    */
+   public void writeBit( int bit ) throws IOException {
+      if( count == 64 )
+         spill();
+      acc = ( acc << 1 ) | ( bit & 1 );
+      count++;
+   }
+
+   /**
+    * Pads with 0s up to the next byte boundary.
+    */
+   public void alignToByte() throws IOException {
+      if( ( count & 7 ) != 0 )
+         writeBits( 0, 8 - ( count & 7 ) );
+   }
+
+   /**
+    * Returns the number of bits written so far.
+    */
+   public long position() {
+      return ( written + pos ) * 8 + count;
+   }
+
+   /**
+    * Pads the last byte and writes everything out.  The stream is flushed
+    * but not closed.
+    */
+   public void flush() throws IOException {
+      alignToByte();
+      spill();
+      drain();
+      if( out != null )
+         out.flush();
+      else if( channel != null )
+         writeChannel();
+   }
+
+   /**
+    * Flushes and closes the underlying stream or channel, if any.
+    */
+   public void close() throws IOException {
+      flush();
+      if( out != null )
+         out.close();
+      else if( channel != null )
+         channel.close();
+   }
+}
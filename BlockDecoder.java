@@ -0,0 +1,292 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Class to read the single-file block container described in BlockFormat.
+ *
+ * Blocks are decoded one at a time into a buffer that is reused, so memory
+ * use only depends on the largest block.  A decoder can be reused for any
+ * number of streams, but not by several threads at once.
+ */
+class BlockDecoder {
+   private byte[] payload = new byte[0];  // The coded block.
+   private byte[] block = new byte[0];    // The decoded block.
+   private CRC32 crc = new CRC32();
+   private Scratch scratch = new Scratch();
+   private Header header = new Header();
+   private CodeTableStore tables;         // Where to find shared tables, if anywhere.
+   private ByteBufferInputStream source;  // For decode(); kept for the next call.
+   private long consumed;                 // Container bytes readBlock() has read, for HuffmanEvents.
+
+   /**
+    * Sets where to find the shared tables that SHARED blocks refer to.
+    */
+   public void setTables( CodeTableStore tables ) {
+      this.tables = tables;
+   }
+
+   /**
+    * Reads and checks the container header.
+    */
+   public void readHeader( InputStream in ) throws IOException {
+      int magic = BlockFormat.readInt( in );
+      if( ( magic >>> 8 ) != BlockFormat.MAGIC )
+         throw new IOException( "Not a Huffman container." );
+      if( ( magic & 0xff ) != BlockFormat.VERSION )
+         throw new IOException( "Unsupported container version " + ( magic & 0xff ) + "." );
+   }
+
+   /**
+    * The fields of a block header.
+    */
+   static class Header {
+      int type, rawLength, payloadLength, checksum;
+   }
+
+   /**
+    * What decoding TRANSFORMED blocks needs, kept by each decoder from one
+    * block to the next so that nothing is allocated per block: the last
+    * chain, which is used again while blocks have the same one, and the
+    * buffer for the bytes before it is undone.
+    */
+   static class Scratch {
+      private byte[] ids = new byte[0];     // Of chain.
+      private TransformChain chain;
+      private Header inner = new Header();
+      private byte[] transformed = new byte[0];
+   }
+
+   /**
+    * Reads a block header into h, checking that the lengths make sense.
+    * Returns h.
+    */
+   static Header readHeader( InputStream in, Header h ) throws IOException {
+      h.type = in.read();
+      if( h.type < 0 )
+         throw new EOFException( "Unexpected end of container." );
+
+      h.rawLength = BlockFormat.readInt( in );
+      h.payloadLength = BlockFormat.readInt( in );
+      h.checksum = BlockFormat.readInt( in );
+
+      if( h.type < BlockFormat.END || h.type > BlockFormat.TRANSFORMED )
+         throw new IOException( "Unknown block type " + h.type + "." );
+      if( h.rawLength < 0 || h.rawLength > BlockFormat.MAX_BLOCK_SIZE
+          || h.payloadLength < 0 || h.payloadLength > BlockFormat.MAX_PAYLOAD_SIZE
+          || ( h.type == BlockFormat.INDEX && h.rawLength != 0 )
+          || ( h.type == BlockFormat.STORED && h.rawLength != h.payloadLength ) )
+         throw new IOException( "Corrupt block header." );
+
+      return h;
+   }
+
+   /**
+    * Reads and decodes the next block.  Returns the number of decoded bytes,
+    * which are in getBuffer(), or -1 at the end of the container.
+    */
+   public int readBlock( InputStream in ) throws IOException {
+      readHeader( in, header );
+      consumed += BlockFormat.HEADER_SIZE + header.payloadLength;
+      if( header.type == BlockFormat.INDEX ) {
+         // Only of use to readers that seek; the end follows.
+         BlockFormat.skipFully( in, header.payloadLength );
+         readHeader( in, header );
+         consumed += BlockFormat.HEADER_SIZE;
+         if( header.type != BlockFormat.END )
+            throw new IOException( "Block after the block index." );
+      }
+      if( header.type == BlockFormat.END )
+         return -1;
+
+      // The header's lengths are only trusted this far: the buffers grow as
+      // the payload arrives, and the decoded block's is made once it has.
+      if( header.type == BlockFormat.STORED ) {
+         // Straight into the decoded buffer; there is nothing to decode.
+         block = BlockFormat.readGrowing( in, block, header.rawLength );
+         checkBlock( header, block, crc );
+         return header.rawLength;
+      }
+
+      payload = BlockFormat.readGrowing( in, payload, header.payloadLength );
+      if( block.length < header.rawLength )
+         block = new byte[header.rawLength];
+      decodeBlock( header, payload, 0, block, crc, scratch, tables );
+      return header.rawLength;
+   }
+
+   /**
+    * Decodes the payload of a block, starting at off in payload, into the
+    * first h.rawLength bytes of out, and checks the checksum.  Shared tables
+    * are looked up in tables, and transforms are undone with scratch.
+    */
+   static void decodeBlock( Header h, byte[] payload, int off, byte[] out, CRC32 crc, Scratch scratch, CodeTableStore tables ) throws IOException {
+      decodePayload( h, payload, off, out, scratch, tables );
+      checkBlock( h, out, crc );
+   }
+
+   /**
+    * Decodes the payload of a block as above, without the checksum.
+    */
+   private static void decodePayload( Header h, byte[] payload, int off, byte[] out, Scratch scratch, CodeTableStore tables ) throws IOException {
+      if( h.type == BlockFormat.STORED )
+         System.arraycopy( payload, off, out, 0, h.rawLength );
+      else if( h.type == BlockFormat.TRANSFORMED )
+         decodeTransformed( h, payload, off, out, scratch, tables );
+      else if( h.type == BlockFormat.CONTEXT ) {
+         BitStreamReader bsr = new BitStreamReader( payload, off, h.payloadLength );
+         ContextCode code = ContextCode.read( bsr );
+         bsr.alignToByte();
+         code.decode( bsr, out, 0, h.rawLength );
+      }
+      else if( h.type == BlockFormat.SHARED ) {
+         if( h.payloadLength < 4 )
+            throw new IOException( "Corrupt block." );
+         if( tables == null )
+            throw new IOException( "Block needs a shared code table, but none were given." );
+
+         int id = ( ( payload[off] & 0xff ) << 24 ) | ( ( payload[off + 1] & 0xff ) << 16 )
+                | ( ( payload[off + 2] & 0xff ) << 8 ) | ( payload[off + 3] & 0xff );
+         decodeStreams( tables.get( id ).decoder, payload, off + 4, off + h.payloadLength, out, h.rawLength );
+      }
+      else {
+         BitStreamReader bsr = new BitStreamReader( payload, off, h.payloadLength );
+         HuffmanDecoder decoder = new HuffmanDecoder( CanonicalCode.read( bsr ) );
+         bsr.alignToByte();
+
+         if( h.type == BlockFormat.HUFFMAN )
+            decoder.decode( bsr, out, 0, h.rawLength );
+         else
+            decodeStreams( decoder, payload, off + (int)( bsr.position() >>> 3 ), off + h.payloadLength, out, h.rawLength );
+      }
+   }
+
+   /**
+    * Decodes a TRANSFORMED block: the transformed bytes as the block inside
+    * says, then back through the transforms into out.
+    */
+   private static void decodeTransformed( Header h, byte[] payload, int off, byte[] out, Scratch scratch, CodeTableStore tables ) throws IOException {
+      int end = off + h.payloadLength;
+      int n = off < end ? payload[off] & 0xff : 0;
+      if( off + 1 + n + 5 > end )
+         throw new IOException( "Corrupt block." );
+      if( !Arrays.equals( scratch.ids, 0, scratch.ids.length, payload, off + 1, off + 1 + n ) ) {
+         scratch.chain = TransformChain.read( payload, off + 1, n );
+         scratch.ids = Arrays.copyOfRange( payload, off + 1, off + 1 + n );
+      }
+      TransformChain chain = scratch.chain;
+
+      Header inner = scratch.inner;
+      int p = off + 1 + n;
+      inner.rawLength = ( ( payload[p] & 0xff ) << 24 ) | ( ( payload[p + 1] & 0xff ) << 16 )
+                      | ( ( payload[p + 2] & 0xff ) << 8 ) | ( payload[p + 3] & 0xff );
+      inner.type = payload[p + 4] & 0xff;
+      inner.payloadLength = end - p - 5;
+      if( inner.type == BlockFormat.END || inner.type == BlockFormat.INDEX || inner.type >= BlockFormat.TRANSFORMED
+          || inner.rawLength < 0 || inner.rawLength > chain.maxLength( h.rawLength )
+          || ( inner.type == BlockFormat.STORED && inner.rawLength != inner.payloadLength ) )
+         throw new IOException( "Corrupt block." );
+
+      if( scratch.transformed.length < inner.rawLength )
+         scratch.transformed = new byte[inner.rawLength];
+      decodePayload( inner, payload, p + 5, scratch.transformed, scratch, tables );
+      if( chain.inverse( scratch.transformed, 0, inner.rawLength, out, 0, h.rawLength ) != h.rawLength )
+         throw new IOException( "Corrupt block." );
+   }
+
+   /**
+    * Checks the checksum of a decoded block.
+    */
+   private static void checkBlock( Header h, byte[] out, CRC32 crc ) throws IOException {
+      crc.reset();
+      crc.update( out, 0, h.rawLength );
+      if( (int)crc.getValue() != h.checksum )
+         throw new IOException( "Checksum mismatch." );
+   }
+
+   /**
+    * Reads the jump table of an INTERLEAVED or SHARED block, which starts at off in
+    * payload, then decodes the streams into the first n bytes of out.
+    */
+   private static void decodeStreams( HuffmanDecoder decoder, byte[] payload, int off, int end, byte[] out, int n ) throws IOException {
+      int streams = off < end ? payload[off] & 0xff : 0;
+      if( streams < 1 || streams > BlockFormat.MAX_STREAMS || off + 1 + 4 * ( streams - 1 ) > end )
+         throw new IOException( "Corrupt jump table." );
+
+      int[] starts = new int[streams], ends = new int[streams];
+      int table = off + 1, start = table + 4 * ( streams - 1 );
+      for( int j = 0; j < streams; j++ ) {
+         int length = end - start;
+         if( j < streams - 1 ) {
+            int p = table + 4 * j;
+            length = ( ( payload[p] & 0xff ) << 24 ) | ( ( payload[p + 1] & 0xff ) << 16 )
+                   | ( ( payload[p + 2] & 0xff ) << 8 ) | ( payload[p + 3] & 0xff );
+            if( length < 0 || length > end - start )
+               throw new IOException( "Corrupt jump table." );
+         }
+         starts[j] = start;
+         ends[j] = start + length;
+         start += length;
+      }
+      decoder.decode( payload, starts, ends, out, 0, n );
+   }
+
+   /**
+    * Returns the buffer holding the last decoded block.
+    */
+   public byte[] getBuffer() {
+      return block;
+   }
+
+   /**
+    * Reads a whole container from in, and writes the decoded bytes to out.
+    * Neither stream is closed.
+    */
+   public void decompress( InputStream in, OutputStream out ) throws IOException {
+      HuffmanEvents.Phase phase = HuffmanEvents.begin( HuffmanEvents.DECODE, null );
+      readHeader( in );
+      consumed = 4;
+
+      long total = 0;
+      int len;
+      while( ( len = readBlock( in ) ) >= 0 ) {
+         out.write( block, 0, len );
+         total += len;
+      }
+
+      out.flush();
+      phase.done( consumed, total );
+   }
+
+   /**
+    * Decodes a whole container, from the position of src, to dst from its
+    * position on.  Both buffers can be heap or direct; src is left just
+    * after the container and dst after the decoded bytes.  Returns the
+    * number of bytes decoded.  If dst runs out of room a
+    * BufferOverflowException is thrown.
+    */
+   public long decode( ByteBuffer src, ByteBuffer dst ) throws IOException {
+      if( source == null )
+         source = new ByteBufferInputStream( src );
+      else
+         source.setBuffer( src );
+
+      HuffmanEvents.Phase phase = HuffmanEvents.begin( HuffmanEvents.DECODE, null );
+      long total = 0;
+      int len;
+      try {
+         readHeader( source );
+         consumed = 4;
+         while( ( len = readBlock( source ) ) >= 0 ) {
+            dst.put( block, 0, len );
+            total += len;
+         }
+      }
+      finally {
+         source.setBuffer( null );
+      }
+      phase.done( consumed, total );
+      return total;
+   }
+}
@@ -0,0 +1,652 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Class to write the single-file block container described in BlockFormat.
+ *
+ * The input is read once, a block at a time, and each block is coded with
+ * its own canonical code, so only one block is ever held in memory.  An
+ * encoder can be reused for any number of streams, but not by several
+ * threads at once.
+ */
+class BlockEncoder implements EncoderSettings {
+   private static final String TOO_LARGE = "Block size too large for this table and these transforms.";
+
+   private int blockSize;        // Bytes of input per block.
+   private int maxLength;        // Longest code allowed.
+   private int streams;          // Interleaved code streams per block; 1 for plain HUFFMAN blocks.
+   private byte[] block;         // The block being coded.
+   private ByteBuffer payload;   // Its code lengths and codes.
+   private long[] frequencies;   // How often each byte occurs in the block.
+   private ByteHistogram histogram;
+   private HuffmanEncoder encoder;
+   private CodeTableStore.Table table;   // The shared table to code with, if any.
+   private double minSaving = Huffman.MIN_SAVING;   // Blocks saving less are stored.
+   private double maxDrift = Double.POSITIVE_INFINITY;   // How much worse than its own code a shared table may be.
+   private Boolean driftSet = false;                     // Whether maxDrift was set; else append() uses Huffman.MAX_DRIFT.
+   private int order;            // 1 to try a code per context (see ContextCode), else 0.
+   private int[] pairs;          // Counts of each pair of bytes, for order 1.
+   private TransformChain transforms;   // Run over each block before coding, if any.
+   private String transformNames;       // What they were given as.
+   private BitStreamWriter bsw;
+   private CRC32 crc;
+   private ByteBufferOutputStream sink;  // For encode(); kept for the next call.
+
+   // For the summary HuffmanEvents gives of a stream.
+   private long[] counted = new long[0x100];   // How often each byte occurs in the stream so far.
+   private Boolean counting = false;           // Whether they are being counted.
+   private int longest;                        // The longest code used so far.
+   private Boolean coded = false;              // Whether any block so far was coded, not stored.
+
+   /**
+    * Creates an encoder with the default block size and code length limit.
+    */
+   public BlockEncoder() {
+      this( BlockFormat.DEFAULT_BLOCK_SIZE, Huffman.MAX_CODE_LENGTH );
+   }
+
+   /**
+    * Creates an encoder that codes blockSize bytes at a time, with codes of
+    * at most maxLength bits.
+    */
+   public BlockEncoder( int blockSize, int maxLength ) {
+      this( blockSize, maxLength, 1 );
+   }
+
+   /**
+    * Creates an encoder as above that splits the codes of each block over
+    * the given number of interleaved streams.  More streams decode faster
+    * but cost a few bytes per block.
+    */
+   public BlockEncoder( int blockSize, int maxLength, int streams ) {
+      checkBlockSize( blockSize );
+      checkMaxLength( maxLength );
+      checkStreams( streams );
+
+      this.blockSize = blockSize;
+      this.maxLength = maxLength;
+      this.streams = streams;
+      block = new byte[blockSize];
+      // With at least 8 bits to play with, no code does worse than plain
+      // bytes, so the codes never take more room than the input.  The
+      // extra room is for the code lengths and the jump table.
+      payload = ByteBuffer.allocate( blockSize + 0x200 );
+      frequencies = new long[0x100];
+      histogram = new ByteHistogram();
+      bsw = new BitStreamWriter( payload );
+      crc = new CRC32();
+   }
+
+   // The checks the constructor and setters make, for classes that keep
+   // settings to hand on to encoders later, so they can report a bad one
+   // straight away.  Each throws an IllegalArgumentException.
+
+   static void checkBlockSize( int blockSize ) {
+      if( blockSize < 1 || blockSize > BlockFormat.MAX_BLOCK_SIZE )
+         throw new IllegalArgumentException( "Block size must be between 1 and " + BlockFormat.MAX_BLOCK_SIZE + "." );
+   }
+
+   static void checkMaxLength( int maxLength ) {
+      if( maxLength < 8 || maxLength > CanonicalCode.MAX_LENGTH )
+         throw new IllegalArgumentException( "Code length limit must be between 8 and " + CanonicalCode.MAX_LENGTH + "." );
+   }
+
+   static void checkStreams( int streams ) {
+      if( streams < 1 || streams > BlockFormat.MAX_STREAMS )
+         throw new IllegalArgumentException( "Number of streams must be between 1 and " + BlockFormat.MAX_STREAMS + "." );
+   }
+
+   static void checkMinSaving( double minSaving ) {
+      if( !( minSaving <= 1 ) )
+         throw new IllegalArgumentException( "Minimum saving can't be more than 1." );
+   }
+
+   static void checkMaxDrift( double maxDrift ) {
+      if( !( maxDrift >= 0 ) )
+         throw new IllegalArgumentException( "Drift can't be less than 0." );
+   }
+
+   static void checkOrder( int order ) {
+      if( order < 0 || order > 1 )
+         throw new IllegalArgumentException( "Order must be 0 or 1." );
+   }
+
+   /**
+    * Checks that the transforms named exist, and that blocks of blockSize
+    * bytes, run through them and coded with table, fit in a block.  Either
+    * can be null.
+    */
+   static void checkPayload( int blockSize, CodeTableStore.Table table, String transforms ) {
+      if( maxPayload( blockSize, table, TransformChain.parse( transforms ) ) > BlockFormat.MAX_PAYLOAD_SIZE )
+         throw new IllegalArgumentException( TOO_LARGE );
+   }
+
+   /**
+    * Codes every block from now on with a shared table, or with a code of
+    * its own again if table is null.  Blocks the table doesn't suit still
+    * get their own code; see setMaxDrift().
+    */
+   public void setTable( CodeTableStore.Table table ) {
+      CodeTableStore.Table old = this.table;
+      this.table = table;
+      if( !makeRoom() ) {
+         this.table = old;
+         throw new IllegalArgumentException( TOO_LARGE );
+      }
+   }
+
+   /**
+    * Runs every block from now on through the transforms named, separated
+    * by commas (see TransformChain.parse()), before coding it.  Null or an
+    * empty string codes blocks as they are.
+    */
+   public void setTransforms( String names ) {
+      if( names == null ? transformNames == null : names.equals( transformNames ) )
+         return;
+
+      TransformChain old = transforms;
+      transforms = TransformChain.parse( names );
+      if( !makeRoom() ) {
+         transforms = old;
+         throw new IllegalArgumentException( TOO_LARGE );
+      }
+      transformNames = names;
+   }
+
+   /**
+    * Makes the payload buffer big enough for any block, with the table and
+    * transforms set now.  Returns false if no block could hold that much.
+    */
+   private Boolean makeRoom() {
+      // A shared code can be longer than plain bytes, and transforms can
+      // make more bytes to code.
+      long room = maxPayload( blockSize, table, transforms );
+      if( room > BlockFormat.MAX_PAYLOAD_SIZE )
+         return false;
+      if( room > payload.capacity() )
+         payload = ByteBuffer.allocate( (int)room );
+      return true;
+   }
+
+   /**
+    * Sets the least part of a block, at most 1, that coding must save;
+    * blocks that would save less are stored as they are.  0 stores only
+    * blocks that coding would make bigger, and Double.NEGATIVE_INFINITY
+    * never stores.
+    */
+   public void setMinSaving( double minSaving ) {
+      checkMinSaving( minSaving );
+      this.minSaving = minSaving;
+   }
+
+   /**
+    * Sets how much bigger, as a part of it, a block coded with the shared
+    * table may be than the same block with a code of its own.  Blocks the
+    * table codes worse than that have drifted from the data it was made
+    * for, and get their own code.  Checking takes building that code for
+    * every block, which a shared table otherwise saves, so the default,
+    * Double.POSITIVE_INFINITY, always uses the table; append() uses
+    * Huffman.MAX_DRIFT unless this was set.
+    */
+   public void setMaxDrift( double maxDrift ) {
+      checkMaxDrift( maxDrift );
+      this.maxDrift = maxDrift;
+      driftSet = true;
+   }
+
+   /**
+    * Sets the order of the model: with 0, each block has one code; with 1,
+    * a block can have a code per context, the byte before (see
+    * ContextCode), if that makes it smaller.  Order 1 blocks are never
+    * interleaved, and with a shared table are only tried for blocks that
+    * have drifted from it.
+    */
+   public void setOrder( int order ) {
+      checkOrder( order );
+      this.order = order;
+   }
+
+   /**
+    * Returns the number of bytes of input per block.
+    */
+   public int getBlockSize() {
+      return blockSize;
+   }
+
+   /**
+    * Returns the buffer that compress() reads each block into.  Callers that
+    * collect a block themselves, like HuffmanOutputStream, can use it too,
+    * as long as they don't also call compress() or encode().
+    */
+   public byte[] getBuffer() {
+      return block;
+   }
+
+   /**
+    * Returns the most bytes that encode() can write for n bytes of input,
+    * with the table set now.
+    */
+   public long maxEncodedLength( long n ) {
+      long full = n / blockSize, rest = n % blockSize;
+      long size = 4 + full * ( BlockFormat.HEADER_SIZE + maxPayload( blockSize, table, transforms ) );
+      if( rest > 0 )
+         size += BlockFormat.HEADER_SIZE + maxPayload( rest, table, transforms );
+
+      // The index and the end.
+      long blocks = full + ( rest > 0 ? 1 : 0 );
+      return size + 2 * BlockFormat.HEADER_SIZE + ( blocks + 1 ) * BlockFormat.INDEX_ENTRY_SIZE;
+   }
+
+   /**
+    * Returns the most room the payload of a block of len bytes can take,
+    * coded with table and run through transforms, either of which can be
+    * null.
+    */
+   private static long maxPayload( long len, CodeTableStore.Table table, TransformChain transforms ) {
+      if( transforms != null )
+         len = transforms.maxLength( (int)len ) + 6 + transforms.size();
+      if( table != null )
+         return len * table.code.getMaxLength() / 8 + 0x200;
+      return len + 0x200;
+   }
+
+   /**
+    * Writes the container header.
+    */
+   static void writeHeader( OutputStream out ) throws IOException {
+      BlockFormat.writeInt( out, ( BlockFormat.MAGIC << 8 ) | BlockFormat.VERSION );
+   }
+
+   /**
+    * Codes len bytes of data, starting at off, as one block.  len must be at
+    * most the block size.  Returns the number of bytes written, header
+    * included.
+    */
+   public int writeBlock( byte[] data, int off, int len, OutputStream out ) throws IOException {
+      if( len > blockSize )
+         throw new IllegalArgumentException( "Block too large." );
+
+      // Through the transforms first, if any.  If what they make, chain
+      // and all, isn't worth it against the block itself, the block is
+      // coded (or stored) as it is instead.
+      int type, transformed = -1;
+      if( transforms == null || len == 0 )
+         type = codePayload( data, off, len );
+      else {
+         transformed = transforms.forward( data, off, len );
+         type = codePayload( transforms.getBuffer(), 0, transformed );
+         if( !worthCoding( 6 + transforms.size() + payload.remaining(), len ) ) {
+            type = codePayload( data, off, len );
+            transformed = -1;
+         }
+      }
+
+      crc.reset();
+      crc.update( data, off, len );
+      coded |= type != BlockFormat.STORED;
+      if( counting ) {
+         if( transforms == null )
+            histogram.addTo( counted );
+         else {
+            histogram.clear();
+            histogram.add( data, off, len );
+            histogram.addTo( counted );
+         }
+      }
+
+      int chain = transformed < 0 ? 0 : 6 + transforms.size();   // Room the chain takes.
+      out.write( transformed < 0 ? type : BlockFormat.TRANSFORMED );
+      BlockFormat.writeInt( out, len );
+      BlockFormat.writeInt( out, chain + payload.remaining() );
+      BlockFormat.writeInt( out, (int)crc.getValue() );
+      if( transformed >= 0 ) {
+         transforms.write( out );
+         BlockFormat.writeInt( out, transformed );
+         out.write( type );
+      }
+      out.write( payload.array(), 0, payload.remaining() );
+      return BlockFormat.HEADER_SIZE + chain + payload.remaining();
+   }
+
+   /**
+    * Codes len bytes of data, starting at off, into the payload buffer,
+    * ready to be written.  Returns the type of block it makes.
+    */
+   private int codePayload( byte[] data, int off, int len ) throws IOException {
+      int type;
+      payload.clear();
+      bsw.reset( payload );
+
+      java.util.Arrays.fill( frequencies, 0 );
+      histogram.clear();
+      histogram.add( data, off, len );
+      histogram.addTo( frequencies );
+
+      // With a shared table, the block's own code too, to see whether it
+      // has drifted too far from the table.
+      CanonicalCode code = null;
+      long size = 0;
+      if( table == null || maxDrift < Double.POSITIVE_INFINITY ) {
+         code = CanonicalCode.build( frequencies, maxLength );
+         size = ( code.writtenBits() + codedBits( code ) + 7 ) / 8 + ( streams > 1 ? jumpTableSize() : 0 );
+      }
+      long sharedSize = table == null ? 0 : ( 32 + codedBits( table.code ) + 7 ) / 8 + jumpTableSize();
+
+      if( table != null && ( code == null || sharedSize <= size * ( 1 + maxDrift ) ) ) {
+         if( !worthCoding( sharedSize, len ) )
+            type = BlockFormat.STORED;
+         else {
+            type = BlockFormat.SHARED;
+            longest = Math.max( longest, table.code.getMaxLength() );
+            payload.putInt( table.id );
+            writeStreams( table.encoder, data, off, len );
+         }
+      }
+      else {
+
+         // With order 1, a code per context if that comes out smaller.
+         ContextCode context = null;
+         if( order == 1 && len > 0 ) {
+            if( pairs == null )
+               pairs = new int[0x10000];
+            ContextCode.countPairs( data, off, len, pairs );
+            context = ContextCode.build( pairs, maxLength );
+            if( context != null ) {
+               long contextSize = ( context.writtenBits() + context.encodedBits( pairs ) + 7 ) / 8;
+               if( contextSize < size )
+                  size = contextSize;
+               else
+                  context = null;
+            }
+         }
+
+         if( !worthCoding( size, len ) )
+            type = BlockFormat.STORED;
+         else if( context != null ) {
+            type = BlockFormat.CONTEXT;
+            longest = Math.max( longest, context.getMaxLength() );
+            context.write( bsw );
+            bsw.alignToByte();
+            context.encode( data, off, len, bsw );
+            bsw.flush();
+         }
+         else {
+            if( encoder == null )
+               encoder = new HuffmanEncoder( code );
+            else
+               encoder.setCode( code );
+
+            longest = Math.max( longest, code.getMaxLength() );
+            code.write( bsw );
+            if( streams == 1 ) {
+               type = BlockFormat.HUFFMAN;
+               bsw.alignToByte();
+               encoder.encode( data, off, len, bsw );
+               bsw.flush();
+            }
+            else {
+               type = BlockFormat.INTERLEAVED;
+               bsw.flush();
+               writeStreams( encoder, data, off, len );
+            }
+         }
+      }
+
+      // Not worth coding: just copy the bytes.
+      if( type == BlockFormat.STORED ) {
+         payload.clear();
+         payload.put( data, off, len );
+      }
+      payload.flip();
+      return type;
+   }
+
+   /**
+    * Whether coding a block of len bytes into size bytes saves at least
+    * minSaving of it.
+    */
+   private Boolean worthCoding( long size, int len ) {
+      return len > 0 && len - size >= minSaving * len;
+   }
+
+   /**
+    * Returns the number of bits the bytes counted in frequencies take with
+    * code.
+    */
+   private long codedBits( CanonicalCode code ) {
+      long bits = 0;
+      for( int i = 0; i < 0x100; i++ )
+         bits += frequencies[i] * code.getLength( i );
+      return bits;
+   }
+
+   /**
+    * Returns the most bytes the stream count, jump table and padding of
+    * the streams take.
+    */
+   private int jumpTableSize() {
+      return 1 + 4 * ( streams - 1 ) + streams;
+   }
+
+   /**
+    * Writes the stream count, the jump table and the interleaved streams to
+    * the payload.
+    */
+   private void writeStreams( HuffmanEncoder encoder, byte[] data, int off, int len ) throws IOException {
+      payload.put( (byte)streams );
+      int jumps = payload.position();
+      payload.position( jumps + 4 * ( streams - 1 ) );
+
+      for( int j = 0; j < streams; j++ ) {
+         int start = payload.position();
+         if( j < len )
+            encoder.encode( data, off + j, len - j, streams, bsw );
+         bsw.flush();
+         if( j < streams - 1 )
+            payload.putInt( jumps + 4 * j, payload.position() - start );
+      }
+   }
+
+   /**
+    * Writes the block that ends the container, with no index before it.
+    */
+   static void writeEnd( OutputStream out ) throws IOException {
+      out.write( BlockFormat.END );
+      BlockFormat.writeInt( out, 0 );
+      BlockFormat.writeInt( out, 0 );
+      BlockFormat.writeInt( out, 0 );
+   }
+
+   /**
+    * Reads everything from in, and writes it as a whole container to out.
+    * Neither stream is closed.
+    */
+   public void compress( InputStream in, OutputStream out ) throws IOException {
+      HuffmanEvents.Phase phase = beginStream();
+      BlockIndex index = new BlockIndex();
+      writeHeader( out );
+
+      int len;
+      while( ( len = BlockFormat.readFully( in, block, 0, blockSize ) ) > 0 )
+         index.add( len, writeBlock( block, 0, len, out ) );
+
+      index.writeEnd( out );
+      out.flush();
+      endStream( phase, index.getRawLength(), index.getEnd() );
+   }
+
+   /**
+    * Starts an encode phase (see HuffmanEvents) for a whole stream, and
+    * the figures for its summary.
+    */
+   private HuffmanEvents.Phase beginStream() {
+      counting = HuffmanEvents.wanted();
+      if( counting )
+         java.util.Arrays.fill( counted, 0 );
+      longest = 0;
+      coded = false;
+      return HuffmanEvents.begin( HuffmanEvents.ENCODE, null );
+   }
+
+   /**
+    * Ends the phase beginStream() started, having read bytesIn bytes and
+    * written bytesOut, and reports the stream.  The index at the end isn't
+    * counted in bytesOut.
+    */
+   private void endStream( HuffmanEvents.Phase phase, long bytesIn, long bytesOut ) {
+      phase.done( bytesIn, bytesOut );
+      if( counting )
+         HuffmanEvents.encoded( null, counted, longest, 8 * bytesOut, !coded );
+      counting = false;
+   }
+
+   /**
+    * Reads everything from in, and adds it to the end of the container in
+    * channel, which must be open for reading and writing.  Returns the
+    * number of bytes added.
+    *
+    * The blocks already there are left as they are: the new ones go where
+    * the INDEX block was, and a new INDEX and END follow them, so the work
+    * is in the added bytes and not in the container.  If no table is set
+    * and the last block was coded with a shared one, the new blocks are
+    * coded with it too, taken from tables; blocks it no longer suits get
+    * their own code as usual.  If anything fails part way, the blocks
+    * added up to then are kept and the container is still whole.
+    *
+    * Until the new INDEX and END are written the container has no end, so
+    * if the process dies part way it is left cut off, and readers refuse
+    * it.  The new blocks are forced to disk before the end that lists them
+    * is written.
+    */
+   public long append( FileChannel channel, InputStream in, CodeTableStore tables ) throws IOException {
+      return append( channel, in, tables, false );
+   }
+
+   /**
+    * Appends as above.  With recover, a container an earlier append left
+    * cut off is ended after its last whole block that checks out (see
+    * BlockIndex), given tables for any SHARED ones, and the new blocks go
+    * after that; what came after it is lost.
+    */
+   public long append( FileChannel channel, InputStream in, CodeTableStore tables, Boolean recover ) throws IOException {
+      BlockIndex index = new BlockIndex( channel, tables, recover );
+      CodeTableStore.Table saved = table;
+      double savedDrift = maxDrift;
+      if( !driftSet )
+         maxDrift = Huffman.MAX_DRIFT;
+
+      if( table == null && tables != null && index.size() > 0 ) {
+         // The table id starts the payload, or the block inside a
+         // TRANSFORMED one.
+         BlockIndex.Entry last = index.get( index.size() - 1 );
+         long pos = last.offset;
+         int type = last.header.type;
+         if( type == BlockFormat.TRANSFORMED ) {
+            pos += 1 + ( readAt( channel, pos, 1 ).get( 0 ) & 0xff ) + 4;
+            type = readAt( channel, pos++, 1 ).get( 0 ) & 0xff;
+         }
+         if( type == BlockFormat.SHARED )
+            setTable( tables.get( readAt( channel, pos, 4 ).getInt( 0 ) ) );
+      }
+
+      // Each block is flushed before the index takes it, so the index only
+      // ever has blocks that are in the container.  Whatever goes wrong,
+      // the container is ended after them.
+      OutputStream out = new BufferedOutputStream( Channels.newOutputStream( channel.position( index.getEnd() ) ), 0x10000 );
+      HuffmanEvents.Phase phase = beginStream();
+      long start = index.getEnd(), appended = 0;
+      Boolean ended = false;
+      try {
+         int len;
+         while( ( len = BlockFormat.readFully( in, block, 0, blockSize ) ) > 0 ) {
+            int written = writeBlock( block, 0, len, out );
+            out.flush();
+            index.add( len, written );
+            appended += len;
+         }
+         writeEnd( channel, index );
+         ended = true;
+         endStream( phase, appended, index.getEnd() - start );
+      }
+      finally {
+         table = saved;
+         maxDrift = savedDrift;
+         if( !ended ) {
+            try {
+               writeEnd( channel, index );
+            }
+            catch( IOException e ) { }
+         }
+      }
+      return appended;
+   }
+
+   /**
+    * Reads n bytes from pos in channel.
+    */
+   private static ByteBuffer readAt( FileChannel channel, long pos, int n ) throws IOException {
+      ByteBuffer buf = ByteBuffer.allocate( n );
+      while( buf.hasRemaining() ) {
+         if( channel.read( buf, pos + buf.position() ) < 0 )
+            throw new EOFException( "Unexpected end of container." );
+      }
+      return buf;
+   }
+
+   /**
+    * Writes the INDEX and END blocks for index at the end of its blocks in
+    * channel, and cuts off anything after them.  The blocks are on disk
+    * before the end is written, and the end before this returns.
+    */
+   private static void writeEnd( FileChannel channel, BlockIndex index ) throws IOException {
+      channel.force( false );
+      channel.truncate( index.getEnd() );
+      OutputStream out = new BufferedOutputStream( Channels.newOutputStream( channel.position( index.getEnd() ) ) );
+      index.writeEnd( out );
+      out.flush();
+      channel.force( true );
+   }
+
+   /**
+    * Codes everything from the position to the limit of src as a whole
+    * container, written to dst from its position on.  Both buffers can be
+    * heap or direct, and both positions are moved on.  Returns the number of
+    * bytes written.  If dst runs out of room a BufferOverflowException is
+    * thrown, with dst only partly written; maxEncodedLength() says how much
+    * room is enough.
+    */
+   public int encode( ByteBuffer src, ByteBuffer dst ) throws IOException {
+      if( sink == null )
+         sink = new ByteBufferOutputStream( dst );
+      else
+         sink.setBuffer( dst );
+
+      int start = dst.position();
+      HuffmanEvents.Phase phase = beginStream();
+      BlockIndex index = new BlockIndex();
+      try {
+         writeHeader( sink );
+         while( src.hasRemaining() ) {
+            int len = Math.min( src.remaining(), blockSize );
+            if( src.hasArray() ) {
+               // Code straight from the array, without a copy.
+               index.add( len, writeBlock( src.array(), src.arrayOffset() + src.position(), len, sink ) );
+               src.position( src.position() + len );
+            }
+            else {
+               src.get( block, 0, len );
+               index.add( len, writeBlock( block, 0, len, sink ) );
+            }
+         }
+         index.writeEnd( sink );
+      }
+      finally {
+         sink.setBuffer( null );
+      }
+      endStream( phase, index.getRawLength(), index.getEnd() );
+      return dst.position() - start;
+   }
+}
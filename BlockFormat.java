@@ -0,0 +1,161 @@
+import java.io.*;
+
+/**
+ * Constants and helpers for the single-file block container.
+ *
+ * A container starts with the four bytes "HUF" and a version byte, followed
+ * by any number of blocks.  Every block starts with a header:
+ *
+ *    type             1 byte
+ *    raw length       4 bytes, the number of bytes the block decodes to
+ *    payload length   4 bytes, the number of bytes after the header
+ *    checksum         4 bytes, CRC-32 of the decoded bytes
+ *
+ * For a HUFFMAN block the payload is the canonical code lengths (as written
+ * by CanonicalCode.write()) followed by the codes, each part padded to a
+ * whole byte.  An INTERLEAVED block splits the codes over several streams,
+ * so that they can be decoded side by side:
+ *
+ *    code lengths     as for HUFFMAN, padded to a whole byte
+ *    streams          1 byte, the number of streams n
+ *    jump table       n - 1 times 4 bytes, the length of each stream but the last
+ *    streams          each padded to a whole byte; byte i of the block is
+ *                     coded in stream i % n
+ *
+ * A SHARED block is coded with a shared code table (see CodeTableStore),
+ * so instead of the code lengths its payload starts with the 4-byte id of
+ * the table, followed by the streams as for INTERLEAVED, however many.
+ *
+ * A CONTEXT block is coded with an order-1 model: the code of each byte
+ * depends on the byte before it (0 for the first).  Its payload is the
+ * context code (as written by ContextCode.write()) padded to a whole
+ * byte, followed by the codes.
+ *
+ * A TRANSFORMED block was run through a chain of transforms (see
+ * TransformChain) before it was coded, such as run-length or move-to-front
+ * coding.  Its payload records the chain, then holds the transformed bytes
+ * as a block of one of the types above, without its checksum:
+ *
+ *    transforms       1 byte, the number of transforms n
+ *    ids              n bytes, the transforms in the order they were run
+ *    length           4 bytes, the number of transformed bytes
+ *    type             1 byte, how they were coded
+ *    payload          as for that type
+ *
+ * Decoding undoes the transforms, last first; the raw length and checksum
+ * in the header are those of the bytes before any transform.
+ *
+ * A STORED block holds the bytes as they are, for input that coding
+ * wouldn't make noticeably smaller, like data that is already compressed;
+ * its payload length is its raw length.
+ *
+ * An INDEX block lists where every block before it starts, so that a
+ * reader can go straight to the blocks holding the bytes it wants instead
+ * of decoding from the start.  Its raw length is 0, its checksum is the
+ * CRC-32 of the payload, and the payload is, for each block in order:
+ *
+ *    offset           8 bytes, where its header starts in the container
+ *    raw offset       8 bytes, where its bytes start in the decoded data
+ *
+ * followed by one more such pair for the INDEX block itself, whose raw
+ * offset is then the decoded length.  The INDEX block, if any, comes just
+ * before the END block.  Decoders reading from start to end skip it.
+ *
+ * An END block has no payload and ends the container.  Its raw length is
+ * the size of the INDEX block before it, header included, or 0 if there
+ * is none, so the index can be found from the end of the file.  All
+ * numbers are big-endian.  Blocks don't depend on each other, so any block
+ * can be decoded on its own.
+ */
+final class BlockFormat {
+   static final int MAGIC = ( 'H' << 16 ) | ( 'U' << 8 ) | 'F';
+   static final int VERSION = 1;
+
+   static final int END = 0;           // Block types.
+   static final int HUFFMAN = 1;
+   static final int INTERLEAVED = 2;
+   static final int SHARED = 3;
+   static final int INDEX = 4;
+   static final int STORED = 5;
+   static final int CONTEXT = 6;
+   static final int TRANSFORMED = 7;
+
+   static final int HEADER_SIZE = 13;  // Bytes in a block header.
+   static final int INDEX_ENTRY_SIZE = 16;   // Bytes per block in an INDEX block.
+   static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+   static final int MAX_BLOCK_SIZE = 1 << 30;
+   static final int MAX_STREAMS = 16;  // Most streams in an INTERLEAVED block.
+   static final int MAX_PAYLOAD_SIZE = 0x7fff0000;   // Shared codes can take more room than the input.
+   static final int READ_CHUNK = 1 << 20;   // Most a buffer grows by ahead of the bytes read into it.
+
+   private BlockFormat() { }
+
+   /**
+    * Writes a big-endian int.
+    */
+   static void writeInt( OutputStream out, int v ) throws IOException {
+      out.write( v >>> 24 );
+      out.write( v >>> 16 );
+      out.write( v >>> 8 );
+      out.write( v );
+   }
+
+   /**
+    * Reads a big-endian int.  Throws EOFException if the stream ends first.
+    */
+   static int readInt( InputStream in ) throws IOException {
+      int a = in.read(), b = in.read(), c = in.read(), d = in.read();
+      if( ( a | b | c | d ) < 0 )
+         throw new EOFException( "Unexpected end of container." );
+      return ( a << 24 ) | ( b << 16 ) | ( c << 8 ) | d;
+   }
+
+   /**
+    * Reads until len bytes have been read or the stream ends.  Returns the
+    * number of bytes read.
+    */
+   static int readFully( InputStream in, byte[] buf, int off, int len ) throws IOException {
+      int total = 0;
+      while( total < len ) {
+         int n = in.read( buf, off + total, len - total );
+         if( n < 0 )
+            break;
+         total += n;
+      }
+      return total;
+   }
+
+   /**
+    * Reads len bytes into buf, which is returned, or a bigger copy of it if
+    * it is too small.  It grows as the bytes arrive, so a corrupt length in
+    * a header can't make a short stream allocate more than about twice what
+    * it holds.  Throws EOFException if the stream ends first.
+    */
+   static byte[] readGrowing( InputStream in, byte[] buf, int len ) throws IOException {
+      int total = 0;
+      while( total < len ) {
+         if( total == buf.length )
+            buf = java.util.Arrays.copyOf( buf, (int)Math.min( len, Math.max( 2L * total, READ_CHUNK ) ) );
+         int n = in.read( buf, total, Math.min( len, buf.length ) - total );
+         if( n < 0 )
+            throw new EOFException( "Unexpected end of container." );
+         total += n;
+      }
+      return buf;
+   }
+
+   /**
+    * Skips n bytes.  Throws EOFException if the stream ends first.
+    */
+   static void skipFully( InputStream in, long n ) throws IOException {
+      while( n > 0 ) {
+         long k = in.skip( n );
+         if( k <= 0 ) {
+            if( in.read() < 0 )
+               throw new EOFException( "Unexpected end of container." );
+            k = 1;
+         }
+         n -= k;
+      }
+   }
+}
@@ -0,0 +1,362 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Class to list where each block of a container is, and where its bytes
+ * go in the decoded data.
+ *
+ * Encoders build one up as they write blocks, and write it out as the
+ * INDEX block at the end (see BlockFormat).  Readers load it from there;
+ * for containers without one, it is made by reading just the block headers
+ * and skipping over the payloads.  A container whose blocks don't run up
+ * to an END block at the end of the file, as when an append was cut short,
+ * is an error for readers.  Only when recovering one, to append to it, are
+ * its blocks decoded instead, and the index stops before the first one that
+ * is cut off or fails its checksum.
+ */
+class BlockIndex {
+   /**
+    * Where one block is, and what it decodes to.
+    */
+   static class Entry {
+      BlockDecoder.Header header;   // The block's header.
+      long offset;                  // File offset of the payload.
+      long rawOffset;               // Offset of the block's first byte in the decoded data.
+   }
+
+   // Where each block starts in the container and in the decoded data, with
+   // one more entry for where the blocks end.
+   private long[] offsets = new long[16];
+   private long[] rawOffsets = new long[16];
+   private int size;                // Number of blocks.
+   private FileChannel channel;     // Where the blocks are, when reading.
+   private Boolean torn = false;    // Whether blocks were left out; see scan().
+
+   /**
+    * Creates an empty index, for an encoder to add blocks to.
+    */
+   public BlockIndex() {
+      offsets[0] = 4;               // Just after the container header.
+   }
+
+   /**
+    * Loads the index of the container in a file channel, from its INDEX
+    * block if it has one, or else by scanning the block headers.
+    */
+   public BlockIndex( FileChannel channel ) throws IOException {
+      this( channel, null, false );
+   }
+
+   /**
+    * Loads the index as above.  A container that is cut off is an
+    * IOException, unless recover is true: then it is indexed up to its last
+    * whole block that checks out, decoding SHARED blocks with tables, and
+    * isTorn() says so.
+    */
+   public BlockIndex( FileChannel channel, CodeTableStore tables, Boolean recover ) throws IOException {
+      this();
+      this.channel = channel;
+
+      // Check the container header first.
+      ByteBuffer head = ByteBuffer.allocate( 4 );
+      read( head, 0 );
+      new BlockDecoder().readHeader( new ByteArrayInputStream( head.array() ) );
+
+      if( !loadIndex() )
+         scan( tables, recover );
+   }
+
+   /**
+    * Adds a block of rawLength bytes that took blockLength bytes in the
+    * container, header included.
+    */
+   public void add( int rawLength, int blockLength ) {
+      if( size + 2 > offsets.length ) {
+         offsets = Arrays.copyOf( offsets, 2 * offsets.length );
+         rawOffsets = Arrays.copyOf( rawOffsets, 2 * rawOffsets.length );
+      }
+      offsets[size + 1] = offsets[size] + blockLength;
+      rawOffsets[size + 1] = rawOffsets[size] + rawLength;
+      size++;
+   }
+
+   /**
+    * Returns the number of blocks.
+    */
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Returns the total decoded length.
+    */
+   public long getRawLength() {
+      return rawOffsets[size];
+   }
+
+   /**
+    * Returns whether the container was cut off after its last whole block,
+    * with no END block after it, so that what followed was left out.  Only
+    * an index loaded to recover a container can be.
+    */
+   public Boolean isTorn() {
+      return torn;
+   }
+
+   /**
+    * Returns where the blocks end in the container: where the INDEX or END
+    * block is, and so where any more blocks would go.
+    */
+   public long getEnd() {
+      return offsets[size];
+   }
+
+   /**
+    * Returns the number of the block holding byte rawOffset of the decoded
+    * data, which must be less than getRawLength().
+    */
+   public int find( long rawOffset ) {
+      // The last block starting at or before rawOffset; empty blocks are
+      // passed over, since they hold nothing.
+      int lo = 0, hi = size - 1;
+      while( lo < hi ) {
+         int mid = ( lo + hi + 1 ) >>> 1;
+         if( rawOffsets[mid] <= rawOffset )
+            lo = mid;
+         else
+            hi = mid - 1;
+      }
+      return lo;
+   }
+
+   /**
+    * Returns the i'th block, reading its header from the container and
+    * checking that it agrees with the index.
+    */
+   public Entry get( int i ) throws IOException {
+      if( i < 0 || i >= size )
+         throw new IndexOutOfBoundsException( "No block " + i + "." );
+
+      ByteBuffer head = ByteBuffer.allocate( BlockFormat.HEADER_SIZE );
+      read( head, offsets[i] );
+
+      Entry e = new Entry();
+      e.header = BlockDecoder.readHeader( new ByteArrayInputStream( head.array() ), new BlockDecoder.Header() );
+      e.offset = offsets[i] + BlockFormat.HEADER_SIZE;
+      e.rawOffset = rawOffsets[i];
+      if( e.header.type == BlockFormat.END || e.header.type == BlockFormat.INDEX
+          || e.header.rawLength != rawOffsets[i + 1] - rawOffsets[i]
+          || e.offset + e.header.payloadLength != offsets[i + 1] )
+         throw new IOException( "Block index doesn't match the container." );
+      return e;
+   }
+
+   /**
+    * Reads until buf is full, from pos in the channel.
+    */
+   private void read( ByteBuffer buf, long pos ) throws IOException {
+      while( buf.hasRemaining() ) {
+         if( channel.read( buf, pos + buf.position() ) < 0 )
+            throw new EOFException( "Unexpected end of container." );
+      }
+   }
+
+   /**
+    * Loads the INDEX block the END block points back to.  Returns false if
+    * there is none.
+    */
+   private Boolean loadIndex() throws IOException {
+      long end = channel.size() - BlockFormat.HEADER_SIZE;
+      if( end < 4 )
+         return false;
+
+      ByteBuffer head = ByteBuffer.allocate( BlockFormat.HEADER_SIZE );
+      read( head, end );
+      BlockDecoder.Header h = new BlockDecoder.Header();
+      try {
+         BlockDecoder.readHeader( new ByteArrayInputStream( head.array() ), h );
+      }
+      catch( IOException e ) {
+         return false;              // No END there; the container may be cut off.
+      }
+      if( h.type != BlockFormat.END || h.rawLength == 0 )
+         return false;
+
+      long start = end - h.rawLength;
+      if( start < 4 || h.rawLength < BlockFormat.HEADER_SIZE + BlockFormat.INDEX_ENTRY_SIZE )
+         throw new IOException( "Corrupt block index." );
+
+      head.clear();
+      read( head, start );
+      BlockDecoder.readHeader( new ByteArrayInputStream( head.array() ), h );
+      if( h.type != BlockFormat.INDEX || h.payloadLength != end - start - BlockFormat.HEADER_SIZE
+          || h.payloadLength % BlockFormat.INDEX_ENTRY_SIZE != 0 )
+         throw new IOException( "Corrupt block index." );
+
+      ByteBuffer payload = ByteBuffer.allocate( h.payloadLength );
+      read( payload, start + BlockFormat.HEADER_SIZE );
+      CRC32 crc = new CRC32();
+      crc.update( payload.array(), 0, h.payloadLength );
+      if( (int)crc.getValue() != h.checksum )
+         throw new IOException( "Checksum mismatch in block index." );
+
+      payload.flip();
+      int n = h.payloadLength / BlockFormat.INDEX_ENTRY_SIZE;
+      offsets = new long[n];
+      rawOffsets = new long[n];
+      for( int i = 0; i < n; i++ ) {
+         offsets[i] = payload.getLong();
+         rawOffsets[i] = payload.getLong();
+
+         // Blocks in order, one after the other, each with a sane length.
+         if( i == 0 ? offsets[i] != 4 || rawOffsets[i] != 0
+                    : offsets[i] - offsets[i - 1] < BlockFormat.HEADER_SIZE
+                      || rawOffsets[i] - rawOffsets[i - 1] < 0
+                      || rawOffsets[i] - rawOffsets[i - 1] > BlockFormat.MAX_BLOCK_SIZE )
+            throw new IOException( "Corrupt block index." );
+      }
+      if( offsets[n - 1] != start )
+         throw new IOException( "Corrupt block index." );
+      size = n - 1;
+      return true;
+   }
+
+   /**
+    * Makes the index by reading every block header, from the start.  If the
+    * blocks don't end with an END block at the end of the file, that is an
+    * IOException; or with recover, they are decoded one by one instead, and
+    * the index stops before the first that is cut off or fails its
+    * checksum.  tables are for decoding SHARED blocks then.
+    */
+   private void scan( CodeTableStore tables, Boolean recover ) throws IOException {
+      if( !scanHeaders() ) {
+         if( !recover )
+            throw new IOException( "Container is cut off or corrupt." );
+         size = 0;
+         scanBlocks( tables );
+         torn = true;
+      }
+   }
+
+   /**
+    * Adds every block from its header alone.  Returns false if they don't
+    * run whole up to an END block at the end of the file.
+    */
+   private Boolean scanHeaders() throws IOException {
+      ByteBuffer head = ByteBuffer.allocate( BlockFormat.HEADER_SIZE );
+      BlockDecoder.Header h = new BlockDecoder.Header();
+      long pos = 4, end = channel.size();
+      Boolean indexed = false;
+
+      while( end - pos >= BlockFormat.HEADER_SIZE ) {
+         head.clear();
+         read( head, pos );
+         try {
+            BlockDecoder.readHeader( new ByteArrayInputStream( head.array() ), h );
+         }
+         catch( IOException e ) {
+            return false;
+         }
+         pos += BlockFormat.HEADER_SIZE + h.payloadLength;
+         if( h.type == BlockFormat.END )
+            return pos == end;
+
+         // An INDEX block isn't data; it can only be followed by the end.
+         if( indexed || pos > end )
+            return false;
+         if( h.type == BlockFormat.INDEX )
+            indexed = true;
+         else
+            add( h.rawLength, BlockFormat.HEADER_SIZE + h.payloadLength );
+      }
+      return false;
+   }
+
+   /**
+    * Adds the blocks that decode and check out, up to the first that
+    * doesn't.
+    */
+   private void scanBlocks( CodeTableStore tables ) throws IOException {
+      ByteBuffer head = ByteBuffer.allocate( BlockFormat.HEADER_SIZE );
+      BlockDecoder.Header h = new BlockDecoder.Header();
+      BlockDecoder.Scratch scratch = new BlockDecoder.Scratch();
+      CRC32 crc = new CRC32();
+      byte[] payload = new byte[0], block = new byte[0];
+      long pos = 4, end = channel.size();
+
+      while( end - pos >= BlockFormat.HEADER_SIZE ) {
+         head.clear();
+         read( head, pos );
+         try {
+            BlockDecoder.readHeader( new ByteArrayInputStream( head.array() ), h );
+         }
+         catch( IOException e ) {
+            return;
+         }
+         long length = BlockFormat.HEADER_SIZE + h.payloadLength;
+         if( h.type == BlockFormat.END || h.type == BlockFormat.INDEX || length > end - pos )
+            return;
+
+         if( payload.length < h.payloadLength )
+            payload = new byte[h.payloadLength];
+         if( block.length < h.rawLength )
+            block = new byte[h.rawLength];
+         read( ByteBuffer.wrap( payload, 0, h.payloadLength ), pos + BlockFormat.HEADER_SIZE );
+
+         // Without the tables a SHARED block can't be told from a broken
+         // one, and leaving it out would lose it.
+         int type = h.type, skip = 1 + ( h.payloadLength > 0 ? payload[0] & 0xff : 0 ) + 4;
+         if( type == BlockFormat.TRANSFORMED && skip < h.payloadLength )
+            type = payload[skip] & 0xff;
+         if( type == BlockFormat.SHARED && tables == null )
+            throw new IOException( "The container is cut off, and checking its blocks needs the shared code tables." );
+
+         try {
+            BlockDecoder.decodeBlock( h, payload, 0, block, crc, scratch, tables );
+         }
+         catch( IOException e ) {
+            return;
+         }
+         catch( RuntimeException e ) {
+            return;
+         }
+         add( h.rawLength, (int)length );
+         pos += length;
+      }
+   }
+
+   /**
+    * Writes the index as an INDEX block, and then the END block that
+    * points back to it.  If there are too many blocks for an INDEX block,
+    * just the END block is written.
+    */
+   public void writeEnd( OutputStream out ) throws IOException {
+      long length = (long)( size + 1 ) * BlockFormat.INDEX_ENTRY_SIZE;
+      if( length > BlockFormat.MAX_BLOCK_SIZE - BlockFormat.HEADER_SIZE ) {
+         BlockEncoder.writeEnd( out );
+         return;
+      }
+
+      ByteBuffer payload = ByteBuffer.allocate( (int)length );
+      for( int i = 0; i <= size; i++ ) {
+         payload.putLong( offsets[i] );
+         payload.putLong( rawOffsets[i] );
+      }
+      CRC32 crc = new CRC32();
+      crc.update( payload.array(), 0, payload.position() );
+
+      out.write( BlockFormat.INDEX );
+      BlockFormat.writeInt( out, 0 );
+      BlockFormat.writeInt( out, payload.position() );
+      BlockFormat.writeInt( out, (int)crc.getValue() );
+      out.write( payload.array(), 0, payload.position() );
+
+      out.write( BlockFormat.END );
+      BlockFormat.writeInt( out, BlockFormat.HEADER_SIZE + payload.position() );
+      BlockFormat.writeInt( out, 0 );
+      BlockFormat.writeInt( out, 0 );
+   }
+}
@@ -0,0 +1,155 @@
+import java.io.*;
+
+/**
+ * Class to hand blocks of bytes from one thread to another, through a ring
+ * of buffers that are used over and over.
+ *
+ * The producer claim()s the next free buffer, fills it and publish()es it;
+ * the consumer takes it with next(), and release()s it when done, which
+ * frees it for the producer again.  When all buffers are full the producer
+ * waits, and when all are free the consumer does, so neither can get more
+ * than the ring's size ahead of the other and memory use is fixed.  There
+ * can be one producer and one consumer.
+ */
+class BlockRing {
+   static final int DEFAULT_BUFFERS = 4;
+   static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+   private byte[][] buffers;
+   private int[] lengths;        // How much of each full buffer is used.
+   private int head;             // The next buffer for the consumer.
+   private int tail;             // The next buffer for the producer.
+   private int full;             // Buffers published and not yet released.
+   private Boolean ended = false;   // Whether the producer is done.
+   private Boolean closed = false;  // Whether either side gave up.
+   private IOException error;    // Why, if it was an error.
+
+   /**
+    * Creates a ring of count buffers of size bytes each.
+    */
+   public BlockRing( int count, int size ) {
+      if( count < 1 || size < 1 )
+         throw new IllegalArgumentException( "Need at least one buffer of at least one byte." );
+
+      buffers = new byte[count][size];
+      lengths = new int[count];
+   }
+
+   /**
+    * Waits for a notification, turning an interrupt into an IOException.
+    */
+   private void await() throws IOException {
+      try {
+         wait();
+      }
+      catch( InterruptedException e ) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException( "Interrupted." );
+      }
+   }
+
+   /**
+    * Throws the reason the ring was closed.
+    */
+   private void throwClosed() throws IOException {
+      if( error != null )
+         throw error;
+      throw new IOException( "Stream closed." );
+   }
+
+   /**
+    * Producer: waits for a free buffer and returns it.
+    */
+   public synchronized byte[] claim() throws IOException {
+      while( full == buffers.length && !closed )
+         await();
+      if( closed )
+         throwClosed();
+      return buffers[tail];
+   }
+
+   /**
+    * Producer: passes the first length bytes of the claimed buffer on.
+    */
+   public synchronized void publish( int length ) {
+      lengths[tail] = length;
+      tail = ( tail + 1 ) % buffers.length;
+      full++;
+      notifyAll();
+   }
+
+   /**
+    * Producer: waits until the consumer has released every buffer.
+    */
+   public synchronized void drain() throws IOException {
+      while( full > 0 && !closed )
+         await();
+      if( closed )
+         throwClosed();
+   }
+
+   /**
+    * Producer: says there is nothing more, or that producing failed with
+    * error.  The consumer gets any buffers still full first.
+    */
+   public synchronized void end( IOException error ) {
+      ended = true;
+      if( this.error == null )
+         this.error = error;
+      notifyAll();
+   }
+
+   /**
+    * Consumer: waits for a full buffer, and returns how much of it is used;
+    * the buffer itself is current().  Returns -1 once the producer has
+    * ended and every buffer has been taken.
+    */
+   public synchronized int next() throws IOException {
+      while( full == 0 && !ended && !closed )
+         await();
+      if( closed )
+         throwClosed();
+      if( full > 0 )
+         return lengths[head];
+      if( error != null )
+         throw error;
+      return -1;
+   }
+
+   /**
+    * Consumer: returns the buffer next() waited for.
+    */
+   public synchronized byte[] current() {
+      return buffers[head];
+   }
+
+   /**
+    * Consumer: frees the buffer from next() for the producer.
+    */
+   public synchronized void release() {
+      head = ( head + 1 ) % buffers.length;
+      full--;
+      notifyAll();
+   }
+
+   /**
+    * Returns the number of bytes published and not yet released.
+    */
+   public synchronized int available() {
+      int n = 0;
+      for( int i = 0, j = head; i < full; i++, j = ( j + 1 ) % buffers.length )
+         n += lengths[j];
+      return n;
+   }
+
+   /**
+    * Either side: gives up, so the other side stops waiting and gets error
+    * (or a plain IOException if it is null) from then on.
+    */
+   public synchronized void close( IOException error ) {
+      closed = true;
+      if( this.error == null )
+         this.error = error;
+      notifyAll();
+   }
+}
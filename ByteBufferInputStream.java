@@ -0,0 +1,51 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Class to read a ByteBuffer as an InputStream, from its position to its
+ * limit.  Reading moves the position on.  The buffer can be heap or direct,
+ * and can be swapped for another with setBuffer(), so one stream does for
+ * any number of buffers.
+ */
+class ByteBufferInputStream extends InputStream {
+   private ByteBuffer buf;
+
+   /**
+    * Creates a stream reading from buf.
+    */
+   public ByteBufferInputStream( ByteBuffer buf ) {
+      this.buf = buf;
+   }
+
+   /**
+    * Reads from buf from now on.
+    */
+   public void setBuffer( ByteBuffer buf ) {
+      this.buf = buf;
+   }
+
+   public int read() {
+      return buf.hasRemaining() ? buf.get() & 0xff : -1;
+   }
+
+   public int read( byte[] b, int off, int len ) {
+      if( len == 0 )
+         return 0;
+      if( !buf.hasRemaining() )
+         return -1;
+
+      len = Math.min( len, buf.remaining() );
+      buf.get( b, off, len );
+      return len;
+   }
+
+   public long skip( long n ) {
+      int k = (int)Math.max( 0, Math.min( n, buf.remaining() ) );
+      buf.position( buf.position() + k );
+      return k;
+   }
+
+   public int available() {
+      return buf.remaining();
+   }
+}
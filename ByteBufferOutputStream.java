@@ -0,0 +1,34 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Class to write to a ByteBuffer as an OutputStream, from its position on.
+ * The buffer doesn't grow: writing past its limit throws a
+ * BufferOverflowException.  Like ByteBufferInputStream, the buffer can be
+ * heap or direct, and swapped with setBuffer().
+ */
+class ByteBufferOutputStream extends OutputStream {
+   private ByteBuffer buf;
+
+   /**
+    * Creates a stream writing to buf.
+    */
+   public ByteBufferOutputStream( ByteBuffer buf ) {
+      this.buf = buf;
+   }
+
+   /**
+    * Writes to buf from now on.
+    */
+   public void setBuffer( ByteBuffer buf ) {
+      this.buf = buf;
+   }
+
+   public void write( int b ) {
+      buf.put( (byte)b );
+   }
+
+   public void write( byte[] b, int off, int len ) {
+      buf.put( b, off, len );
+   }
+}
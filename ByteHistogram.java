@@ -0,0 +1,233 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class to count how often each byte value occurs, as fast as memory allows.
+ *
+ * Counting into a single table stalls whenever the same value comes up
+ * twice in a row, since each increment has to wait for the one before.  So
+ * four tables are kept, taking every fourth byte each, and added together
+ * when the counts are asked for.  A file can also be split into stripes that
+ * are counted on several threads, each with its own tables.
+ */
+class ByteHistogram {
+   static final int STRIPES = 4;          // Interleaved sub-histograms.
+   static final int MAX_RUN = 1 << 30;    // Bytes counted before the int counts could overflow.
+
+   private int[] counts;      // STRIPES tables of 256 counts, one after the other.
+   private long[] totals;     // Counts already moved out of counts.
+
+   /**
+    * Creates an empty histogram.
+    */
+   public ByteHistogram() {
+      counts = new int[STRIPES * 0x100];
+      totals = new long[0x100];
+   }
+
+   /**
+    * Counts len bytes of data, starting at off.
+    */
+   public void add( byte[] data, int off, int len ) {
+      final int[] c = counts;
+
+      while( len > 0 ) {
+         int n = Math.min( len, MAX_RUN );
+         int i = off, end = off + n;
+
+         for( ; i + 4 <= end; i += 4 ) {
+            c[data[i] & 0xff]++;
+            c[0x100 | ( data[i + 1] & 0xff )]++;
+            c[0x200 | ( data[i + 2] & 0xff )]++;
+            c[0x300 | ( data[i + 3] & 0xff )]++;
+         }
+         for( ; i < end; i++ )
+            c[data[i] & 0xff]++;
+
+         merge();
+         off += n;
+         len -= n;
+      }
+   }
+
+   /**
+    * Counts the bytes of data from its position to its limit.  The position
+    * is left where it was.
+    */
+   public void add( ByteBuffer data ) {
+      final int[] c = counts;
+      int i = data.position(), limit = data.limit();
+
+      while( i < limit ) {
+         int end = i + Math.min( limit - i, MAX_RUN );
+
+         // A word at a time; the byte order doesn't matter for counting.
+         for( ; i + 4 <= end; i += 4 ) {
+            int w = data.getInt( i );
+            c[w >>> 24]++;
+            c[0x100 | ( ( w >>> 16 ) & 0xff )]++;
+            c[0x200 | ( ( w >>> 8 ) & 0xff )]++;
+            c[0x300 | ( w & 0xff )]++;
+         }
+         for( ; i < end; i++ )
+            c[data.get( i ) & 0xff]++;
+
+         merge();
+      }
+   }
+
+   /**
+    * Adds another histogram's counts to this one.
+    */
+   public void add( ByteHistogram other ) {
+      for( int i = 0; i < 0x100; i++ )
+         totals[i] += other.get( i );
+   }
+
+   /**
+    * Moves the sub-histograms into the totals.
+    */
+   private void merge() {
+      for( int i = 0; i < 0x100; i++ ) {
+         totals[i] += (long)counts[i] + counts[0x100 | i] + counts[0x200 | i] + counts[0x300 | i];
+         counts[i] = counts[0x100 | i] = counts[0x200 | i] = counts[0x300 | i] = 0;
+      }
+   }
+
+   /**
+    * Returns how often byte value b has been counted.
+    */
+   public long get( int b ) {
+      return totals[b];
+   }
+
+   /**
+    * Adds the counts to frequencies, a table of 256 entries.
+    */
+   public void addTo( long[] frequencies ) {
+      for( int i = 0; i < 0x100; i++ )
+         frequencies[i] += totals[i];
+   }
+
+   /**
+    * Starts counting over from zero.
+    */
+   public void clear() {
+      Arrays.fill( totals, 0 );
+   }
+
+   /**
+    * Counts the bytes of a file on as many threads as there are processors.
+    */
+   static ByteHistogram of( String filename ) throws IOException {
+      return of( filename, Runtime.getRuntime().availableProcessors() );
+   }
+
+   /**
+    * Counts the bytes of a file on the given number of threads.  Files of
+    * at least Huffman.MAPPED_IO_THRESHOLD bytes are mapped into memory and
+    * split into one stripe per thread; smaller ones are just read.
+    */
+   static ByteHistogram of( String filename, int threads ) throws IOException {
+      if( threads < 1 )
+         throw new IllegalArgumentException( "Need at least one thread." );
+
+      ByteHistogram histogram = new ByteHistogram();
+
+      if( new File( filename ).length() < Huffman.MAPPED_IO_THRESHOLD ) {
+         InputStream in = new FileInputStream( filename );
+         byte[] buf = new byte[0x10000];
+         int n;
+
+         try {
+            while( ( n = in.read( buf ) ) > 0 )
+               histogram.add( buf, 0, n );
+         }
+         finally {
+            in.close();
+         }
+         return histogram;
+      }
+
+      final FileChannel channel = FileChannel.open( Paths.get( filename ), StandardOpenOption.READ );
+      try {
+         long size = channel.size();
+         if( size == 0 )
+            return histogram;
+
+         // Stripes a whole number of pages long, and no more than needed.
+         long stripe = ( ( size + threads - 1 ) / threads + 0xfff ) & ~0xfffL;
+         threads = (int)( ( size + stripe - 1 ) / stripe );
+
+         if( threads == 1 ) {
+            countRange( channel, 0, size, histogram );
+            return histogram;
+         }
+
+         ExecutorService pool = Executors.newFixedThreadPool( threads - 1, new ThreadFactory() {
+            public Thread newThread( Runnable r ) {
+               Thread t = new Thread( r, "huffman-histogram" );
+               t.setDaemon( true );
+               return t;
+            }
+         } );
+         try {
+            List<Future<ByteHistogram>> parts = new ArrayList<Future<ByteHistogram>>();
+            for( int i = 1; i < threads; i++ ) {
+               final long start = i * stripe, end = Math.min( size, start + stripe );
+               parts.add( pool.submit( new Callable<ByteHistogram>() {
+                  public ByteHistogram call() throws IOException {
+                     ByteHistogram part = new ByteHistogram();
+                     countRange( channel, start, end, part );
+                     return part;
+                  }
+               } ) );
+            }
+
+            // The first stripe is counted on this thread.
+            countRange( channel, 0, stripe, histogram );
+            for( Future<ByteHistogram> part : parts )
+               histogram.add( await( part ) );
+         }
+         finally {
+            pool.shutdownNow();
+         }
+      }
+      finally {
+         channel.close();
+      }
+      return histogram;
+   }
+
+   /**
+    * Counts the bytes of a part of a file, mapping a window at a time.
+    */
+   private static void countRange( FileChannel channel, long start, long end, ByteHistogram histogram ) throws IOException {
+      for( long pos = start; pos < end; pos += MappedFile.DEFAULT_WINDOW ) {
+         long len = Math.min( MappedFile.DEFAULT_WINDOW, end - pos );
+         histogram.add( channel.map( FileChannel.MapMode.READ_ONLY, pos, len ) );
+      }
+   }
+
+   /**
+    * Waits for a stripe to be counted, passing on any exception.
+    */
+   private static ByteHistogram await( Future<ByteHistogram> part ) throws IOException {
+      try {
+         return part.get();
+      }
+      catch( InterruptedException e ) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException( "Interrupted." );
+      }
+      catch( ExecutionException e ) {
+         if( e.getCause() instanceof IOException )
+            throw (IOException)e.getCause();
+         throw new IOException( e.getCause() );
+      }
+   }
+}
@@ -0,0 +1,265 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Class to store canonical Huffman codes.
+ *
+ * A canonical code is fully described by the length of each value's code:
+ * codes are handed out in order of length, and values with the same length
+ * get consecutive codes in order of value.  So only the lengths need to be
+ * saved, and the decoder can rebuild the codes without a tree.
+ *
+ * The saved form is the two bytes "HC", a byte with the number of bits used
+ * per length, and 16 bits saying which of the 16 groups of 16 values have any
+ * codes.  For each such group follow 16 bits saying which of its values have
+ * codes, and then their code lengths minus one.  A saved tree file that is
+ * longer than two bytes always starts with a 1 bit, so the two can't be
+ * confused.
+ */
+class CanonicalCode {
+   static final int MAGIC = ( 'H' << 8 ) | 'C';    // Marks a saved canonical code.
+   static final int MAX_LENGTH = 64;               // Longest code we can handle.
+
+   private int[] lengths;     // The code length of each value; 0 if it has none.
+   private long[] codes;      // The code of each value.
+   private int maxLength;     // The longest code length.
+
+   /**
+    * Creates the canonical code for the given code lengths.
+    */
+   public CanonicalCode( int[] lengths ) {
+      this.lengths = lengths.clone();
+      codes = new long[0x100];
+      maxLength = 0;
+
+      for( int i = 0; i < 0x100; i++ )
+         maxLength = Math.max( maxLength, lengths[i] );
+
+      // Hand out the codes in order of length, then value.
+      long code = 0;
+      for( int len = 1; len <= maxLength; len++ ) {
+         for( int i = 0; i < 0x100; i++ ) {
+            if( lengths[i] == len )
+               codes[i] = code++;
+         }
+         code <<= 1;
+      }
+   }
+
+   /**
+    * Creates the canonical code with the same code lengths as a Huffman tree.
+    * A tree with just one value gets a 1-bit code for it.
+    */
+   public CanonicalCode( HuffmanTree htree ) {
+      this( treeLengths( htree ) );
+   }
+
+   /**
+    * Returns the optimal canonical code for a frequency table with no code
+    * longer than maxLength bits.
+    */
+   static CanonicalCode build( long[] frequencies, int maxLength ) {
+      return new CanonicalCode( LengthLimitedCode.packageMerge( frequencies, maxLength ) );
+   }
+
+   /**
+    * Returns the depth of each value in a tree.
+    */
+   private static int[] treeLengths( HuffmanTree htree ) {
+      int[] lengths = new int[0x100];
+
+      if( htree.hasValue() )
+         lengths[htree.getValue( htree.getRoot() )] = 1;
+      else {
+         int[] depth = new int[htree.size()];
+         htree.paths( depth, new long[htree.size()] );
+         for( int n = 0; n < htree.size(); n++ ) {
+            if( htree.hasValue( n ) )
+               lengths[htree.getValue( n )] = depth[n];
+         }
+      }
+
+      return lengths;
+   }
+
+   /**
+    * Returns the code length of a value, or 0 if it has no code.
+    */
+   public int getLength( int value ) {
+      return lengths[value];
+   }
+
+   /**
+    * Returns the code of a value, in the low getLength( value ) bits.
+    */
+   public long getCode( int value ) {
+      return codes[value];
+   }
+
+   /**
+    * Returns the length of the longest code.
+    */
+   public int getMaxLength() {
+      return maxLength;
+   }
+
+   /**
+    * Returns a copy of the code lengths.
+    */
+   public int[] getLengths() {
+      return lengths.clone();
+   }
+
+   /**
+    * Returns a dictionary of byte-to-huffman-code, in the same form as
+    * HuffmanTree.getDictionary().
+    */
+   public HashMap<Integer, Boolean[]> getDictionary() {
+      HashMap<Integer, Boolean[]> dic = new HashMap<Integer, Boolean[]>();
+
+      for( int i = 0; i < 0x100; i++ ) {
+         if( lengths[i] == 0 )
+            continue;
+
+         Boolean[] code = new Boolean[lengths[i]];
+         for( int j = 0; j < lengths[i]; j++ )
+            code[j] = ( ( codes[i] >>> ( lengths[i] - 1 - j ) ) & 1 ) == 1;
+         dic.put( i, code );
+      }
+
+      return dic;
+   }
+
+   /**
+    * Writes the code lengths to a bit writer.
+    */
+   public void write( BitStreamWriter bsw ) throws IOException {
+      // Number of bits needed to store the longest length minus one.
+      int width = Math.max( 1, 32 - Integer.numberOfLeadingZeros( Math.max( maxLength - 1, 0 ) ) );
+
+      bsw.writeBits( MAGIC, 16 );
+      bsw.writeBits( width, 8 );
+      bsw.writeBits( groupMask( 0, 0x100 ), 16 );
+      for( int g = 0; g < 0x100; g += 0x10 ) {
+         int mask = groupMask( g, 0x10 );
+         if( mask == 0 )
+            continue;
+
+         bsw.writeBits( mask, 16 );
+         for( int i = g; i < g + 0x10; i++ ) {
+            if( lengths[i] > 0 )
+               bsw.writeBits( lengths[i] - 1, width );
+         }
+      }
+   }
+
+   /**
+    * Returns the number of bits write() writes.
+    */
+   public long writtenBits() {
+      int width = Math.max( 1, 32 - Integer.numberOfLeadingZeros( Math.max( maxLength - 1, 0 ) ) );
+      long bits = 16 + 8 + 16;
+      for( int g = 0; g < 0x100; g += 0x10 ) {
+         if( groupMask( g, 0x10 ) != 0 )
+            bits += 16;
+      }
+      for( int i = 0; i < 0x100; i++ ) {
+         if( lengths[i] > 0 )
+            bits += width;
+      }
+      return bits;
+   }
+
+   /**
+    * Returns a 16-bit mask of which of 16 runs of size values, starting at
+    * first, have any codes.  The first run is the highest bit.
+    */
+   private int groupMask( int first, int size ) {
+      int mask = 0;
+      for( int i = 0; i < 0x10; i++ ) {
+         for( int j = first + i * size / 0x10; j < first + ( i + 1 ) * size / 0x10; j++ ) {
+            if( lengths[j] > 0 ) {
+               mask |= 0x8000 >>> i;
+               break;
+            }
+         }
+      }
+      return mask;
+   }
+
+   /**
+    * Reads code lengths written by write() and returns their canonical code.
+    */
+   public static CanonicalCode read( BitStreamReader bsr ) throws IOException {
+      if( bsr.readBits( 16 ) != MAGIC )
+         throw new IOException( "Not a canonical code table." );
+
+      int width = bsr.readBits( 8 );
+      if( width < 1 || width > 6 )
+         throw new IOException( "Corrupt code table." );
+
+      int[] lengths = new int[0x100];
+      int groups = bsr.readBits( 16 );
+      for( int g = 0; g < 0x10; g++ ) {
+         if( ( groups & ( 0x8000 >>> g ) ) == 0 )
+            continue;
+
+         int mask = bsr.readBits( 16 );
+         for( int i = 0; i < 0x10; i++ ) {
+            if( ( mask & ( 0x8000 >>> i ) ) != 0 )
+               lengths[g * 0x10 + i] = bsr.readBits( width ) + 1;
+         }
+      }
+
+      if( !isValid( lengths ) )
+         throw new IOException( "Corrupt code table." );
+
+      return new CanonicalCode( lengths );
+   }
+
+   /**
+    * Returns true if the lengths describe a usable prefix code: no length
+    * over MAX_LENGTH, and Kraft's sum at most 1.
+    */
+   static Boolean isValid( int[] lengths ) {
+      double kraft = 0;
+      for( int len : lengths ) {
+         if( len < 0 || len > MAX_LENGTH )
+            return false;
+         if( len > 0 )
+            kraft += Math.pow( 2, -len );
+      }
+      return kraft <= 1;
+   }
+
+   /**
+    * Saves the code lengths to a file.
+    */
+   public void saveToFile( String filename ) throws IOException {
+      BitStreamWriter bsw = new BitStreamWriter( new FileOutputStream( filename ) );
+
+      try {
+         write( bsw );
+      }
+      finally {
+         bsw.close();
+      }
+   }
+
+   /**
+    * Returns true if the file holds a saved canonical code rather than a
+    * saved tree.
+    */
+   static Boolean isCanonicalFile( String filename ) throws IOException {
+      if( new File( filename ).length() <= 2 )
+         return false;
+
+      BitStreamReader bsr = new BitStreamReader( new FileInputStream( filename ) );
+      try {
+         return bsr.peekBits( 16 ) == MAGIC;
+      }
+      finally {
+         bsr.close();
+      }
+   }
+}
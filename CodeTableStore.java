@@ -0,0 +1,155 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Class to keep shared code tables, trained once on a sample of typical
+ * input and then used for any number of files.
+ *
+ * Each table is a canonical code with a code for every byte value, saved in
+ * a directory as <id>.ht, where the id is a checksum of the code lengths.  A
+ * container block coded with a shared table only holds the id, and since the
+ * table is known up front the input only has to be read once.  Loaded tables
+ * are kept in memory, together with an encoder and decoder for each, and the
+ * least recently used ones are dropped when there are too many.  A store can
+ * be used by several threads at once.
+ */
+class CodeTableStore {
+   static final int DEFAULT_CACHE_SIZE = 64;    // Tables kept in memory.
+
+   /**
+    * A loaded table, ready to use.  The encoder and decoder only read their
+    * tables, so they can be shared between threads.
+    */
+   static class Table {
+      int id;
+      CanonicalCode code;
+      HuffmanEncoder encoder;
+      HuffmanDecoder decoder;
+   }
+
+   private File dir;                            // Where tables are saved.
+   private LinkedHashMap<Integer, Table> cache; // In least recently used order.
+
+   /**
+    * Creates a store on a directory, keeping the default number of tables in
+    * memory.
+    */
+   public CodeTableStore( File dir ) {
+      this( dir, DEFAULT_CACHE_SIZE );
+   }
+
+   /**
+    * Creates a store on a directory, keeping at most cacheSize tables in
+    * memory.
+    */
+   public CodeTableStore( File dir, final int cacheSize ) {
+      if( cacheSize < 1 )
+         throw new IllegalArgumentException( "Cache must hold at least one table." );
+
+      this.dir = dir;
+      cache = new LinkedHashMap<Integer, Table>( 16, 0.75f, true ) {
+         protected boolean removeEldestEntry( Map.Entry<Integer, Table> eldest ) {
+            return size() > cacheSize;
+         }
+      };
+   }
+
+   /**
+    * Returns the id of a code: the CRC-32 of its code lengths.
+    */
+   static int idOf( CanonicalCode code ) {
+      CRC32 crc = new CRC32();
+      for( int i = 0; i < 0x100; i++ )
+         crc.update( code.getLength( i ) );
+      return (int)crc.getValue();
+   }
+
+   /**
+    * Returns the file a table is saved in.
+    */
+   File fileOf( int id ) {
+      return new File( dir, String.format( "%08x", id ) + Huffman.TREE_FILE_EXTENSION );
+   }
+
+   /**
+    * Builds a table from how often each byte occurs in the sample files,
+    * saves it and returns its id.  Every byte value gets a code, even those
+    * not in the sample, so the table can code any input.
+    */
+   public int train( List<String> files ) throws IOException {
+      long[] frequencies = new long[0x100];
+      for( String name : files )
+         ByteHistogram.of( name ).addTo( frequencies );
+
+      for( int i = 0; i < 0x100; i++ )
+         frequencies[i]++;
+
+      return add( CanonicalCode.build( frequencies, Huffman.MAX_CODE_LENGTH ) );
+   }
+
+   /**
+    * Saves a code as a shared table and returns its id.  The code must have
+    * a code for every byte value.
+    */
+   public synchronized int add( CanonicalCode code ) throws IOException {
+      Table t = load( code );
+      File file = fileOf( t.id );
+      if( !file.exists() ) {
+         dir.mkdirs();
+         code.saveToFile( file.getPath() );
+      }
+      cache.put( t.id, t );
+      return t.id;
+   }
+
+   /**
+    * Returns the table with the given id, loading it if it isn't in memory.
+    */
+   public synchronized Table get( int id ) throws IOException {
+      Table t = cache.get( id );
+      if( t != null )
+         return t;
+
+      File file = fileOf( id );
+      if( !file.exists() )
+         throw new IOException( "No shared code table " + String.format( "%08x", id ) + "." );
+
+      BitStreamReader bsr = new BitStreamReader( new FileInputStream( file ) );
+      try {
+         t = load( CanonicalCode.read( bsr ) );
+      }
+      finally {
+         bsr.close();
+      }
+      if( t.id != id )
+         throw new IOException( "Shared code table " + file + " is corrupt." );
+
+      cache.put( id, t );
+      return t;
+   }
+
+   /**
+    * Makes a table from a code, checking that every byte has a code.
+    */
+   private static Table load( CanonicalCode code ) throws IOException {
+      for( int i = 0; i < 0x100; i++ ) {
+         if( code.getLength( i ) == 0 )
+            throw new IOException( "A shared code table needs a code for every byte." );
+      }
+
+      Table t = new Table();
+      t.id = idOf( code );
+      t.code = code;
+      t.encoder = new HuffmanEncoder( code );
+      t.decoder = new HuffmanDecoder( code );
+      return t;
+   }
+
+   /**
+    * Returns the number of tables in memory.
+    */
+   public synchronized int cached() {
+      return cache.size();
+   }
+}
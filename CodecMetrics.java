@@ -0,0 +1,21 @@
+/**
+ * Interface for collecting metrics from the coders.  Set one with
+ * HuffmanEvents.setMetrics() to have it told about every phase of coding a
+ * file as it finishes; CodecStats keeps running totals and shows them over
+ * JMX.  Calls can come from several threads at once.
+ */
+interface CodecMetrics {
+   /**
+    * Called when a phase (one of HuffmanEvents.PHASES) has finished, after
+    * taking nanos nanoseconds to read bytesIn bytes and write bytesOut.
+    */
+   void phase( String phase, long nanos, long bytesIn, long bytesOut );
+
+   /**
+    * Called when a file or container stream has been encoded: bytesIn
+    * bytes took bitsWritten bits, against entropyBits bits for an ideal
+    * order-0 code.  stored is true if coding didn't pay, and the bytes were
+    * stored as they are.
+    */
+   void encoded( long bytesIn, long bitsWritten, double entropyBits, Boolean stored );
+}
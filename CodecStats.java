@@ -0,0 +1,144 @@
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+
+/**
+ * Class to keep running totals of what the coders have done, for JMX.
+ *
+ * Register one with register(), and it is both set as the CodecMetrics and
+ * shown as the MBean huffman:type=CodecStats, where tools like jconsole can
+ * read it.
+ */
+class CodecStats implements CodecMetrics, CodecStatsMBean {
+   static final String NAME = "huffman:type=CodecStats";
+
+   private long files, stored, bytesEncoded, bitsWritten;
+   private double entropyBits;
+   private long bytesRead, bytesWritten;
+   private long[] nanos = new long[HuffmanEvents.PHASES.length];   // Time in each phase.
+
+   /**
+    * Creates a CodecStats, sets it as the CodecMetrics and registers it
+    * with the platform MBean server.
+    */
+   static CodecStats register() throws JMException {
+      CodecStats stats = new CodecStats();
+      ManagementFactory.getPlatformMBeanServer().registerMBean( stats, new ObjectName( NAME ) );
+      HuffmanEvents.setMetrics( stats );
+      return stats;
+   }
+
+   /**
+    * Takes a CodecStats out of the MBean server, and stops sending it
+    * metrics.
+    */
+   static void unregister() throws JMException {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean( new ObjectName( NAME ) );
+      if( HuffmanEvents.getMetrics() instanceof CodecStats )
+         HuffmanEvents.setMetrics( null );
+   }
+
+   public synchronized void phase( String phase, long nanos, long bytesIn, long bytesOut ) {
+      for( int i = 0; i < HuffmanEvents.PHASES.length; i++ ) {
+         if( HuffmanEvents.PHASES[i].equals( phase ) )
+            this.nanos[i] += nanos;
+      }
+      bytesRead += bytesIn;
+      bytesWritten += bytesOut;
+   }
+
+   public synchronized void encoded( long bytesIn, long bitsWritten, double entropyBits, Boolean stored ) {
+      files++;
+      if( stored )
+         this.stored++;
+      bytesEncoded += bytesIn;
+      this.bitsWritten += bitsWritten;
+      this.entropyBits += entropyBits;
+   }
+
+   public synchronized long getFilesEncoded() {
+      return files;
+   }
+
+   /**
+    * Returns how many of the files encoded were stored, not coded.
+    */
+   public synchronized long getFilesStored() {
+      return stored;
+   }
+
+   public synchronized long getBytesEncoded() {
+      return bytesEncoded;
+   }
+
+   public synchronized long getBitsWritten() {
+      return bitsWritten;
+   }
+
+   /**
+    * Returns the bits taken per byte encoded, on average.
+    */
+   public synchronized double getBitsPerSymbol() {
+      return bytesEncoded == 0 ? 0 : (double)bitsWritten / bytesEncoded;
+   }
+
+   /**
+    * Returns the entropy per byte encoded, on average: the least
+    * getBitsPerSymbol() could be with an order-0 code.
+    */
+   public synchronized double getEntropy() {
+      return bytesEncoded == 0 ? 0 : entropyBits / bytesEncoded;
+   }
+
+   public synchronized long getBytesRead() {
+      return bytesRead;
+   }
+
+   public synchronized long getBytesWritten() {
+      return bytesWritten;
+   }
+
+   /**
+    * Returns the time spent in a phase, one of HuffmanEvents.PHASES.
+    */
+   public synchronized long getNanos( String phase ) {
+      for( int i = 0; i < HuffmanEvents.PHASES.length; i++ ) {
+         if( HuffmanEvents.PHASES[i].equals( phase ) )
+            return nanos[i];
+      }
+      throw new IllegalArgumentException( "No phase " + phase + "." );
+   }
+
+   public long getCountNanos() {
+      return getNanos( HuffmanEvents.COUNT );
+   }
+
+   public long getTreeNanos() {
+      return getNanos( HuffmanEvents.TREE );
+   }
+
+   public long getCodeNanos() {
+      return getNanos( HuffmanEvents.CODE );
+   }
+
+   public long getEncodeNanos() {
+      return getNanos( HuffmanEvents.ENCODE );
+   }
+
+   public long getFlushNanos() {
+      return getNanos( HuffmanEvents.FLUSH );
+   }
+
+   public long getLoadNanos() {
+      return getNanos( HuffmanEvents.LOAD );
+   }
+
+   public long getDecodeNanos() {
+      return getNanos( HuffmanEvents.DECODE );
+   }
+
+   public synchronized void reset() {
+      files = stored = bytesEncoded = bitsWritten = bytesRead = bytesWritten = 0;
+      entropyBits = 0;
+      java.util.Arrays.fill( nanos, 0 );
+   }
+}
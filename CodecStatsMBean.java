@@ -0,0 +1,25 @@
+/**
+ * The JMX view of CodecStats.  Times are in nanoseconds and add up over
+ * all files since the start or the last reset().
+ */
+public interface CodecStatsMBean {
+   long getFilesEncoded();
+   long getFilesStored();
+   long getBytesEncoded();
+   long getBitsWritten();
+   double getBitsPerSymbol();
+   double getEntropy();
+
+   long getBytesRead();
+   long getBytesWritten();
+
+   long getCountNanos();
+   long getTreeNanos();
+   long getCodeNanos();
+   long getEncodeNanos();
+   long getFlushNanos();
+   long getLoadNanos();
+   long getDecodeNanos();
+
+   void reset();
+}
@@ -0,0 +1,357 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Class to code bytes with an order-1 context model: the code used for
+ * each byte is picked by the byte before it.
+ *
+ * Giving every one of the 256 contexts a code of its own would cost more in
+ * code lengths than it saves on small or rare contexts, so only contexts
+ * whose own code saves more than it costs get one; all the others share a
+ * fallback code built from their combined counts.  A map from each context
+ * to its code is saved with the codes.
+ *
+ * Decoding works like HuffmanDecoder, with a lookup table per code, but the
+ * tables are made smaller when there are many of them so that together they
+ * stay within CACHE_BUDGET and keep to the L2 cache.  Longer codes are
+ * finished a bit at a time.
+ */
+class ContextCode {
+   static final int MAX_TABLES = 0x100;
+   static final int MIN_CONTEXT = 64;           // Contexts seen less often always share the fallback code.
+   static final int CACHE_BUDGET = 1 << 18;     // Bytes all lookup tables together may take.
+   static final int MAX_TABLE_BITS = 11;        // Bits resolved per lookup, at most...
+   static final int MIN_TABLE_BITS = 8;         // ...and at least.
+
+   private int[] map;                           // The code of each context.
+   private CanonicalCode[] codes;
+
+   // For encoding: code and length of each byte in each code, code << 8 | byte.
+   private long[] bitcodes;
+   private byte[] lengths;
+
+   // For decoding, built on first use.
+   private int tableBits;
+   private char[] lookup;                       // All lookup tables, one after the other.
+   private long[][] firstCode;                  // As in HuffmanDecoder, for each code.
+   private int[][] lengthCount, firstIndex, sorted;
+
+   /**
+    * Creates a context code from a map and the codes it refers to.
+    */
+   private ContextCode( int[] map, CanonicalCode[] codes ) {
+      this.map = map;
+      this.codes = codes;
+
+      bitcodes = new long[codes.length << 8];
+      lengths = new byte[codes.length << 8];
+      for( int t = 0; t < codes.length; t++ ) {
+         for( int b = 0; b < 0x100; b++ ) {
+            bitcodes[( t << 8 ) | b] = codes[t].getCode( b );
+            lengths[( t << 8 ) | b] = (byte)codes[t].getLength( b );
+         }
+      }
+   }
+
+   /**
+    * Returns the longest code length of any of the codes.
+    */
+   public int getMaxLength() {
+      int max = 0;
+      for( CanonicalCode code : codes )
+         max = Math.max( max, code.getMaxLength() );
+      return max;
+   }
+
+   /**
+    * Counts how often each byte follows each other byte in len bytes of
+    * data starting at off, into pairs, as previous << 8 | byte.  The first
+    * byte counts as following a 0.
+    */
+   static void countPairs( byte[] data, int off, int len, int[] pairs ) {
+      Arrays.fill( pairs, 0 );
+      int prev = 0;
+      for( int i = off, end = off + len; i < end; i++ ) {
+         int b = data[i] & 0xff;
+         pairs[( prev << 8 ) | b]++;
+         prev = b;
+      }
+   }
+
+   /**
+    * Builds a context code from pair counts (see countPairs()), with no code
+    * longer than maxLength bits.  Returns null if no context is worth a code
+    * of its own.
+    */
+   static ContextCode build( int[] pairs, int maxLength ) {
+      long[] total = new long[0x100], f = new long[0x100];
+      long[] seen = new long[0x100];
+      for( int c = 0; c < 0x100; c++ ) {
+         for( int b = 0; b < 0x100; b++ ) {
+            total[b] += pairs[( c << 8 ) | b];
+            seen[c] += pairs[( c << 8 ) | b];
+         }
+      }
+
+      // What each context would save with a code of its own, compared with
+      // the order-0 code, after paying for its code lengths.
+      CanonicalCode base = CanonicalCode.build( total, maxLength );
+      CanonicalCode[] own = new CanonicalCode[0x100];
+      final long[] gain = new long[0x100];
+      ArrayList<Integer> worth = new ArrayList<Integer>();
+      for( int c = 0; c < 0x100; c++ ) {
+         if( seen[c] < MIN_CONTEXT )
+            continue;
+
+         for( int b = 0; b < 0x100; b++ )
+            f[b] = pairs[( c << 8 ) | b];
+         own[c] = CanonicalCode.build( f, maxLength );
+         gain[c] = bits( f, base ) - bits( f, own[c] ) - own[c].writtenBits();
+         if( gain[c] > 0 )
+            worth.add( c );
+      }
+      if( worth.isEmpty() )
+         return null;
+
+      // The most worthwhile get their own codes; the rest share one.
+      Collections.sort( worth, new Comparator<Integer>() {
+         public int compare( Integer a, Integer b ) {
+            return Long.compare( gain[b], gain[a] );
+         }
+      } );
+      boolean[] alone = new boolean[0x100];
+      ArrayList<CanonicalCode> list = new ArrayList<CanonicalCode>();
+
+      Arrays.fill( f, 0 );
+      long rest = 0;
+      for( int i = 0; i < worth.size(); i++ ) {
+         if( i < MAX_TABLES - 1 )
+            alone[worth.get( i )] = true;
+      }
+      for( int c = 0; c < 0x100; c++ ) {
+         if( alone[c] )
+            continue;
+         for( int b = 0; b < 0x100; b++ )
+            f[b] += pairs[( c << 8 ) | b];
+         rest += seen[c];
+      }
+
+      int[] map = new int[0x100];
+      if( rest > 0 )
+         list.add( CanonicalCode.build( f, maxLength ) );    // The fallback is code 0.
+      for( int c = 0; c < 0x100; c++ ) {
+         if( alone[c] ) {
+            map[c] = list.size();
+            list.add( own[c] );
+         }
+      }
+      return new ContextCode( map, list.toArray( new CanonicalCode[list.size()] ) );
+   }
+
+   /**
+    * Returns the number of bits frequencies take with code.
+    */
+   private static long bits( long[] frequencies, CanonicalCode code ) {
+      long bits = 0;
+      for( int b = 0; b < 0x100; b++ )
+         bits += frequencies[b] * code.getLength( b );
+      return bits;
+   }
+
+   /**
+    * Returns the number of codes.
+    */
+   public int size() {
+      return codes.length;
+   }
+
+   /**
+    * Returns the number of bits the data counted in pairs takes with this
+    * code, the map and code lengths not included.
+    */
+   public long encodedBits( int[] pairs ) {
+      long bits = 0;
+      for( int c = 0; c < 0x100; c++ ) {
+         int t = map[c] << 8;
+         for( int b = 0; b < 0x100; b++ )
+            bits += (long)pairs[( c << 8 ) | b] * lengths[t | b];
+      }
+      return bits;
+   }
+
+   /**
+    * Returns the number of bits write() writes.
+    */
+   public long writtenBits() {
+      long bits = 8 + 8 * 0x100;
+      for( CanonicalCode code : codes )
+         bits += code.writtenBits();
+      return bits;
+   }
+
+   /**
+    * Writes the number of codes less one in 8 bits, the code of each
+    * context in 8 bits, and then the code lengths of each code.
+    */
+   public void write( BitStreamWriter bsw ) throws IOException {
+      bsw.writeBits( codes.length - 1, 8 );
+      for( int c = 0; c < 0x100; c++ )
+         bsw.writeBits( map[c], 8 );
+      for( CanonicalCode code : codes )
+         code.write( bsw );
+   }
+
+   /**
+    * Reads a context code written by write().
+    */
+   static ContextCode read( BitStreamReader bsr ) throws IOException {
+      int n = bsr.readBits( 8 ) + 1;
+      int[] map = new int[0x100];
+      for( int c = 0; c < 0x100; c++ ) {
+         map[c] = bsr.readBits( 8 );
+         if( map[c] >= n )
+            throw new IOException( "Corrupt context map." );
+      }
+
+      CanonicalCode[] codes = new CanonicalCode[n];
+      for( int t = 0; t < n; t++ )
+         codes[t] = CanonicalCode.read( bsr );
+      return new ContextCode( map, codes );
+   }
+
+   /**
+    * Encodes len bytes of data, starting at off.  The first byte is coded as
+    * if it followed a 0.
+    */
+   public void encode( byte[] data, int off, int len, BitStreamWriter out ) throws IOException {
+      final long[] bitcodes = this.bitcodes;
+      final byte[] lengths = this.lengths;
+
+      // The code of each context, ready to be or'ed with the byte.
+      int[] base = new int[0x100];
+      for( int c = 0; c < 0x100; c++ )
+         base[c] = map[c] << 8;
+
+      int prev = 0;
+      for( int i = off, end = off + len; i < end; i++ ) {
+         int b = data[i] & 0xff;
+         int k = base[prev] | b;
+         if( lengths[k] == 0 )
+            throw new IllegalArgumentException( "Byte " + b + " has no code after " + prev + "." );
+         out.writeBits( bitcodes[k], lengths[k] );
+         prev = b;
+      }
+   }
+
+   /**
+    * Builds the lookup tables, as big as CACHE_BUDGET allows.
+    */
+   private void buildTables() {
+      int n = codes.length;
+      tableBits = MAX_TABLE_BITS;
+      while( tableBits > MIN_TABLE_BITS && (long)n * 2 << tableBits > CACHE_BUDGET )
+         tableBits--;
+
+      lookup = new char[n << tableBits];
+      firstCode = new long[n][];
+      lengthCount = new int[n][];
+      firstIndex = new int[n][];
+      sorted = new int[n][];
+
+      for( int t = 0; t < n; t++ ) {
+         CanonicalCode code = codes[t];
+         int maxLength = code.getMaxLength();
+         firstCode[t] = new long[maxLength + 1];
+         lengthCount[t] = new int[maxLength + 1];
+         firstIndex[t] = new int[maxLength + 1];
+
+         // List the values in code order: by length, then by value.
+         int count = 0;
+         for( int b = 0; b < 0x100; b++ ) {
+            if( code.getLength( b ) > 0 ) {
+               lengthCount[t][code.getLength( b )]++;
+               count++;
+            }
+         }
+         for( int len = 1, index = 0; len <= maxLength; len++ ) {
+            firstIndex[t][len] = index;
+            index += lengthCount[t][len];
+         }
+         sorted[t] = new int[count];
+         int[] next = firstIndex[t].clone();
+         for( int b = 0; b < 0x100; b++ ) {
+            int len = code.getLength( b );
+            if( len > 0 )
+               sorted[t][next[len]++] = b;
+         }
+         for( int len = 1; len <= maxLength; len++ ) {
+            if( lengthCount[t][len] > 0 )
+               firstCode[t][len] = code.getCode( sorted[t][firstIndex[t][len]] );
+         }
+
+         // Entries are value << 5 | length; a value of 0x100 marks the start
+         // of a long code.
+         int start = t << tableBits;
+         Arrays.fill( lookup, start, start + ( 1 << tableBits ), (char)( ( 0x100 << 5 ) | tableBits ) );
+         for( int b = 0; b < 0x100; b++ ) {
+            int len = code.getLength( b );
+            if( len > 0 && len <= tableBits ) {
+               int shift = tableBits - len;
+               int from = (int)code.getCode( b ) << shift, to = (int)( code.getCode( b ) + 1 ) << shift;
+               Arrays.fill( lookup, start + from, start + to, (char)( ( b << 5 ) | len ) );
+            }
+         }
+      }
+   }
+
+   /**
+    * Finishes a code of code t longer than the lookup table, which starts
+    * with the bits in code.  Returns the value, or -1 if there is no such
+    * code.
+    */
+   private int decodeTail( BitStreamReader in, int t, long code ) throws IOException {
+      for( int len = tableBits + 1; len < firstCode[t].length && !in.isAtEnd(); len++ ) {
+         code = ( code << 1 ) | in.readBit();
+         long offset = code - firstCode[t][len];
+         if( offset >= 0 && offset < lengthCount[t][len] )
+            return sorted[t][firstIndex[t][len] + (int)offset];
+      }
+      return -1;
+   }
+
+   /**
+    * Decodes exactly n bytes into out, starting at off.  Throws an
+    * IOException if the codes are corrupt or run out first.
+    */
+   public void decode( BitStreamReader in, byte[] out, int off, int n ) throws IOException {
+      if( lookup == null )
+         buildTables();
+
+      final char[] lookup = this.lookup;
+      final int bits = this.tableBits;
+      int[] base = new int[0x100];
+      for( int c = 0; c < 0x100; c++ )
+         base[c] = map[c] << bits;
+
+      int prev = 0;
+      for( int end = off + n; off < end; off++ ) {
+         int count = in.fill();
+         int index = in.peekBits( bits );
+         int e = lookup[base[prev] | index];
+         int length = e & 0x1f;
+
+         if( length > count )
+            throw new IOException( "Unexpected end of coded data." );
+         in.skipBits( length );
+
+         int value = e >>> 5;
+         if( value >= 0x100 ) {
+            value = decodeTail( in, map[prev], index );
+            if( value < 0 )
+               throw new IOException( "Corrupt coded data." );
+         }
+         out[off] = (byte)value;
+         prev = value;
+      }
+   }
+}
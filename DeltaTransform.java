@@ -0,0 +1,74 @@
+import java.io.*;
+
+/**
+ * Class to replace each byte by its difference, modulo 256, from the byte
+ * width places before it (from 0 for the first width bytes).  Slowly
+ * changing values, like sorted numbers or samples, turn into a few small
+ * differences; with width set to the size of the values, each byte is
+ * taken from the same byte of the value before.
+ */
+class DeltaTransform implements Transform {
+   static final int ID = 3;         // Width 1; widths 2, 4 and 8 are the ids after it.
+   static final int MAX_WIDTH = 8;
+
+   private byte[] last;             // The last width bytes, by position modulo width.
+   private int pos;
+
+   /**
+    * Creates a transform taking the difference from the byte before.
+    */
+   public DeltaTransform() {
+      this( 1 );
+   }
+
+   /**
+    * Creates a transform taking the difference from the byte width places
+    * back: 1, 2, 4 or 8.
+    */
+   public DeltaTransform( int width ) {
+      if( width < 1 || width > MAX_WIDTH || Integer.bitCount( width ) != 1 )
+         throw new IllegalArgumentException( "Delta width must be 1, 2, 4 or 8." );
+      last = new byte[width];
+   }
+
+   public int getId() {
+      return ID + Integer.numberOfTrailingZeros( last.length );
+   }
+
+   public int maxLength( int len ) {
+      return len;
+   }
+
+   public void reset() {
+      java.util.Arrays.fill( last, (byte)0 );
+      pos = 0;
+   }
+
+   public int forward( byte[] src, int off, int len, byte[] dst, int dstOff ) {
+      int mask = last.length - 1;
+      for( int i = 0; i < len; i++ ) {
+         byte b = src[off + i];
+         dst[dstOff + i] = (byte)( b - last[pos] );
+         last[pos] = b;
+         pos = ( pos + 1 ) & mask;
+      }
+      return len;
+   }
+
+   public int finish( byte[] dst, int dstOff ) {
+      return 0;
+   }
+
+   public int inverse( byte[] src, int off, int len, byte[] dst, int dstOff, int limit ) throws IOException {
+      if( len > limit )
+         throw new IOException( "Too much data for the block." );
+      int mask = last.length - 1;
+      for( int i = 0; i < len; i++ ) {
+         byte b = (byte)( last[pos] + src[off + i] );
+         dst[dstOff + i] = b;
+         last[pos] = b;
+         pos = ( pos + 1 ) & mask;
+      }
+      return len;
+   }
+}
@@ -0,0 +1,35 @@
+/**
+ * Interface for the settings every encoder takes, whether it codes one
+ * stream (BlockEncoder), one stream on several threads
+ * (ParallelBlockCodec), many files (BatchCodec) or requests
+ * (HuffmanDaemon).  See BlockEncoder for what each one does.
+ */
+interface EncoderSettings {
+   /**
+    * Sets a shared table to code every block with, or null to give each
+    * block its own code.
+    */
+   void setTable( CodeTableStore.Table table );
+
+   /**
+    * Sets the least part of a block that coding must save.
+    */
+   void setMinSaving( double minSaving );
+
+   /**
+    * Sets how much worse than its own code a shared table may code a
+    * block before the block gets its own code.
+    */
+   void setMaxDrift( double maxDrift );
+
+   /**
+    * Sets the order of the model, 0 or 1.
+    */
+   void setOrder( int order );
+
+   /**
+    * Sets the transforms each block is run through before coding, by name,
+    * or null for none.
+    */
+   void setTransforms( String transforms );
+}
@@ -0,0 +1,103 @@
+import java.io.*;
+
+/**
+ * Class to work out what Huffman.HuffmanEncode() would make of a file
+ * without writing anything: the exact sizes of the tree and encoded files,
+ * whether the file would be stored instead, the entropy, and the code length
+ * of each byte value.
+ *
+ * It takes a single pass over the file to count the bytes, the same pass
+ * encoding starts with, so it is a cheap way to decide whether a file is
+ * worth compressing at all.
+ */
+class Estimate {
+   long rawLength;            // Bytes in the file.
+   long codedBits;            // Bits the codes take, padding not included.
+   long treeLength;           // Bytes in the tree file.
+   long codedLength;          // Bytes in the encoded file.
+   Boolean stored = false;    // Whether the file would be stored rather than coded.
+   double entropy;            // Bits per byte an ideal order-0 code would take.
+   long[] frequencies;        // How often each byte occurs.
+   int[] lengths;             // Code length of each byte; 0 if it doesn't occur.
+
+   /**
+    * Estimates encoding a file with canonical codes of at most
+    * Huffman.MAX_CODE_LENGTH bits.
+    */
+   static Estimate of( String filename ) throws IOException {
+      return of( filename, Huffman.MAX_CODE_LENGTH );
+   }
+
+   /**
+    * Estimates encoding a file with canonical codes of at most maxLength
+    * bits.
+    */
+   static Estimate of( String filename, int maxLength ) throws IOException {
+      long[] frequencies = new long[0x100];
+      Huffman.countFrequencies( filename, frequencies );
+      return of( frequencies, maxLength );
+   }
+
+   /**
+    * Estimates encoding bytes that occur as often as frequencies says, with
+    * canonical codes of at most maxLength bits.
+    */
+   static Estimate of( long[] frequencies, int maxLength ) throws IOException {
+      Estimate e = new Estimate();
+      e.frequencies = frequencies.clone();
+      e.lengths = new int[0x100];
+      for( long f : frequencies )
+         e.rawLength += f;
+
+      HuffmanTree htree = Huffman.buildTree( frequencies );
+      if( htree == null )        // Empty: nothing would be written.
+         return e;
+
+      CanonicalCode code = Huffman.canonicalCode( htree, frequencies, maxLength );
+      e.lengths = code.getLengths();
+      e.codedBits = new HuffmanEncoder( code ).encodedBits( frequencies );
+      e.entropy = HuffmanEvents.entropy( frequencies, e.rawLength );
+
+      if( !Huffman.worthCoding( e.rawLength, e.codedBits ) ) {
+         e.stored = true;
+         e.treeLength = 2;
+         e.codedLength = e.rawLength;
+      }
+      else {
+         e.treeLength = ( code.writtenBits() + 7 ) / 8;
+         e.codedLength = e.codedBits / 8 + 1;      // At least one bit of padding.
+      }
+      return e;
+   }
+
+   /**
+    * Returns the bytes both files would take together.
+    */
+   public long getTotalLength() {
+      return treeLength + codedLength;
+   }
+
+   /**
+    * Returns the bits per byte the codes take.
+    */
+   public double getBitsPerByte() {
+      return rawLength == 0 ? 0 : (double)codedBits / rawLength;
+   }
+
+   /**
+    * Returns the number of different byte values.
+    */
+   public int getSymbols() {
+      int n = 0;
+      for( long f : frequencies )
+         n += f > 0 ? 1 : 0;
+      return n;
+   }
+
+   public String toString() {
+      return rawLength + " -> " + getTotalLength() + " bytes"
+         + ( rawLength == 0 ? "" : String.format( " (%.1f%%)", 100.0 * getTotalLength() / rawLength ) )
+         + String.format( ", entropy %.4f, coded %.4f bits/byte", entropy, getBitsPerByte() )
+         + ( stored ? ", stored" : "" );
+   }
+}
@@ -1,5 +1,10 @@
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import javax.management.JMException;
 
 /**
  * Class to encode and decode files using Huffman tree coding.
@@ -7,139 +12,318 @@ import java.io.*;
 class Huffman {
    static String TREE_FILE_EXTENSION = ".ht";      // Extension for the tree file.
    static String ENC_FILE_EXTENSION = ".htcode";   // Extension for the encoded file.
+   static String CONTAINER_FILE_EXTENSION = ".huf"; // Extension for single-file containers.
+   static int MAX_CODE_LENGTH = 15;                // Longest canonical code allowed.
+   static long MAPPED_IO_THRESHOLD = 1 << 20;      // Files at least this big are memory-mapped.
+   static String TABLE_DIRECTORY = ".";            // Where shared code tables are kept.
+   static double MIN_SAVING = 0.02;                // Input that coding shrinks less than this is stored.
+   static double MAX_DRIFT = 0.05;                 // When appending, blocks a shared table codes this much worse get their own code.
+   static final int STORED_MAGIC = ( 'H' << 8 ) | 'S';   // The whole tree file of a stored file.
+   static int PIPELINE_BUFFERS = BlockRing.DEFAULT_BUFFERS;         // Buffers each way between I/O and coding; 0 for none.
+   static int PIPELINE_BUFFER_SIZE = BlockRing.DEFAULT_BUFFER_SIZE;
+   static long PIPELINE_THRESHOLD = 16 << 20;      // Only files at least this big, and pipes, are pipelined.
+
+   /**
+    * Builds a Huffman tree from a table of how often each byte occurs.
+    * Returns null if no byte occurs at all.
+    */
+   static HuffmanTree buildTree( long[] frequencies ) {
+      return HuffmanTree.build( frequencies );
+   }
 
    /**
     * Encodes the given file, and saves the result in the filename plus the
-    * extensions TREE_FILE_EXTENSION and ENC_FILE_EXTENSION.
+    * extensions TREE_FILE_EXTENSION and ENC_FILE_EXTENSION.  The tree file
+    * holds just the canonical code lengths.
     */
    static void HuffmanEncode( String filename ) throws FileNotFoundException, SecurityException, IOException {
-      // For reading the input file.
-      BufferedInputStream bis = new BufferedInputStream( new FileInputStream( filename ) );
-      // Table of how often each byte occurs in the file.
-      Integer[] frequencies = new Integer[0x100];
-
-      // First read the file once to figure out the frequence of characters.
-      Integer b;
-
-      // Since it's an array of Integers, frequencies is full of nulls.
-      for( Integer i = 0; i < 0x100; i++ )
-         frequencies[i] = 0;
+      HuffmanEncode( filename, true );
+   }
 
-      try {
-         while( ( b = bis.read() ) != -1 )   // As long as we can read...
-            frequencies[b]++;                // ...increment the table.
-      }
-      catch( IOException e ) {
-         throw( e );
-      }
-      finally {
-         bis.close();
-      }
+   /**
+    * Encodes the given file as above.  If canonical is false, the whole tree
+    * is saved in the tree file instead of the canonical code lengths.
+    */
+   static void HuffmanEncode( String filename, Boolean canonical ) throws FileNotFoundException, SecurityException, IOException {
+      HuffmanEncode( filename, canonical, MAX_CODE_LENGTH );
+   }
 
-      // Now we create a Huffman tree leaf for each value we found, and store
-      // those in a priority queue, which is kept sorted on the weight we get
-      // from the frequency table.
-      PriorityQueue<HuffmanTree> pineapple = new PriorityQueue<HuffmanTree>();
-      for( Integer i = 0; i < 0x100; i++ ) {
-         if( frequencies[i] > 0 )
-            pineapple.add( new HuffmanTree( i, frequencies[i] ) );
-      }
+   /**
+    * Encodes the given file as above.  Canonical codes are kept to at most
+    * maxLength bits; tree files are never limited.
+    */
+   static void HuffmanEncode( String filename, Boolean canonical, int maxLength ) throws FileNotFoundException, SecurityException, IOException {
+      // Table of how often each byte occurs in the file.
+      long[] frequencies = new long[0x100];
 
-      // As long as the queue has more than two members, combine the two with
-      // lowest weight into a new tree, and add it to the queue.
-      while( pineapple.size() > 1 ) {
-         HuffmanTree right = pineapple.poll(), left = pineapple.poll();
-         pineapple.add( new HuffmanTree( left, right ) );
-      }
+      // First read the file once to figure out the frequence of characters.
+      HuffmanEvents.Phase phase = HuffmanEvents.begin( HuffmanEvents.COUNT, filename );
+      countFrequencies( filename, frequencies );
+      long rawLength = 0;
+      for( long f : frequencies )
+         rawLength += f;
+      phase.done( rawLength, 0 );
 
-      // If the queue is empty the file was empty.  Just quit.
-      if( pineapple.size() == 0 )
+      // Build the Huffman tree.  If there is none the file was empty.  Just
+      // quit.
+      phase = HuffmanEvents.begin( HuffmanEvents.TREE, filename );
+      HuffmanTree htree = buildTree( frequencies );
+      phase.done( 0, 0 );
+      if( htree == null )
          return;
 
-      // We've got our Huffman tree.  Save it to the tree save file.
-      HuffmanTree htree = pineapple.poll();
-      htree.saveToFile( filename + TREE_FILE_EXTENSION );
+      // Make the code tables.
+      phase = HuffmanEvents.begin( HuffmanEvents.CODE, filename );
+      HuffmanEncoder encoder;
+      CanonicalCode code = null;
 
-      // Get the Huffman dictionary from the tree.
-      HashMap<Integer, Boolean[]> dic = htree.getDictionary();
+      if( canonical ) {
+         code = canonicalCode( htree, frequencies, maxLength );
+         encoder = new HuffmanEncoder( code );
+      }
+      else
+         encoder = new HuffmanEncoder( htree );
+      phase.done( 0, 0 );
 
       // Count the total length that the encoded file will have.  This is the
       // sum of the product of each occurance of each character and the length
       // of its Huffman code.
-      Integer totalLength = 0;
-      for( Integer i = 0; i < 0x100; i++ ) {
-         if( frequencies[i] > 0 )
-            totalLength += frequencies[i] * dic.get( i ).length;
+      long totalLength = encoder.encodedBits( frequencies );
+
+      // If that hardly saves anything (the file is already compressed, say),
+      // don't bother coding it; store it as it is.
+      if( !worthCoding( rawLength, totalLength ) ) {
+         saveStored( filename );
+         HuffmanEvents.encoded( filename, frequencies, 0, 8 * rawLength, true );
+         return;
       }
 
+      // Save the tree, or just its code lengths, to the tree save file.
+      if( canonical )
+         code.saveToFile( filename + TREE_FILE_EXTENSION );
+      else
+         htree.saveToFile( filename + TREE_FILE_EXTENSION );
+
       // We need to pad the resultant file with a number of bits to make it an
       // even number of bytes.  Otherwise we'll run into garbage when decoding
       // the result.
-      Integer padLength = 8 - totalLength % 8;
+      int padLength = 8 - (int)( totalLength % 8 );
 
-      // Open the file for reading again, now to encode each byte.
-      bis = new BufferedInputStream( new FileInputStream( filename ) );
+      // And a BitStreamWriter to write the result, on a thread of its own
+      // if pipelining is on, or else through a big direct buffer.
+      BitStreamWriter codewriter;
+      long length = new File( filename ).length();
+      if( pipelined( length ) )
+         codewriter = new BitStreamWriter( writeBehind( new FileOutputStream( filename + ENC_FILE_EXTENSION ), length ) );
+      else
+         codewriter = new BitStreamWriter( FileChannel.open( Paths.get( filename + ENC_FILE_EXTENSION ),
+               StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) );
 
-      // And a BitFileWriter to write the result.
-      BitFileWriter codewriter;
+      phase = HuffmanEvents.begin( HuffmanEvents.ENCODE, filename );
       try {
-         codewriter = new BitFileWriter( filename + ENC_FILE_EXTENSION );
+         // First write the padding.  This is a number of 1s followed by a 0.
+         codewriter.writeBits( ( 1 << padLength ) - 2, padLength );
+
+         // Then read the input file again, and write the code of each byte
+         // to the output file.
+         encodeFile( filename, encoder, codewriter );
+         phase.done( rawLength, ( totalLength + padLength ) / 8 );
+         phase = HuffmanEvents.begin( HuffmanEvents.FLUSH, filename );
       }
-      catch( SecurityException e ) { 
-         bis.close();
-         throw( e );
+      finally {
+         codewriter.close();
       }
-      catch( IOException e ) {
-         bis.close();
-         throw( e );
+      phase.done( 0, 0 );
+      HuffmanEvents.encoded( filename, frequencies, encoder, totalLength + padLength );
+
+      // Done!
+   }
+
+   /**
+    * Returns the canonical code for a tree built from frequencies.  If the
+    * tree is deeper than maxLength, the best code lengths that fit are
+    * worked out instead.
+    */
+   static CanonicalCode canonicalCode( HuffmanTree htree, long[] frequencies, int maxLength ) {
+      CanonicalCode code = new CanonicalCode( htree );
+      if( code.getMaxLength() > maxLength )
+         code = CanonicalCode.build( frequencies, maxLength );
+      return code;
+   }
+
+   /**
+    * Whether coding rawLength bytes into codedBits bits, plus padding,
+    * saves at least MIN_SAVING of them; if not, the file is stored.
+    */
+   static Boolean worthCoding( long rawLength, long codedBits ) {
+      return rawLength - ( codedBits / 8 + 1 ) >= MIN_SAVING * rawLength;
+   }
+
+   /**
+    * Saves a file as stored: the encoded file is a copy of it, and the tree
+    * file holds just STORED_MAGIC.
+    */
+   static void saveStored( String filename ) throws IOException {
+      OutputStream out = new FileOutputStream( filename + TREE_FILE_EXTENSION );
+      try {
+         out.write( STORED_MAGIC >>> 8 );
+         out.write( STORED_MAGIC & 0xff );
       }
-      finally { }
+      finally {
+         out.close();
+      }
+      Files.copy( Paths.get( filename ), Paths.get( filename + ENC_FILE_EXTENSION ), StandardCopyOption.REPLACE_EXISTING );
+   }
+
+   /**
+    * Whether treefile says the file was stored rather than coded.
+    */
+   static Boolean isStoredFile( String treefile ) throws IOException {
+      if( new File( treefile ).length() != 2 )
+         return false;
 
+      InputStream in = new FileInputStream( treefile );
       try {
-         // First write the padding.  This is a number of 1s followed by a 0.
-         for( Integer i = 1; i < padLength; i++ )
-            codewriter.writeBit( true );
-         codewriter.writeBit( false );
+         return ( ( in.read() << 8 ) | in.read() ) == STORED_MAGIC;
+      }
+      finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Adds how often each byte occurs in the file to frequencies.  Large
+    * files are mapped into memory and counted on all processors.
+    */
+   static void countFrequencies( String filename, long[] frequencies ) throws IOException {
+      ByteHistogram.of( filename ).addTo( frequencies );
+   }
+
+   /**
+    * Writes the code of each byte in the file.  Large files are mapped into
+    * memory rather than read.
+    */
+   static void encodeFile( String filename, HuffmanEncoder encoder, BitStreamWriter out ) throws IOException {
+      if( new File( filename ).length() >= MAPPED_IO_THRESHOLD ) {
+         MappedFile in = new MappedFile( filename );
+         ByteBuffer buf;
 
-         // Then read each byte from the input file again, and write the bits
-         // it's associated with in the dictionary to the output file.
-         while( ( b = bis.read() ) != -1 ) {
-            for( Boolean bit : dic.get( b ) )
-               codewriter.writeBit( bit );
+         try {
+            while( ( buf = in.next() ) != null )
+               encoder.encode( buf, out );
+         }
+         finally {
+            in.close();
          }
+         return;
       }
-      catch( IOException e ) {
-         throw( e );
+
+      InputStream in = readAhead( new FileInputStream( filename ), new File( filename ).length() );
+      byte[] buf = new byte[0x10000];
+      int n;
+
+      try {
+         while( ( n = in.read( buf ) ) > 0 )
+            encoder.encode( buf, 0, n, out );
       }
       finally {
-         codewriter.close();
-         bis.close();
+         in.close();
       }
+   }
 
-      // Done!
+   /**
+    * Reconstructs the Huffman tree stored in treefile.
+    */
+   static HuffmanTree loadTree( String treefile ) throws FileNotFoundException, SecurityException, IOException {
+      BitFileReader bfr = new BitFileReader( treefile );
+
+      try {
+         return new HuffmanTree( bfr );   // Reconstruct the tree using the BFR constructor.
+      }
+      finally {
+         bfr.close();
+      }
    }
 
    /**
-    * Decodes a Huffman encoded file codefile, using the Huffman tree stored in
-    * treefile, and writing the decoded file to outputfile.
+    * Builds a decoder for the code stored in treefile, which holds either
+    * canonical code lengths or a whole tree.
+    */
+   static HuffmanDecoder loadDecoder( String treefile ) throws FileNotFoundException, SecurityException, IOException {
+      if( !CanonicalCode.isCanonicalFile( treefile ) )
+         return new HuffmanDecoder( loadTree( treefile ) );
+
+      BitStreamReader bsr = new BitStreamReader( new FileInputStream( treefile ) );
+      try {
+         return new HuffmanDecoder( CanonicalCode.read( bsr ) );
+      }
+      finally {
+         bsr.close();
+      }
+   }
+
+   /**
+    * Decodes a Huffman encoded file codefile, using the Huffman tree or
+    * canonical code stored in treefile, and writing the decoded file to
+    * outputfile.
     */
    static void HuffmanDecode( String treefile, String codefile, String outputfile ) throws FileNotFoundException, SecurityException, IOException {
-      // First open the tree file in a BitFileReader.
-      BitFileReader bfr = new BitFileReader( treefile );
-      HuffmanTree htree;
+      // A stored file is just copied.
+      if( isStoredFile( treefile ) ) {
+         Files.copy( Paths.get( codefile ), Paths.get( outputfile ), StandardCopyOption.REPLACE_EXISTING );
+         return;
+      }
+
+      // Build the lookup tables from the code, so we can decode several bits
+      // at a time instead of walking a tree for each bit.
+      HuffmanEvents.Phase phase = HuffmanEvents.begin( HuffmanEvents.LOAD, treefile );
+      HuffmanDecoder decoder = loadDecoder( treefile );
+      phase.done( new File( treefile ).length(), 0 );
+
+      long length = new File( codefile ).length();
+      InputStream inp = readAhead( new FileInputStream( codefile ), length );
+      OutputStream outp;
 
       try {
-         htree = new HuffmanTree( bfr );  // Reconstruct the tree using the BFR constructor.
+         outp = writeBehind( new FileOutputStream( outputfile ), length );
+      }
+      catch( SecurityException e ) {
+         inp.close();
+         throw( e );
       }
       catch( IOException e ) {
+         inp.close();
          throw( e );
       }
+
+      phase = HuffmanEvents.begin( HuffmanEvents.DECODE, codefile );
+      try {
+         decoder.decode( inp, outp );
+      }
       finally {
-         bfr.close();
+         outp.close();
+         inp.close();
+      }
+      phase.done( new File( codefile ).length(), new File( outputfile ).length() );
+
+      // Done!
+   }
+
+   /**
+    * Decodes like HuffmanDecode(), but walks the tree one bit at a time.  Kept
+    * as the reference implementation to check and benchmark the table-driven
+    * decoder against.
+    */
+   static void HuffmanDecodeBitwise( String treefile, String codefile, String outputfile ) throws FileNotFoundException, SecurityException, IOException {
+      if( isStoredFile( treefile ) ) {
+         Files.copy( Paths.get( codefile ), Paths.get( outputfile ), StandardCopyOption.REPLACE_EXISTING );
+         return;
       }
 
-      // Next, open the encoded file for reading.
-      bfr = new BitFileReader( codefile );
+      HuffmanTree htree = loadTree( treefile );
+
+      // Open the encoded file for reading.
+      BitFileReader bfr = new BitFileReader( codefile );
 
       try {
          // Read the padding: keep reading bits until the first 0 is encountered.
@@ -166,19 +350,19 @@ class Huffman {
       }
       finally { }
 
-      HuffmanTree curtree = htree;
+      int curnode = htree.getRoot();
 
       try {
          while( !bfr.isAtEnd() ) {
             // Keep reading bit from the encoded file, and traverse the tree
             // according to the value.
-            curtree = curtree.pickBranch( bfr.readBit() );
+            curnode = htree.pickBranch( curnode, bfr.readBit() );
 
             // If we get to a leaf, output the value of the leaf, and start from
             // the beginning.
-            if( curtree.hasValue() ) {
-               outp.write( curtree.getValue() );
-               curtree = htree;
+            if( htree.hasValue( curnode ) ) {
+               outp.write( htree.getValue( curnode ) );
+               curnode = htree.getRoot();
             }
          }
       }
@@ -193,16 +377,770 @@ class Huffman {
       // Done!
    }
 
+   /**
+    * Reads everything from in and writes it to out as a single-file block
+    * container.  Neither stream is closed.
+    */
+   static void compress( InputStream in, OutputStream out ) throws IOException {
+      new BlockEncoder().compress( in, out );
+   }
+
+   /**
+    * Reads a single-file block container from in and writes the decoded
+    * bytes to out.  Neither stream is closed.
+    */
+   static void decompress( InputStream in, OutputStream out ) throws IOException {
+      new BlockDecoder().decompress( new BufferedInputStream( in ), out );
+   }
+
+   /**
+    * Whether length bytes are worth a pipeline: two threads and their
+    * buffers cost more than they save on small files.  A length of -1 means
+    * unknown, as for a pipe, which is always pipelined.
+    */
+   static Boolean pipelined( long length ) {
+      return PIPELINE_BUFFERS > 0 && ( length < 0 || length >= PIPELINE_THRESHOLD );
+   }
+
+   /**
+    * How big the pipeline buffers for length bytes are: no more than
+    * PIPELINE_BUFFER_SIZE, and no more than it takes to hold them all.
+    */
+   static int pipelineBufferSize( long length ) {
+      if( length < 0 )
+         return PIPELINE_BUFFER_SIZE;
+      return (int)Math.max( 1, Math.min( PIPELINE_BUFFER_SIZE, ( length + PIPELINE_BUFFERS - 1 ) / PIPELINE_BUFFERS ) );
+   }
+
+   /**
+    * Reads in ahead on a thread of its own, through PIPELINE_BUFFERS
+    * buffers of up to PIPELINE_BUFFER_SIZE bytes, so that reading overlaps
+    * with coding.  length is how much will be read, or -1 if not known; if
+    * it isn't pipelined(), in is just buffered.
+    */
+   static InputStream readAhead( InputStream in, long length ) {
+      if( !pipelined( length ) )
+         return new BufferedInputStream( in, 0x10000 );
+      return new ReadAheadInputStream( in, PIPELINE_BUFFERS, pipelineBufferSize( length ) );
+   }
+
+   /**
+    * Writes to out behind the caller on a thread of its own, like
+    * readAhead().  length is about how much will be written.
+    */
+   static OutputStream writeBehind( OutputStream out, long length ) {
+      if( !pipelined( length ) )
+         return new BufferedOutputStream( out, 0x10000 );
+      return new WriteBehindOutputStream( out, PIPELINE_BUFFERS, pipelineBufferSize( length ) );
+   }
+
+   /**
+    * The length of the named file, or -1 for standard input or output.
+    */
+   static long streamLength( String name ) {
+      return name.equals( "-" ) ? -1 : new File( name ).length();
+   }
+
+   /**
+    * Opens a file for reading, or standard input if the name is "-".  It is
+    * read ahead, see readAhead().
+    */
+   static InputStream openInput( String name ) throws IOException {
+      return readAhead( name.equals( "-" ) ? System.in : new FileInputStream( name ), streamLength( name ) );
+   }
+
+   /**
+    * Opens a file for writing, or standard output if the name is "-".  It is
+    * written behind, see writeBehind(), as if length bytes will be written.
+    */
+   static OutputStream openOutput( String name, long length ) throws IOException {
+      return writeBehind( name.equals( "-" ) ? System.out : new FileOutputStream( name ), length );
+   }
+
+   /**
+    * Returns the name of what compressing (if encode) or decompressing the
+    * file input gives: the container extension added or taken off.
+    */
+   static String containerOutputName( String input, Boolean encode ) {
+      if( encode )
+         return input + CONTAINER_FILE_EXTENSION;
+      if( input.endsWith( CONTAINER_FILE_EXTENSION ) )
+         return input.substring( 0, input.length() - CONTAINER_FILE_EXTENSION.length() );
+      return input + ".out";
+   }
+
+   /**
+    * Compresses (if encode) the file input to output with encoder, or
+    * decompresses it with decoder, through buffers of bufferSize bytes.
+    * Returns the bytes read and written.  If coding fails the output is
+    * removed, but only once it has been opened: a file or directory that
+    * couldn't be opened was never this call's to remove.
+    */
+   static long[] codeFile( File input, File output, Boolean encode, BlockEncoder encoder, BlockDecoder decoder, int bufferSize ) throws IOException {
+      InputStream in = new BufferedInputStream( new FileInputStream( input ), bufferSize );
+      OutputStream out = null;
+      Boolean ok = false;
+
+      try {
+         out = new BufferedOutputStream( new FileOutputStream( output ), bufferSize );
+         if( encode )
+            encoder.compress( in, out );
+         else
+            decoder.decompress( in, out );
+         out.close();
+         ok = true;
+      }
+      finally {
+         in.close();
+         if( !ok && out != null ) {
+            try {
+               out.close();
+            }
+            finally {
+               output.delete();
+            }
+         }
+      }
+      return new long[] { input.length(), output.length() };
+   }
+
+   /**
+    * The encoder options the container modes share: -b <block size in
+    * KiB>, -m <least saving in percent, else blocks are stored>, -o <order
+    * of the model, 0 or 1>, -X <transforms>, -t <shared table id, in hex>,
+    * -D <how much worse in percent a shared table may code a block than its
+    * own code> and -T <table directory>.
+    */
+   static class EncoderOptions {
+      int blockSize = BlockFormat.DEFAULT_BLOCK_SIZE, order = 0;
+      double minSaving = MIN_SAVING;
+      Double maxDrift;              // Null to leave the encoder's own.
+      String transforms, tableId, tableDir = TABLE_DIRECTORY;
+
+      /**
+       * Reads the option at args[i], if it is one of these.  Returns the
+       * index of its last argument, or -1 if it isn't one.
+       */
+      int parse( String[] args, int i ) {
+         if( i + 1 >= args.length )
+            return -1;
+         if( args[i].equals( "-b" ) )
+            blockSize = Integer.parseInt( args[i + 1] ) << 10;
+         else if( args[i].equals( "-m" ) )
+            minSaving = Double.parseDouble( args[i + 1] ) / 100;
+         else if( args[i].equals( "-D" ) )
+            maxDrift = Double.parseDouble( args[i + 1] ) / 100;
+         else if( args[i].equals( "-o" ) )
+            order = Integer.parseInt( args[i + 1] );
+         else if( args[i].equals( "-X" ) )
+            transforms = args[i + 1];
+         else if( args[i].equals( "-t" ) )
+            tableId = args[i + 1];
+         else if( args[i].equals( "-T" ) )
+            tableDir = args[i + 1];
+         else
+            return -1;
+         return i + 1;
+      }
+
+      /**
+       * Returns the table store in the table directory.
+       */
+      CodeTableStore tables() {
+         return new CodeTableStore( new File( tableDir ) );
+      }
+
+      /**
+       * Returns the shared table from tables, or null if none was asked for.
+       */
+      CodeTableStore.Table table( CodeTableStore tables ) throws IOException {
+         return tableId == null ? null : tables.get( (int)Long.parseLong( tableId, 16 ) );
+      }
+
+      /**
+       * Fills in settings from the options, with the table that table()
+       * returned.
+       */
+      void apply( EncoderSettings settings, CodeTableStore.Table table ) {
+         settings.setTable( table );
+         settings.setMinSaving( minSaving );
+         if( maxDrift != null )
+            settings.setMaxDrift( maxDrift );
+         settings.setOrder( order );
+         settings.setTransforms( transforms );
+      }
+   }
+
+   /**
+    * Command-line handling for -batch: compresses (-c) or decompresses (-d)
+    * many files, named as for BatchCodec.expand(), each to its own
+    * container or back.  Options -p <files at once>, -V (on virtual
+    * threads), -jmx (keep CodecStats, for watching it) and those of
+    * EncoderOptions may be given.  Failures are reported as they happen;
+    * a summary comes at the end.
+    */
+   static void batchMain( String[] args ) {
+      final Boolean encode = args[1].equals( "-c" );
+      EncoderOptions options = new EncoderOptions();
+      int threads = Runtime.getRuntime().availableProcessors();
+      Boolean virtual = false, jmx = false;
+      ArrayList<String> names = new ArrayList<String>();
+
+      try {
+         for( int i = 2; i < args.length; i++ ) {
+            int last = options.parse( args, i );
+            if( last >= 0 )
+               i = last;
+            else if( args[i].equals( "-p" ) && i + 1 < args.length )
+               threads = Integer.parseInt( args[++i] );
+            else if( args[i].equals( "-V" ) )
+               virtual = true;
+            else if( args[i].equals( "-jmx" ) )
+               jmx = true;
+            else
+               names.add( args[i] );
+         }
+      }
+      catch( NumberFormatException e ) {
+         System.err.println( "Bad number: " + e.getMessage() );
+         System.exit( 1 );
+      }
+
+      try {
+         CodeTableStore tables = options.tables();
+         BatchCodec batch = new BatchCodec( threads, options.blockSize );
+         options.apply( batch, options.table( tables ) );
+         batch.setTables( tables );
+         if( virtual && !batch.setVirtual( true ) )
+            System.err.println( "No virtual threads here; using a pool of " + threads + "." );
+         if( jmx )
+            CodecStats.register();
+
+         BatchCodec.Summary summary = batch.run( BatchCodec.expand( names, encode ), encode, System.err );
+         System.err.println( summary );
+         if( summary.failed > 0 )
+            System.exit( 1 );
+      }
+      catch( IOException e ) {
+         System.err.println( "IO error: " + e.getMessage() );
+         System.exit( 1 );
+      }
+      catch( JMException e ) {
+         System.err.println( "Couldn't register for JMX: " + e.getMessage() );
+         System.exit( 1 );
+      }
+      catch( IllegalArgumentException e ) {
+         System.err.println( e.getMessage() );
+         System.exit( 1 );
+      }
+   }
+
+   /**
+    * Command-line handling for -daemon: serves requests on a Unix socket or
+    * port until killed.  Options -p <requests at once>, -jmx (keep
+    * CodecStats, for watching it) and those of EncoderOptions may be given.
+    */
+   static void daemonMain( String[] args ) {
+      EncoderOptions options = new EncoderOptions();
+      int threads = Runtime.getRuntime().availableProcessors();
+      Boolean jmx = false;
+      String address = null;
+
+      try {
+         for( int i = 1; i < args.length; i++ ) {
+            int last = options.parse( args, i );
+            if( last >= 0 )
+               i = last;
+            else if( args[i].equals( "-p" ) && i + 1 < args.length )
+               threads = Integer.parseInt( args[++i] );
+            else if( args[i].equals( "-jmx" ) )
+               jmx = true;
+            else
+               address = args[i];
+         }
+      }
+      catch( NumberFormatException e ) {
+         System.err.println( "Bad number: " + e.getMessage() );
+         System.exit( 1 );
+      }
+      if( address == null ) {
+         System.err.println( "No socket path or port given." );
+         System.exit( 1 );
+      }
+
+      try {
+         CodeTableStore tables = options.tables();
+         final HuffmanDaemon daemon = new HuffmanDaemon( address, threads, options.blockSize );
+         options.apply( daemon, options.table( tables ) );
+         daemon.setTables( tables );
+         if( jmx )
+            CodecStats.register();
+
+         Runtime.getRuntime().addShutdownHook( new Thread() {
+            public void run() {
+               try {
+                  daemon.close();
+               }
+               catch( IOException e ) { }
+            }
+         } );
+         System.err.println( "Listening on " + daemon.getAddress() + "." );
+         daemon.serve();
+      }
+      catch( IOException e ) {
+         System.err.println( "IO error: " + e.getMessage() );
+         System.exit( 1 );
+      }
+      catch( JMException e ) {
+         System.err.println( "Couldn't register for JMX: " + e.getMessage() );
+         System.exit( 1 );
+      }
+      catch( IllegalArgumentException e ) {
+         System.err.println( e.getMessage() );
+         System.exit( 1 );
+      }
+   }
+
+   /**
+    * Command-line handling for -client: has a daemon compress (-c) or
+    * decompress (-d) a file, or standard input to standard output.  Files
+    * are named to the daemon over a Unix socket, and sent through it over
+    * TCP.
+    */
+   static void clientMain( String[] args ) {
+      String address = args[1];
+      Boolean encode = args[2].equals( "-c" );
+      String input = args.length > 3 ? args[3] : "-", output;
+
+      if( args.length > 4 )
+         output = args[4];
+      else if( input.equals( "-" ) )
+         output = "-";
+      else
+         output = containerOutputName( input, encode );
+
+      try {
+         if( !HuffmanDaemon.isPort( address ) && !input.equals( "-" ) && !output.equals( "-" ) ) {
+            HuffmanClient.code( address, input, output, encode );
+            return;
+         }
+
+         InputStream in = input.equals( "-" ) ? System.in : new FileInputStream( input );
+         try {
+            OutputStream out = output.equals( "-" ) ? System.out : new BufferedOutputStream( new FileOutputStream( output ), 0x10000 );
+            try {
+               HuffmanClient.code( address, in, out, encode );
+            }
+            finally {
+               out.close();
+            }
+         }
+         finally {
+            in.close();
+         }
+      }
+      catch( IOException e ) {
+         System.err.println( "IO error: " + e.getMessage() );
+         System.exit( 1 );
+      }
+   }
+
+   /**
+    * Command-line handling for -e: estimates encoding each file, without
+    * writing anything.  With -v the count and code length of every byte
+    * value are listed too.
+    */
+   static void estimateMain( String[] args ) {
+      Boolean verbose = false;
+      int failed = 0;
+
+      for( int i = 1; i < args.length; i++ ) {
+         if( args[i].equals( "-v" ) ) {
+            verbose = true;
+            continue;
+         }
+
+         try {
+            Estimate e = Estimate.of( args[i] );
+            System.out.println( args[i] + ": " + e );
+            for( int b = 0; verbose && b < 0x100; b++ ) {
+               if( e.frequencies[b] > 0 )
+                  System.out.println( String.format( "   %3d %12d %2d", b, e.frequencies[b], e.lengths[b] ) );
+            }
+         }
+         catch( IOException e ) {
+            System.err.println( args[i] + ": " + e.getMessage() );
+            failed++;
+         }
+      }
+      if( failed > 0 )
+         System.exit( 1 );
+   }
+
+   /**
+    * Command-line handling for the container modes: -c compresses, -d
+    * decompresses.  Options -p <threads>, -s <streams per block> and those
+    * of EncoderOptions may follow.  Input and output default to standard
+    * input and output; with just an input file, the output name is made
+    * from it.  Messages go to standard error, since standard output may be
+    * the data.
+    */
+   static void containerMain( String[] args ) {
+      final Boolean encode = args[0].equals( "-c" );
+      EncoderOptions options = new EncoderOptions();
+      int threads = 1, streams = 1;
+      ArrayList<String> names = new ArrayList<String>();
+
+      try {
+         for( int i = 1; i < args.length; i++ ) {
+            int last = options.parse( args, i );
+            if( last >= 0 )
+               i = last;
+            else if( args[i].equals( "-p" ) && i + 1 < args.length )
+               threads = Integer.parseInt( args[++i] );
+            else if( args[i].equals( "-s" ) && i + 1 < args.length )
+               streams = Integer.parseInt( args[++i] );
+            else
+               names.add( args[i] );
+         }
+      }
+      catch( NumberFormatException e ) {
+         System.err.println( "Bad number: " + e.getMessage() );
+         System.exit( 1 );
+      }
+
+      String input = names.size() > 0 ? names.get( 0 ) : "-", output;
+
+      if( names.size() > 1 )
+         output = names.get( 1 );
+      else if( input.equals( "-" ) )
+         output = "-";
+      else
+         output = containerOutputName( input, encode );
+
+      try {
+         CodeTableStore tables = options.tables();
+         CodeTableStore.Table table = options.table( tables );
+
+         InputStream in = openInput( input );
+         try {
+            OutputStream out = openOutput( output, streamLength( input ) );
+            try {
+               if( threads == 1 && encode ) {
+                  BlockEncoder encoder = new BlockEncoder( options.blockSize, MAX_CODE_LENGTH, streams );
+                  options.apply( encoder, table );
+                  encoder.compress( in, out );
+               }
+               else if( threads == 1 ) {
+                  BlockDecoder decoder = new BlockDecoder();
+                  decoder.setTables( tables );
+                  decoder.decompress( in, out );
+               }
+               else {
+                  ParallelBlockCodec codec = new ParallelBlockCodec( threads, options.blockSize, MAX_CODE_LENGTH, streams );
+                  options.apply( codec, table );
+                  codec.setTables( tables );
+                  try {
+                     if( encode )
+                        codec.compress( in, out );
+                     else if( !input.equals( "-" ) )
+                        codec.decompress( new File( input ), out );
+                     else
+                        codec.decompress( in, out );
+                  }
+                  finally {
+                     codec.close();
+                  }
+               }
+            }
+            finally {
+               out.close();
+            }
+         }
+         finally {
+            in.close();
+         }
+      }
+      catch( FileNotFoundException e ) {
+         System.err.println( "Couldn't find file." );
+         System.exit( 1 );
+      }
+      catch( SecurityException e ) {
+         System.err.println( "Permission denied." );
+         System.exit( 1 );
+      }
+      catch( IOException e ) {
+         System.err.println( "IO error: " + e.getMessage() );
+         System.exit( 1 );
+      }
+      catch( IllegalArgumentException e ) {
+         System.err.println( e.getMessage() );
+         System.exit( 1 );
+      }
+   }
+
+   /**
+    * Handles -x <offset> <length> [-T <table dir>] <input> [<output>]:
+    * decodes just that part of a container file, using its block index.
+    */
+   static void rangeMain( String[] args ) {
+      String tableDir = TABLE_DIRECTORY;
+      ArrayList<String> names = new ArrayList<String>();
+      long offset = 0;
+      int length = 0;
+
+      try {
+         offset = Long.parseLong( args[1] );
+         length = Integer.parseInt( args[2] );
+      }
+      catch( NumberFormatException e ) {
+         System.err.println( "Bad number: " + e.getMessage() );
+         System.exit( 1 );
+      }
+      for( int i = 3; i < args.length; i++ ) {
+         if( args[i].equals( "-T" ) && i + 1 < args.length )
+            tableDir = args[++i];
+         else
+            names.add( args[i] );
+      }
+      if( names.size() < 1 ) {
+         System.err.println( "No input file." );
+         System.exit( 1 );
+      }
+
+      try {
+         SeekableContainer in = new SeekableContainer( new File( names.get( 0 ) ) );
+         try {
+            in.setTables( new CodeTableStore( new File( tableDir ) ) );
+            OutputStream out = openOutput( names.size() > 1 ? names.get( 1 ) : "-", length );
+            try {
+               out.write( in.decodeRange( offset, length ) );
+            }
+            finally {
+               out.close();
+            }
+         }
+         finally {
+            in.close();
+         }
+      }
+      catch( NoSuchFileException e ) {
+         System.err.println( "Couldn't find file." );
+         System.exit( 1 );
+      }
+      catch( IOException e ) {
+         System.err.println( "IO error: " + e.getMessage() );
+         System.exit( 1 );
+      }
+      catch( IllegalArgumentException e ) {
+         System.err.println( e.getMessage() );
+         System.exit( 1 );
+      }
+   }
+
+   /**
+    * Handles -a [options] <container> [<input>]: adds the input, standard
+    * input if there is no name, to the end of a container file without
+    * coding what is already there again.  A container that doesn't exist
+    * yet is made.  With -r, a container an earlier append left cut off is
+    * recovered, keeping its whole blocks.  Files in the .ht/.htcode format
+    * can't be added to, since their padding goes at the front and depends
+    * on the whole length.
+    */
+   static void appendMain( String[] args ) {
+      EncoderOptions options = new EncoderOptions();
+      int streams = 1;
+      Boolean recover = false;
+      ArrayList<String> names = new ArrayList<String>();
+
+      try {
+         for( int i = 1; i < args.length; i++ ) {
+            int last = options.parse( args, i );
+            if( last >= 0 )
+               i = last;
+            else if( args[i].equals( "-s" ) && i + 1 < args.length )
+               streams = Integer.parseInt( args[++i] );
+            else if( args[i].equals( "-r" ) )
+               recover = true;
+            else
+               names.add( args[i] );
+         }
+      }
+      catch( NumberFormatException e ) {
+         System.err.println( "Bad number: " + e.getMessage() );
+         System.exit( 1 );
+      }
+      if( names.size() < 1 ) {
+         System.err.println( "No container file." );
+         System.exit( 1 );
+      }
+
+      try {
+         CodeTableStore tables = options.tables();
+         BlockEncoder encoder = new BlockEncoder( options.blockSize, MAX_CODE_LENGTH, streams );
+         options.apply( encoder, options.table( tables ) );
+
+         InputStream in = openInput( names.size() > 1 ? names.get( 1 ) : "-" );
+         try {
+            FileChannel channel = FileChannel.open( Paths.get( names.get( 0 ) ), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE );
+            try {
+               if( channel.size() == 0 ) {
+                  OutputStream out = new BufferedOutputStream( Channels.newOutputStream( channel ), 0x10000 );
+                  encoder.compress( in, out );
+               }
+               else {
+                  BlockIndex index = recover ? new BlockIndex( channel, tables, true ) : null;
+                  if( index != null && index.isTorn() )
+                     System.err.println( "Container was cut off; keeping its first " + index.getRawLength() + " bytes." );
+                  encoder.append( channel, in, tables, recover );
+               }
+            }
+            finally {
+               channel.close();
+            }
+         }
+         finally {
+            in.close();
+         }
+      }
+      catch( FileNotFoundException e ) {
+         System.err.println( "Couldn't find file." );
+         System.exit( 1 );
+      }
+      catch( NoSuchFileException e ) {
+         System.err.println( "Couldn't find file." );
+         System.exit( 1 );
+      }
+      catch( IOException e ) {
+         System.err.println( "IO error: " + e.getMessage() );
+         System.exit( 1 );
+      }
+      catch( IllegalArgumentException e ) {
+         System.err.println( e.getMessage() );
+         System.exit( 1 );
+      }
+   }
+
+   /**
+    * Handles -ac and -ad: compress or decompress an adaptive stream.  With
+    * no names, standard input and output are used, and output is sent as
+    * soon as the input pauses, so it can be used on live streams.
+    */
+   static void adaptiveMain( String[] args ) {
+      String input = args.length > 1 ? args[1] : "-", output = args.length > 2 ? args[2] : "-";
+
+      try {
+         InputStream in = openInput( input );
+         try {
+            OutputStream out = openOutput( output, streamLength( input ) );
+            try {
+               if( args[0].equals( "-ac" ) )
+                  AdaptiveHuffman.compress( in, out );
+               else
+                  AdaptiveHuffman.decompress( in, out );
+            }
+            finally {
+               out.close();
+            }
+         }
+         finally {
+            in.close();
+         }
+      }
+      catch( FileNotFoundException e ) {
+         System.err.println( "Couldn't find file." );
+         System.exit( 1 );
+      }
+      catch( IOException e ) {
+         System.err.println( "IO error: " + e.getMessage() );
+         System.exit( 1 );
+      }
+   }
+
    /**
     * main() - for command-line functionality.
     * One argument given: encode the file provided.
     * Three arguments given: decode a file from tree file and encoded file, into
     * an output file.
+    * -c or -d first: compress or decompress a single-file container.
+    * -x first: decode part of a single-file container.
+    * -e first: estimate encoding files, writing nothing.
+    * -batch first: compress or decompress many files.
+    * -daemon first: serve requests from -client, so they skip JVM startup.
+    * -ac or -ad first: compress or decompress an adaptive stream.
+    * -train first: make a shared code table from sample files.
     */
    public static void main( String[] args ) {
+      if( args.length >= 1 && ( args[0].equals( "-c" ) || args[0].equals( "-d" ) ) ) {
+         containerMain( args );
+         return;
+      }
+
+      if( args.length >= 2 && args[0].equals( "-a" ) ) {
+         appendMain( args );
+         return;
+      }
+
+      if( args.length >= 4 && args[0].equals( "-x" ) ) {
+         rangeMain( args );
+         return;
+      }
+
+      if( args.length >= 3 && args[0].equals( "-batch" ) && ( args[1].equals( "-c" ) || args[1].equals( "-d" ) ) ) {
+         batchMain( args );
+         return;
+      }
+
+      if( args.length >= 2 && args[0].equals( "-daemon" ) ) {
+         daemonMain( args );
+         return;
+      }
+
+      if( args.length >= 3 && args[0].equals( "-client" ) && ( args[2].equals( "-c" ) || args[2].equals( "-d" ) ) ) {
+         clientMain( args );
+         return;
+      }
+
+      if( args.length >= 2 && args[0].equals( "-e" ) ) {
+         estimateMain( args );
+         return;
+      }
+
+      if( args.length >= 1 && ( args[0].equals( "-ac" ) || args[0].equals( "-ad" ) ) ) {
+         adaptiveMain( args );
+         return;
+      }
+
+      if( args.length >= 3 && args[0].equals( "-train" ) ) {
+         try {
+            int id = new CodeTableStore( new File( args[1] ) ).train( Arrays.asList( args ).subList( 2, args.length ) );
+            System.out.println( String.format( "%08x", id ) );
+         }
+         catch( IOException e ) {
+            System.err.println( "IO error: " + e.getMessage() );
+            System.exit( 1 );
+         }
+         return;
+      }
+
       if( args.length != 1 && args.length != 3 ) {
          System.out.println( "Usage - encoding: java Huffman <filename>" );
          System.out.println( "Usage - decoding: java Huffman <tree file name> <encoded file name> <output filename>" );
+         System.out.println( "Usage - single-file container: java Huffman -c|-d [-p <threads>] [-b <block KiB>] [-s <streams>]" );
+         System.out.println( "                                 [-m <min saving %>] [-o <order>] [-X <transforms>] [-t <shared table id>] [-D <max drift %>] [-T <table dir>] [<input> [<output>]]" );
+         System.out.println( "        (- or no name means standard input/output; transforms are rle, mtf, delta, delta2, delta4 and delta8, comma separated, run in order)" );
+         System.out.println( "Usage - part of a container: java Huffman -x <offset> <length> [-T <table dir>] <input> [<output>]" );
+         System.out.println( "Usage - add to a container: java Huffman -a [-r] [-b <block KiB>] [-s <streams>] [-m <min saving %>] [-o <order>]" );
+         System.out.println( "                                 [-X <transforms>] [-t <shared table id>] [-D <max drift %>] [-T <table dir>] <container> [<input>]" );
+         System.out.println( "Usage - many files: java Huffman -batch -c|-d [-p <files at once>] [-V] [-jmx] [-b <block KiB>] [-m <min saving %>]" );
+         System.out.println( "                                 [-o <order>] [-X <transforms>] [-t <shared table id>] [-D <max drift %>] [-T <table dir>] <files, dirs, globs or @lists...>" );
+         System.out.println( "Usage - daemon: java Huffman -daemon [-p <requests at once>] [-jmx] [-b <block KiB>] [-m <min saving %>] [-o <order>]" );
+         System.out.println( "                                 [-X <transforms>] [-t <shared table id>] [-D <max drift %>] [-T <table dir>] <socket path or port>" );
+         System.out.println( "Usage - client: java Huffman -client <socket path or port> -c|-d [<input> [<output>]]" );
+         System.out.println( "Usage - estimate without encoding: java Huffman -e [-v] <files...>" );
+         System.out.println( "Usage - adaptive stream: java Huffman -ac|-ad [<input> [<output>]]" );
+         System.out.println( "Usage - train a shared table: java Huffman -train <table dir> <sample files...>" );
          System.exit( 0 );
          return;
       }
@@ -0,0 +1,307 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Simple throughput benchmarks for the Huffman coder.  Generates test files in
+ * a temporary directory and times the different code paths on them.
+ */
+class HuffmanBenchmark {
+   static final int RUNS = 5;    // Timed runs per case; the best one is reported.
+
+   /**
+    * Something to time.
+    */
+   interface Task {
+      void run() throws IOException;
+   }
+
+   /**
+    * Writes size bytes of the suite's text-like corpus (skewed towards
+    * letters and spaces) to a file.
+    */
+   static File textFile( File dir, int size ) throws IOException {
+      return writeFile( dir, "text" + size, BenchmarkSuite.corpus( "text", size ) );
+   }
+
+   /**
+    * Writes size bytes drawn uniformly from the first values byte values to
+    * a file.  With 256 that is random data, which is stored rather than
+    * coded; with a few less it is about as hard to decode, but still coded.
+    */
+   static File randomFile( File dir, int size, int values ) throws IOException {
+      Random rnd = new Random( 42 );
+      byte[] data = new byte[size];
+      for( int i = 0; i < size; i++ )
+         data[i] = (byte)rnd.nextInt( values );
+      return writeFile( dir, "random" + values + "-" + size, data );
+   }
+
+   static File writeFile( File dir, String name, byte[] data ) throws IOException {
+      File f = new File( dir, name );
+      OutputStream out = new FileOutputStream( f );
+      try {
+         out.write( data );
+      }
+      finally {
+         out.close();
+      }
+      return f;
+   }
+
+   /**
+    * Runs a task a few times and returns the best throughput in MB/s over
+    * the given number of bytes.
+    */
+   static double time( Task task, long bytes ) throws IOException {
+      task.run();                         // Warm-up.
+      long best = Long.MAX_VALUE;
+      for( int i = 0; i < RUNS; i++ ) {
+         long start = System.nanoTime();
+         task.run();
+         best = Math.min( best, System.nanoTime() - start );
+      }
+      return bytes / 1e6 / ( best / 1e9 );
+   }
+
+   /**
+    * Returns the number of bytes the current thread has allocated so far.
+    */
+   static long allocatedBytes() {
+      return ( (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean() )
+                .getThreadAllocatedBytes( Thread.currentThread().getId() );
+   }
+
+   /**
+    * Runs a task after a warm-up and returns how many bytes it allocated.
+    */
+   static long allocation( Task task ) throws IOException {
+      task.run();
+      long before = allocatedBytes();
+      task.run();
+      return allocatedBytes() - before;
+   }
+
+   /**
+    * An output stream that throws everything away.
+    */
+   static class NullOutputStream extends OutputStream {
+      public void write( int b ) { }
+      public void write( byte[] b, int off, int len ) { }
+   }
+
+   static Boolean sameContents( File a, File b ) throws IOException {
+      return Arrays.equals( java.nio.file.Files.readAllBytes( a.toPath() ),
+                            java.nio.file.Files.readAllBytes( b.toPath() ) );
+   }
+
+   /**
+    * Compares the per-bit tree walk with the table-driven decoder, on a tree
+    * file and on canonical code lengths.
+    */
+   static void benchDecode( File input ) throws IOException {
+      final String name = input.getPath();
+      final String tree = name + Huffman.TREE_FILE_EXTENSION,
+                   code = name + Huffman.ENC_FILE_EXTENSION;
+      final File bitwise = new File( name + ".bitwise" ),
+                 table = new File( name + ".table" ),
+                 canonical = new File( name + ".canonical" );
+
+      Huffman.HuffmanEncode( name, false );
+      long treeSize = new File( tree ).length();
+
+      double bitwiseSpeed = time( new Task() {
+         public void run() throws IOException {
+            Huffman.HuffmanDecodeBitwise( tree, code, bitwise.getPath() );
+         }
+      }, input.length() );
+      double tableSpeed = time( new Task() {
+         public void run() throws IOException {
+            Huffman.HuffmanDecode( tree, code, table.getPath() );
+         }
+      }, input.length() );
+
+      Huffman.HuffmanEncode( name, true );
+      long canonicalSize = new File( tree ).length();
+
+      double canonicalSpeed = time( new Task() {
+         public void run() throws IOException {
+            Huffman.HuffmanDecode( tree, code, canonical.getPath() );
+         }
+      }, input.length() );
+
+      System.out.printf( "decode %-16s bitwise %8.1f MB/s   table %8.1f MB/s   %5.1fx   canonical %8.1f MB/s   header %d -> %d bytes   %s%n",
+                         input.getName(), bitwiseSpeed, tableSpeed, tableSpeed / bitwiseSpeed, canonicalSpeed,
+                         treeSize, canonicalSize,
+                         sameContents( input, bitwise ) && sameContents( input, table ) && sameContents( input, canonical )
+                            ? "identical" : "MISMATCH" );
+   }
+
+   /**
+    * Times writing and reading bits one at a time through BitFileWriter and
+    * BitFileReader, and 12 at a time through the BitStream classes.
+    */
+   static void benchBitIO( File dir, int size ) throws IOException {
+      final String name = new File( dir, "bits" ).getPath();
+      final long bits = (long)size * 8;
+
+      double writeBit = time( new Task() {
+         public void run() throws IOException {
+            BitFileWriter w = new BitFileWriter( name );
+            for( long i = 0; i < bits; i++ )
+               w.writeBit( ( i & 5 ) == 1 );
+            w.close();
+         }
+      }, size );
+      double readBit = time( new Task() {
+         public void run() throws IOException {
+            BitFileReader r = new BitFileReader( name );
+            while( !r.isAtEnd() )
+               r.readBit();
+            r.close();
+         }
+      }, size );
+      double writeBits = time( new Task() {
+         public void run() throws IOException {
+            BitStreamWriter w = new BitStreamWriter( new FileOutputStream( name ) );
+            for( long i = 0; i < bits; i += 12 )
+               w.writeBits( i, 12 );
+            w.close();
+         }
+      }, size );
+      double readBits = time( new Task() {
+         public void run() throws IOException {
+            BitStreamReader r = new BitStreamReader( new FileInputStream( name ) );
+            while( !r.isAtEnd() )
+               r.readBits( 12 );
+            r.close();
+         }
+      }, size );
+
+      System.out.printf( "bits   writeBit %8.1f MB/s   readBit %8.1f MB/s   writeBits %8.1f MB/s   readBits %8.1f MB/s%n",
+                         writeBit, readBit, writeBits, readBits );
+   }
+
+   /**
+    * Reports how many more bits length-limited codes take than unlimited
+    * Huffman codes, for the suite's corpus and Fibonacci frequencies.
+    */
+   static void reportLengthLimit( int size ) {
+      String[] names = { "text", "random", "skewed", "fibonacci" };
+      int[] limits = { 15, 12, 10, 9 };
+
+      for( String name : names ) {
+         long[] freq = new long[0x100];
+         if( name.equals( "fibonacci" ) ) {
+            for( int i = 0, a = 1, b = 1; i < 30; i++, b = a + b, a = b - a )
+               freq[i] = a;
+         }
+         else {
+            ByteHistogram histogram = new ByteHistogram();
+            byte[] data = BenchmarkSuite.corpus( name, size );
+            histogram.add( data, 0, data.length );
+            histogram.addTo( freq );
+         }
+
+         CanonicalCode huffman = new CanonicalCode( Huffman.buildTree( freq ) );
+         long bits = LengthLimitedCode.encodedBits( freq, huffman.getLengths() );
+
+         System.out.printf( "limit  %-10s huffman max %2d bits %12d", name, huffman.getMaxLength(), bits );
+         for( int limit : limits ) {
+            long limited = LengthLimitedCode.encodedBits( freq, LengthLimitedCode.packageMerge( freq, limit ) );
+            System.out.printf( "   <=%2d: %+.3f%%", limit, 100.0 * ( limited - bits ) / bits );
+         }
+         System.out.println();
+      }
+   }
+
+   /**
+    * Times container compression and decompression with different numbers
+    * of threads, and checks the output doesn't depend on them.
+    */
+   static void benchThreads( final File input ) throws IOException {
+      final File single = new File( input.getPath() + ".1.huf" ),
+                 coded = new File( input.getPath() + ".n.huf" ),
+                 decoded = new File( input.getPath() + ".n.out" );
+
+      InputStream in = new FileInputStream( input );
+      try {
+         OutputStream out = new FileOutputStream( single );
+         try {
+            new BlockEncoder().compress( in, out );
+         }
+         finally {
+            out.close();
+         }
+      }
+      finally {
+         in.close();
+      }
+
+      int cores = Runtime.getRuntime().availableProcessors();
+      for( int threads = 1; threads <= Math.max( 8, cores ); threads *= 2 ) {
+         final ParallelBlockCodec codec = new ParallelBlockCodec( threads );
+
+         double encode = time( new Task() {
+            public void run() throws IOException {
+               InputStream in = new FileInputStream( input );
+               OutputStream out = new FileOutputStream( coded );
+               codec.compress( in, out );
+               out.close();
+               in.close();
+            }
+         }, input.length() );
+         double decode = time( new Task() {
+            public void run() throws IOException {
+               OutputStream out = new FileOutputStream( decoded );
+               codec.decompress( coded, out );
+               out.close();
+            }
+         }, input.length() );
+         codec.close();
+
+         System.out.printf( "threads %2d (of %d cores)   compress %8.1f MB/s   decompress %8.1f MB/s   %s%n",
+                            threads, cores, encode, decode,
+                            sameContents( single, coded ) && sameContents( input, decoded ) ? "identical" : "MISMATCH" );
+      }
+   }
+
+   /**
+    * Reports how much garbage encoding makes, per byte of input.
+    */
+   static void benchEncodeAllocation( final File input ) throws IOException {
+      Task twoFile = new Task() {
+         public void run() throws IOException {
+            Huffman.HuffmanEncode( input.getPath() );
+         }
+      };
+      Task container = new Task() {
+         final BlockEncoder encoder = new BlockEncoder();
+         public void run() throws IOException {
+            InputStream in = new FileInputStream( input );
+            encoder.compress( in, new NullOutputStream() );
+            in.close();
+         }
+      };
+
+      System.out.printf( "encode %-16s HuffmanEncode %8.1f MB/s %10.3f bytes allocated/byte   BlockEncoder %8.1f MB/s %10.3f bytes allocated/byte%n",
+                         input.getName(),
+                         time( twoFile, input.length() ), (double)allocation( twoFile ) / input.length(),
+                         time( container, input.length() ), (double)allocation( container ) / input.length() );
+   }
+
+   public static void main( String[] args ) throws IOException {
+      int size = args.length > 0 ? Integer.parseInt( args[0] ) : 8 << 20;
+      File dir = java.nio.file.Files.createTempDirectory( "huffbench" ).toFile();
+
+      reportLengthLimit( size );
+      benchBitIO( dir, size );
+      benchEncodeAllocation( textFile( dir, size ) );
+      benchDecode( textFile( dir, size ) );
+      benchDecode( randomFile( dir, size, 192 ) );
+      benchThreads( textFile( dir, 4 * size ) );
+
+      for( File f : dir.listFiles() )
+         f.delete();
+      dir.delete();
+   }
+}
@@ -0,0 +1,119 @@
+import java.io.*;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Class to send requests to a HuffmanDaemon.  It only needs a few classes
+ * of its own, so it starts quickly, and the daemon does the coding.
+ */
+class HuffmanClient {
+   /**
+    * Has the daemon at address compress (if encode) or decompress the file
+    * input to output.  Returns the bytes read and written.  Only works over a
+    * Unix socket; see HuffmanDaemon.
+    */
+   static long[] code( String address, String input, String output, Boolean encode ) throws IOException {
+      SocketChannel ch = HuffmanDaemon.connect( address );
+      try {
+         OutputStream out = HuffmanDaemon.output( ch );
+         HuffmanDaemon.reply( out, ( encode ? HuffmanDaemon.COMPRESS : HuffmanDaemon.DECOMPRESS )
+                                   + "\t" + new File( input ).getAbsolutePath() + "\t" + new File( output ).getAbsolutePath() );
+
+         String answer = HuffmanDaemon.readLine( new BufferedInputStream( HuffmanDaemon.input( ch ) ) );
+         if( !answer.startsWith( "OK " ) )
+            throw new IOException( answer.startsWith( "ERR " ) ? answer.substring( 4 ) : "Bad answer from daemon." );
+
+         String[] words = answer.split( " " );
+         return new long[] { Long.parseLong( words[1] ), Long.parseLong( words[2] ) };
+      }
+      finally {
+         ch.close();
+      }
+   }
+
+   /**
+    * Has the daemon at address compress (if encode) or decompress everything
+    * from in, writing the result to out.  Neither stream is closed.  The
+    * input is sent on a thread of its own while the output comes back.
+    */
+   static void code( String address, final InputStream in, OutputStream out, Boolean encode ) throws IOException {
+      final SocketChannel ch = HuffmanDaemon.connect( address );
+      final AtomicReference<IOException> failed = new AtomicReference<IOException>();
+      final AtomicBoolean answered = new AtomicBoolean();
+      Thread sender = null;
+
+      try {
+         final OutputStream request = HuffmanDaemon.output( ch );
+         HuffmanDaemon.reply( request, encode ? HuffmanDaemon.COMPRESS_STREAM : HuffmanDaemon.DECOMPRESS_STREAM );
+
+         sender = new Thread( "huffman-client" ) {
+            public void run() {
+               byte[] buf = new byte[HuffmanDaemon.CHUNK_SIZE];
+               int n;
+               try {
+                  while( ( n = in.read( buf ) ) > 0 )
+                     request.write( buf, 0, n );
+                  ch.shutdownOutput();
+               }
+               catch( IOException e ) {
+                  // Once the answer is in, the daemon didn't want the rest.
+                  // Otherwise closing makes it fail, rather than take half
+                  // the input as all of it.
+                  if( answered.get() )
+                     return;
+                  failed.set( e );
+                  try {
+                     ch.close();
+                  }
+                  catch( IOException f ) { }
+               }
+            }
+         };
+         sender.setDaemon( true );
+         sender.start();
+
+         DataInputStream answer = new DataInputStream( new BufferedInputStream( HuffmanDaemon.input( ch ), HuffmanDaemon.CHUNK_SIZE ) );
+         byte[] buf = new byte[HuffmanDaemon.CHUNK_SIZE];
+         int n = 0;
+         try {
+            while( ( n = answer.readInt() ) > 0 ) {
+               if( n > buf.length )
+                  throw new IOException( "Bad answer from daemon." );
+               answer.readFully( buf, 0, n );
+               out.write( buf, 0, n );
+            }
+         }
+         catch( IOException e ) {
+            // The answer broke off; if sending failed, that is why.
+            if( failed.get() == null )
+               throw e;
+         }
+         finally {
+            answered.set( true );
+         }
+         if( n < 0 )
+            throw new IOException( HuffmanDaemon.readLine( answer ) );
+         out.flush();
+      }
+      finally {
+         ch.close();
+         if( sender != null )
+            join( sender );
+      }
+      if( failed.get() != null )
+         throw failed.get();
+   }
+
+   /**
+    * Waits for a thread to end.
+    */
+   private static void join( Thread t ) throws IOException {
+      try {
+         t.join();
+      }
+      catch( InterruptedException e ) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException( "Interrupted." );
+      }
+   }
+}
@@ -0,0 +1,502 @@
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.*;
+
+/**
+ * Class to serve compression requests from other processes, so that each
+ * call doesn't pay for starting a JVM and warming it up.
+ *
+ * The daemon listens on a Unix domain socket, or on a port on the loopback
+ * interface, and handles each connection on a pool thread that keeps its
+ * own coders.  Shared code tables are loaded once and kept in a
+ * CodeTableStore.  A connection carries one request, a line of words
+ * separated by tabs:
+ *
+ *    c <input> <output>   Compress the file input to a container output.
+ *    d <input> <output>   Decompress a container.
+ *    C                    Compress the bytes that follow, until the client
+ *                         shuts down its side of the connection.
+ *    D                    Decompress the container that follows.
+ *
+ * Paths should be absolute.  A file request is answered with a line, "OK
+ * <bytes in> <bytes out>" or "ERR <message>", so it can be made with
+ * socat or the like.  A stream request is answered with chunks, each an
+ * int length and that many bytes; a length of 0 ends the output, and -1
+ * means it failed, and is followed by the message as a line.  File requests
+ * are only taken over a Unix socket, which only its owner may use; over TCP
+ * any local user could otherwise have files written as the daemon's user.
+ *
+ * Unix domain sockets need Java 16 or later, and are looked up by
+ * reflection so that this still runs with TCP on older JVMs.
+ */
+class HuffmanDaemon implements EncoderSettings {
+   static final String COMPRESS = "c", DECOMPRESS = "d";
+   static final String COMPRESS_STREAM = "C", DECOMPRESS_STREAM = "D";
+   static final int CHUNK_SIZE = 0x10000;       // Most bytes in a chunk.
+   static final int MAX_LINE = 0x10000;         // Longest request line.
+
+   /**
+    * The coders a pool thread uses.
+    */
+   private static class Worker {
+      BlockEncoder encoder;
+      BlockDecoder decoder = new BlockDecoder();
+   }
+
+   private ServerSocketChannel server;
+   private String address;
+   private Path socket;                   // The Unix socket, if it is one.
+   private ExecutorService pool;
+   private ThreadLocal<Worker> workers;
+   private volatile Boolean closed = false;
+
+   private int blockSize;
+   private CodeTableStore.Table table;    // Shared table to code with, if any.
+   private CodeTableStore tables;         // Where to find shared tables when decoding.
+   private double minSaving = Huffman.MIN_SAVING;
+   private double maxDrift = Double.POSITIVE_INFINITY;   // See BlockEncoder.setMaxDrift().
+   private int order;
+   private String transforms;             // Names of the transforms to run, if any.
+
+   /**
+    * Creates a daemon listening on address: a port number for TCP on the
+    * loopback interface (0 for any free one), or else the path of a Unix
+    * socket.  Up to threads requests are handled at once, and containers
+    * are written in blocks of blockSize bytes.
+    */
+   public HuffmanDaemon( String address, int threads, int blockSize ) throws IOException {
+      if( threads < 1 )
+         throw new IllegalArgumentException( "Need at least one thread." );
+      BlockEncoder.checkBlockSize( blockSize );
+      this.blockSize = blockSize;
+
+      if( isPort( address ) ) {
+         server = ServerSocketChannel.open();
+         server.bind( new InetSocketAddress( InetAddress.getLoopbackAddress(), Integer.parseInt( address ) ) );
+         this.address = Integer.toString( ( (InetSocketAddress)server.getLocalAddress() ).getPort() );
+      }
+      else {
+         socket = Paths.get( address ).toAbsolutePath();
+         if( Files.exists( socket, LinkOption.NOFOLLOW_LINKS ) ) {
+            // Left over from a daemon that died, unless one is still there.
+            // Anything but a socket is someone's file, and is left alone.
+            if( !Files.readAttributes( socket, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS ).isOther() )
+               throw new IOException( address + " exists and isn't a socket." );
+            try {
+               connect( address ).close();
+               throw new IOException( "A daemon is already listening on " + address + "." );
+            }
+            catch( ConnectException e ) {
+               Files.delete( socket );
+            }
+         }
+         bindPrivate();
+         this.address = address;
+      }
+
+      pool = Executors.newFixedThreadPool( threads, new ThreadFactory() {
+         public Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, "huffman-daemon" );
+            t.setDaemon( true );
+            return t;
+         }
+      } );
+      workers = new ThreadLocal<Worker>() {
+         protected Worker initialValue() {
+            Worker w = new Worker();
+            w.encoder = new BlockEncoder( HuffmanDaemon.this.blockSize, Huffman.MAX_CODE_LENGTH );
+            return w;
+         }
+      };
+   }
+
+   /**
+    * Binds the Unix socket so that nobody else can ever connect to it.  A
+    * new socket has the permissions the umask gives it, so it is bound in
+    * a directory only we can enter, locked down there, and then linked
+    * into place, which fails if something got there first.
+    */
+   private void bindPrivate() throws IOException {
+      server = (ServerSocketChannel)open( ServerSocketChannel.class );
+      Path dir, tmp;
+      try {
+         dir = Files.createTempDirectory( socket.getParent(), ".huf",
+                                          PosixFilePermissions.asFileAttribute( PosixFilePermissions.fromString( "rwx------" ) ) );
+         tmp = dir.resolve( "s" );
+      }
+      catch( IOException e ) {
+         server.close();
+         throw e;
+      }
+      try {
+         server.bind( unixAddress( tmp.toString() ) );
+         Files.setPosixFilePermissions( tmp, PosixFilePermissions.fromString( "rw-------" ) );
+         Files.createLink( socket, tmp );
+      }
+      catch( IOException e ) {
+         server.close();
+         throw e;
+      }
+      finally {
+         Files.deleteIfExists( tmp );
+         Files.delete( dir );
+      }
+   }
+
+   /**
+    * Sets a shared table to code every block with, or null to give each
+    * block its own code.
+    */
+   public void setTable( CodeTableStore.Table table ) {
+      BlockEncoder.checkPayload( blockSize, table, transforms );
+      this.table = table;
+   }
+
+   /**
+    * Sets where shared tables are found when decoding.
+    */
+   public void setTables( CodeTableStore tables ) {
+      this.tables = tables;
+   }
+
+   /**
+    * Sets the least part of a block that coding must save.  See
+    * BlockEncoder.setMinSaving().
+    */
+   public void setMinSaving( double minSaving ) {
+      BlockEncoder.checkMinSaving( minSaving );
+      this.minSaving = minSaving;
+   }
+
+   /**
+    * Sets how much worse than its own code a shared table may code a
+    * block.  See BlockEncoder.setMaxDrift().
+    */
+   public void setMaxDrift( double maxDrift ) {
+      BlockEncoder.checkMaxDrift( maxDrift );
+      this.maxDrift = maxDrift;
+   }
+
+   /**
+    * Sets the order of the model, 0 or 1.  See BlockEncoder.setOrder().
+    */
+   public void setOrder( int order ) {
+      BlockEncoder.checkOrder( order );
+      this.order = order;
+   }
+
+   /**
+    * Sets the transforms each block is run through before coding, by name,
+    * or null for none.  See BlockEncoder.setTransforms().
+    */
+   public void setTransforms( String transforms ) {
+      BlockEncoder.checkPayload( blockSize, table, transforms );
+      this.transforms = transforms;
+   }
+
+   /**
+    * Returns the address listened on: the port, or the socket path.
+    */
+   public String getAddress() {
+      return address;
+   }
+
+   /**
+    * Whether address is a port number rather than a socket path.
+    */
+   static Boolean isPort( String address ) {
+      return address.matches( "[0-9]+" );
+   }
+
+   /**
+    * Returns the socket address of a Unix socket.
+    */
+   private static SocketAddress unixAddress( String path ) throws IOException {
+      try {
+         return (SocketAddress)Class.forName( "java.net.UnixDomainSocketAddress" ).getMethod( "of", String.class ).invoke( null, path );
+      }
+      catch( ReflectiveOperationException e ) {
+         throw new IOException( "Unix domain sockets need Java 16 or later; give a port instead." );
+      }
+   }
+
+   /**
+    * Opens a ServerSocketChannel or SocketChannel (as type says) for a Unix
+    * socket.
+    */
+   private static Object open( Class<?> type ) throws IOException {
+      try {
+         ProtocolFamily unix = StandardProtocolFamily.valueOf( "UNIX" );
+         return type.getMethod( "open", ProtocolFamily.class ).invoke( null, unix );
+      }
+      catch( IllegalArgumentException e ) {
+         throw new IOException( "Unix domain sockets need Java 16 or later; give a port instead." );
+      }
+      catch( InvocationTargetException e ) {
+         if( e.getCause() instanceof IOException )
+            throw (IOException)e.getCause();
+         throw new IOException( e.getCause() );
+      }
+      catch( ReflectiveOperationException e ) {
+         throw new IOException( "Unix domain sockets need Java 16 or later; give a port instead." );
+      }
+   }
+
+   /**
+    * Connects to a daemon at address, as taken by the constructor.
+    */
+   static SocketChannel connect( String address ) throws IOException {
+      if( isPort( address ) )
+         return SocketChannel.open( new InetSocketAddress( InetAddress.getLoopbackAddress(), Integer.parseInt( address ) ) );
+
+      SocketChannel ch = (SocketChannel)open( SocketChannel.class );
+      try {
+         ch.connect( unixAddress( address ) );
+      }
+      catch( IOException e ) {
+         ch.close();
+         throw e;
+      }
+      return ch;
+   }
+
+   /**
+    * Accepts and handles connections until close() is called.
+    */
+   public void serve() throws IOException {
+      while( !closed ) {
+         final SocketChannel ch;
+         try {
+            ch = server.accept();
+         }
+         catch( ClosedChannelException e ) {
+            break;
+         }
+
+         try {
+            pool.execute( new Runnable() {
+               public void run() {
+                  try {
+                     handle( ch );
+                  }
+                  catch( IOException e ) {
+                     // The client went away; nothing to tell it.
+                  }
+                  finally {
+                     try {
+                        ch.close();
+                     }
+                     catch( IOException e ) { }
+                  }
+               }
+            } );
+         }
+         catch( RejectedExecutionException e ) {
+            // Closed while accepting.
+            ch.close();
+            break;
+         }
+      }
+   }
+
+   /**
+    * Stops listening, and removes the socket.  Requests under way are
+    * finished.
+    */
+   public void close() throws IOException {
+      closed = true;
+      server.close();
+      pool.shutdown();
+      if( socket != null )
+         Files.deleteIfExists( socket );
+   }
+
+   /**
+    * Handles the request on a connection.
+    */
+   private void handle( SocketChannel ch ) throws IOException {
+      InputStream in = new BufferedInputStream( input( ch ), CHUNK_SIZE );
+      OutputStream out = output( ch );
+      String[] words = readLine( in ).split( "\t" );
+      String op = words[0];
+
+      Worker w = workers.get();
+      w.encoder.setTable( table );
+      w.encoder.setMinSaving( minSaving );
+      w.encoder.setMaxDrift( maxDrift );
+      w.encoder.setOrder( order );
+      w.encoder.setTransforms( transforms );
+      w.decoder.setTables( tables );
+
+      if( words.length == 1 && ( op.equals( COMPRESS_STREAM ) || op.equals( DECOMPRESS_STREAM ) ) ) {
+         ChunkedOutputStream chunks = new ChunkedOutputStream( out );
+         try {
+            if( op.equals( COMPRESS_STREAM ) )
+               w.encoder.compress( in, chunks );
+            else
+               w.decoder.decompress( in, chunks );
+            chunks.finish();
+         }
+         catch( IOException e ) {
+            chunks.fail( e.getMessage() );
+         }
+         catch( RuntimeException e ) {
+            chunks.fail( e.toString() );
+         }
+      }
+      else if( words.length == 3 && ( op.equals( COMPRESS ) || op.equals( DECOMPRESS ) ) ) {
+         if( socket == null )
+            reply( out, "ERR Files are only taken over a Unix socket." );
+         else {
+            try {
+               long[] sizes = code( w, words[1], words[2], op.equals( COMPRESS ) );
+               reply( out, "OK " + sizes[0] + " " + sizes[1] );
+            }
+            catch( IOException e ) {
+               reply( out, "ERR " + e.getMessage() );
+            }
+            catch( RuntimeException e ) {
+               reply( out, "ERR " + e );
+            }
+         }
+      }
+      else
+         reply( out, "ERR Bad request." );
+   }
+
+   /**
+    * Codes the file input to output.  Returns the bytes read and written.
+    */
+   private static long[] code( Worker w, String input, String output, Boolean encode ) throws IOException {
+      return Huffman.codeFile( new File( input ), new File( output ), encode, w.encoder, w.decoder, CHUNK_SIZE );
+   }
+
+   /**
+    * Writes a line and flushes it.
+    */
+   static void reply( OutputStream out, String line ) throws IOException {
+      out.write( ( line.replace( '\n', ' ' ) + "\n" ).getBytes( StandardCharsets.UTF_8 ) );
+      out.flush();
+   }
+
+   /**
+    * Reads a line, without the newline.
+    */
+   static String readLine( InputStream in ) throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while( ( b = in.read() ) != '\n' ) {
+         if( b < 0 )
+            throw new EOFException( "Unexpected end of request." );
+         if( line.size() == MAX_LINE )
+            throw new IOException( "Request too long." );
+         line.write( b );
+      }
+      return new String( line.toByteArray(), StandardCharsets.UTF_8 );
+   }
+
+   /**
+    * Returns an InputStream on a channel.  Unlike Channels.newInputStream(),
+    * it doesn't stop another thread writing to the channel while it waits.
+    */
+   static InputStream input( final SocketChannel ch ) {
+      return new InputStream() {
+         public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xff;
+         }
+
+         public int read( byte[] b, int off, int len ) throws IOException {
+            if( len == 0 )
+               return 0;
+            return ch.read( ByteBuffer.wrap( b, off, len ) );
+         }
+      };
+   }
+
+   /**
+    * Returns an OutputStream on a channel, like input().
+    */
+   static OutputStream output( final SocketChannel ch ) {
+      return new OutputStream() {
+         public void write( int b ) throws IOException {
+            write( new byte[] { (byte)b }, 0, 1 );
+         }
+
+         public void write( byte[] b, int off, int len ) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap( b, off, len );
+            while( buf.hasRemaining() )
+               ch.write( buf );
+         }
+      };
+   }
+
+   /**
+    * An OutputStream that sends what is written to it in chunks.  Each chunk
+    * is gathered with its length in front, and sent in one write.
+    */
+   private static class ChunkedOutputStream extends OutputStream {
+      private OutputStream out;
+      private byte[] buf = new byte[4 + CHUNK_SIZE];
+      private int count = 4;
+
+      ChunkedOutputStream( OutputStream out ) {
+         this.out = out;
+      }
+
+      public void write( int b ) throws IOException {
+         if( count == buf.length )
+            flushChunk();
+         buf[count++] = (byte)b;
+      }
+
+      public void write( byte[] b, int off, int len ) throws IOException {
+         while( len > 0 ) {
+            if( count == buf.length )
+               flushChunk();
+            int n = Math.min( len, buf.length - count );
+            System.arraycopy( b, off, buf, count, n );
+            count += n;
+            off += n;
+            len -= n;
+         }
+      }
+
+      public void flush() throws IOException {
+         flushChunk();
+         out.flush();
+      }
+
+      private void flushChunk() throws IOException {
+         if( count > 4 ) {
+            ByteBuffer.wrap( buf ).putInt( 0, count - 4 );
+            out.write( buf, 0, count );
+            count = 4;
+         }
+      }
+
+      /**
+       * Sends what is left and the end.
+       */
+      void finish() throws IOException {
+         flushChunk();
+         out.write( new byte[4] );
+         out.flush();
+      }
+
+      /**
+       * Sends a failure instead of the rest.
+       */
+      void fail( String message ) throws IOException {
+         out.write( new byte[] { -1, -1, -1, -1 } );
+         reply( out, String.valueOf( message ) );
+      }
+   }
+}
@@ -0,0 +1,343 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Class to decode Huffman coded data several bits at a time.
+ *
+ * A lookup table indexed by the next TABLE_BITS bits of the input gives the
+ * decoded value and the length of its code directly.  Codes longer than
+ * TABLE_BITS bits are finished one bit at a time: for a tree, by walking the
+ * subtree reached after the first TABLE_BITS bits; for a canonical code, by
+ * comparing against the first code of each length.
+ */
+class HuffmanDecoder {
+   static final int TABLE_BITS = 10;         // Number of bits resolved per lookup.
+
+   private int[] table;                      // Lookup table, see entry() below.
+   private HuffmanTree tree;                 // The tree, if built from one.
+   private int[] subtrees;                   // Subtrees for codes longer than TABLE_BITS.
+   private Boolean empty;                    // True if the tree is a single leaf.
+
+   // For canonical codes longer than TABLE_BITS (subtrees is null then).
+   private long[] firstCode;                 // The first code of each length.
+   private int[] lengthCount,                // How many codes there are of each length.
+            firstIndex,                      // Where each length starts in sorted.
+            sorted;                          // The values, in canonical code order.
+   private int maxLength;
+
+   /**
+    * Builds the lookup tables from a Huffman tree.
+    */
+   public HuffmanDecoder( HuffmanTree htree ) {
+      table = new int[1 << TABLE_BITS];
+      tree = htree;
+      subtrees = new int[htree.size()];
+
+      // A tree that is a single leaf has no codes at all (the encoder writes
+      // nothing but padding), so there is nothing to decode.
+      empty = htree.hasValue();
+      if( !empty )
+         fill( htree );
+   }
+
+   /**
+    * Builds the lookup tables from a canonical code, with no tree needed.
+    */
+   public HuffmanDecoder( CanonicalCode code ) {
+      table = new int[1 << TABLE_BITS];
+      empty = false;
+      maxLength = code.getMaxLength();
+      firstCode = new long[maxLength + 1];
+      lengthCount = new int[maxLength + 1];
+      firstIndex = new int[maxLength + 1];
+
+      // List the values in code order: by length, then by value.
+      int n = 0;
+      for( int i = 0; i < 0x100; i++ ) {
+         if( code.getLength( i ) > 0 ) {
+            lengthCount[code.getLength( i )]++;
+            n++;
+         }
+      }
+      for( int len = 1, index = 0; len <= maxLength; len++ ) {
+         firstIndex[len] = index;
+         index += lengthCount[len];
+      }
+
+      sorted = new int[n];
+      int[] next = firstIndex.clone();
+      for( int i = 0; i < 0x100; i++ ) {
+         int len = code.getLength( i );
+         if( len > 0 )
+            sorted[next[len]++] = i;
+      }
+      for( int len = 1; len <= maxLength; len++ ) {
+         if( lengthCount[len] > 0 )
+            firstCode[len] = code.getCode( sorted[firstIndex[len]] );
+      }
+
+      // Anything not covered by a short code is the start of a long one.
+      Arrays.fill( table, entry( 0x100, TABLE_BITS ) );
+      for( int i = 0; i < 0x100; i++ ) {
+         int len = code.getLength( i );
+         if( len > 0 && len <= TABLE_BITS ) {
+            int shift = TABLE_BITS - len;
+            int start = (int)code.getCode( i ) << shift, end = (int)( code.getCode( i ) + 1 ) << shift;
+            Arrays.fill( table, start, end, entry( i, len ) );
+         }
+      }
+   }
+
+   /**
+    * Packs a table entry.  The low 5 bits hold the code length; the bits above
+    * hold the value for a leaf, or the index into subtrees plus 0x100 for a
+    * long code.
+    */
+   private static int entry( int value, int length ) {
+      return ( value << 5 ) | length;
+   }
+
+   /**
+    * Fills the table entries from the code of every node no deeper than
+    * TABLE_BITS.
+    */
+   private void fill( HuffmanTree htree ) {
+      int[] depth = new int[htree.size()];
+      long[] code = new long[htree.size()];
+      int count = 0;
+      htree.paths( depth, code );
+
+      for( int n = 0; n < htree.size(); n++ ) {
+         if( htree.hasValue( n ) && depth[n] <= TABLE_BITS ) {
+            // All indices that start with this code decode to the same value.
+            int shift = TABLE_BITS - depth[n];
+            int e = entry( htree.getValue( n ), depth[n] );
+            for( int i = (int)code[n] << shift, end = (int)( code[n] + 1 ) << shift; i < end; i++ )
+               table[i] = e;
+         }
+         else if( !htree.hasValue( n ) && depth[n] == TABLE_BITS ) {
+            // The code continues past the table; remember where we are.
+            table[(int)code[n]] = entry( 0x100 + count, TABLE_BITS );
+            subtrees[count++] = n;
+         }
+      }
+   }
+
+   /**
+    * Finishes a long code by walking the tree from node.  Returns the value,
+    * or -1 if the input ends first.
+    */
+   private int decodeTreeTail( BitStreamReader in, int node ) throws IOException {
+      while( !tree.hasValue( node ) && !in.isAtEnd() )
+         node = tree.pickBranch( node, in.readBit() == 1 );
+      return tree.hasValue( node ) ? tree.getValue( node ) : -1;
+   }
+
+   /**
+    * Finishes a long canonical code that starts with the TABLE_BITS bits in
+    * code.  Returns the value, or -1 if there is no such code.
+    */
+   private int decodeCanonicalTail( BitStreamReader in, long code ) throws IOException {
+      for( int len = TABLE_BITS + 1; len <= maxLength && !in.isAtEnd(); len++ ) {
+         code = ( code << 1 ) | in.readBit();
+
+         // Codes of each length are consecutive, so this is one of them iff
+         // it is below the first code plus the count.
+         long offset = code - firstCode[len];
+         if( offset >= 0 && offset < lengthCount[len] )
+            return sorted[firstIndex[len] + (int)offset];
+      }
+      return -1;
+   }
+
+   /**
+    * Decodes one value.  Throws an IOException if the codes are corrupt or
+    * run out first.
+    */
+   private int decodeOne( BitStreamReader in ) throws IOException {
+      int count = in.fill();
+      int index = in.peekBits( TABLE_BITS );
+      int e = table[index];
+      int length = e & 0x1f;
+
+      if( length > count )
+         throw new IOException( "Unexpected end of coded data." );
+      in.skipBits( length );
+
+      int value = e >>> 5;
+      if( value >= 0x100 ) {
+         value = subtrees != null ? decodeTreeTail( in, subtrees[value - 0x100] )
+                                  : decodeCanonicalTail( in, index );
+         if( value < 0 )
+            throw new IOException( "Corrupt coded data." );
+      }
+      return value;
+   }
+
+   /**
+    * Decodes exactly n values from a bit reader into out, starting at off.
+    * Throws an IOException if the codes are corrupt or run out first.
+    */
+   public void decode( BitStreamReader in, byte[] out, int off, int n ) throws IOException {
+      for( int end = off + n; off < end; off++ )
+         out[off] = (byte)decodeOne( in );
+   }
+
+   /**
+    * Decodes exactly n values from several interleaved streams into out,
+    * starting at off: value i comes from stream i % in.length.
+    */
+   public void decode( BitStreamReader[] in, byte[] out, int off, int n ) throws IOException {
+      int streams = in.length, end = off + n;
+
+      for( ; off + streams <= end; off += streams ) {
+         for( int j = 0; j < streams; j++ )
+            out[off + j] = (byte)decodeOne( in[j] );
+      }
+      for( int j = 0; off < end; off++, j++ )
+         out[off] = (byte)decodeOne( in[j] );
+   }
+
+   /**
+    * Decodes exactly n values from interleaved streams in buf into out, as
+    * above.  Stream j runs from start[j] up to end[j].
+    *
+    * Four streams of a canonical code, the usual case, get a loop of their
+    * own that keeps every stream's accumulator in a local variable.  The
+    * four streams don't depend on each other, so the processor can work on
+    * all of them at once instead of waiting for each code to be decoded
+    * before it can find the next one.
+    */
+   public void decode( byte[] buf, int[] start, int[] end, byte[] out, int off, int n ) throws IOException {
+      int streams = start.length, stop = off + n;
+      int[] bits = new int[streams];            // Where each stream has got to.
+      for( int j = 0; j < streams; j++ )
+         bits[j] = start[j] * 8;
+
+      if( streams == 4 && subtrees == null && maxLength < 32 ) {
+         final int[] table = this.table;
+         final int mask = ( 1 << TABLE_BITS ) - 1;
+         int p0 = start[0], p1 = start[1], p2 = start[2], p3 = start[3];
+         long a0 = 0, a1 = 0, a2 = 0, a3 = 0;   // Accumulators, as in BitStreamReader.
+         int c0 = 0, c1 = 0, c2 = 0, c3 = 0;    // Bits left in each.
+         int e0 = end[0] - 4, e1 = end[1] - 4, e2 = end[2] - 4, e3 = end[3] - 4;
+
+         // Each stream takes at most 4 bytes per round; stop while there
+         // are still that many, and finish with the general code.
+         while( off + 4 <= stop && p0 <= e0 && p1 <= e1 && p2 <= e2 && p3 <= e3 ) {
+            if( c0 < 32 ) { a0 = ( a0 << 32 ) | word( buf, p0 ); p0 += 4; c0 += 32; }
+            if( c1 < 32 ) { a1 = ( a1 << 32 ) | word( buf, p1 ); p1 += 4; c1 += 32; }
+            if( c2 < 32 ) { a2 = ( a2 << 32 ) | word( buf, p2 ); p2 += 4; c2 += 32; }
+            if( c3 < 32 ) { a3 = ( a3 << 32 ) | word( buf, p3 ); p3 += 4; c3 += 32; }
+
+            int t0 = table[(int)( a0 >>> ( c0 - TABLE_BITS ) ) & mask];
+            int t1 = table[(int)( a1 >>> ( c1 - TABLE_BITS ) ) & mask];
+            int t2 = table[(int)( a2 >>> ( c2 - TABLE_BITS ) ) & mask];
+            int t3 = table[(int)( a3 >>> ( c3 - TABLE_BITS ) ) & mask];
+            if( t0 >= 0x100 << 5 ) t0 = longEntry( a0, c0 );
+            if( t1 >= 0x100 << 5 ) t1 = longEntry( a1, c1 );
+            if( t2 >= 0x100 << 5 ) t2 = longEntry( a2, c2 );
+            if( t3 >= 0x100 << 5 ) t3 = longEntry( a3, c3 );
+            c0 -= t0 & 0x1f;
+            c1 -= t1 & 0x1f;
+            c2 -= t2 & 0x1f;
+            c3 -= t3 & 0x1f;
+
+            out[off] = (byte)( t0 >>> 5 );
+            out[off + 1] = (byte)( t1 >>> 5 );
+            out[off + 2] = (byte)( t2 >>> 5 );
+            out[off + 3] = (byte)( t3 >>> 5 );
+            off += 4;
+         }
+
+         bits[0] = p0 * 8 - c0;
+         bits[1] = p1 * 8 - c1;
+         bits[2] = p2 * 8 - c2;
+         bits[3] = p3 * 8 - c3;
+      }
+
+      // Carry on from wherever each stream got to.
+      BitStreamReader[] in = new BitStreamReader[streams];
+      for( int j = 0; j < streams; j++ ) {
+         int bit = bits[j];
+         in[j] = new BitStreamReader( buf, bit >>> 3, end[j] - ( bit >>> 3 ) );
+         in[j].fill();
+         in[j].skipBits( bit & 7 );
+      }
+      decode( in, out, off, stop - off );
+   }
+
+   /**
+    * Returns the big-endian int at off in buf, as an unsigned long.
+    */
+   private static long word( byte[] buf, int off ) {
+      return ( ( buf[off] & 0xffL ) << 24 ) | ( ( buf[off + 1] & 0xff ) << 16 )
+           | ( ( buf[off + 2] & 0xff ) << 8 ) | ( buf[off + 3] & 0xff );
+   }
+
+   /**
+    * Finds the table entry for a canonical code longer than TABLE_BITS, at
+    * the top of the count bits in acc.  count must be at least maxLength.
+    */
+   private int longEntry( long acc, int count ) throws IOException {
+      for( int len = TABLE_BITS + 1; len <= maxLength; len++ ) {
+         long offset = ( ( acc >>> ( count - len ) ) & ( ( 1L << len ) - 1 ) ) - firstCode[len];
+         if( offset >= 0 && offset < lengthCount[len] )
+            return entry( sorted[firstIndex[len] + (int)offset], len );
+      }
+      throw new IOException( "Corrupt coded data." );
+   }
+
+   /**
+    * Decodes a stream written by Huffman.HuffmanEncode(): the padding (a
+    * number of 1s followed by a 0) and then the codes.  The decoded bytes are
+    * written to out.
+    */
+   public void decode( InputStream in, OutputStream out ) throws IOException {
+      decode( new BitStreamReader( in ), out );
+   }
+
+   /**
+    * Decodes the padding and codes from a bit reader; see above.
+    */
+   public void decode( BitStreamReader in, OutputStream out ) throws IOException {
+      // Skip the padding: keep reading bits until the first 0.
+      while( in.fill() > 0 && in.readBit() == 1 );
+      if( in.isAtEnd() || empty )
+         return;
+
+      byte[] outbuf = new byte[0x10000];   // Decoded bytes, written out in bulk.
+      int outpos = 0;
+
+      while( true ) {
+         int count = in.fill();
+         if( count == 0 )
+            break;
+
+         // Look up the next TABLE_BITS bits, padded with 0s at the very end.
+         int index = in.peekBits( TABLE_BITS );
+         int e = table[index];
+         int length = e & 0x1f;
+
+         if( length > count )    // A partial code at the end; just like the
+            break;               // tree walk, there's nothing to output.
+         in.skipBits( length );
+
+         int value = e >>> 5;
+         if( value >= 0x100 ) {
+            value = subtrees != null ? decodeTreeTail( in, subtrees[value - 0x100] )
+                                     : decodeCanonicalTail( in, index );
+            if( value < 0 )
+               break;
+         }
+
+         outbuf[outpos++] = (byte)value;
+         if( outpos == outbuf.length ) {
+            out.write( outbuf, 0, outpos );
+            outpos = 0;
+         }
+      }
+
+      out.write( outbuf, 0, outpos );
+   }
+}
@@ -0,0 +1,112 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Class to encode bytes with a Huffman code, using flat primitive tables.
+ *
+ * The code and length of every byte are looked up in two 256-entry arrays
+ * and handed to a BitStreamWriter in one call, so encoding allocates
+ * nothing per byte.
+ */
+class HuffmanEncoder {
+   private long[] codes;      // The code of each byte, in the low length bits.
+   private byte[] lengths;    // The code length of each byte; 0 if it has none.
+
+   /**
+    * Takes the codes from a Huffman tree.
+    */
+   public HuffmanEncoder( HuffmanTree htree ) {
+      codes = new long[0x100];
+      lengths = new byte[0x100];
+
+      if( htree.hasValue() )        // A single leaf has an empty code.
+         return;
+
+      int[] depth = new int[htree.size()];
+      long[] code = new long[htree.size()];
+      htree.paths( depth, code );
+      for( int n = 0; n < htree.size(); n++ ) {
+         if( htree.hasValue( n ) ) {
+            codes[htree.getValue( n )] = code[n];
+            lengths[htree.getValue( n )] = (byte)depth[n];
+         }
+      }
+   }
+
+   /**
+    * Takes the codes from a canonical code.
+    */
+   public HuffmanEncoder( CanonicalCode code ) {
+      codes = new long[0x100];
+      lengths = new byte[0x100];
+      setCode( code );
+   }
+
+   /**
+    * Switches to the codes of another canonical code, reusing the tables.
+    */
+   public void setCode( CanonicalCode code ) {
+      for( int i = 0; i < 0x100; i++ ) {
+         codes[i] = code.getCode( i );
+         lengths[i] = (byte)code.getLength( i );
+      }
+   }
+
+   /**
+    * Returns the code length of a byte.
+    */
+   public int getLength( int b ) {
+      return lengths[b];
+   }
+
+   /**
+    * Returns the number of bits it takes to encode bytes with these
+    * frequencies.
+    */
+   public long encodedBits( long[] frequencies ) {
+      long bits = 0;
+      for( int i = 0; i < 0x100; i++ )
+         bits += frequencies[i] * lengths[i];
+      return bits;
+   }
+
+   /**
+    * Encodes len bytes of data, starting at off.
+    */
+   public void encode( byte[] data, int off, int len, BitStreamWriter out ) throws IOException {
+      final long[] codes = this.codes;
+      final byte[] lengths = this.lengths;
+
+      for( int i = off, end = off + len; i < end; i++ ) {
+         int b = data[i] & 0xff;
+         out.writeBits( codes[b], lengths[b] );
+      }
+   }
+
+   /**
+    * Encodes every step-th byte of len bytes of data, starting at off.
+    */
+   public void encode( byte[] data, int off, int len, int step, BitStreamWriter out ) throws IOException {
+      final long[] codes = this.codes;
+      final byte[] lengths = this.lengths;
+
+      for( int i = off, end = off + len; i < end; i += step ) {
+         int b = data[i] & 0xff;
+         out.writeBits( codes[b], lengths[b] );
+      }
+   }
+
+   /**
+    * Encodes the bytes of data from its position to its limit.  The
+    * position is left where it was.
+    */
+   public void encode( ByteBuffer data, BitStreamWriter out ) throws IOException {
+      final long[] codes = this.codes;
+      final byte[] lengths = this.lengths;
+
+      for( int i = data.position(), end = data.limit(); i < end; i++ ) {
+         int b = data.get( i ) & 0xff;
+         out.writeBits( codes[b], lengths[b] );
+      }
+   }
+}
@@ -0,0 +1,226 @@
+import jdk.jfr.*;
+
+/**
+ * Class to instrument the phases of coding a file: counting the bytes,
+ * building the tree and the code, encoding, flushing the output, and for
+ * decoding loading the code and decoding.  Container streams, which are
+ * coded a block at a time, have just an encode or decode phase.
+ *
+ * Each phase is a JDK Flight Recorder event, and each encoded file or
+ * stream ends with a summary event comparing the bits written with the
+ * entropy, stored ones too.  Record them
+ * with, for example, java -XX:StartFlightRecording:filename=rec.jfr Huffman
+ * <file>.  The same figures go to a CodecMetrics, if one is set.
+ *
+ * There are only a few events per file, never one per block or byte, and
+ * when neither a recording nor a CodecMetrics is asking for them nothing
+ * is timed or worked out, so they can be left in.  Event classes are only
+ * loaded once Flight Recorder has been started, since the first one loaded
+ * costs a good part of a second.
+ */
+class HuffmanEvents {
+   static final String COUNT = "count", TREE = "tree", CODE = "code", ENCODE = "encode", FLUSH = "flush";
+   static final String LOAD = "load", DECODE = "decode";
+   static final String[] PHASES = { COUNT, TREE, CODE, ENCODE, FLUSH, LOAD, DECODE };
+
+   private static volatile CodecMetrics metrics;   // Where to send the figures, if anywhere.
+
+   /**
+    * A phase under way, returned by begin().
+    */
+   static class Phase {
+      private String phase;
+      private PhaseEvent event;                 // Null unless Flight Recorder is on.
+      private long started;                     // For the metrics; 0 if there are none.
+
+      /**
+       * Ends the phase, having read bytesIn bytes and written bytesOut.
+       */
+      void done( long bytesIn, long bytesOut ) {
+         if( event != null )
+            event.done( bytesIn, bytesOut );
+
+         CodecMetrics m = metrics;
+         if( m != null && started != 0 )
+            m.phase( phase, System.nanoTime() - started, bytesIn, bytesOut );
+      }
+   }
+
+   /**
+    * A phase of coding a file.
+    */
+   @Name( "huffman.Phase" )
+   @Label( "Huffman Phase" )
+   @Category( "Huffman" )
+   @StackTrace( false )
+   static class PhaseEvent extends Event {
+      @Label( "Phase" )
+      String phase;
+
+      @Label( "File" )
+      String file;
+
+      @Label( "Bytes In" )
+      @DataAmount
+      long bytesIn;
+
+      @Label( "Bytes Out" )
+      @DataAmount
+      long bytesOut;
+
+      void done( long bytesIn, long bytesOut ) {
+         end();
+         if( shouldCommit() ) {
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            commit();
+         }
+      }
+   }
+
+   /**
+    * A summary of an encoded file.
+    */
+   @Name( "huffman.Encoded" )
+   @Label( "Huffman Encoded File" )
+   @Category( "Huffman" )
+   @StackTrace( false )
+   static class Encoded extends Event {
+      @Label( "File" )
+      String file;
+
+      @Label( "Bytes In" )
+      @DataAmount
+      long bytesIn;
+
+      @Label( "Bits Written" )
+      @DataAmount( DataAmount.BITS )
+      long bitsWritten;
+
+      @Label( "Symbols" )
+      @Description( "Number of different byte values" )
+      int symbols;
+
+      @Label( "Longest Code" )
+      int maxCodeLength;
+
+      @Label( "Entropy" )
+      @Description( "Bits per byte an ideal order-0 code would take" )
+      double entropy;
+
+      @Label( "Bits Per Symbol" )
+      @Description( "Bits per byte actually taken" )
+      double bitsPerSymbol;
+
+      @Label( "Stored" )
+      @Description( "Whether coding didn't pay, and the bytes were stored as they are" )
+      boolean stored;
+   }
+
+   /**
+    * Sets the CodecMetrics told about every phase, or null for none.
+    */
+   static void setMetrics( CodecMetrics m ) {
+      metrics = m;
+   }
+
+   /**
+    * Returns the CodecMetrics in use, or null.
+    */
+   static CodecMetrics getMetrics() {
+      return metrics;
+   }
+
+   /**
+    * Returns whether a recording or a CodecMetrics is asking for the
+    * figures, so that callers can skip working out ones only they need.
+    */
+   static Boolean wanted() {
+      return metrics != null || FlightRecorder.isInitialized();
+   }
+
+   /**
+    * Starts a phase of coding file.  Call done() on the result when it has
+    * finished.
+    */
+   static Phase begin( String phase, String file ) {
+      Phase p = new Phase();
+      p.phase = phase;
+      if( FlightRecorder.isInitialized() ) {
+         p.event = new PhaseEvent();
+         p.event.phase = phase;
+         p.event.file = file;
+         p.event.begin();
+      }
+      if( metrics != null )
+         p.started = System.nanoTime();
+      return p;
+   }
+
+   /**
+    * Reports an encoded file, coded with encoder, with the byte counts in
+    * frequencies, as bitsWritten bits.
+    */
+   static void encoded( String file, long[] frequencies, HuffmanEncoder encoder, long bitsWritten ) {
+      if( !wanted() )
+         return;
+
+      int maxLength = 0;
+      for( int i = 0; i < 0x100; i++ ) {
+         if( frequencies[i] > 0 )
+            maxLength = Math.max( maxLength, encoder.getLength( i ) );
+      }
+      encoded( file, frequencies, maxLength, bitsWritten, false );
+   }
+
+   /**
+    * Reports an encoded file or stream, with the byte counts in
+    * frequencies, as bitsWritten bits with codes of at most maxLength bits.
+    * stored is true if it was stored rather than coded.
+    */
+   static void encoded( String file, long[] frequencies, int maxLength, long bitsWritten, Boolean stored ) {
+      Encoded e = FlightRecorder.isInitialized() ? new Encoded() : null;
+      CodecMetrics m = metrics;
+      if( ( e == null || !e.shouldCommit() ) && m == null )
+         return;
+
+      long n = 0;
+      int symbols = 0;
+      for( int i = 0; i < 0x100; i++ ) {
+         if( frequencies[i] > 0 ) {
+            n += frequencies[i];
+            symbols++;
+         }
+      }
+      double entropy = entropy( frequencies, n );
+
+      if( m != null )
+         m.encoded( n, bitsWritten, entropy * n, stored );
+      if( e != null && e.shouldCommit() ) {
+         e.file = file;
+         e.bytesIn = n;
+         e.bitsWritten = bitsWritten;
+         e.symbols = symbols;
+         e.maxCodeLength = maxLength;
+         e.entropy = entropy;
+         e.bitsPerSymbol = n == 0 ? 0 : (double)bitsWritten / n;
+         e.stored = stored;
+         e.commit();
+      }
+   }
+
+   /**
+    * Returns the entropy, in bits per byte, of n bytes counted in
+    * frequencies.
+    */
+   static double entropy( long[] frequencies, long n ) {
+      double h = 0;
+      for( int i = 0; i < 0x100; i++ ) {
+         if( frequencies[i] > 0 ) {
+            double p = (double)frequencies[i] / n;
+            h -= p * Math.log( p );
+         }
+      }
+      return h / Math.log( 2 );
+   }
+}
@@ -0,0 +1,107 @@
+import java.io.*;
+
+/**
+ * Class to read a block container (see BlockFormat) from another stream,
+ * giving back the original bytes.
+ *
+ * Blocks are decoded one at a time as they are needed, into the decoder's
+ * buffer, so memory use only depends on the largest block.  The container
+ * header is read with the first block, so creating the stream never blocks.
+ * Reading stops at the end of the container; anything after it is left in
+ * the underlying stream, unread.  Block headers are read a byte at a time,
+ * so in should be buffered.
+ *
+ * As with HuffmanOutputStream, the decoder can be passed in to be reused, and
+ * must not be used for anything else while the stream is open.
+ */
+class HuffmanInputStream extends FilterInputStream {
+   private BlockDecoder decoder;
+   private int pos, count;       // The unread part of the decoder's buffer.
+   private Boolean started = false, ended = false;
+
+   /**
+    * Creates a stream reading from in, with a new decoder.
+    */
+   public HuffmanInputStream( InputStream in ) {
+      this( in, new BlockDecoder() );
+   }
+
+   /**
+    * Creates a stream reading from in, with the given decoder, which can
+    * have shared tables set.
+    */
+   public HuffmanInputStream( InputStream in, BlockDecoder decoder ) {
+      super( in );
+      this.decoder = decoder;
+   }
+
+   /**
+    * Decodes blocks until there is something to read.  Returns false at the
+    * end of the container.
+    */
+   private Boolean fill() throws IOException {
+      if( !started ) {
+         decoder.readHeader( in );
+         started = true;
+      }
+      while( pos == count && !ended ) {
+         int n = decoder.readBlock( in );
+         if( n < 0 )
+            ended = true;
+         else {
+            pos = 0;
+            count = n;
+         }
+      }
+      return pos < count;
+   }
+
+   public int read() throws IOException {
+      if( pos == count && !fill() )
+         return -1;
+      return decoder.getBuffer()[pos++] & 0xff;
+   }
+
+   public int read( byte[] b, int off, int len ) throws IOException {
+      if( off < 0 || len < 0 || len > b.length - off )
+         throw new IndexOutOfBoundsException();
+      if( len == 0 )
+         return 0;
+      if( pos == count && !fill() )
+         return -1;
+
+      int n = Math.min( len, count - pos );
+      System.arraycopy( decoder.getBuffer(), pos, b, off, n );
+      pos += n;
+      return n;
+   }
+
+   public long skip( long n ) throws IOException {
+      long skipped = 0;
+      while( skipped < n && ( pos < count || fill() ) ) {
+         int k = (int)Math.min( n - skipped, count - pos );
+         pos += k;
+         skipped += k;
+      }
+      return skipped;
+   }
+
+   /**
+    * Returns the number of decoded bytes that can be read without decoding
+    * another block.
+    */
+   public int available() {
+      return count - pos;
+   }
+
+   public boolean markSupported() {
+      return false;
+   }
+
+   public void mark( int limit ) {
+   }
+
+   public void reset() throws IOException {
+      throw new IOException( "mark/reset not supported." );
+   }
+}
@@ -0,0 +1,120 @@
+import java.io.*;
+
+/**
+ * Class to compress everything written to it into a block container (see
+ * BlockFormat) on another stream.
+ *
+ * Bytes are collected into a block, which is coded and written once it is
+ * full.  flush() codes the bytes collected so far as a shorter block, so a
+ * reader gets them without waiting for more; flushing often makes for many
+ * small blocks, each with its own code.  finish() ends the container without
+ * closing the underlying stream, close() does both.
+ *
+ * The block encoder can be passed in, so that it and its buffers are reused
+ * from one stream to the next.  It must not be used for anything else while
+ * the stream is open.
+ */
+class HuffmanOutputStream extends FilterOutputStream {
+   private BlockEncoder encoder;
+   private byte[] block;         // The block being collected; the encoder's own buffer.
+   private int count;            // Bytes in it.
+   private BlockIndex index = new BlockIndex();
+   private Boolean started = false, finished = false;
+
+   /**
+    * Creates a stream writing to out, with a new encoder with the default
+    * settings.
+    */
+   public HuffmanOutputStream( OutputStream out ) {
+      this( out, new BlockEncoder() );
+   }
+
+   /**
+    * Creates a stream writing to out, with the given encoder.
+    */
+   public HuffmanOutputStream( OutputStream out, BlockEncoder encoder ) {
+      super( out );
+      this.encoder = encoder;
+      block = encoder.getBuffer();
+   }
+
+   /**
+    * Writes the container header, if it hasn't been already.
+    */
+   private void start() throws IOException {
+      if( finished )
+         throw new IOException( "Stream finished." );
+      if( !started ) {
+         BlockEncoder.writeHeader( out );
+         started = true;
+      }
+   }
+
+   /**
+    * Codes the bytes collected so far as a block.
+    */
+   private void writeBlock() throws IOException {
+      if( count > 0 ) {
+         index.add( count, encoder.writeBlock( block, 0, count, out ) );
+         count = 0;
+      }
+   }
+
+   public void write( int b ) throws IOException {
+      start();
+      block[count++] = (byte)b;
+      if( count == block.length )
+         writeBlock();
+   }
+
+   public void write( byte[] b, int off, int len ) throws IOException {
+      if( off < 0 || len < 0 || len > b.length - off )
+         throw new IndexOutOfBoundsException();
+      start();
+
+      while( len > 0 ) {
+         int n = Math.min( len, block.length - count );
+         System.arraycopy( b, off, block, count, n );
+         count += n;
+         off += n;
+         len -= n;
+         if( count == block.length )
+            writeBlock();
+      }
+   }
+
+   /**
+    * Codes and writes the bytes collected so far, then flushes the
+    * underlying stream.
+    */
+   public void flush() throws IOException {
+      if( !finished ) {
+         start();
+         writeBlock();
+      }
+      out.flush();
+   }
+
+   /**
+    * Writes the last block and ends the container, without closing the
+    * underlying stream.  Nothing more can be written afterwards.
+    */
+   public void finish() throws IOException {
+      if( finished )
+         return;
+      start();
+      writeBlock();
+      index.writeEnd( out );
+      finished = true;
+      out.flush();
+   }
+
+   public void close() throws IOException {
+      try {
+         finish();
+      }
+      finally {
+         out.close();
+      }
+   }
+}
@@ -3,147 +3,239 @@ import java.util.*;
 
 /**
  * Class to store Huffman trees.
+ *
+ * The nodes are kept in flat arrays and referred to by their index, so a
+ * tree is a handful of objects however many nodes it has, and nothing is
+ * boxed.  Every traversal works with an explicit stack rather than
+ * recursion.
  */
-class HuffmanTree implements Comparable {
-   private HuffmanTree left, right;    // The subbranches of this node.
-   private Integer value,              // The value this node represents, if any.
-            weight;                    // The weight of this tree.
+class HuffmanTree {
+   static final int MAX_NODES = 2 * 0x100 - 1;   // Nodes in a tree with a leaf for every byte.
+
+   private int[] left, right;    // The subbranches of each node; -1 for a leaf.
+   private int[] value;          // The value each node represents; -1 if none.
+   private long[] weight;        // The weight of each node.
+   private int size;             // Number of nodes in use.
+   private int root;             // The index of the root.
 
    /**
-    * Creates a tree from two subtrees.
+    * Creates a tree with room for capacity nodes, and none in use.
     */
-   public HuffmanTree( HuffmanTree l, HuffmanTree r ) {
-      left = l;
-      right = r;
-      value = -1;
-      weight = l.getWeight() + r.getWeight();   // The weight is just the sum of the subtrees.
+   private HuffmanTree( int capacity ) {
+      left = new int[capacity];
+      right = new int[capacity];
+      value = new int[capacity];
+      weight = new long[capacity];
    }
 
    /**
-    * Creates a node with just a value and a weight.
+    * Creates a tree with a single node, with just a value and a weight.
     */
-   public HuffmanTree( Integer v, Integer w ) {
-      left = null;
-      right = null;
-      value = v;
-      weight = w;
+   public HuffmanTree( int v, long w ) {
+      this( 1 );
+      root = addNode( -1, -1, v, w );
    }
 
    /**
-    * Creates a tree with just a value.
+    * Adds a node and returns its index.
     */
-   public HuffmanTree( Integer v ) {
-      this( v, 0 );
+   private int addNode( int l, int r, int v, long w ) {
+      left[size] = l;
+      right[size] = r;
+      value[size] = v;
+      weight[size] = w;
+      return size++;
    }
 
    /**
-    * Creates a tree by reconstructing it from a savefile, opened with a
-    * BitFileReader.  Don't forget to close() the reader afterwards!
+    * Builds a Huffman tree from a table of how often each byte occurs.
+    * Returns null if no byte occurs at all.
+    *
+    * The leaves are sorted by weight, and then the two-queue method does
+    * the rest in linear time: new inner nodes are made in order of weight,
+    * so the lightest tree is always at the head of either the leaves or the
+    * inner nodes.
     */
-   protected HuffmanTree( BitFileReader bfr ) throws IOException {
-      // Read a bit.  If it's 1, this should branch out.
-      if( bfr.readBit() ) {
-         left = new HuffmanTree( bfr );      // First read the left branch.
-         right = new HuffmanTree( bfr );     // Then the right branch.
-         value = -1;                         // No value.
-         weight = 0;                         // Weight is irrelevant now.
+   static HuffmanTree build( long[] frequencies ) {
+      // Sort on weight, then value; both fit in a long for any real input.
+      long[] keys = new long[0x100];
+      int n = 0;
+      for( int i = 0; i < 0x100; i++ ) {
+         if( frequencies[i] > 0 )
+            keys[n++] = ( frequencies[i] << 8 ) | i;
       }
-      else {                                 // Else it's a leaf.
-         left = null;
-         right = null;
-         value = bfr.readByte();             // Read an entire byte as the value.
-         weight = 0;
+      if( n == 0 )
+         return null;
+      Arrays.sort( keys, 0, n );
+
+      HuffmanTree t = new HuffmanTree( 2 * n - 1 );
+      for( int i = 0; i < n; i++ )
+         t.addNode( -1, -1, (int)( keys[i] & 0xff ), keys[i] >>> 8 );
+
+      // Leaves are 0 to n - 1, inner nodes from n up.
+      int nextLeaf = 0, nextInner = n;
+      while( t.size < 2 * n - 1 ) {
+         int right = t.lighter( nextLeaf, nextInner, n );
+         if( right < n ) nextLeaf++; else nextInner++;
+         int left = t.lighter( nextLeaf, nextInner, n );
+         if( left < n ) nextLeaf++; else nextInner++;
+
+         t.addNode( left, right, -1, t.weight[left] + t.weight[right] );
       }
+
+      t.root = t.size - 1;
+      return t;
    }
 
    /**
-    * Whether this node has a value (i.e. is a leaf).
+    * Returns whichever is lighter of the next leaf and the next inner node,
+    * preferring the leaf.
     */
-   public Boolean hasValue() {
-      return value >= 0;
+   private int lighter( int nextLeaf, int nextInner, int leaves ) {
+      if( nextInner == size || ( nextLeaf < leaves && weight[nextLeaf] <= weight[nextInner] ) )
+         return nextLeaf;
+      return nextInner;
    }
 
    /**
-    * Traverse the tree depending on a truth value.  True returns the right
-    * branch, false the left.
+    * Creates a tree by reconstructing it from a savefile, opened with a
+    * BitFileReader.  Don't forget to close() the reader afterwards!
     */
-   public HuffmanTree pickBranch( Boolean r ) {
-      return ( r ? right : left );
+   protected HuffmanTree( BitFileReader bfr ) throws IOException {
+      this( MAX_NODES );
+
+      // Inner nodes that still need a right branch, innermost last.
+      int[] open = new int[MAX_NODES];
+      int depth = 0;
+
+      do {
+         if( size == MAX_NODES )
+            throw new IOException( "Corrupt tree file." );
+
+         // Read a bit.  If it's 1, this should branch out; else it's a leaf,
+         // and an entire byte follows as the value.
+         int node = bfr.readBit() ? addNode( -1, -1, -1, 0 ) : addNode( -1, -1, bfr.readByte(), 0 );
+
+         // Hang it on the innermost node still open: first the left branch,
+         // then the right.
+         if( depth == 0 )
+            root = node;
+         else if( left[open[depth - 1]] < 0 )
+            left[open[depth - 1]] = node;
+         else
+            right[open[--depth]] = node;
+
+         if( value[node] < 0 )
+            open[depth++] = node;
+      } while( depth > 0 );
    }
 
    /**
-    * Returns the value of this node.
+    * Returns the index of the root.
     */
-   public Integer getValue() {
-      return value;
+   public int getRoot() {
+      return root;
    }
 
    /**
-    * Returns the weight of this tree.
+    * Returns the number of nodes.
     */
-   public Integer getWeight() {
-      return weight;
+   public int size() {
+      return size;
    }
 
    /**
-    * Saves this tree to an opened BitFileWriter.  Don't forget to close() the
-    * writer afterwards!
+    * Whether a node has a value (i.e. is a leaf).
     */
-   private void saveToFile( BitFileWriter bfw ) throws IOException {
-      if( hasValue() ) {               // If it is a leaf (has a value)...
-         bfw.writeBit( false );        // ...then write a 0...
-         bfw.writeByte( getValue() );  // ...and then the value.
-      }
-      else {
-         bfw.writeBit( true );         // Else write 1...
-         left.saveToFile( bfw );       // ...then the left branch...
-         right.saveToFile( bfw );      // ...and last the right branch.
-      }
+   public Boolean hasValue( int node ) {
+      return value[node] >= 0;
    }
 
    /**
-    * Saves this tree to a file.
+    * Whether the whole tree is a single leaf.
     */
-   public void saveToFile( String filename ) throws IOException {
-      BitFileWriter bfw = new BitFileWriter( filename );
+   public Boolean hasValue() {
+      return hasValue( root );
+   }
 
-      saveToFile( bfw );
-      bfw.close();
+   /**
+    * Traverse the tree depending on a truth value.  True returns the right
+    * branch of node, false the left.
+    */
+   public int pickBranch( int node, Boolean r ) {
+      return ( r ? right[node] : left[node] );
+   }
+
+   /**
+    * Returns the value of a node.
+    */
+   public int getValue( int node ) {
+      return value[node];
    }
 
    /**
-    * Compares this tree to another.  This merely compares their weight,
-    * enabling the construction of a Huffman tree.
+    * Returns the weight of this tree.
     */
-   public int compareTo( Object t ) {
-      HuffmanTree tr = (HuffmanTree)t;
-      return getWeight().compareTo( tr.getWeight() );
+   public long getWeight() {
+      return weight[root];
    }
 
    /**
-    * Builds a dictionary of byte-to-huffman-code.
-    * The resultant dictionary is stored in dic.
-    * soFar is the code that's been built so far.
-    * dummy is an empty Boolean array, to make toArray() do as we want.
+    * Works out the depth of every node, and its code: the path to it from
+    * the root, 0 for left and 1 for right.  Codes deeper than 64 only keep
+    * their last 64 bits.
     */
-   private void buildDictionary( HashMap<Integer, Boolean[]> dic, ArrayList<Boolean> soFar, Boolean[] dummy ) {
-      if( hasValue() ) {   // If this is a leaf, add the value to the dictioanry.
-         dic.put( getValue(), soFar.toArray( dummy ) );
-         return;
+   public void paths( int[] depth, long[] code ) {
+      int[] stack = new int[size];
+      int top = 0;
+
+      depth[root] = 0;
+      code[root] = 0;
+      stack[top++] = root;
+      while( top > 0 ) {
+         int n = stack[--top];
+         if( value[n] >= 0 )
+            continue;
+
+         depth[left[n]] = depth[right[n]] = depth[n] + 1;
+         code[left[n]] = code[n] << 1;
+         code[right[n]] = ( code[n] << 1 ) | 1;
+         stack[top++] = right[n];
+         stack[top++] = left[n];
       }
+   }
 
-      Integer where = soFar.size();
+   /**
+    * Saves this tree to an opened BitFileWriter, in preorder.  Don't forget
+    * to close() the writer afterwards!
+    */
+   private void saveToFile( BitFileWriter bfw ) throws IOException {
+      int[] stack = new int[size];
+      int top = 0;
 
-      // Else add 0 and do it for the left branch.
-      soFar.add( false );
-      left.buildDictionary( dic, soFar, dummy );
+      stack[top++] = root;
+      while( top > 0 ) {
+         int n = stack[--top];
+         if( value[n] >= 0 ) {         // If it is a leaf (has a value)...
+            bfw.writeBit( false );     // ...then write a 0...
+            bfw.writeByte( value[n] ); // ...and then the value.
+         }
+         else {
+            bfw.writeBit( true );      // Else write 1, then the left branch
+            stack[top++] = right[n];   // and last the right branch.
+            stack[top++] = left[n];
+         }
+      }
+   }
 
-      // Then change the last to 1 and do it for the right.
-      soFar.set( where, true );
-      right.buildDictionary( dic, soFar, dummy );
+   /**
+    * Saves this tree to a file.
+    */
+   public void saveToFile( String filename ) throws IOException {
+      BitFileWriter bfw = new BitFileWriter( filename );
 
-      // Lastly remove the new entry to make the recursion work.
-      soFar.remove( where.intValue() );
+      saveToFile( bfw );
+      bfw.close();
    }
 
    /**
@@ -151,9 +243,30 @@ class HuffmanTree implements Comparable {
     */
    public HashMap<Integer, Boolean[]> getDictionary() {
       HashMap<Integer, Boolean[]> dic = new HashMap<Integer, Boolean[]>();
-      ArrayList<Boolean> soFar = new ArrayList<Boolean>();
+      int[] depth = new int[size], stack = new int[size];
+      Boolean[] branch = new Boolean[size];   // Whether each node is a right branch.
+      Boolean[] soFar = new Boolean[size];    // The code of the node being visited.
+      int top = 0;
+
+      // Preorder, so each node's code is filled in over its parent's.
+      depth[root] = 0;
+      stack[top++] = root;
+      while( top > 0 ) {
+         int n = stack[--top];
+         if( n != root )
+            soFar[depth[n] - 1] = branch[n];
 
-      buildDictionary( dic, soFar, new Boolean[0] );
+         if( value[n] >= 0 ) {   // If this is a leaf, add the value to the dictionary.
+            dic.put( value[n], Arrays.copyOf( soFar, depth[n] ) );
+            continue;
+         }
+
+         depth[left[n]] = depth[right[n]] = depth[n] + 1;
+         branch[left[n]] = false;
+         branch[right[n]] = true;
+         stack[top++] = right[n];
+         stack[top++] = left[n];
+      }
 
       return dic;
    }
@@ -171,4 +284,3 @@ class HuffmanTree implements Comparable {
       return ret;
    }
 }
-
@@ -0,0 +1,118 @@
+import java.util.*;
+
+/**
+ * Class to compute optimal code lengths with a bound on the longest code,
+ * using the package-merge algorithm.
+ *
+ * Think of each value as a coin worth 2^-1, 2^-2 ... 2^-maxLength, one coin
+ * of each denomination, whose numismatic value is the value's frequency.
+ * Buying coins worth n - 1 in total as cheaply as possible gives the code
+ * lengths: a value's code length is the number of its coins that were
+ * bought.  Starting from the smallest denomination, the cheapest pairs are
+ * "packaged" into a coin of the next denomination and merged with that
+ * level's own coins, and the cheapest 2n - 2 items at the top level are
+ * bought.
+ */
+class LengthLimitedCode {
+   /**
+    * Returns the code lengths for the given frequencies with no code longer
+    * than maxLength bits.  Values with frequency 0 get length 0.  If there's
+    * only one value it gets length 1.
+    */
+   static int[] packageMerge( long[] frequencies, int maxLength ) {
+      int[] lengths = new int[frequencies.length];
+
+      // The values that occur, in order of frequency.
+      int n = 0;
+      for( long f : frequencies ) {
+         if( f > 0 )
+            n++;
+      }
+      if( n == 0 )
+         return lengths;
+
+      if( maxLength < 1 || ( maxLength < 31 && ( 1 << maxLength ) < n ) )
+         throw new IllegalArgumentException( n + " values don't fit in codes of at most " + maxLength + " bits." );
+
+      Integer[] order = new Integer[n];
+      for( int i = 0, j = 0; i < frequencies.length; i++ ) {
+         if( frequencies[i] > 0 )
+            order[j++] = i;
+      }
+      final long[] freq = frequencies;
+      Arrays.sort( order, new Comparator<Integer>() {
+         public int compare( Integer a, Integer b ) {
+            return Long.compare( freq[a], freq[b] );
+         }
+      } );
+
+      if( n == 1 ) {
+         lengths[order[0]] = 1;
+         return lengths;
+      }
+
+      // weights[j] and symbols[j] hold the items at level j, cheapest first;
+      // a symbol of -1 is a package of two items from level j + 1.
+      long[][] weights = new long[maxLength][];
+      int[][] symbols = new int[maxLength][];
+
+      weights[maxLength - 1] = new long[n];
+      symbols[maxLength - 1] = new int[n];
+      for( int i = 0; i < n; i++ ) {
+         weights[maxLength - 1][i] = frequencies[order[i]];
+         symbols[maxLength - 1][i] = order[i];
+      }
+
+      for( int level = maxLength - 2; level >= 0; level-- ) {
+         long[] below = weights[level + 1];
+         int packages = below.length / 2;
+         long[] w = new long[n + packages];
+         int[] s = new int[n + packages];
+
+         // Merge the leaves with the packages; leaves go first on ties.
+         int leaf = 0, pkg = 0;
+         for( int k = 0; k < w.length; k++ ) {
+            long pw = pkg < packages ? below[2 * pkg] + below[2 * pkg + 1] : Long.MAX_VALUE;
+            if( leaf < n && frequencies[order[leaf]] <= pw ) {
+               w[k] = frequencies[order[leaf]];
+               s[k] = order[leaf++];
+            }
+            else {
+               w[k] = pw;
+               s[k] = -1;
+               pkg++;
+            }
+         }
+
+         weights[level] = w;
+         symbols[level] = s;
+      }
+
+      // Buy the cheapest 2n - 2 items at the top level, and follow the
+      // packages down: each bought coin adds one to its value's length.
+      int take = 2 * n - 2;
+      for( int level = 0; level < maxLength && take > 0; level++ ) {
+         int packages = 0;
+         for( int k = 0; k < take; k++ ) {
+            if( symbols[level][k] >= 0 )
+               lengths[symbols[level][k]]++;
+            else
+               packages++;
+         }
+         take = 2 * packages;
+      }
+
+      return lengths;
+   }
+
+   /**
+    * Returns the total number of bits the frequencies take when coded with
+    * the given code lengths.
+    */
+   static long encodedBits( long[] frequencies, int[] lengths ) {
+      long bits = 0;
+      for( int i = 0; i < frequencies.length; i++ )
+         bits += frequencies[i] * lengths[i];
+      return bits;
+   }
+}
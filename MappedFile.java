@@ -0,0 +1,73 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Class to read a file through memory-mapped windows.
+ *
+ * A single mapping can't be larger than 2 GB, so bigger files are read as a
+ * series of windows, each mapped when the previous one is done with.
+ */
+class MappedFile {
+   static final long DEFAULT_WINDOW = 1L << 28;    // 256 MB per mapping.
+
+   private FileChannel channel;
+   private long size;         // Size of the file.
+   private long pos;          // Where the next window starts.
+   private long window;       // Size of each window.
+
+   /**
+    * Opens a file for mapped reading with the default window size.
+    */
+   public MappedFile( String filename ) throws IOException {
+      this( filename, DEFAULT_WINDOW );
+   }
+
+   /**
+    * Opens a file for mapped reading, window bytes at a time (at most
+    * Integer.MAX_VALUE).
+    */
+   public MappedFile( String filename, long window ) throws IOException {
+      if( window < 1 || window > Integer.MAX_VALUE )
+         throw new IllegalArgumentException( "Bad window size." );
+
+      channel = FileChannel.open( Paths.get( filename ), StandardOpenOption.READ );
+      size = channel.size();
+      this.window = window;
+   }
+
+   /**
+    * Returns the size of the file.
+    */
+   public long size() {
+      return size;
+   }
+
+   /**
+    * Maps the next window of the file, or returns null at the end.
+    */
+   public MappedByteBuffer next() throws IOException {
+      if( pos >= size )
+         return null;
+
+      long len = Math.min( window, size - pos );
+      MappedByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, pos, len );
+      pos += len;
+      return buf;
+   }
+
+   /**
+    * Starts again from the beginning of the file.
+    */
+   public void rewind() {
+      pos = 0;
+   }
+
+   /**
+    * Closes the file.  Mapped windows stay valid until they are collected.
+    */
+   public void close() throws IOException {
+      channel.close();
+   }
+}
@@ -0,0 +1,63 @@
+import java.io.*;
+
+/**
+ * Class to replace each byte by how far from the front of a list of all
+ * bytes it is, then move it to the front.  Bytes seen lately become small
+ * numbers, so data that keeps to a few bytes at a time, such as the output
+ * of sorting, codes well even when which few changes.
+ */
+class MoveToFrontTransform implements Transform {
+   static final int ID = 2;
+
+   private byte[] list = new byte[0x100];   // The bytes, most recent first.
+
+   public MoveToFrontTransform() {
+      reset();
+   }
+
+   public int getId() {
+      return ID;
+   }
+
+   public int maxLength( int len ) {
+      return len;
+   }
+
+   public void reset() {
+      for( int i = 0; i < list.length; i++ )
+         list[i] = (byte)i;
+   }
+
+   public int forward( byte[] src, int off, int len, byte[] dst, int dstOff ) {
+      for( int i = 0; i < len; i++ ) {
+         // Look for the byte, moving the ones before it back as we go.
+         byte b = src[off + i], c = list[0];
+         int j = 0;
+         while( c != b ) {
+            byte t = list[++j];
+            list[j] = c;
+            c = t;
+         }
+         list[0] = b;
+         dst[dstOff + i] = (byte)j;
+      }
+      return len;
+   }
+
+   public int finish( byte[] dst, int dstOff ) {
+      return 0;
+   }
+
+   public int inverse( byte[] src, int off, int len, byte[] dst, int dstOff, int limit ) throws IOException {
+      if( len > limit )
+         throw new IOException( "Too much data for the block." );
+      for( int i = 0; i < len; i++ ) {
+         int j = src[off + i] & 0xff;
+         byte b = list[j];
+         System.arraycopy( list, 0, list, 1, j );
+         list[0] = b;
+         dst[dstOff + i] = b;
+      }
+      return len;
+   }
+}
@@ -0,0 +1,369 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Class to compress and decompress block containers on several threads.
+ *
+ * Blocks are coded independently, each with its own code, so the output is
+ * exactly what BlockEncoder writes no matter how many threads are used.  The
+ * calling thread reads the input and writes the output in order; the blocks
+ * in between are coded on a pool of worker threads.  At most two blocks per
+ * thread are in flight, and their buffers are reused, so memory use stays
+ * bounded.
+ */
+class ParallelBlockCodec implements EncoderSettings {
+   private int threads, blockSize, maxLength, streams;
+   private ExecutorService pool;
+   private ThreadLocal<BlockEncoder> encoders;
+   private CodeTableStore.Table table;    // Shared table to code with, if any.
+   private double minSaving = Huffman.MIN_SAVING;   // Blocks saving less are stored.
+   private double maxDrift = Double.POSITIVE_INFINITY;   // See BlockEncoder.setMaxDrift().
+   private int order;                     // Order of the model; see BlockEncoder.setOrder().
+   private String transforms;             // Names of the transforms to run; see BlockEncoder.setTransforms().
+   private CodeTableStore tables;         // Where to find shared tables when decoding.
+
+   /**
+    * A block in flight, with its buffers.
+    */
+   private static class Slot {
+      byte[] input;                 // Raw bytes to code, or payload to decode.
+      int length;                   // How much of input is used.
+      ByteArrayOutputStream coded;  // The coded block.
+      BlockDecoder.Header header = new BlockDecoder.Header();
+      byte[] decoded = new byte[0];
+      CRC32 crc = new CRC32();
+      BlockDecoder.Scratch scratch = new BlockDecoder.Scratch();
+      Future<?> done;               // Set while the block is being worked on.
+   }
+
+   /**
+    * Creates a codec using the given number of worker threads, and the
+    * default block size and code length limit.
+    */
+   public ParallelBlockCodec( int threads ) {
+      this( threads, BlockFormat.DEFAULT_BLOCK_SIZE, Huffman.MAX_CODE_LENGTH );
+   }
+
+   /**
+    * Creates a codec using the given number of worker threads, block size
+    * and code length limit.
+    */
+   public ParallelBlockCodec( int threads, int blockSize, int maxLength ) {
+      this( threads, blockSize, maxLength, 1 );
+   }
+
+   /**
+    * Creates a codec as above that writes blocks with the given number of
+    * interleaved code streams.
+    */
+   public ParallelBlockCodec( int threads, final int blockSize, final int maxLength, final int streams ) {
+      if( threads < 1 )
+         throw new IllegalArgumentException( "Need at least one thread." );
+
+      this.threads = threads;
+      BlockEncoder.checkBlockSize( blockSize );
+      BlockEncoder.checkMaxLength( maxLength );
+      BlockEncoder.checkStreams( streams );
+
+      this.blockSize = blockSize;
+      this.maxLength = maxLength;
+      this.streams = streams;
+
+      pool = Executors.newFixedThreadPool( threads, new ThreadFactory() {
+         public Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, "huffman-worker" );
+            t.setDaemon( true );
+            return t;
+         }
+      } );
+      encoders = new ThreadLocal<BlockEncoder>() {
+         protected BlockEncoder initialValue() {
+            return new BlockEncoder( blockSize, maxLength, streams );
+         }
+      };
+   }
+
+   /**
+    * Codes every block with a shared table, or with a code of its own again
+    * if table is null.
+    */
+   public void setTable( CodeTableStore.Table table ) {
+      BlockEncoder.checkPayload( blockSize, table, transforms );
+      this.table = table;
+   }
+
+   /**
+    * Sets the least part of a block that coding must save; blocks that
+    * would save less are stored.  See BlockEncoder.setMinSaving().
+    */
+   public void setMinSaving( double minSaving ) {
+      BlockEncoder.checkMinSaving( minSaving );
+      this.minSaving = minSaving;
+   }
+
+   /**
+    * Sets how much worse than its own code a shared table may code a
+    * block.  See BlockEncoder.setMaxDrift().
+    */
+   public void setMaxDrift( double maxDrift ) {
+      BlockEncoder.checkMaxDrift( maxDrift );
+      this.maxDrift = maxDrift;
+   }
+
+   /**
+    * Sets the order of the model blocks are coded with, 0 or 1.  See
+    * BlockEncoder.setOrder().
+    */
+   public void setOrder( int order ) {
+      BlockEncoder.checkOrder( order );
+      this.order = order;
+   }
+
+   /**
+    * Sets the transforms each block is run through before coding, by name,
+    * or null for none.  See BlockEncoder.setTransforms().
+    */
+   public void setTransforms( String transforms ) {
+      BlockEncoder.checkPayload( blockSize, table, transforms );
+      this.transforms = transforms;
+   }
+
+   /**
+    * Sets where to find the shared tables that SHARED blocks refer to.
+    */
+   public void setTables( CodeTableStore tables ) {
+      this.tables = tables;
+   }
+
+   /**
+    * Waits for a block's work to finish, passing on any exception.
+    */
+   private static void await( Slot slot ) throws IOException {
+      try {
+         slot.done.get();
+      }
+      catch( InterruptedException e ) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException( "Interrupted." );
+      }
+      catch( ExecutionException e ) {
+         if( e.getCause() instanceof IOException )
+            throw (IOException)e.getCause();
+         throw new IOException( e.getCause() );
+      }
+      finally {
+         slot.done = null;
+      }
+   }
+
+   /**
+    * Waits for any unfinished blocks, so their buffers are free again.
+    */
+   private static void cancel( Slot[] slots ) {
+      for( Slot slot : slots ) {
+         if( slot.done != null ) {
+            try {
+               await( slot );
+            }
+            catch( IOException e ) { }
+         }
+      }
+   }
+
+   /**
+    * Reads everything from in, and writes it as a whole container to out.
+    * Neither stream is closed.
+    */
+   public void compress( InputStream in, OutputStream out ) throws IOException {
+      Slot[] slots = new Slot[2 * threads];
+      for( int i = 0; i < slots.length; i++ ) {
+         slots[i] = new Slot();
+         slots[i].input = new byte[blockSize];
+         slots[i].coded = new ByteArrayOutputStream( blockSize + 0x100 );
+      }
+
+      BlockIndex index = new BlockIndex();
+      BlockEncoder.writeHeader( out );
+
+      try {
+         long n;
+         for( n = 0; ; n++ ) {
+            final Slot slot = slots[(int)( n % slots.length )];
+
+            // Write out the block that used this slot last.
+            if( slot.done != null ) {
+               await( slot );
+               slot.coded.writeTo( out );
+               index.add( slot.length, slot.coded.size() );
+            }
+
+            slot.length = BlockFormat.readFully( in, slot.input, 0, blockSize );
+            if( slot.length == 0 )
+               break;
+
+            slot.done = pool.submit( new Callable<Void>() {
+               public Void call() throws IOException {
+                  slot.coded.reset();
+                  BlockEncoder encoder = encoders.get();
+                  encoder.setTable( table );
+                  encoder.setMinSaving( minSaving );
+                  encoder.setMaxDrift( maxDrift );
+                  encoder.setOrder( order );
+                  encoder.setTransforms( transforms );
+                  encoder.writeBlock( slot.input, 0, slot.length, slot.coded );
+                  return null;
+               }
+            } );
+         }
+
+         // Write out the rest, oldest first.
+         for( int i = 1; i <= slots.length; i++ ) {
+            Slot slot = slots[(int)( ( n + i ) % slots.length )];
+            if( slot.done != null ) {
+               await( slot );
+               slot.coded.writeTo( out );
+               index.add( slot.length, slot.coded.size() );
+            }
+         }
+      }
+      finally {
+         cancel( slots );
+      }
+
+      index.writeEnd( out );
+      out.flush();
+   }
+
+   /**
+    * Makes the slots for decoding.
+    */
+   private Slot[] decodeSlots() {
+      Slot[] slots = new Slot[2 * threads];
+      for( int i = 0; i < slots.length; i++ ) {
+         slots[i] = new Slot();
+         slots[i].input = new byte[0];
+      }
+      return slots;
+   }
+
+   /**
+    * Decodes a block whose payload is in slot.input.
+    */
+   private void decode( Slot slot ) throws IOException {
+      if( slot.decoded.length < slot.header.rawLength )
+         slot.decoded = new byte[slot.header.rawLength];
+      BlockDecoder.decodeBlock( slot.header, slot.input, 0, slot.decoded, slot.crc, slot.scratch, tables );
+   }
+
+   /**
+    * Reads a whole container from in, and writes the decoded bytes to out.
+    * The blocks are read in order and decoded in parallel.  Neither stream
+    * is closed.
+    */
+   public void decompress( InputStream in, OutputStream out ) throws IOException {
+      Slot[] slots = decodeSlots();
+      in = new BufferedInputStream( in );
+      new BlockDecoder().readHeader( in );
+
+      try {
+         for( long n = 0; ; n++ ) {
+            final Slot slot = slots[(int)( n % slots.length )];
+
+            if( slot.done != null ) {
+               await( slot );
+               out.write( slot.decoded, 0, slot.header.rawLength );
+            }
+
+            if( BlockDecoder.readHeader( in, slot.header ).type == BlockFormat.INDEX ) {
+               // Only of use to readers that seek.
+               BlockFormat.skipFully( in, slot.header.payloadLength );
+               continue;
+            }
+            if( slot.header.type == BlockFormat.END ) {
+               // Write out the rest, oldest first.
+               for( int i = 1; i <= slots.length; i++ ) {
+                  Slot rest = slots[(int)( ( n + i ) % slots.length )];
+                  if( rest.done != null ) {
+                     await( rest );
+                     out.write( rest.decoded, 0, rest.header.rawLength );
+                  }
+               }
+               break;
+            }
+
+            slot.input = BlockFormat.readGrowing( in, slot.input, slot.header.payloadLength );
+
+            slot.done = pool.submit( new Callable<Void>() {
+               public Void call() throws IOException {
+                  decode( slot );
+                  return null;
+               }
+            } );
+         }
+      }
+      finally {
+         cancel( slots );
+      }
+
+      out.flush();
+   }
+
+   /**
+    * Decodes a container file, writing the decoded bytes to out.  The block
+    * index lets every worker read and decode its blocks on its own.  out is
+    * not closed.
+    */
+   public void decompress( File file, OutputStream out ) throws IOException {
+      final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+      Slot[] slots = decodeSlots();
+
+      try {
+         BlockIndex index = new BlockIndex( channel );
+
+         for( int n = 0; n < index.size() + slots.length; n++ ) {
+            final Slot slot = slots[n % slots.length];
+
+            if( slot.done != null ) {
+               await( slot );
+               out.write( slot.decoded, 0, slot.header.rawLength );
+            }
+            if( n >= index.size() )
+               continue;
+
+            final BlockIndex.Entry entry = index.get( n );
+            slot.header = entry.header;
+            if( slot.input.length < slot.header.payloadLength )
+               slot.input = new byte[slot.header.payloadLength];
+
+            slot.done = pool.submit( new Callable<Void>() {
+               public Void call() throws IOException {
+                  ByteBuffer buf = ByteBuffer.wrap( slot.input, 0, slot.header.payloadLength );
+                  while( buf.hasRemaining() ) {
+                     if( channel.read( buf, entry.offset + buf.position() ) < 0 )
+                        throw new EOFException( "Unexpected end of container." );
+                  }
+                  decode( slot );
+                  return null;
+               }
+            } );
+         }
+      }
+      finally {
+         cancel( slots );
+         channel.close();
+      }
+
+      out.flush();
+   }
+
+   /**
+    * Stops the worker threads.
+    */
+   public void close() {
+      pool.shutdown();
+   }
+}
@@ -0,0 +1,112 @@
+import java.io.*;
+
+/**
+ * Class to read a stream on a thread of its own, ahead of whoever is reading
+ * this stream, so that waiting for the input overlaps with working on what
+ * was read before.
+ *
+ * The reader thread reads into the buffers of a BlockRing, passing on
+ * whatever each read gives, so data that trickles in (from a pipe, say) is
+ * available here at once.  It stops when all buffers are full and waits for
+ * them to be read.  An error on the reader thread is thrown here, once the
+ * data read before it has been.
+ */
+class ReadAheadInputStream extends InputStream {
+   private InputStream in;
+   private BlockRing ring;
+   private byte[] block;         // The buffer being read from, if any.
+   private int pos, count;       // The unread part of it.
+
+   /**
+    * Creates a stream reading ahead from in with the default buffers.
+    */
+   public ReadAheadInputStream( InputStream in ) {
+      this( in, BlockRing.DEFAULT_BUFFERS, BlockRing.DEFAULT_BUFFER_SIZE );
+   }
+
+   /**
+    * Creates a stream reading ahead from in, up to buffers buffers of size
+    * bytes.
+    */
+   public ReadAheadInputStream( final InputStream in, int buffers, int size ) {
+      this.in = in;
+      ring = new BlockRing( buffers, size );
+
+      Thread reader = new Thread( new Runnable() {
+         public void run() {
+            try {
+               while( true ) {
+                  byte[] buf = ring.claim();
+                  int n = in.read( buf, 0, buf.length );
+                  if( n < 0 )
+                     break;
+                  if( n > 0 )
+                     ring.publish( n );
+               }
+               ring.end( null );
+            }
+            catch( IOException e ) {
+               ring.end( e );
+            }
+            catch( RuntimeException e ) {
+               ring.end( new IOException( e ) );
+            }
+         }
+      }, "huffman-reader" );
+      reader.setDaemon( true );
+      reader.start();
+   }
+
+   /**
+    * Moves on to the next full buffer.  Returns false at the end.
+    */
+   private Boolean fill() throws IOException {
+      if( block != null ) {
+         ring.release();
+         block = null;
+      }
+      int n = ring.next();
+      if( n < 0 )
+         return false;
+
+      block = ring.current();
+      pos = 0;
+      count = n;
+      return true;
+   }
+
+   public int read() throws IOException {
+      if( pos == count && !fill() )
+         return -1;
+      return block[pos++] & 0xff;
+   }
+
+   public int read( byte[] b, int off, int len ) throws IOException {
+      if( off < 0 || len < 0 || len > b.length - off )
+         throw new IndexOutOfBoundsException();
+      if( len == 0 )
+         return 0;
+      if( pos == count && !fill() )
+         return -1;
+
+      int n = Math.min( len, count - pos );
+      System.arraycopy( block, pos, b, off, n );
+      pos += n;
+      return n;
+   }
+
+   /**
+    * Returns the number of bytes already read ahead.
+    */
+   public int available() {
+      return count - pos + ring.available() - ( block != null ? count : 0 );
+   }
+
+   /**
+    * Stops the reader thread and closes the underlying stream.
+    */
+   public void close() throws IOException {
+      ring.close( null );
+      in.close();
+   }
+}
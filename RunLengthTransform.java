@@ -0,0 +1,96 @@
+import java.io.*;
+
+/**
+ * Class to shorten runs of the same byte.  After four equal bytes in a row
+ * comes a count, 0 to 255, of how many more of it follow; longer runs start
+ * over.  A long run so costs five bytes in all, however long, and nothing
+ * else changes, so the input never gets more than a quarter longer.
+ */
+class RunLengthTransform implements Transform {
+   static final int ID = 1;
+   static final int MIN_RUN = 4;    // Bytes in a row before a count.
+   static final int MAX_COUNT = 0xff;
+
+   private int last;                // The byte of the run so far.
+   private int run;                 // How long it is, up to MIN_RUN.
+   private int count = -1;          // Bytes past MIN_RUN, or -1 if not that far.
+
+   public int getId() {
+      return ID;
+   }
+
+   public int maxLength( int len ) {
+      return len + len / MIN_RUN;
+   }
+
+   public void reset() {
+      run = 0;
+      count = -1;
+   }
+
+   public int forward( byte[] src, int off, int len, byte[] dst, int dstOff ) {
+      int o = dstOff;
+      for( int i = off; i < off + len; i++ ) {
+         int b = src[i] & 0xff;
+         if( count >= 0 ) {
+            if( b == last && count < MAX_COUNT ) {
+               count++;
+               continue;
+            }
+            dst[o++] = (byte)count;
+            count = -1;
+            run = 0;
+         }
+
+         if( run > 0 && b == last )
+            run++;
+         else {
+            last = b;
+            run = 1;
+         }
+         dst[o++] = (byte)b;
+         if( run == MIN_RUN )
+            count = 0;
+      }
+      return o - dstOff;
+   }
+
+   public int finish( byte[] dst, int dstOff ) {
+      if( count < 0 )
+         return 0;
+      dst[dstOff] = (byte)count;
+      count = -1;
+      run = 0;
+      return 1;
+   }
+
+   public int inverse( byte[] src, int off, int len, byte[] dst, int dstOff, int limit ) throws IOException {
+      int o = dstOff, end = dstOff + limit;
+      for( int i = off; i < off + len; i++ ) {
+         int b = src[i] & 0xff;
+         if( count >= 0 ) {
+            // A count: that many more of the run.
+            if( b > end - o )
+               throw new IOException( "Run too long for the block." );
+            for( int j = 0; j < b; j++ )
+               dst[o++] = (byte)last;
+            count = -1;
+            run = 0;
+            continue;
+         }
+
+         if( run > 0 && b == last )
+            run++;
+         else {
+            last = b;
+            run = 1;
+         }
+         if( o == end )
+            throw new IOException( "Run too long for the block." );
+         dst[o++] = (byte)b;
+         if( run == MIN_RUN )
+            count = 0;
+      }
+      return o - dstOff;
+   }
+}
@@ -0,0 +1,123 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Class to read parts of a container file without decoding all of it.
+ *
+ * The block index (see BlockIndex) says which blocks hold the bytes asked
+ * for, and only those are read and decoded, so the cost of a read depends
+ * on its length and the block size, not on where in the file it is.  The
+ * last block decoded is kept, so reading a file in slices decodes each
+ * block just once.  Not for use by several threads at once.
+ */
+class SeekableContainer {
+   private FileChannel channel;
+   private BlockIndex index;
+   private byte[] payload = new byte[0];  // The coded block.
+   private byte[] block = new byte[0];    // The decoded block.
+   private int current = -1;              // The block in block, or -1.
+   private BlockIndex.Entry entry;        // Where it is.
+   private CRC32 crc = new CRC32();
+   private BlockDecoder.Scratch scratch = new BlockDecoder.Scratch();
+   private CodeTableStore tables;         // Where to find shared tables, if anywhere.
+
+   /**
+    * Opens a container file and loads its index.
+    */
+   public SeekableContainer( File file ) throws IOException {
+      channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+      try {
+         index = new BlockIndex( channel );
+      }
+      catch( IOException e ) {
+         channel.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Sets where to find the shared tables that SHARED blocks refer to.
+    */
+   public void setTables( CodeTableStore tables ) {
+      this.tables = tables;
+   }
+
+   /**
+    * Returns the decoded length of the container.
+    */
+   public long length() {
+      return index.getRawLength();
+   }
+
+   /**
+    * Decodes length bytes starting at offset in the decoded data.  Returns
+    * fewer if the data ends first.
+    */
+   public byte[] decodeRange( long offset, int length ) throws IOException {
+      if( offset < 0 || offset > length() || length < 0 )
+         throw new IllegalArgumentException( "Bad range." );
+
+      byte[] out = new byte[(int)Math.min( length, length() - offset )];
+      decodeRange( offset, out, 0, out.length );
+      return out;
+   }
+
+   /**
+    * Decodes up to length bytes starting at offset in the decoded data into
+    * out, starting at off.  Returns the number of bytes decoded, which is
+    * less than length only if the data ends first.
+    */
+   public int decodeRange( long offset, byte[] out, int off, int length ) throws IOException {
+      if( offset < 0 || offset > length() || length < 0 || off < 0 || length > out.length - off )
+         throw new IllegalArgumentException( "Bad range." );
+
+      int done = 0;
+      while( done < length && offset < length() ) {
+         int i = index.find( offset );
+         BlockIndex.Entry e = load( i );
+         int from = (int)( offset - e.rawOffset );
+         int n = Math.min( length - done, e.header.rawLength - from );
+
+         System.arraycopy( block, from, out, off + done, n );
+         done += n;
+         offset += n;
+      }
+      return done;
+   }
+
+   /**
+    * Makes block i the one in block, decoding it if it isn't already.
+    */
+   private BlockIndex.Entry load( int i ) throws IOException {
+      if( i == current )
+         return entry;
+      BlockIndex.Entry e = index.get( i );
+
+      BlockDecoder.Header h = e.header;
+      if( payload.length < h.payloadLength )
+         payload = new byte[h.payloadLength];
+      if( block.length < h.rawLength )
+         block = new byte[h.rawLength];
+
+      current = -1;
+      ByteBuffer buf = ByteBuffer.wrap( payload, 0, h.payloadLength );
+      while( buf.hasRemaining() ) {
+         if( channel.read( buf, e.offset + buf.position() ) < 0 )
+            throw new EOFException( "Unexpected end of container." );
+      }
+      BlockDecoder.decodeBlock( h, payload, 0, block, crc, scratch, tables );
+      current = i;
+      entry = e;
+      return e;
+   }
+
+   /**
+    * Closes the file.
+    */
+   public void close() throws IOException {
+      channel.close();
+   }
+}
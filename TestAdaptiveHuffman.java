@@ -0,0 +1,80 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.util.*;
+
+public class TestAdaptiveHuffman extends TestCase {
+
+    private byte[] roundTrip( byte[] data ) throws IOException {
+        ByteArrayOutputStream enc = new ByteArrayOutputStream(), dec = new ByteArrayOutputStream();
+        AdaptiveHuffman.compress( new ByteArrayInputStream( data ), enc );
+        AdaptiveHuffman.decompress( new ByteArrayInputStream( enc.toByteArray() ), dec );
+        return dec.toByteArray();
+    }
+
+    public void testRoundTrip() throws IOException {
+        Assert.assertEquals( roundTrip( new byte[0] ).length, 0 );
+
+        byte[] data = new byte[50000];
+        Random rnd = new Random( 7 );
+        for( int i = 0; i < data.length; i++ )
+            data[i] = (byte)( i < 25000 ? 'a' + Math.min( 25, (int)( -Math.log( rnd.nextDouble() ) * 3 ) ) : rnd.nextInt() );
+        Assert.assertTrue( Arrays.equals( roundTrip( data ), data ) );
+
+        // Adapts as well as a static code, near enough.
+        byte[] text = Arrays.copyOf( data, 25000 );
+        ByteArrayOutputStream enc = new ByteArrayOutputStream();
+        AdaptiveHuffman.compress( new ByteArrayInputStream( text ), enc );
+        Assert.assertTrue( enc.size() < 25000 * 0.65 );
+    }
+
+    public void testRescale() throws IOException {
+        // Long enough for the weights to be halved several times.
+        byte[] data = new byte[8 * AdaptiveHuffman.MAX_WEIGHT];
+        Random rnd = new Random( 8 );
+        for( int i = 0; i < data.length; i++ )
+            data[i] = (byte)Long.numberOfTrailingZeros( rnd.nextLong() | ( 1L << 20 ) );
+        Assert.assertTrue( Arrays.equals( roundTrip( data ), data ) );
+    }
+
+    public void testFlush() throws IOException {
+        // Everything before a FLUSH decodes without the rest of the stream.
+        AdaptiveHuffman coder = new AdaptiveHuffman();
+        ByteArrayOutputStream enc = new ByteArrayOutputStream();
+        BitStreamWriter bsw = new BitStreamWriter( enc );
+        for( byte b : "hello, hello".getBytes() )
+            coder.encode( b & 0xff, bsw );
+        coder.encode( AdaptiveHuffman.FLUSH, bsw );
+        bsw.flush();
+        int flushed = enc.size();
+        for( byte b : " world".getBytes() )
+            coder.encode( b & 0xff, bsw );
+        coder.encode( AdaptiveHuffman.EOF, bsw );
+        bsw.flush();
+
+        AdaptiveHuffman decoder = new AdaptiveHuffman();
+        decoder.startCode();
+        StringBuilder s = new StringBuilder();
+        byte[] coded = enc.toByteArray();
+        for( int i = 0; i < flushed; i++ ) {
+            for( int j = 7; j >= 0; j-- ) {
+                int v = decoder.decodeBit( ( coded[i] >>> j ) & 1 );
+                if( v == AdaptiveHuffman.FLUSH )
+                    break;
+                if( v >= 0 )
+                    s.append( (char)v );
+            }
+        }
+        Assert.assertEquals( s.toString(), "hello, hello" );
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestAdaptiveHuffman.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
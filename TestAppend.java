@@ -0,0 +1,303 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+public class TestAppend extends TestCase {
+
+    private byte[] text( int n, long seed ) {
+        byte[] data = new byte[n];
+        Random r = new Random( seed );
+        for( int i = 0; i < n; i++ )
+            data[i] = (byte)( 'a' + Math.min( r.nextInt( 20 ), r.nextInt( 20 ) ) );
+        return data;
+    }
+
+    private byte[] logLines( int lines, long seed ) {
+        Random rnd = new Random( seed );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for( int i = 0; i < lines; i++ ) {
+            byte[] line = ( "{\"time\":" + ( 1600000000 + rnd.nextInt( 100000 ) ) + ",\"level\":\"info\",\"msg\":\"request "
+                            + rnd.nextInt( 1000 ) + " done\"}\n" ).getBytes();
+            out.write( line, 0, line.length );
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] concat( byte[]... parts ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for( byte[] p : parts )
+            out.write( p, 0, p.length );
+        return out.toByteArray();
+    }
+
+    private void create( String name, byte[] data, BlockEncoder encoder ) throws IOException {
+        OutputStream out = new FileOutputStream( name );
+        encoder.compress( new ByteArrayInputStream( data ), out );
+        out.close();
+    }
+
+    private long append( String name, InputStream in, BlockEncoder encoder, CodeTableStore tables ) throws IOException {
+        return append( name, in, encoder, tables, false );
+    }
+
+    private long append( String name, InputStream in, BlockEncoder encoder, CodeTableStore tables, Boolean recover ) throws IOException {
+        FileChannel channel = FileChannel.open( Paths.get( name ), StandardOpenOption.READ, StandardOpenOption.WRITE );
+        try {
+            return encoder.append( channel, in, tables, recover );
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    private byte[] decode( String name, CodeTableStore tables ) throws IOException {
+        BlockDecoder decoder = new BlockDecoder();
+        decoder.setTables( tables );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream( name );
+        decoder.decompress( in, out );
+        in.close();
+        return out.toByteArray();
+    }
+
+    private List<Integer> types( String name ) throws IOException {
+        FileChannel channel = FileChannel.open( Paths.get( name ), StandardOpenOption.READ );
+        List<Integer> types = new ArrayList<Integer>();
+        try {
+            BlockIndex index = new BlockIndex( channel );
+            for( int i = 0; i < index.size(); i++ )
+                types.add( index.get( i ).header.type );
+        }
+        finally {
+            channel.close();
+        }
+        return types;
+    }
+
+    public void testAppend() throws IOException {
+        BlockEncoder encoder = new BlockEncoder( 4096, 15 );
+        byte[] a = text( 10000, 1 ), b = text( 8192, 2 ), c = text( 777, 3 );
+        create( "testappend.huf", a, encoder );
+        byte[] before = Files.readAllBytes( Paths.get( "testappend.huf" ) );
+
+        Assert.assertEquals( append( "testappend.huf", new ByteArrayInputStream( b ), encoder, null ), b.length );
+        Assert.assertEquals( append( "testappend.huf", new ByteArrayInputStream( c ), encoder, null ), c.length );
+        Assert.assertEquals( append( "testappend.huf", new ByteArrayInputStream( new byte[0] ), encoder, null ), 0 );
+        byte[] all = concat( a, b, c );
+
+        // The blocks that were there are untouched.
+        byte[] after = Files.readAllBytes( Paths.get( "testappend.huf" ) );
+        Assert.assertEquals( types( "testappend.huf" ).size(), 3 + 2 + 1 );
+        FileChannel channel = FileChannel.open( Paths.get( "testappend.huf" ), StandardOpenOption.READ );
+        long end = new BlockIndex( channel ).getEnd();
+        channel.close();
+        Assert.assertTrue( end < after.length );
+        for( int i = 0; i < before.length - 2 * BlockFormat.HEADER_SIZE - 4 * BlockFormat.INDEX_ENTRY_SIZE; i++ )
+            Assert.assertEquals( after[i], before[i] );
+
+        // One pass, in parallel, and any part of it.
+        Assert.assertTrue( Arrays.equals( decode( "testappend.huf", null ), all ) );
+        ParallelBlockCodec codec = new ParallelBlockCodec( 3, 4096, 15 );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.decompress( new File( "testappend.huf" ), out );
+        codec.close();
+        Assert.assertTrue( Arrays.equals( out.toByteArray(), all ) );
+        SeekableContainer sc = new SeekableContainer( new File( "testappend.huf" ) );
+        Assert.assertEquals( sc.length(), all.length );
+        Assert.assertTrue( Arrays.equals( sc.decodeRange( 9000, 2000 ), Arrays.copyOfRange( all, 9000, 11000 ) ) );
+        sc.close();
+
+        // Not a container.
+        Files.write( Paths.get( "testappend.txt" ), a );
+        try {
+            append( "testappend.txt", new ByteArrayInputStream( b ), encoder, null );
+            Assert.fail( "Appended to something that isn't a container." );
+        }
+        catch( IOException e ) {
+        }
+    }
+
+    public void testTable() throws IOException {
+        File dir = Files.createTempDirectory( "testtables" ).toFile();
+        Files.write( Paths.get( "testappend.txt" ), logLines( 300, 1 ) );
+        CodeTableStore tables = new CodeTableStore( dir );
+        int id = tables.train( Arrays.asList( "testappend.txt" ) );
+
+        BlockEncoder encoder = new BlockEncoder( 4096, 15 );
+        encoder.setTable( tables.get( id ) );
+        byte[] a = logLines( 100, 2 );
+        create( "testappend.huf", a, encoder );
+
+        // More of the same keeps to the table the container was made with,
+        // without being told; something else gets codes of its own.
+        BlockEncoder plain = new BlockEncoder( 4096, 15 );
+        byte[] b = logLines( 100, 3 ), c = text( 5000, 4 );
+        append( "testappend.huf", new ByteArrayInputStream( b ), plain, tables );
+        int shared = Collections.frequency( types( "testappend.huf" ), BlockFormat.SHARED );
+        Assert.assertEquals( shared, types( "testappend.huf" ).size() );
+        append( "testappend.huf", new ByteArrayInputStream( c ), plain, tables );
+        List<Integer> types = types( "testappend.huf" );
+        Assert.assertEquals( Collections.frequency( types, BlockFormat.SHARED ), shared );
+        Assert.assertEquals( types.get( types.size() - 1 ), Integer.valueOf( BlockFormat.HUFFMAN ) );
+
+        Assert.assertTrue( Arrays.equals( decode( "testappend.huf", new CodeTableStore( dir ) ), concat( a, b, c ) ) );
+        // Outside append() the table is kept to, even for data it codes far
+        // worse than a code of its own would, unless a drift is set.
+        byte[] zeros = new byte[5000];
+        Arrays.fill( zeros, (byte)'0' );
+        create( "testappend.huf", zeros, encoder );
+        Assert.assertEquals( Collections.frequency( types( "testappend.huf" ), BlockFormat.SHARED ), 2 );
+        encoder.setMaxDrift( Huffman.MAX_DRIFT );
+        create( "testappend.huf", zeros, encoder );
+        Assert.assertEquals( Collections.frequency( types( "testappend.huf" ), BlockFormat.SHARED ), 0 );
+    }
+
+    public void testFailure() throws IOException {
+        BlockEncoder encoder = new BlockEncoder( 4096, 15 );
+        byte[] a = text( 5000, 5 ), b = text( 20000, 6 );
+        create( "testappend.huf", a, encoder );
+
+        // Input that breaks off: the whole blocks read before are kept.
+        InputStream broken = new FilterInputStream( new ByteArrayInputStream( b ) ) {
+            int left = 10000;
+
+            public int read( byte[] buf, int off, int len ) throws IOException {
+                if( left <= 0 )
+                    throw new IOException( "Gone." );
+                int n = super.read( buf, off, Math.min( len, left ) );
+                left -= n;
+                return n;
+            }
+        };
+        try {
+            append( "testappend.huf", broken, encoder, null );
+            Assert.fail( "Failure not passed on." );
+        }
+        catch( IOException e ) {
+            Assert.assertEquals( e.getMessage(), "Gone." );
+        }
+        Assert.assertTrue( Arrays.equals( decode( "testappend.huf", null ), concat( a, Arrays.copyOf( b, 8192 ) ) ) );
+
+        // The same for anything else that goes wrong.
+        InputStream bad = new FilterInputStream( new ByteArrayInputStream( b ) ) {
+            int left = 5000;
+
+            public int read( byte[] buf, int off, int len ) throws IOException {
+                if( left <= 0 )
+                    throw new IllegalStateException( "Bad." );
+                int n = super.read( buf, off, Math.min( len, left ) );
+                left -= n;
+                return n;
+            }
+        };
+        try {
+            append( "testappend.huf", bad, encoder, null );
+            Assert.fail( "Failure not passed on." );
+        }
+        catch( IllegalStateException e ) {
+        }
+        Assert.assertTrue( Arrays.equals( decode( "testappend.huf", null ), concat( a, Arrays.copyOf( b, 8192 ), Arrays.copyOf( b, 4096 ) ) ) );
+    }
+
+    private long end( String name ) throws IOException {
+        FileChannel channel = FileChannel.open( Paths.get( name ), StandardOpenOption.READ );
+        try {
+            return new BlockIndex( channel ).getEnd();
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    public void testTorn() throws IOException {
+        BlockEncoder encoder = new BlockEncoder( 4096, 15 );
+        byte[] a = text( 6000, 7 ), b = text( 8192, 8 ), c = text( 3000, 9 );
+        create( "testappend.huf", a, encoder );
+        append( "testappend.huf", new ByteArrayInputStream( b ), encoder, null );
+
+        // An append cut off in its last block, before the end was written.
+        // Readers, on any number of threads, refuse what is left, and so
+        // does appending to it.
+        long end = end( "testappend.huf" );
+        RandomAccessFile file = new RandomAccessFile( "testappend.huf", "rw" );
+        file.setLength( end - 10 );
+        file.close();
+        ParallelBlockCodec codec = new ParallelBlockCodec( 2, 4096, 15 );
+        try {
+            codec.decompress( new File( "testappend.huf" ), new ByteArrayOutputStream() );
+            Assert.fail( "Cut-off container decoded." );
+        }
+        catch( IOException e ) {
+        }
+        finally {
+            codec.close();
+        }
+        try {
+            new SeekableContainer( new File( "testappend.huf" ) ).close();
+            Assert.fail( "Cut-off container opened." );
+        }
+        catch( IOException e ) {
+        }
+        try {
+            append( "testappend.huf", new ByteArrayInputStream( c ), encoder, null );
+            Assert.fail( "Cut-off container appended to." );
+        }
+        catch( IOException e ) {
+        }
+
+        // Recovering it keeps the blocks before the cut, and the append
+        // goes on there.
+        append( "testappend.huf", new ByteArrayInputStream( c ), encoder, null, true );
+        Assert.assertTrue( Arrays.equals( decode( "testappend.huf", null ), concat( a, Arrays.copyOf( b, 4096 ), c ) ) );
+
+        // The same for a last block that is all there but garbled.
+        end = end( "testappend.huf" );
+        file = new RandomAccessFile( "testappend.huf", "rw" );
+        file.setLength( end );
+        file.seek( end - 100 );
+        int garbled = file.read() ^ 0x55;
+        file.seek( end - 100 );
+        file.write( garbled );
+        file.close();
+        append( "testappend.huf", new ByteArrayInputStream( new byte[0] ), encoder, null, true );
+        Assert.assertTrue( Arrays.equals( decode( "testappend.huf", null ), concat( a, Arrays.copyOf( b, 4096 ) ) ) );
+    }
+
+    public void testTransformedTable() throws IOException {
+        // A table for log lines run through RLE, which hardly changes them.
+        File dir = Files.createTempDirectory( "testtables" ).toFile();
+        byte[] sample = logLines( 300, 1 );
+        TransformChain rle = TransformChain.parse( "rle" );
+        int n = rle.forward( sample, 0, sample.length );
+        Files.write( Paths.get( "testappend.txt" ), Arrays.copyOf( rle.getBuffer(), n ) );
+        CodeTableStore tables = new CodeTableStore( dir );
+        int id = tables.train( Arrays.asList( "testappend.txt" ) );
+
+        BlockEncoder encoder = new BlockEncoder( 4096, 15 );
+        encoder.setTable( tables.get( id ) );
+        encoder.setTransforms( "rle" );
+        byte[] a = logLines( 100, 2 );
+        create( "testappend.huf", a, encoder );
+        Assert.assertEquals( types( "testappend.huf" ).get( 0 ), Integer.valueOf( BlockFormat.TRANSFORMED ) );
+
+        // The table inside the transformed blocks is found, and kept to.
+        byte[] b = logLines( 100, 3 );
+        append( "testappend.huf", new ByteArrayInputStream( b ), new BlockEncoder( 4096, 15 ), tables );
+        List<Integer> types = types( "testappend.huf" );
+        Assert.assertEquals( types.get( types.size() - 1 ), Integer.valueOf( BlockFormat.SHARED ) );
+        Assert.assertTrue( Arrays.equals( decode( "testappend.huf", tables ), concat( a, b ) ) );
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestAppend.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,106 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class TestBatchCodec extends TestCase {
+
+    private Map<String, byte[]> files = new TreeMap<String, byte[]>();
+
+    protected void setUp() throws IOException {
+        Random r = new Random( 7 );
+        for( int i = 0; i < 12; i++ ) {
+            byte[] data = new byte[r.nextInt( 30000 )];
+            for( int j = 0; j < data.length; j++ )
+                data[j] = (byte)( 'a' + r.nextInt( 1 + i ) );
+            files.put( "testbatch/" + ( i < 6 ? "" : "sub/" ) + "f" + i + ( i % 2 == 0 ? ".txt" : ".log" ), data );
+        }
+        files.put( "testbatch/empty.txt", new byte[0] );
+
+        for( Map.Entry<String, byte[]> f : files.entrySet() ) {
+            new File( f.getKey() ).getParentFile().mkdirs();
+            Files.write( Paths.get( f.getKey() ), f.getValue() );
+            new File( f.getKey() + Huffman.CONTAINER_FILE_EXTENSION ).delete();
+        }
+    }
+
+    private List<File> expand( Boolean encode, String... names ) throws IOException {
+        return BatchCodec.expand( Arrays.asList( names ), encode );
+    }
+
+    public void testRoundTrip() throws IOException {
+        BatchCodec batch = new BatchCodec( 3, 4096 );
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        BatchCodec.Summary summary = batch.run( expand( true, "testbatch" ), true, new PrintStream( log ) );
+        Assert.assertEquals( summary.files, files.size() );
+        Assert.assertEquals( summary.failed, 0 );
+        Assert.assertEquals( log.size(), 0 );
+
+        // Directories give only the containers when decoding, and skip them
+        // when encoding.
+        Assert.assertEquals( expand( false, "testbatch" ).size(), files.size() );
+        Assert.assertEquals( expand( true, "testbatch" ).size(), files.size() );
+
+        long total = 0;
+        for( Map.Entry<String, byte[]> f : files.entrySet() ) {
+            total += f.getValue().length;
+            new File( f.getKey() ).delete();
+        }
+        Assert.assertEquals( summary.bytesIn, total );
+
+        // Back again, on virtual threads where there are any.
+        batch.setVirtual( true );
+        summary = batch.run( expand( false, "testbatch" ), false, new PrintStream( log ) );
+        Assert.assertEquals( summary.failed, 0 );
+        Assert.assertEquals( summary.bytesOut, total );
+        for( Map.Entry<String, byte[]> f : files.entrySet() )
+            Assert.assertTrue( Arrays.equals( Files.readAllBytes( Paths.get( f.getKey() ) ), f.getValue() ) );
+    }
+
+    public void testNames() throws IOException {
+        Assert.assertEquals( expand( true, "testbatch/*.txt" ).size(), 4 );
+        Assert.assertEquals( expand( true, "testbatch/**.log" ).size(), 6 );
+        Assert.assertEquals( expand( true, "testbatch/sub/f6.txt", "testbatch/sub/f6.txt" ).size(), 1 );
+
+        Files.write( Paths.get( "testbatch.lst" ), Arrays.asList( "testbatch/f0.txt", "testbatch/sub/*.log" ) );
+        Assert.assertEquals( expand( true, "@testbatch.lst" ).size(), 4 );
+    }
+
+    public void testFailures() throws IOException {
+        // A corrupt container and a missing file fail; the rest still go.
+        Files.write( Paths.get( "testbatch/bad.huf" ), "HUF-not-really".getBytes() );
+        BatchCodec batch = new BatchCodec( 2, 4096 );
+        batch.run( expand( true, "testbatch/f0.txt", "testbatch/f1.log" ), true, System.err );
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        BatchCodec.Summary summary = batch.run( expand( false, "testbatch/bad.huf", "testbatch/none.huf",
+                                                         "testbatch/f0.txt.huf", "testbatch/f1.log.huf" ),
+                                                false, new PrintStream( log ) );
+        Assert.assertEquals( summary.files, 4 );
+        Assert.assertEquals( summary.failed, 2 );
+        Assert.assertTrue( log.toString().contains( "bad.huf" ) );
+        Assert.assertTrue( log.toString().contains( "none.huf" ) );
+        Assert.assertFalse( new File( "testbatch/bad" ).exists() );
+        Assert.assertTrue( Arrays.equals( Files.readAllBytes( Paths.get( "testbatch/f1.log" ) ), files.get( "testbatch/f1.log" ) ) );
+        new File( "testbatch/bad.huf" ).delete();
+
+        // An output that can't be opened is left alone.
+        File dir = new File( "testbatch/f2.txt.huf" );
+        dir.mkdir();
+        summary = batch.run( expand( true, "testbatch/f2.txt" ), true, new PrintStream( log ) );
+        Assert.assertEquals( summary.failed, 1 );
+        Assert.assertTrue( dir.isDirectory() );
+        dir.delete();
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestBatchCodec.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
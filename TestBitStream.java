@@ -0,0 +1,77 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+public class TestBitStream extends TestCase {
+
+    public void testWriteBits() throws IOException {
+        // A = 65 = 0100 0001, B = 66 = 0100 0010, C = 67 = 0100 0011
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitStreamWriter w = new BitStreamWriter( bytes );
+        w.writeBits( 0x2, 3 );          // 010
+        w.writeBits( 0x142, 13 );       // 0 0001 0100 0010
+        w.writeBit( 0 );
+        w.writeBits( 0x43, 7 );         // 100 0011
+        w.close();
+
+        Assert.assertEquals( bytes.toString(), "ABC" );
+    }
+
+    public void testReadBits() throws IOException {
+        BitStreamReader r = new BitStreamReader( "ABC".getBytes(), 0, 3 );
+
+        Assert.assertEquals( r.peekBits( 4 ), 4 );      // 0100
+        Assert.assertEquals( r.readBits( 12 ), 0x414 ); // 0100 0001 0100
+        r.skipBits( 4 );
+        Assert.assertEquals( r.position(), 16 );
+        Assert.assertEquals( r.readBit(), 0 );
+        Assert.assertEquals( r.readBits( 7 ), 0x43 );
+        Assert.assertTrue( r.isAtEnd() );
+
+        // Past the end there are only 0s.
+        Assert.assertEquals( r.readBits( 5 ), 0 );
+    }
+
+    public void testRoundTrip() throws IOException {
+        // Write codes of every length from 1 to 64 bits, both through a
+        // stream and into a direct buffer, and read them back.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer direct = ByteBuffer.allocateDirect( 0x10000 );
+        BitStreamWriter w = new BitStreamWriter( bytes ), d = new BitStreamWriter( direct );
+        for( int i = 0; i < 1000; i++ ) {
+            w.writeBits( i * 0x9E3779B97F4A7C15L, i % 64 + 1 );
+            d.writeBits( i * 0x9E3779B97F4A7C15L, i % 64 + 1 );
+        }
+        w.close();
+        d.close();
+        direct.flip();
+
+        BitStreamReader r = new BitStreamReader( new ByteArrayInputStream( bytes.toByteArray() ) ),
+                        s = new BitStreamReader( direct );
+        for( int i = 0; i < 1000; i++ ) {
+            int len = i % 64 + 1;
+            long code = 0;
+            for( int n = len; n > 0; n -= Math.min( n, 32 ) )
+                code = ( code << Math.min( n, 32 ) ) | ( r.readBits( Math.min( n, 32 ) ) & 0xffffffffL );
+            Assert.assertEquals( code, len == 64 ? i * 0x9E3779B97F4A7C15L : ( i * 0x9E3779B97F4A7C15L ) & ( ( 1L << len ) - 1 ) );
+
+            if( len <= 32 )
+                Assert.assertEquals( s.readBits( len ), (int)code );
+            else {
+                s.skipBits( len - 32 );
+                Assert.assertEquals( s.readBits( 32 ), (int)code );
+            }
+        }
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestBitStream.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,211 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.util.*;
+
+public class TestBlockContainer extends TestCase {
+
+    private byte[] compress( byte[] data, int blockSize ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BlockEncoder( blockSize, 15 ).compress( new ByteArrayInputStream( data ), out );
+        return out.toByteArray();
+    }
+
+    private byte[] decompress( byte[] data ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Huffman.decompress( new ByteArrayInputStream( data ), out );
+        return out.toByteArray();
+    }
+
+    public void testRoundTrip() throws IOException {
+        byte[] data = new byte[100000];
+        Random rnd = new Random( 1 );
+        for( int i = 0; i < data.length; i++ )
+            data[i] = (byte)( 'a' + Math.min( 25, (int)( -Math.log( rnd.nextDouble() ) * 3 ) ) );
+
+        // Several blocks, the last one partly filled.
+        byte[] enc = compress( data, 30000 );
+        Assert.assertTrue( enc.length < data.length );
+        Assert.assertTrue( Arrays.equals( decompress( enc ), data ) );
+    }
+
+    public void testEmptyAndSingleValue() throws IOException {
+        Assert.assertEquals( decompress( compress( new byte[0], 1000 ) ).length, 0 );
+
+        byte[] data = new byte[5000];
+        Arrays.fill( data, (byte)'x' );
+        Assert.assertTrue( Arrays.equals( decompress( compress( data, 1000 ) ), data ) );
+    }
+
+    public void testChecksum() throws IOException {
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes();
+        byte[] enc = compress( data, 1000 );
+        // Somewhere in the codes, before the index of the one block.
+        enc[enc.length - 20 - ( BlockFormat.HEADER_SIZE + 2 * BlockFormat.INDEX_ENTRY_SIZE )] ^= 0x10;
+
+        try {
+            decompress( enc );
+            Assert.fail( "Corruption not detected." );
+        }
+        catch( IOException e ) {
+        }
+    }
+
+    // A container whose one block claims the given lengths, but holds only
+    // ten bytes.
+    private byte[] lying( int type, int rawLength, int payloadLength ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlockEncoder.writeHeader( out );
+        out.write( type );
+        BlockFormat.writeInt( out, rawLength );
+        BlockFormat.writeInt( out, payloadLength );
+        BlockFormat.writeInt( out, 0 );
+        out.write( new byte[10] );
+        return out.toByteArray();
+    }
+
+    public void testLyingHeaders() throws IOException {
+        // No block is bigger than an encoder can make.
+        try {
+            decompress( lying( BlockFormat.HUFFMAN, BlockFormat.MAX_BLOCK_SIZE + 1, 10 ) );
+            Assert.fail( "Block too large not detected." );
+        }
+        catch( IOException e ) {
+            Assert.assertEquals( e.getMessage(), "Corrupt block header." );
+        }
+
+        // Lengths that are allowed, but longer than the stream, are found
+        // out without allocating what they ask for.
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean threads = bean instanceof com.sun.management.ThreadMXBean
+                                                  ? (com.sun.management.ThreadMXBean)bean : null;
+        long id = Thread.currentThread().getId();
+        byte[][] lies = { lying( BlockFormat.HUFFMAN, BlockFormat.MAX_BLOCK_SIZE, BlockFormat.MAX_PAYLOAD_SIZE ),
+                          lying( BlockFormat.STORED, BlockFormat.MAX_BLOCK_SIZE, BlockFormat.MAX_BLOCK_SIZE ) };
+        for( byte[] lie : lies ) {
+            long before = threads == null ? 0 : threads.getThreadAllocatedBytes( id );
+            try {
+                decompress( lie );
+                Assert.fail( "Short block not detected." );
+            }
+            catch( EOFException e ) {
+            }
+            if( threads != null )
+                Assert.assertTrue( threads.getThreadAllocatedBytes( id ) - before < 4 * BlockFormat.READ_CHUNK );
+
+            before = threads == null ? 0 : threads.getThreadAllocatedBytes( id );
+            ParallelBlockCodec codec = new ParallelBlockCodec( 2, 1000, 15 );
+            try {
+                codec.decompress( new ByteArrayInputStream( lie ), new ByteArrayOutputStream() );
+                Assert.fail( "Short block not detected." );
+            }
+            catch( EOFException e ) {
+            }
+            finally {
+                codec.close();
+            }
+            if( threads != null )
+                Assert.assertTrue( threads.getThreadAllocatedBytes( id ) - before < 4 * BlockFormat.READ_CHUNK );
+        }
+    }
+
+    public void testParallel() throws IOException {
+        byte[] data = new byte[200000];
+        new Random( 2 ).nextBytes( data );
+        for( int i = 0; i < data.length; i += 3 )
+            data[i] = 'e';
+
+        // The output must not depend on the number of threads.
+        ParallelBlockCodec codec = new ParallelBlockCodec( 3, 16384, 15 );
+        ByteArrayOutputStream enc = new ByteArrayOutputStream(), dec = new ByteArrayOutputStream();
+        codec.compress( new ByteArrayInputStream( data ), enc );
+        Assert.assertTrue( Arrays.equals( enc.toByteArray(), compress( data, 16384 ) ) );
+
+        codec.decompress( new ByteArrayInputStream( enc.toByteArray() ), dec );
+        Assert.assertTrue( Arrays.equals( dec.toByteArray(), data ) );
+
+        java.nio.file.Files.write( java.nio.file.Paths.get( "testp.huf" ), enc.toByteArray() );
+        dec.reset();
+        codec.decompress( new File( "testp.huf" ), dec );
+        Assert.assertTrue( Arrays.equals( dec.toByteArray(), data ) );
+        codec.close();
+    }
+
+    public void testInterleaved() throws IOException {
+        byte[] data = new byte[100003];
+        Random rnd = new Random( 5 );
+        for( int i = 0; i < data.length; i++ )
+            data[i] = (byte)( 'a' + Math.min( 25, (int)( -Math.log( rnd.nextDouble() ) * 3 ) ) );
+
+        // Blocks with fewer bytes than streams, and not a multiple of them.
+        for( int streams : new int[] { 2, 3, 4, 16 } ) {
+            for( int blockSize : new int[] { 30000, 3 } ) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new BlockEncoder( blockSize, 15, streams ).compress( new ByteArrayInputStream( data, 0, blockSize == 3 ? 1000 : data.length ), out );
+                byte[] dec = decompress( out.toByteArray() );
+                Assert.assertTrue( Arrays.equals( dec, Arrays.copyOf( data, dec.length ) ) );
+                Assert.assertEquals( dec.length, blockSize == 3 ? 1000 : data.length );
+            }
+        }
+
+        // Codes longer than the decoder's lookup table.
+        for( int i = 0; i < data.length; i++ )
+            data[i] = (byte)Long.numberOfTrailingZeros( rnd.nextLong() | ( 1L << 40 ) );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BlockEncoder( 50000, 15, 4 ).compress( new ByteArrayInputStream( data ), out );
+        Assert.assertTrue( Arrays.equals( decompress( out.toByteArray() ), data ) );
+    }
+
+    public void testStored() throws IOException {
+        // Random blocks are stored, so the container is hardly bigger than
+        // the input; the skewed blocks after them are still coded.
+        byte[] data = new byte[20000];
+        new Random( 8 ).nextBytes( data );
+        for( int i = 10000; i < data.length; i++ )
+            data[i] = (byte)( 'a' + i % 3 );
+
+        byte[] enc = compress( data, 1000 );
+        Assert.assertTrue( enc.length < 10000 + 3000 );
+        Assert.assertTrue( Arrays.equals( decompress( enc ), data ) );
+
+        java.nio.file.Files.write( java.nio.file.Paths.get( "testb.huf" ), enc );
+        java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open( java.nio.file.Paths.get( "testb.huf" ) );
+        BlockIndex index = new BlockIndex( channel );
+        for( int i = 0; i < index.size(); i++ )
+            Assert.assertEquals( index.get( i ).header.type, i < 10 ? BlockFormat.STORED : BlockFormat.HUFFMAN );
+        channel.close();
+
+        // The same with several threads, and each way of decoding.
+        ParallelBlockCodec codec = new ParallelBlockCodec( 2, 1000, 15, 4 );
+        ByteArrayOutputStream par = new ByteArrayOutputStream(), dec = new ByteArrayOutputStream();
+        codec.compress( new ByteArrayInputStream( data ), par );
+        codec.decompress( new ByteArrayInputStream( par.toByteArray() ), dec );
+        Assert.assertTrue( Arrays.equals( dec.toByteArray(), data ) );
+        java.nio.file.Files.write( java.nio.file.Paths.get( "testb.huf" ), par.toByteArray() );
+        dec.reset();
+        codec.decompress( new File( "testb.huf" ), dec );
+        Assert.assertTrue( Arrays.equals( dec.toByteArray(), data ) );
+        codec.close();
+        Assert.assertTrue( Arrays.equals( new SeekableContainer( new File( "testb.huf" ) ).decodeRange( 9500, 1000 ),
+                                          Arrays.copyOfRange( data, 9500, 10500 ) ) );
+
+        // With no saving asked for, only growth is stored; never storing
+        // codes even random blocks.
+        BlockEncoder encoder = new BlockEncoder( 1000, 15 );
+        encoder.setMinSaving( Double.NEGATIVE_INFINITY );
+        ByteArrayOutputStream coded = new ByteArrayOutputStream();
+        encoder.compress( new ByteArrayInputStream( data ), coded );
+        Assert.assertTrue( coded.size() > enc.length );
+        Assert.assertTrue( Arrays.equals( decompress( coded.toByteArray() ), data ) );
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestBlockContainer.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,75 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class TestByteHistogram extends TestCase {
+
+    private byte[] sample( int n ) {
+        byte[] data = new byte[n];
+        new Random( 4 ).nextBytes( data );
+        for( int i = 0; i < n; i += 5 )
+            data[i] = 'e';      // Runs of the same value in every stripe.
+        return data;
+    }
+
+    private long[] count( byte[] data, int off, int len ) {
+        long[] freq = new long[0x100];
+        for( int i = off; i < off + len; i++ )
+            freq[data[i] & 0xff]++;
+        return freq;
+    }
+
+    public void testCounts() {
+        byte[] data = sample( 10007 );
+
+        ByteHistogram h = new ByteHistogram();
+        h.add( data, 3, 9001 );
+        long[] freq = new long[0x100];
+        h.addTo( freq );
+        Assert.assertTrue( Arrays.equals( freq, count( data, 3, 9001 ) ) );
+
+        h.clear();
+        ByteBuffer buf = ByteBuffer.allocateDirect( data.length );
+        buf.put( data );
+        buf.position( 5 ).limit( 10006 );
+        h.add( buf );
+        Assert.assertEquals( buf.position(), 5 );
+        for( int i = 0; i < 0x100; i++ )
+            Assert.assertEquals( h.get( i ), count( data, 5, 10001 )[i] );
+    }
+
+    public void testFile() throws IOException {
+        byte[] data = sample( 100003 );
+        Files.write( Paths.get( "testh.txt" ), data );
+        long[] expected = count( data, 0, data.length );
+
+        // Read, mapped on one thread, and split over several threads.
+        long threshold = Huffman.MAPPED_IO_THRESHOLD;
+        try {
+            for( long t : new long[] { Long.MAX_VALUE, 0 } ) {
+                Huffman.MAPPED_IO_THRESHOLD = t;
+                for( int threads = 1; threads <= 5; threads += 2 ) {
+                    long[] freq = new long[0x100];
+                    ByteHistogram.of( "testh.txt", threads ).addTo( freq );
+                    Assert.assertTrue( Arrays.equals( freq, expected ) );
+                }
+            }
+        }
+        finally {
+            Huffman.MAPPED_IO_THRESHOLD = threshold;
+        }
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestByteHistogram.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
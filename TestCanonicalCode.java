@@ -0,0 +1,94 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.file.*;
+
+public class TestCanonicalCode extends TestCase {
+
+    public void testCodes() {
+        // Lengths a=2, b=1, c=3, d=3 give b=0, a=10, c=110, d=111.
+        int[] lengths = new int[0x100];
+        lengths['a'] = 2;
+        lengths['b'] = 1;
+        lengths['c'] = 3;
+        lengths['d'] = 3;
+        CanonicalCode code = new CanonicalCode( lengths );
+
+        Assert.assertEquals( code.getCode( 'b' ), 0 );
+        Assert.assertEquals( code.getCode( 'a' ), 2 );
+        Assert.assertEquals( code.getCode( 'c' ), 6 );
+        Assert.assertEquals( code.getCode( 'd' ), 7 );
+        Assert.assertEquals( code.getMaxLength(), 3 );
+    }
+
+    public void testWriteRead() throws IOException {
+        int[] lengths = new int[0x100];
+        for( int i = 0; i < 0x100; i += 3 )
+            lengths[i] = 7;
+        lengths[1] = 2;
+        CanonicalCode code = new CanonicalCode( lengths );
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitStreamWriter w = new BitStreamWriter( bytes );
+        code.write( w );
+        w.close();
+
+        CanonicalCode read = CanonicalCode.read( new BitStreamReader( new ByteArrayInputStream( bytes.toByteArray() ) ) );
+        for( int i = 0; i < 0x100; i++ )
+            Assert.assertEquals( read.getLength( i ), lengths[i] );
+    }
+
+    /**
+     * Encodes data to files and decodes it again, with both kinds of tree
+     * file.
+     */
+    private void roundTrip( byte[] data ) throws IOException {
+        Files.write( Paths.get( "testc.txt" ), data );
+
+        for( Boolean canonical : new Boolean[] { true, false } ) {
+            Huffman.HuffmanEncode( "testc.txt", canonical );
+            Huffman.HuffmanDecode( "testc.txt.ht", "testc.txt.htcode", "testc.out" );
+            Assert.assertTrue( java.util.Arrays.equals( Files.readAllBytes( Paths.get( "testc.out" ) ), data ) );
+        }
+    }
+
+    public void testLongCodes() throws IOException {
+        // Fibonacci frequencies give codes much longer than the decoder's
+        // lookup table.
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for( int i = 0, a = 1, b = 1; i < 20; i++, b = a + b, a = b - a ) {
+            for( int j = 0; j < a; j++ )
+                data.write( 'a' + i );
+        }
+        roundTrip( data.toByteArray() );
+    }
+
+    public void testSingleValue() throws IOException {
+        Files.write( Paths.get( "testc.txt" ), "aaaa".getBytes() );
+        Huffman.HuffmanEncode( "testc.txt" );
+        Huffman.HuffmanDecode( "testc.txt.ht", "testc.txt.htcode", "testc.out" );
+        Assert.assertEquals( new String( Files.readAllBytes( Paths.get( "testc.out" ) ) ), "aaaa" );
+    }
+
+    public void testStored() throws IOException {
+        // Random bytes don't code smaller, so they are stored as they are.
+        byte[] data = new byte[5000];
+        new java.util.Random( 4 ).nextBytes( data );
+        roundTrip( data );
+        Assert.assertEquals( new File( "testc.txt.ht" ).length(), 2 );
+        Assert.assertTrue( java.util.Arrays.equals( Files.readAllBytes( Paths.get( "testc.txt.htcode" ) ), data ) );
+
+        Huffman.HuffmanDecodeBitwise( "testc.txt.ht", "testc.txt.htcode", "testc.out" );
+        Assert.assertTrue( java.util.Arrays.equals( Files.readAllBytes( Paths.get( "testc.out" ) ), data ) );
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestCanonicalCode.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,98 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class TestCodeTableStore extends TestCase {
+
+    private byte[] logLine( Random rnd ) {
+        return ( "{\"time\":" + ( 1600000000 + rnd.nextInt( 100000 ) ) + ",\"level\":\"info\",\"msg\":\"request "
+                 + rnd.nextInt( 1000 ) + " done\"}\n" ).getBytes();
+    }
+
+    private File tableDir() throws IOException {
+        return Files.createTempDirectory( "testtables" ).toFile();
+    }
+
+    public void testTrainAndCode() throws IOException {
+        Random rnd = new Random( 6 );
+        ByteArrayOutputStream sample = new ByteArrayOutputStream();
+        for( int i = 0; i < 200; i++ )
+            sample.write( logLine( rnd ) );
+        Files.write( Paths.get( "testt.txt" ), sample.toByteArray() );
+
+        File dir = tableDir();
+        CodeTableStore tables = new CodeTableStore( dir );
+        int id = tables.train( Arrays.asList( "testt.txt" ) );
+        Assert.assertTrue( tables.fileOf( id ).exists() );
+
+        // A small file codes smaller with the shared table than with its own.
+        byte[] data = logLine( rnd );
+        ByteArrayOutputStream own = new ByteArrayOutputStream(), shared = new ByteArrayOutputStream();
+        new BlockEncoder().compress( new ByteArrayInputStream( data ), own );
+        BlockEncoder encoder = new BlockEncoder( 1000, 15, 2 );
+        encoder.setTable( tables.get( id ) );
+        encoder.compress( new ByteArrayInputStream( data ), shared );
+        Assert.assertTrue( shared.size() < own.size() );
+
+        // Decoded with a store that has to load the table from disk.
+        BlockDecoder decoder = new BlockDecoder();
+        decoder.setTables( new CodeTableStore( dir ) );
+        ByteArrayOutputStream dec = new ByteArrayOutputStream();
+        decoder.decompress( new ByteArrayInputStream( shared.toByteArray() ), dec );
+        Assert.assertTrue( Arrays.equals( dec.toByteArray(), data ) );
+
+        // Bytes the sample never had still have codes, though they are long
+        // enough that the block would be stored if it were allowed to.
+        byte[] odd = { 0, (byte)0xff, 1, (byte)0x80 };
+        encoder.setMinSaving( Double.NEGATIVE_INFINITY );
+        shared.reset();
+        encoder.compress( new ByteArrayInputStream( odd ), shared );
+        dec.reset();
+        decoder.decompress( new ByteArrayInputStream( shared.toByteArray() ), dec );
+        Assert.assertTrue( Arrays.equals( dec.toByteArray(), odd ) );
+
+        // Without the tables the block can't be decoded.
+        try {
+            new BlockDecoder().decompress( new ByteArrayInputStream( shared.toByteArray() ), dec );
+            Assert.fail( "Missing table not detected." );
+        }
+        catch( IOException e ) {
+        }
+    }
+
+    public void testCache() throws IOException {
+        File dir = tableDir();
+        CodeTableStore tables = new CodeTableStore( dir, 2 );
+        int[] ids = new int[3];
+        for( int i = 0; i < 3; i++ ) {
+            long[] freq = new long[0x100];
+            Arrays.fill( freq, 1 );
+            freq['a' + i] = 1000;
+            ids[i] = tables.add( CanonicalCode.build( freq, 15 ) );
+        }
+
+        // The first table was dropped from memory, but can be loaded again.
+        Assert.assertEquals( tables.cached(), 2 );
+        Assert.assertEquals( tables.get( ids[0] ).id, ids[0] );
+        Assert.assertEquals( tables.cached(), 2 );
+
+        try {
+            tables.get( ids[0] ^ 1 );
+            Assert.fail( "Unknown table not detected." );
+        }
+        catch( IOException e ) {
+        }
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestCodeTableStore.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
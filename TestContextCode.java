@@ -0,0 +1,152 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.util.*;
+
+public class TestContextCode extends TestCase {
+
+    /**
+     * Returns n bytes where each byte mostly picks the next: after b comes
+     * one of a few followers of b, with skewed odds.
+     */
+    private byte[] markov( int n, int values, long seed ) {
+        Random r = new Random( seed );
+        byte[] data = new byte[n];
+        int prev = 0;
+        for( int i = 0; i < n; i++ ) {
+            int k = r.nextInt( 16 );
+            int next = k < 10 ? prev * 7 + 1 : k < 14 ? prev * 13 + 5 : r.nextInt( values );
+            data[i] = (byte)( next % values );
+            prev = data[i] & 0xff;
+        }
+        return data;
+    }
+
+    private byte[] roundTrip( ContextCode code, byte[] data ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitStreamWriter bsw = new BitStreamWriter( bytes );
+        code.write( bsw );
+        bsw.alignToByte();
+        code.encode( data, 0, data.length, bsw );
+        bsw.flush();
+
+        byte[] enc = bytes.toByteArray();
+        BitStreamReader bsr = new BitStreamReader( enc, 0, enc.length );
+        ContextCode read = ContextCode.read( bsr );
+        bsr.alignToByte();
+        byte[] dec = new byte[data.length];
+        read.decode( bsr, dec, 0, dec.length );
+        return dec;
+    }
+
+    public void testRoundTrip() throws IOException {
+        byte[] data = markov( 50000, 40, 1 );
+        int[] pairs = new int[0x10000];
+        ContextCode.countPairs( data, 0, data.length, pairs );
+        ContextCode code = ContextCode.build( pairs, 15 );
+
+        Assert.assertNotNull( code );
+        Assert.assertTrue( Arrays.equals( roundTrip( code, data ), data ) );
+
+        // Each context alone costs far less than the order-0 code.
+        long[] frequencies = new long[0x100];
+        for( byte b : data )
+            frequencies[b & 0xff]++;
+        CanonicalCode base = CanonicalCode.build( frequencies, 15 );
+        long bits = 0;
+        for( int i = 0; i < 0x100; i++ )
+            bits += frequencies[i] * base.getLength( i );
+        Assert.assertTrue( code.encodedBits( pairs ) + code.writtenBits() < bits * 3 / 4 );
+    }
+
+    public void testManyContexts() throws IOException {
+        // All 256 contexts, more than can have codes of their own, and codes
+        // longer than the shrunken lookup tables.
+        byte[] data = markov( 400000, 0x100, 2 );
+        int[] pairs = new int[0x10000];
+        ContextCode.countPairs( data, 0, data.length, pairs );
+        ContextCode code = ContextCode.build( pairs, 15 );
+
+        Assert.assertEquals( code.size(), ContextCode.MAX_TABLES );
+        Assert.assertTrue( Arrays.equals( roundTrip( code, data ), data ) );
+    }
+
+    public void testNothingToGain() {
+        // Every byte is equally likely after every other.
+        byte[] data = new byte[0x10000];
+        new Random( 4 ).nextBytes( data );
+        int[] pairs = new int[0x10000];
+        ContextCode.countPairs( data, 0, data.length, pairs );
+        Assert.assertNull( ContextCode.build( pairs, 15 ) );
+    }
+
+    public void testCorrupt() throws IOException {
+        // A map that points past the last code.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitStreamWriter bsw = new BitStreamWriter( bytes );
+        bsw.writeBits( 0, 8 );
+        bsw.writeBits( 1, 8 );
+        bsw.flush();
+        byte[] enc = Arrays.copyOf( bytes.toByteArray(), 0x200 );
+        try {
+            ContextCode.read( new BitStreamReader( enc, 0, enc.length ) );
+            Assert.fail( "Bad map not caught." );
+        }
+        catch( IOException e ) {
+        }
+    }
+
+    public void testContainer() throws IOException {
+        byte[] data = markov( 200000, 60, 3 );
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream(), context = new ByteArrayOutputStream();
+        new BlockEncoder( 50000, 15 ).compress( new ByteArrayInputStream( data ), plain );
+        BlockEncoder encoder = new BlockEncoder( 50000, 15 );
+        encoder.setOrder( 1 );
+        encoder.compress( new ByteArrayInputStream( data ), context );
+        Assert.assertTrue( context.size() < plain.size() * 3 / 4 );
+
+        ByteArrayOutputStream dec = new ByteArrayOutputStream();
+        new BlockDecoder().decompress( new ByteArrayInputStream( context.toByteArray() ), dec );
+        Assert.assertTrue( Arrays.equals( dec.toByteArray(), data ) );
+
+        java.nio.file.Files.write( java.nio.file.Paths.get( "testctx.huf" ), context.toByteArray() );
+        java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open( java.nio.file.Paths.get( "testctx.huf" ) );
+        BlockIndex index = new BlockIndex( channel );
+        for( int i = 0; i < index.size(); i++ )
+            Assert.assertEquals( index.get( i ).header.type, BlockFormat.CONTEXT );
+        channel.close();
+        SeekableContainer container = new SeekableContainer( new File( "testctx.huf" ) );
+        Assert.assertTrue( Arrays.equals( container.decodeRange( 49990, 20 ), Arrays.copyOfRange( data, 49990, 50010 ) ) );
+        container.close();
+
+        // The same with several threads; the parallel coder makes the same
+        // blocks.
+        ParallelBlockCodec codec = new ParallelBlockCodec( 2, 50000, 15, 1 );
+        codec.setOrder( 1 );
+        ByteArrayOutputStream par = new ByteArrayOutputStream();
+        codec.compress( new ByteArrayInputStream( data ), par );
+        Assert.assertTrue( Arrays.equals( par.toByteArray(), context.toByteArray() ) );
+        dec.reset();
+        codec.decompress( new File( "testctx.huf" ), dec );
+        Assert.assertTrue( Arrays.equals( dec.toByteArray(), data ) );
+        codec.close();
+
+        try {
+            encoder.setOrder( 2 );
+            Assert.fail( "Order 2 accepted." );
+        }
+        catch( IllegalArgumentException e ) {
+        }
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestContextCode.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
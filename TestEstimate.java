@@ -0,0 +1,76 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class TestEstimate extends TestCase {
+
+    private void check( byte[] data ) throws IOException {
+        Files.write( Paths.get( "testest.txt" ), data );
+        new File( "testest.txt.ht" ).delete();
+        new File( "testest.txt.htcode" ).delete();
+
+        Estimate e = Estimate.of( "testest.txt" );
+        Huffman.HuffmanEncode( "testest.txt" );
+
+        Assert.assertEquals( e.rawLength, data.length );
+        Assert.assertEquals( e.treeLength, new File( "testest.txt.ht" ).length() );
+        Assert.assertEquals( e.codedLength, new File( "testest.txt.htcode" ).length() );
+        Assert.assertEquals( e.stored, Huffman.isStoredFile( "testest.txt.ht" ) );
+        if( !e.stored && data.length > 0 ) {
+            BitStreamReader bsr = new BitStreamReader( new FileInputStream( "testest.txt.ht" ) );
+            Assert.assertTrue( Arrays.equals( e.lengths, CanonicalCode.read( bsr ).getLengths() ) );
+            bsr.close();
+        }
+    }
+
+    public void testMatchesEncode() throws IOException {
+        byte[] data = new byte[50000];
+        Random r = new Random( 6 );
+        for( int i = 0; i < data.length; i++ )
+            data[i] = (byte)( 'a' + Math.min( r.nextInt( 20 ), r.nextInt( 20 ) ) );
+        check( data );
+
+        // Random bytes are stored; a single value takes a bit per byte.
+        r.nextBytes( data );
+        check( data );
+        Arrays.fill( data, (byte)'x' );
+        check( data );
+        check( new byte[0] );
+    }
+
+    public void testHugeCounts() throws IOException {
+        // Several GB, with counts too big for an int and a tree deeper than
+        // the code length limit.
+        long[] frequencies = new long[0x100];
+        long total = 0;
+        for( int i = 0; i < 40; i++ ) {
+            frequencies[i] = ( 1L << 34 ) >> Math.min( i, 30 );
+            total += frequencies[i];
+        }
+        Estimate e = Estimate.of( frequencies, 15 );
+
+        Assert.assertEquals( e.rawLength, total );
+        long bits = 0;
+        for( int i = 0; i < 0x100; i++ ) {
+            Assert.assertTrue( e.lengths[i] <= 15 );
+            bits += frequencies[i] * e.lengths[i];
+        }
+        Assert.assertEquals( e.codedBits, bits );
+        Assert.assertTrue( e.codedBits > Integer.MAX_VALUE * 8L );
+        Assert.assertTrue( e.getBitsPerByte() >= e.entropy && e.getBitsPerByte() < e.entropy + 1 );
+        Assert.assertEquals( e.getSymbols(), 40 );
+        Assert.assertFalse( e.stored );
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestEstimate.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
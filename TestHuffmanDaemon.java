@@ -0,0 +1,172 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+
+public class TestHuffmanDaemon extends TestCase {
+
+    private HuffmanDaemon start( String address ) throws IOException {
+        final HuffmanDaemon daemon = new HuffmanDaemon( address, 3, 4096 );
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    daemon.serve();
+                }
+                catch( IOException e ) {
+                }
+            }
+        };
+        t.setDaemon( true );
+        t.start();
+        return daemon;
+    }
+
+    private byte[] sample( int n, long seed ) {
+        byte[] data = new byte[n];
+        Random r = new Random( seed );
+        for( int i = 0; i < n; i++ )
+            data[i] = (byte)( 'a' + Math.min( r.nextInt( 16 ), r.nextInt( 16 ) ) );
+        return data;
+    }
+
+    private byte[] stream( String address, byte[] data, Boolean encode ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HuffmanClient.code( address, new ByteArrayInputStream( data ), out, encode );
+        return out.toByteArray();
+    }
+
+    public void testUnixSocket() throws IOException {
+        String socket = new File( "testdaemon.sock" ).getAbsolutePath();
+        HuffmanDaemon daemon = start( socket );
+        try {
+            // Files, by name.
+            byte[] data = sample( 50000, 1 );
+            Files.write( Paths.get( "testdaemon.txt" ), data );
+            long[] sizes = HuffmanClient.code( socket, "testdaemon.txt", "testdaemon.huf", true );
+            Assert.assertEquals( sizes[0], data.length );
+            Assert.assertEquals( sizes[1], new File( "testdaemon.huf" ).length() );
+            HuffmanClient.code( socket, "testdaemon.huf", "testdaemon.out", false );
+            Assert.assertTrue( Arrays.equals( Files.readAllBytes( Paths.get( "testdaemon.out" ) ), data ) );
+
+            // The same as a stream; it matches what is written locally.
+            byte[] enc = stream( socket, data, true );
+            Assert.assertTrue( Arrays.equals( enc, Files.readAllBytes( Paths.get( "testdaemon.huf" ) ) ) );
+            Assert.assertTrue( Arrays.equals( stream( socket, enc, false ), data ) );
+
+            // Failures come back as exceptions, and the daemon carries on.
+            try {
+                HuffmanClient.code( socket, "testdaemon.none", "testdaemon.out", true );
+                Assert.fail( "Missing file not reported." );
+            }
+            catch( IOException e ) {
+            }
+            File dir = new File( "testdaemon.dir" );
+            dir.mkdir();
+            try {
+                HuffmanClient.code( socket, "testdaemon.txt", "testdaemon.dir", true );
+                Assert.fail( "Output that can't be opened not reported." );
+            }
+            catch( IOException e ) {
+            }
+            Assert.assertTrue( dir.isDirectory() );
+            dir.delete();
+            try {
+                stream( socket, Arrays.copyOf( enc, enc.length / 2 ), false );
+                Assert.fail( "Cut container not reported." );
+            }
+            catch( IOException e ) {
+            }
+            Assert.assertTrue( Arrays.equals( stream( socket, new byte[0], true ), stream( socket, new byte[0], true ) ) );
+
+            // A second daemon on the same socket is refused.
+            try {
+                new HuffmanDaemon( socket, 1, 4096 );
+                Assert.fail( "Second daemon started." );
+            }
+            catch( IOException e ) {
+            }
+        }
+        finally {
+            daemon.close();
+        }
+        Assert.assertFalse( new File( socket ).exists() );
+    }
+
+    public void testSocketPath() throws IOException {
+        // Something that isn't a socket is never taken for a leftover one.
+        File file = new File( "testdaemon.keep" ).getAbsoluteFile();
+        Files.write( file.toPath(), "keep".getBytes() );
+        try {
+            new HuffmanDaemon( file.getPath(), 1, 4096 );
+            Assert.fail( "Daemon started over a file." );
+        }
+        catch( IOException e ) {
+        }
+        Assert.assertTrue( Arrays.equals( Files.readAllBytes( file.toPath() ), "keep".getBytes() ) );
+
+        // The socket is only ever its owner's, and nothing is left beside it.
+        String socket = new File( "testdaemon2.sock" ).getAbsolutePath();
+        HuffmanDaemon daemon = new HuffmanDaemon( socket, 1, 4096 );
+        try {
+            Assert.assertEquals( PosixFilePermissions.toString( Files.getPosixFilePermissions( Paths.get( socket ) ) ), "rw-------" );
+            File[] left = new File( socket ).getParentFile().listFiles();
+            for( File f : left )
+                Assert.assertFalse( f.getName().startsWith( ".huf" ) );
+        }
+        finally {
+            daemon.close();
+        }
+    }
+
+    public void testTcp() throws Exception {
+        final HuffmanDaemon daemon = start( "0" );
+        try {
+            // Several clients at once, with more than a socket buffer each
+            // way.
+            final String address = daemon.getAddress();
+            final List<Throwable> errors = Collections.synchronizedList( new ArrayList<Throwable>() );
+            Thread[] clients = new Thread[6];
+            for( int i = 0; i < clients.length; i++ ) {
+                final byte[] data = sample( 300000 + i * 1000, i );
+                clients[i] = new Thread() {
+                    public void run() {
+                        try {
+                            Assert.assertTrue( Arrays.equals( stream( address, stream( address, data, true ), false ), data ) );
+                        }
+                        catch( Throwable e ) {
+                            errors.add( e );
+                        }
+                    }
+                };
+                clients[i].start();
+            }
+            for( Thread t : clients )
+                t.join();
+            Assert.assertEquals( errors, new ArrayList<Throwable>() );
+
+            // No files by name over TCP.
+            try {
+                HuffmanClient.code( address, "testdaemon.txt", "testdaemon.huf", true );
+                Assert.fail( "File request taken over TCP." );
+            }
+            catch( IOException e ) {
+                Assert.assertTrue( e.getMessage().contains( "Unix socket" ) );
+            }
+        }
+        finally {
+            daemon.close();
+        }
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestHuffmanDaemon.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,164 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+import javax.management.*;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.*;
+
+public class TestHuffmanEvents extends TestCase {
+
+    private byte[] sample() {
+        byte[] data = new byte[100000];
+        Random r = new Random( 5 );
+        for( int i = 0; i < data.length; i++ )
+            data[i] = (byte)( 'a' + Math.min( r.nextInt( 8 ), r.nextInt( 8 ) ) );
+        return data;
+    }
+
+    public void testMetrics() throws IOException {
+        final List<String> phases = new ArrayList<String>();
+        final long[] totals = new long[3];
+        Files.write( Paths.get( "teste.txt" ), sample() );
+
+        HuffmanEvents.setMetrics( new CodecMetrics() {
+            public void phase( String phase, long nanos, long bytesIn, long bytesOut ) {
+                phases.add( phase );
+                Assert.assertTrue( nanos >= 0 );
+                if( phase.equals( HuffmanEvents.ENCODE ) )
+                    totals[0] = bytesOut;
+            }
+            public void encoded( long bytesIn, long bitsWritten, double entropyBits, Boolean stored ) {
+                totals[1] = bitsWritten;
+                totals[2] = (long)entropyBits;
+                Assert.assertEquals( bytesIn, 100000 );
+                Assert.assertFalse( stored );
+            }
+        } );
+        try {
+            Huffman.HuffmanEncode( "teste.txt" );
+            Huffman.HuffmanDecode( "teste.txt.ht", "teste.txt.htcode", "teste.out" );
+        }
+        finally {
+            HuffmanEvents.setMetrics( null );
+        }
+
+        Assert.assertEquals( phases, Arrays.asList( HuffmanEvents.PHASES ) );
+        Assert.assertEquals( totals[0], new File( "teste.txt.htcode" ).length() );
+        Assert.assertEquals( totals[1], 8 * totals[0] );
+
+        // A Huffman code is within a bit per byte of the entropy.
+        Assert.assertTrue( totals[1] >= totals[2] && totals[1] < totals[2] + 100000 );
+    }
+
+    public void testMBean() throws Exception {
+        Files.write( Paths.get( "teste.txt" ), sample() );
+        CodecStats.register();
+        try {
+            Huffman.HuffmanEncode( "teste.txt" );
+            Huffman.HuffmanEncode( "teste.txt" );
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName( CodecStats.NAME );
+            Assert.assertEquals( server.getAttribute( name, "FilesEncoded" ), 2L );
+            Assert.assertEquals( server.getAttribute( name, "BytesEncoded" ), 200000L );
+            double bits = (Double)server.getAttribute( name, "BitsPerSymbol" ), entropy = (Double)server.getAttribute( name, "Entropy" );
+            Assert.assertTrue( bits >= entropy && bits < entropy + 1 );
+
+            server.invoke( name, "reset", null, null );
+            Assert.assertEquals( server.getAttribute( name, "FilesEncoded" ), 0L );
+        }
+        finally {
+            CodecStats.unregister();
+        }
+        Assert.assertNull( HuffmanEvents.getMetrics() );
+    }
+
+    public void testContainer() throws IOException {
+        // One phase and one summary a stream, whatever the number of blocks.
+        final List<String> phases = new ArrayList<String>();
+        final List<Long> sizes = new ArrayList<Long>();
+        HuffmanEvents.setMetrics( new CodecMetrics() {
+            public void phase( String phase, long nanos, long bytesIn, long bytesOut ) {
+                phases.add( phase );
+                sizes.add( bytesIn );
+                sizes.add( bytesOut );
+            }
+            public void encoded( long bytesIn, long bitsWritten, double entropyBits, Boolean stored ) {
+                Assert.assertEquals( bytesIn, 100000 );
+                Assert.assertTrue( bitsWritten > entropyBits && !stored );
+            }
+        } );
+        ByteArrayOutputStream enc = new ByteArrayOutputStream(), dec = new ByteArrayOutputStream();
+        try {
+            new BlockEncoder( 4096, 15 ).compress( new ByteArrayInputStream( sample() ), enc );
+            new BlockDecoder().decompress( new ByteArrayInputStream( enc.toByteArray() ), dec );
+        }
+        finally {
+            HuffmanEvents.setMetrics( null );
+        }
+
+        Assert.assertEquals( phases, Arrays.asList( HuffmanEvents.ENCODE, HuffmanEvents.DECODE ) );
+        Assert.assertEquals( sizes.get( 0 ), Long.valueOf( 100000 ) );
+        Assert.assertTrue( sizes.get( 1 ) < enc.size() );
+        Assert.assertEquals( sizes.get( 2 ), Long.valueOf( enc.size() ) );
+        Assert.assertEquals( sizes.get( 3 ), Long.valueOf( 100000 ) );
+    }
+
+    public void testStored() throws Exception {
+        // Files and streams that are stored still count as encoded.
+        byte[] random = new byte[10000];
+        new Random( 6 ).nextBytes( random );
+        Files.write( Paths.get( "teste.txt" ), random );
+        CodecStats stats = CodecStats.register();
+        try {
+            Huffman.HuffmanEncode( "teste.txt" );
+            new BlockEncoder().compress( new ByteArrayInputStream( random ), new ByteArrayOutputStream() );
+            new BlockEncoder().compress( new ByteArrayInputStream( sample() ), new ByteArrayOutputStream() );
+            Assert.assertEquals( stats.getFilesEncoded(), 3 );
+            Assert.assertEquals( stats.getFilesStored(), 2 );
+            Assert.assertEquals( stats.getBytesEncoded(), 120000 );
+        }
+        finally {
+            CodecStats.unregister();
+        }
+    }
+
+    public void testRecording() throws IOException {
+        Files.write( Paths.get( "teste.txt" ), sample() );
+        Recording recording = new Recording();
+        recording.enable( "huffman.Phase" );
+        recording.enable( "huffman.Encoded" );
+        recording.start();
+        Huffman.HuffmanEncode( "teste.txt" );
+        recording.stop();
+        recording.dump( Paths.get( "teste.jfr" ) );
+        recording.close();
+
+        int phases = 0, encoded = 0;
+        for( RecordedEvent e : RecordingFile.readAllEvents( Paths.get( "teste.jfr" ) ) ) {
+            if( e.getEventType().getName().equals( "huffman.Phase" ) )
+                phases++;
+            else if( e.getEventType().getName().equals( "huffman.Encoded" ) ) {
+                encoded++;
+                Assert.assertEquals( e.getLong( "bytesIn" ), 100000 );
+                Assert.assertEquals( e.getInt( "symbols" ), 8 );
+                Assert.assertTrue( e.getDouble( "bitsPerSymbol" ) >= e.getDouble( "entropy" ) );
+            }
+        }
+        Assert.assertEquals( phases, 5 );
+        Assert.assertEquals( encoded, 1 );
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestHuffmanEvents.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,117 @@
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+public class TestHuffmanStreams extends TestCase {
+
+    // Every byte value, mostly small ones, so that codes are long and short.
+    private byte[] skewed( int n ) {
+        byte[] data = new byte[n];
+        Random rnd = new Random( 5 );
+        for( int i = 0; i < n; i++ )
+            data[i] = (byte)rnd.nextInt( 1 + rnd.nextInt( 256 ) );
+        return data;
+    }
+
+    public void testStreams() throws IOException {
+        byte[] data = skewed( 10000 );
+
+        // Small blocks, written in odd pieces and single bytes.
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        HuffmanOutputStream out = new HuffmanOutputStream( buf, new BlockEncoder( 1000, 15 ) );
+        out.write( data, 0, 1234 );
+        out.write( data[1234] );
+        out.write( data, 1235, data.length - 1235 );
+        out.close();
+
+        // The same container as compress() makes.
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new BlockEncoder( 1000, 15 ).compress( new ByteArrayInputStream( data ), expected );
+        Assert.assertTrue( Arrays.equals( buf.toByteArray(), expected.toByteArray() ) );
+
+        HuffmanInputStream in = new HuffmanInputStream( new ByteArrayInputStream( buf.toByteArray() ) );
+        byte[] back = new byte[data.length];
+        Assert.assertEquals( in.read(), data[0] & 0xff );
+        Assert.assertEquals( BlockFormat.readFully( in, back, 1, back.length - 1 ), back.length - 1 );
+        back[0] = data[0];
+        Assert.assertEquals( in.read(), -1 );
+        in.close();
+        Assert.assertTrue( Arrays.equals( back, data ) );
+    }
+
+    public void testFlush() throws IOException {
+        // Everything flushed can be read before the stream is finished, and
+        // anything after the container is left alone.
+        byte[] data = skewed( 3000 );
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        HuffmanOutputStream out = new HuffmanOutputStream( buf );
+        out.write( data, 0, 100 );
+        out.flush();
+
+        HuffmanInputStream in = new HuffmanInputStream( new ByteArrayInputStream( buf.toByteArray() ) );
+        byte[] back = new byte[100];
+        Assert.assertEquals( BlockFormat.readFully( in, back, 0, 100 ), 100 );
+        Assert.assertTrue( Arrays.equals( back, Arrays.copyOf( data, 100 ) ) );
+
+        out.write( data, 100, data.length - 100 );
+        out.finish();
+        buf.write( 42 );
+
+        ByteArrayInputStream raw = new ByteArrayInputStream( buf.toByteArray() );
+        in = new HuffmanInputStream( raw );
+        back = new byte[data.length];
+        Assert.assertEquals( BlockFormat.readFully( in, back, 0, back.length ), data.length );
+        Assert.assertTrue( Arrays.equals( back, data ) );
+        Assert.assertEquals( in.read(), -1 );
+        Assert.assertEquals( raw.read(), 42 );
+    }
+
+    public void testBuffers() throws IOException {
+        // Heap and direct buffers, with the same encoder and decoder reused.
+        BlockEncoder encoder = new BlockEncoder( 4000, 15, 4 );
+        BlockDecoder decoder = new BlockDecoder();
+
+        for( int k = 0; k < 4; k++ ) {
+            byte[] data = skewed( 1000 + 5000 * k );
+            Boolean direct = k % 2 == 1;
+
+            ByteBuffer src = direct ? ByteBuffer.allocateDirect( data.length ) : ByteBuffer.allocate( data.length );
+            src.put( data ).flip();
+            int room = (int)encoder.maxEncodedLength( data.length );
+            ByteBuffer coded = direct ? ByteBuffer.allocateDirect( room ) : ByteBuffer.allocate( room );
+            int n = encoder.encode( src, coded );
+            Assert.assertFalse( src.hasRemaining() );
+            Assert.assertEquals( coded.position(), n );
+            coded.flip();
+
+            ByteBuffer dst = direct ? ByteBuffer.allocateDirect( data.length ) : ByteBuffer.allocate( data.length );
+            Assert.assertEquals( decoder.decode( coded, dst ), data.length );
+            Assert.assertFalse( coded.hasRemaining() );
+            dst.flip();
+            byte[] back = new byte[data.length];
+            dst.get( back );
+            Assert.assertTrue( Arrays.equals( back, data ) );
+        }
+    }
+
+    public void testOverflow() throws IOException {
+        byte[] data = skewed( 1000 );
+        try {
+            new BlockEncoder().encode( ByteBuffer.wrap( data ), ByteBuffer.allocate( 10 ) );
+            fail( "Should overflow." );
+        }
+        catch( BufferOverflowException e ) {
+        }
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestHuffmanStreams.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,78 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.util.*;
+
+public class TestHuffmanTree extends TestCase {
+
+    private long[] frequencies( int seed ) {
+        long[] freq = new long[0x100];
+        Random rnd = new Random( seed );
+        for( int i = 0; i < 0x100; i += 1 + rnd.nextInt( 3 ) )
+            freq[i] = 1 + rnd.nextInt( 1000 );
+        return freq;
+    }
+
+    public void testBuild() {
+        // The cost of a Huffman code is the sum of the weights of all inner
+        // nodes, which merging with a priority queue gives directly.
+        long[] freq = frequencies( 9 );
+        PriorityQueue<Long> queue = new PriorityQueue<Long>();
+        for( long f : freq ) {
+            if( f > 0 )
+                queue.add( f );
+        }
+        long cost = 0;
+        while( queue.size() > 1 ) {
+            long w = queue.poll() + queue.poll();
+            cost += w;
+            queue.add( w );
+        }
+
+        HuffmanTree htree = HuffmanTree.build( freq );
+        long bits = 0;
+        for( Map.Entry<Integer, Boolean[]> e : htree.getDictionary().entrySet() )
+            bits += freq[e.getKey()] * e.getValue().length;
+        Assert.assertEquals( bits, cost );
+        Assert.assertEquals( htree.getWeight(), (long)queue.peek() );
+    }
+
+    public void testSaveAndLoad() throws IOException {
+        HuffmanTree htree = HuffmanTree.build( frequencies( 10 ) );
+        htree.saveToFile( "testtree.ht" );
+        HuffmanTree loaded = Huffman.loadTree( "testtree.ht" );
+
+        Assert.assertEquals( loaded.size(), htree.size() );
+        HashMap<Integer, Boolean[]> a = htree.getDictionary(), b = loaded.getDictionary();
+        Assert.assertEquals( a.keySet(), b.keySet() );
+        for( Integer k : a.keySet() )
+            Assert.assertTrue( Arrays.equals( a.get( k ), b.get( k ) ) );
+    }
+
+    public void testDeepTree() throws IOException {
+        // Fibonacci weights give a tree as deep as there are values.
+        long[] freq = new long[0x100];
+        for( int i = 0; i < 60; i++ )
+            freq[i] = i < 2 ? 1 : freq[i - 1] + freq[i - 2];
+
+        HuffmanTree htree = HuffmanTree.build( freq );
+        Assert.assertEquals( htree.getDictionary().get( 0 ).length, 59 );
+        htree.saveToFile( "testtree.ht" );
+        Assert.assertEquals( Huffman.loadTree( "testtree.ht" ).getDictionary().get( 1 ).length, 59 );
+
+        long[] single = new long[0x100];
+        single['x'] = 5;
+        Assert.assertTrue( HuffmanTree.build( single ).hasValue() );
+        Assert.assertNull( HuffmanTree.build( new long[0x100] ) );
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestHuffmanTree.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
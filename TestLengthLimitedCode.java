@@ -0,0 +1,69 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.file.*;
+
+public class TestLengthLimitedCode extends TestCase {
+
+    /**
+     * Fibonacci frequencies make a Huffman tree as deep as it gets.
+     */
+    private long[] fibonacci( int n ) {
+        long[] freq = new long[0x100];
+        for( int i = 0, a = 1, b = 1; i < n; i++, b = a + b, a = b - a )
+            freq[i] = a;
+        return freq;
+    }
+
+    public void testLimit() {
+        long[] freq = fibonacci( 20 );
+        int[] lengths = LengthLimitedCode.packageMerge( freq, 8 );
+
+        double kraft = 0;
+        for( int i = 0; i < 0x100; i++ ) {
+            Assert.assertTrue( lengths[i] <= 8 );
+            Assert.assertEquals( lengths[i] > 0, freq[i] > 0 );
+            if( lengths[i] > 0 )
+                kraft += Math.pow( 2, -lengths[i] );
+        }
+        Assert.assertEquals( kraft, 1.0, 1e-12 );
+    }
+
+    public void testSameAsHuffmanWithoutLimit() {
+        // With room enough, the result is as good as a Huffman code.
+        long[] freq = fibonacci( 20 );
+        CanonicalCode huffman = new CanonicalCode( Huffman.buildTree( freq ) );
+        Assert.assertEquals( LengthLimitedCode.encodedBits( freq, LengthLimitedCode.packageMerge( freq, 32 ) ),
+                             LengthLimitedCode.encodedBits( freq, huffman.getLengths() ) );
+    }
+
+    public void testSingleValue() {
+        long[] freq = new long[0x100];
+        freq['x'] = 10;
+        Assert.assertEquals( LengthLimitedCode.packageMerge( freq, 12 )['x'], 1 );
+    }
+
+    public void testEncodeLimited() throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        long[] freq = fibonacci( 20 );
+        for( int i = 0; i < 20; i++ ) {
+            for( long j = 0; j < freq[i]; j++ )
+                data.write( 'a' + i );
+        }
+        Files.write( Paths.get( "testl.txt" ), data.toByteArray() );
+
+        Huffman.HuffmanEncode( "testl.txt", true, 10 );
+        Huffman.HuffmanDecode( "testl.txt.ht", "testl.txt.htcode", "testl.out" );
+        Assert.assertTrue( java.util.Arrays.equals( Files.readAllBytes( Paths.get( "testl.out" ) ), data.toByteArray() ) );
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestLengthLimitedCode.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,73 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class TestMappedFile extends TestCase {
+
+    // Words in random order, so that every window is different.
+    private byte[] words( int n ) {
+        String[] words = { "the ", "mapped ", "window ", "of ", "a ", "file ", "is ", "read\n" };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Random rnd = new Random( 3 );
+        while( out.size() < n ) {
+            byte[] w = words[rnd.nextInt( words.length )].getBytes();
+            out.write( w, 0, w.length );
+        }
+        return Arrays.copyOf( out.toByteArray(), n );
+    }
+
+    public void testWindows() throws IOException {
+        // Small windows, so that the file has to be remapped several times.
+        byte[] data = words( 10000 );
+        Files.write( Paths.get( "testm.txt" ), data );
+
+        MappedFile in = new MappedFile( "testm.txt", 3000 );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buf;
+        int windows = 0;
+        while( ( buf = in.next() ) != null ) {
+            byte[] b = new byte[buf.remaining()];
+            buf.get( b );
+            out.write( b );
+            windows++;
+        }
+        in.close();
+
+        Assert.assertEquals( windows, 4 );
+        Assert.assertTrue( Arrays.equals( out.toByteArray(), data ) );
+    }
+
+    public void testEncodeMapped() throws IOException {
+        byte[] data = words( 50000 );
+        Files.write( Paths.get( "testm.txt" ), data );
+
+        long threshold = Huffman.MAPPED_IO_THRESHOLD;
+        Huffman.MAPPED_IO_THRESHOLD = 0;
+        try {
+            Huffman.HuffmanEncode( "testm.txt" );
+        }
+        finally {
+            Huffman.MAPPED_IO_THRESHOLD = threshold;
+        }
+        byte[] mapped = Files.readAllBytes( Paths.get( "testm.txt.htcode" ) );
+
+        // The same bytes as through the stream path, and they decode.
+        Huffman.HuffmanEncode( "testm.txt" );
+        Assert.assertTrue( Arrays.equals( Files.readAllBytes( Paths.get( "testm.txt.htcode" ) ), mapped ) );
+        Huffman.HuffmanDecode( "testm.txt.ht", "testm.txt.htcode", "testm.out" );
+        Assert.assertTrue( Arrays.equals( Files.readAllBytes( Paths.get( "testm.out" ) ), data ) );
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestMappedFile.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
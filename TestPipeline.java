@@ -0,0 +1,173 @@
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class TestPipeline extends TestCase {
+
+    // Bytes that follow their position, so that a buffer lost, repeated or
+    // out of order shows.
+    private byte[] counting( int n ) {
+        byte[] data = new byte[n];
+        for( int i = 0; i < n; i++ )
+            data[i] = (byte)( i % 251 );
+        return data;
+    }
+
+    /**
+     * A stream that fails after a given number of bytes.
+     */
+    private static class Failing extends InputStream {
+        InputStream in;
+        int left;
+        Failing( byte[] data, int left ) { in = new ByteArrayInputStream( data ); this.left = left; }
+        public int read() throws IOException {
+            throw new IOException( "Use read( b, off, len )." );
+        }
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if( left == 0 )
+                throw new IOException( "Disk on fire." );
+            int n = in.read( b, off, Math.min( len, left ) );
+            left -= n;
+            return n;
+        }
+    }
+
+    public void testReadAhead() throws IOException {
+        // Tiny buffers, so the reader has to wait for them over and over.
+        byte[] data = counting( 10000 );
+        InputStream in = new ReadAheadInputStream( new ByteArrayInputStream( data ), 2, 7 );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals( in.read(), data[0] & 0xff );
+        out.write( data[0] );
+        byte[] buf = new byte[13];
+        int n;
+        while( ( n = in.read( buf ) ) > 0 )
+            out.write( buf, 0, n );
+        in.close();
+        Assert.assertTrue( Arrays.equals( out.toByteArray(), data ) );
+    }
+
+    public void testReadError() throws IOException {
+        // Everything before the error arrives, then the error.
+        byte[] data = counting( 1000 );
+        InputStream in = new ReadAheadInputStream( new Failing( data, 500 ), 3, 64 );
+        byte[] buf = new byte[1000];
+        int total = 0;
+        try {
+            int n;
+            while( ( n = in.read( buf, total, buf.length - total ) ) > 0 )
+                total += n;
+            fail( "Error not passed on." );
+        }
+        catch( IOException e ) {
+            Assert.assertEquals( e.getMessage(), "Disk on fire." );
+        }
+        Assert.assertEquals( total, 500 );
+        in.close();
+    }
+
+    public void testWriteBehind() throws IOException {
+        byte[] data = counting( 10000 );
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = new WriteBehindOutputStream( sink, 2, 100 );
+        out.write( data, 0, 3333 );
+        out.write( data[3333] );
+        out.flush();
+        Assert.assertEquals( sink.size(), 3334 );   // All there after a flush.
+        out.write( data, 3334, data.length - 3334 );
+        out.close();
+        Assert.assertTrue( Arrays.equals( sink.toByteArray(), data ) );
+    }
+
+    public void testWriteError() throws IOException {
+        OutputStream out = new WriteBehindOutputStream( new OutputStream() {
+            public void write( int b ) throws IOException {
+                throw new IOException( "Disk full." );
+            }
+        }, 2, 16 );
+        try {
+            for( int i = 0; i < 1000; i++ )
+                out.write( i );
+            out.close();
+            fail( "Error not passed on." );
+        }
+        catch( IOException e ) {
+            Assert.assertEquals( e.getMessage(), "Disk full." );
+        }
+    }
+
+    public void testFiles() throws IOException {
+        // The legacy and container modes through small pipeline buffers.
+        byte[] data = counting( 50000 );
+        Files.write( Paths.get( "testq.txt" ), data );
+
+        int buffers = Huffman.PIPELINE_BUFFERS, size = Huffman.PIPELINE_BUFFER_SIZE;
+        long threshold = Huffman.PIPELINE_THRESHOLD;
+        Huffman.PIPELINE_BUFFERS = 3;
+        Huffman.PIPELINE_BUFFER_SIZE = 1000;
+        Huffman.PIPELINE_THRESHOLD = 0;
+        try {
+            Huffman.HuffmanEncode( "testq.txt" );
+            Huffman.HuffmanDecode( "testq.txt.ht", "testq.txt.htcode", "testq.out" );
+            Assert.assertTrue( Arrays.equals( Files.readAllBytes( Paths.get( "testq.out" ) ), data ) );
+
+            OutputStream out = Huffman.openOutput( "testq.huf", data.length );
+            InputStream in = Huffman.openInput( "testq.txt" );
+            Assert.assertTrue( in instanceof ReadAheadInputStream );
+            new BlockEncoder( 4096, 15 ).compress( in, out );
+            in.close();
+            out.close();
+
+            out = Huffman.openOutput( "testq.out", data.length );
+            in = Huffman.openInput( "testq.huf" );
+            new BlockDecoder().decompress( in, out );
+            in.close();
+            out.close();
+            Assert.assertTrue( Arrays.equals( Files.readAllBytes( Paths.get( "testq.out" ) ), data ) );
+        }
+        finally {
+            Huffman.PIPELINE_BUFFERS = buffers;
+            Huffman.PIPELINE_BUFFER_SIZE = size;
+            Huffman.PIPELINE_THRESHOLD = threshold;
+        }
+    }
+
+    public void testSmallFiles() throws IOException {
+        // Small files aren't worth the threads and rings; pipes always are.
+        byte[] data = counting( 4096 );
+        Files.write( Paths.get( "testq.txt" ), data );
+
+        InputStream in = Huffman.openInput( "testq.txt" );
+        Assert.assertTrue( in instanceof BufferedInputStream );
+        in.close();
+        OutputStream out = Huffman.openOutput( "testq.out", data.length );
+        Assert.assertTrue( out instanceof BufferedOutputStream );
+        out.close();
+        in = Huffman.readAhead( new ByteArrayInputStream( data ), -1 );
+        Assert.assertTrue( in instanceof ReadAheadInputStream );
+        in.close();
+
+        // Nor do the legacy modes, which then allocate less than one buffer.
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if( !( bean instanceof com.sun.management.ThreadMXBean ) )
+            return;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+        long id = Thread.currentThread().getId(), before = threads.getThreadAllocatedBytes( id );
+        Huffman.HuffmanEncode( "testq.txt" );
+        Huffman.HuffmanDecode( "testq.txt.ht", "testq.txt.htcode", "testq.out" );
+        long allocated = threads.getThreadAllocatedBytes( id ) - before;
+        Assert.assertTrue( "Allocated " + allocated + " bytes.", allocated < Huffman.PIPELINE_BUFFER_SIZE );
+        Assert.assertTrue( Arrays.equals( Files.readAllBytes( Paths.get( "testq.out" ) ), data ) );
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestPipeline.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
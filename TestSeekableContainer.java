@@ -0,0 +1,110 @@
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+public class TestSeekableContainer extends TestCase {
+
+    // Numbered lines, so that a range from the wrong place shows.
+    private byte[] records( int n ) {
+        StringBuilder text = new StringBuilder();
+        for( int i = 0; text.length() < n; i++ )
+            text.append( String.format( "%07d\n", i ) );
+        return Arrays.copyOf( text.toString().getBytes(), n );
+    }
+
+    private void checkRanges( byte[] data, String file ) throws IOException {
+        SeekableContainer in = new SeekableContainer( new File( file ) );
+        Assert.assertEquals( in.length(), data.length );
+
+        Random rnd = new Random( 1 );
+        for( int k = 0; k < 50; k++ ) {
+            int off = rnd.nextInt( data.length ), len = rnd.nextInt( 3000 );
+            byte[] part = in.decodeRange( off, len );
+            Assert.assertEquals( part.length, Math.min( len, data.length - off ) );
+            Assert.assertTrue( Arrays.equals( part, Arrays.copyOfRange( data, off, off + part.length ) ) );
+        }
+        Assert.assertEquals( in.decodeRange( data.length, 10 ).length, 0 );
+        in.close();
+    }
+
+    public void testIndex() throws IOException {
+        byte[] data = records( 20000 );
+        ByteArrayOutputStream enc = new ByteArrayOutputStream();
+        new BlockEncoder( 1000, 15 ).compress( new ByteArrayInputStream( data ), enc );
+        Files.write( Paths.get( "tests.huf" ), enc.toByteArray() );
+
+        // The index from the trailer agrees with the blocks.
+        FileChannel channel = FileChannel.open( Paths.get( "tests.huf" ) );
+        BlockIndex index = new BlockIndex( channel );
+        Assert.assertEquals( index.size(), 20 );
+        Assert.assertEquals( index.getRawLength(), data.length );
+        for( int i = 0; i < index.size(); i++ ) {
+            Assert.assertEquals( index.get( i ).rawOffset, 1000L * i );
+            Assert.assertEquals( index.find( 1000L * i + 999 ), i );
+        }
+        channel.close();
+
+        checkRanges( data, "tests.huf" );
+    }
+
+    public void testWriters() throws IOException {
+        // Streams with odd block sizes and parallel coding index the same way.
+        byte[] data = records( 30000 );
+        ByteArrayOutputStream enc = new ByteArrayOutputStream();
+        HuffmanOutputStream out = new HuffmanOutputStream( enc, new BlockEncoder( 4096, 15, 4 ) );
+        out.write( data, 0, 777 );
+        out.flush();
+        out.write( data, 777, data.length - 777 );
+        out.close();
+        Files.write( Paths.get( "tests.huf" ), enc.toByteArray() );
+        checkRanges( data, "tests.huf" );
+
+        enc.reset();
+        ParallelBlockCodec codec = new ParallelBlockCodec( 2, 2048, 15 );
+        codec.compress( new ByteArrayInputStream( data ), enc );
+        codec.close();
+        Files.write( Paths.get( "tests.huf" ), enc.toByteArray() );
+        checkRanges( data, "tests.huf" );
+    }
+
+    public void testNoIndex() throws IOException {
+        // Without an index, the blocks are found by scanning.
+        byte[] data = records( 5000 );
+        ByteArrayOutputStream enc = new ByteArrayOutputStream();
+        BlockEncoder encoder = new BlockEncoder( 1024, 15 );
+        BlockEncoder.writeHeader( enc );
+        for( int i = 0; i < data.length; i += 1024 )
+            encoder.writeBlock( data, i, Math.min( 1024, data.length - i ), enc );
+        BlockEncoder.writeEnd( enc );
+        Files.write( Paths.get( "tests.huf" ), enc.toByteArray() );
+        checkRanges( data, "tests.huf" );
+    }
+
+    public void testCorruptIndex() throws IOException {
+        byte[] data = records( 5000 );
+        ByteArrayOutputStream enc = new ByteArrayOutputStream();
+        new BlockEncoder( 1024, 15 ).compress( new ByteArrayInputStream( data ), enc );
+        byte[] bytes = enc.toByteArray();
+        bytes[bytes.length - BlockFormat.HEADER_SIZE - 3] ^= 1;
+        Files.write( Paths.get( "tests.huf" ), bytes );
+
+        try {
+            new SeekableContainer( new File( "tests.huf" ) );
+            fail( "Corruption not detected." );
+        }
+        catch( IOException e ) {
+        }
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestSeekableContainer.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,223 @@
+
+import junit.framework.*;
+import junit.textui.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+public class TestTransform extends TestCase {
+
+    // Runs of every length around the places RLE counts change.
+    private byte[] runs( long seed ) {
+        Random r = new Random( seed );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] lengths = { 1, 2, 3, 4, 5, 6, 258, 259, 260, 261, 262, 520, 1000 };
+        for( int i = 0; i < 200; i++ ) {
+            int b = r.nextInt( 4 ), n = lengths[r.nextInt( lengths.length )];
+            for( int j = 0; j < n; j++ )
+                out.write( b );
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] random( int n, long seed ) {
+        byte[] data = new byte[n];
+        new Random( seed ).nextBytes( data );
+        return data;
+    }
+
+    private byte[] sortedInts( int n ) {
+        ByteBuffer buf = ByteBuffer.allocate( 4 * n );
+        Random r = new Random( 3 );
+        int v = 0;
+        for( int i = 0; i < n; i++ )
+            buf.putInt( v += r.nextInt( 50 ) );
+        return buf.array();
+    }
+
+    private void roundTrip( Transform t, byte[] data ) throws IOException {
+        // All at once.
+        byte[] fwd = new byte[t.maxLength( data.length )];
+        t.reset();
+        int n = t.forward( data, 0, data.length, fwd, 0 );
+        n += t.finish( fwd, n );
+
+        // In pieces, it comes out the same.
+        byte[] pieces = new byte[fwd.length];
+        t.reset();
+        int m = 0;
+        Random r = new Random( data.length );
+        for( int i = 0; i < data.length; ) {
+            int len = Math.min( 1 + r.nextInt( 300 ), data.length - i );
+            m += t.forward( data, i, len, pieces, m );
+            i += len;
+        }
+        m += t.finish( pieces, m );
+        Assert.assertEquals( m, n );
+        Assert.assertTrue( Arrays.equals( Arrays.copyOf( pieces, m ), Arrays.copyOf( fwd, n ) ) );
+
+        byte[] back = new byte[data.length];
+        t.reset();
+        Assert.assertEquals( t.inverse( fwd, 0, n, back, 0, back.length ), data.length );
+        Assert.assertTrue( Arrays.equals( back, data ) );
+
+        // Back in pieces too.
+        t.reset();
+        int k = 0;
+        for( int i = 0; i < n; ) {
+            int len = Math.min( 1 + r.nextInt( 300 ), n - i );
+            k += t.inverse( fwd, i, len, back, k, back.length - k );
+            i += len;
+        }
+        Assert.assertEquals( k, data.length );
+        Assert.assertTrue( Arrays.equals( back, data ) );
+    }
+
+    public void testTransforms() throws IOException {
+        byte[][] inputs = { new byte[0], { 7 }, runs( 1 ), random( 5000, 2 ), sortedInts( 1000 ),
+                            "aaaabbbbccccdddd".getBytes() };
+        for( byte[] data : inputs ) {
+            roundTrip( new RunLengthTransform(), data );
+            roundTrip( new MoveToFrontTransform(), data );
+            roundTrip( new DeltaTransform(), data );
+            roundTrip( new DeltaTransform( 4 ), data );
+        }
+
+        // Long runs shrink to almost nothing.
+        RunLengthTransform rle = new RunLengthTransform();
+        byte[] run = new byte[10000], out = new byte[rle.maxLength( run.length )];
+        int n = rle.forward( run, 0, run.length, out, 0 ) + rle.finish( out, rle.forward( run, 0, 0, out, 0 ) );
+        Assert.assertTrue( n < 200 );
+
+        // A count that runs past the end of the block is caught.
+        rle.reset();
+        try {
+            rle.inverse( new byte[] { 1, 1, 1, 1, (byte)200 }, 0, 5, new byte[100], 0, 100 );
+            Assert.fail( "Overlong run not detected." );
+        }
+        catch( IOException e ) {
+        }
+    }
+
+    public void testChain() throws IOException {
+        TransformChain chain = TransformChain.parse( "rle, MTF,delta,delta8" );
+        Assert.assertEquals( chain.toString(), "rle,mtf,delta,delta8" );
+        Assert.assertNull( TransformChain.parse( "" ) );
+        try {
+            TransformChain.parse( "rle,bwt" );
+            Assert.fail( "Unknown transform taken." );
+        }
+        catch( IllegalArgumentException e ) {
+        }
+
+        for( byte[] data : new byte[][] { runs( 4 ), random( 3000, 5 ), sortedInts( 500 ) } ) {
+            int n = chain.forward( data, 0, data.length );
+            byte[] fwd = Arrays.copyOf( chain.getBuffer(), n );
+            byte[] back = new byte[data.length];
+            Assert.assertEquals( chain.inverse( fwd, 0, n, back, 0, back.length ), data.length );
+            Assert.assertTrue( Arrays.equals( back, data ) );
+        }
+
+        // The ids, as a TRANSFORMED block records them.
+        ByteArrayOutputStream ids = new ByteArrayOutputStream();
+        chain.write( ids );
+        byte[] b = ids.toByteArray();
+        Assert.assertEquals( TransformChain.read( b, 1, b[0] ).toString(), chain.toString() );
+    }
+
+    private byte[] compress( byte[] data, String transforms ) throws IOException {
+        BlockEncoder encoder = new BlockEncoder( 8192, 15 );
+        encoder.setTransforms( transforms );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.compress( new ByteArrayInputStream( data ), out );
+        return out.toByteArray();
+    }
+
+    private byte[] decompress( byte[] enc ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BlockDecoder().decompress( new ByteArrayInputStream( enc ), out );
+        return out.toByteArray();
+    }
+
+    public void testContainer() throws IOException {
+        // Runs code smaller through RLE, and sorted numbers through delta4;
+        // decoders undo them without being told.
+        byte[] runs = runs( 6 ), ints = sortedInts( 20000 );
+        byte[] plain = compress( runs, null ), rle = compress( runs, "rle" );
+        Assert.assertTrue( rle.length * 4 < plain.length );
+        Assert.assertTrue( Arrays.equals( decompress( rle ), runs ) );
+        byte[] delta = compress( ints, "delta4" );
+        Assert.assertTrue( delta.length < compress( ints, null ).length / 2 );
+        Assert.assertTrue( Arrays.equals( decompress( delta ), ints ) );
+
+        // In parallel and from the middle too.
+        byte[] chained = compress( ints, "delta4,mtf,rle" );
+        Files.write( Paths.get( "testtransform.huf" ), chained );
+        ParallelBlockCodec codec = new ParallelBlockCodec( 3, 8192, 15 );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.decompress( new ByteArrayInputStream( chained ), out );
+        codec.close();
+        Assert.assertTrue( Arrays.equals( out.toByteArray(), ints ) );
+        SeekableContainer sc = new SeekableContainer( new File( "testtransform.huf" ) );
+        Assert.assertTrue( Arrays.equals( sc.decodeRange( 30000, 9000 ), Arrays.copyOfRange( ints, 30000, 39000 ) ) );
+        sc.close();
+
+        // Random bytes are just stored, not transformed.
+        byte[] rnd = random( 20000, 7 );
+        byte[] stored = compress( rnd, "rle,mtf" );
+        Assert.assertEquals( stored[4], BlockFormat.STORED );
+        Assert.assertTrue( Arrays.equals( decompress( stored ), rnd ) );
+
+        // Nor are random bytes in runs of four, which RLE makes longer.
+        byte[] fours = new byte[rnd.length * 4];
+        for( int i = 0; i < fours.length; i++ )
+            fours[i] = rnd[i / 4];
+        byte[] grown = compress( fours, "rle" );
+        Assert.assertEquals( grown.length, compress( fours, null ).length );
+        Assert.assertTrue( Arrays.equals( decompress( grown ), fours ) );
+
+        // An unknown transform id is reported.
+        Assert.assertEquals( rle[4], BlockFormat.TRANSFORMED );
+        rle[4 + BlockFormat.HEADER_SIZE + 1] = 99;
+        try {
+            decompress( rle );
+            Assert.fail( "Unknown transform not detected." );
+        }
+        catch( IOException e ) {
+        }
+    }
+
+    public void testDecoderReuse() throws IOException {
+        // Once a decoder has seen a block, more blocks with the same chain
+        // cost it nothing but the codes: no transforms or buffers per block.
+        byte[] data = new byte[8 << 18];
+        for( int i = 0; i < data.length; i++ )
+            data[i] = (byte)( i / 300 % 7 );
+        BlockEncoder encoder = new BlockEncoder( 1 << 18, 15 );
+        encoder.setTransforms( "rle,mtf" );
+        ByteArrayOutputStream enc = new ByteArrayOutputStream();
+        encoder.compress( new ByteArrayInputStream( data ), enc );
+
+        BlockDecoder decoder = new BlockDecoder();
+        OutputStream none = new OutputStream() {
+            public void write( int b ) { }
+            public void write( byte[] b, int off, int len ) { }
+        };
+        decoder.decompress( new ByteArrayInputStream( enc.toByteArray() ), none );
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+        long before = bean.getThreadAllocatedBytes( Thread.currentThread().getId() );
+        decoder.decompress( new ByteArrayInputStream( enc.toByteArray() ), none );
+        long allocated = bean.getThreadAllocatedBytes( Thread.currentThread().getId() ) - before;
+        Assert.assertTrue( "Allocated " + allocated, allocated < 1 << 18 );
+    }
+
+   public static Test suite() {
+      return new TestSuite(TestTransform.class);
+    }
+
+    public static void main(String[] args) {
+      junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,46 @@
+import java.io.*;
+
+/**
+ * Interface for a reversible transform of bytes, run over a block before
+ * it is coded so that the code has less left to do; see TransformChain.
+ *
+ * A transform keeps whatever state it needs from one call to the next, so
+ * a block can be given to it in pieces, and allocates nothing once made.
+ * reset() starts it again for the next block.
+ */
+interface Transform {
+   /**
+    * Returns the id the transform is recorded by in a TRANSFORMED block.
+    */
+   int getId();
+
+   /**
+    * Returns the most bytes forward() and finish() can write between them
+    * for len bytes of input.
+    */
+   int maxLength( int len );
+
+   /**
+    * Starts again, as for a new block.
+    */
+   void reset();
+
+   /**
+    * Transforms len bytes from src at off, writing to dst from dstOff on.
+    * Returns the number of bytes written.
+    */
+   int forward( byte[] src, int off, int len, byte[] dst, int dstOff );
+
+   /**
+    * Writes anything forward() held back waiting for more input, to dst
+    * from dstOff on.  Returns the number of bytes written.
+    */
+   int finish( byte[] dst, int dstOff );
+
+   /**
+    * Undoes forward() for len bytes from src at off, writing at most limit
+    * bytes to dst from dstOff on.  Returns the number of bytes written.
+    * Throws an IOException if there would be more than limit.
+    */
+   int inverse( byte[] src, int off, int len, byte[] dst, int dstOff, int limit ) throws IOException;
+}
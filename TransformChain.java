@@ -0,0 +1,185 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Class to run transforms (see Transform) one after the other over a block
+ * before it is coded, and back again, last first, after it is decoded.  A
+ * TRANSFORMED block records the ids of its chain, so decoders know what to
+ * undo without being told (see BlockFormat).
+ *
+ * The buffers between stages are kept for the next block, so a chain only
+ * allocates when blocks get bigger.  Not for several threads at once.
+ */
+class TransformChain {
+   static final int MAX_STAGES = 8;
+   static final String[] NAMES = { null, "rle", "mtf", "delta", "delta2", "delta4", "delta8" };   // By id.
+
+   private Transform[] stages;
+   private byte[] buffer = new byte[0], spare = new byte[0];
+
+   /**
+    * Creates a chain that runs the given transforms in order.
+    */
+   public TransformChain( Transform... stages ) {
+      if( stages.length < 1 || stages.length > MAX_STAGES )
+         throw new IllegalArgumentException( "A chain needs 1 to " + MAX_STAGES + " transforms." );
+      this.stages = stages.clone();
+   }
+
+   /**
+    * Creates a chain from transform names separated by commas, such as
+    * "rle,mtf".  Returns null for null or an empty string.
+    */
+   static TransformChain parse( String names ) {
+      if( names == null || names.isEmpty() )
+         return null;
+
+      String[] parts = names.split( "," );
+      Transform[] stages = new Transform[parts.length];
+      for( int i = 0; i < parts.length; i++ ) {
+         int id = Arrays.asList( NAMES ).indexOf( parts[i].trim().toLowerCase() );
+         if( id < 1 )
+            throw new IllegalArgumentException( "Unknown transform " + parts[i] + "; known are rle, mtf, delta and delta2, 4 or 8." );
+         stages[i] = create( id );
+      }
+      return new TransformChain( stages );
+   }
+
+   /**
+    * Creates the chain recorded by the n ids at off in buf.
+    */
+   static TransformChain read( byte[] buf, int off, int n ) throws IOException {
+      if( n < 1 || n > MAX_STAGES )
+         throw new IOException( "Corrupt transform chain." );
+
+      Transform[] stages = new Transform[n];
+      for( int i = 0; i < n; i++ ) {
+         stages[i] = create( buf[off + i] & 0xff );
+         if( stages[i] == null )
+            throw new IOException( "Unknown transform " + ( buf[off + i] & 0xff ) + "." );
+      }
+      return new TransformChain( stages );
+   }
+
+   /**
+    * Returns a new transform with the given id, or null if there is none.
+    */
+   static Transform create( int id ) {
+      switch( id ) {
+         case RunLengthTransform.ID:
+            return new RunLengthTransform();
+         case MoveToFrontTransform.ID:
+            return new MoveToFrontTransform();
+         case DeltaTransform.ID:
+         case DeltaTransform.ID + 1:
+         case DeltaTransform.ID + 2:
+         case DeltaTransform.ID + 3:
+            return new DeltaTransform( 1 << ( id - DeltaTransform.ID ) );
+         default:
+            return null;
+      }
+   }
+
+   /**
+    * Returns the number of transforms.
+    */
+   public int size() {
+      return stages.length;
+   }
+
+   /**
+    * Writes the number of transforms and their ids, as a TRANSFORMED block
+    * records them.
+    */
+   public void write( OutputStream out ) throws IOException {
+      out.write( stages.length );
+      for( Transform t : stages )
+         out.write( t.getId() );
+   }
+
+   /**
+    * Returns the most bytes the chain can turn len bytes into.
+    */
+   public long maxLength( int len ) {
+      long n = len;
+      for( Transform t : stages )
+         n = t.maxLength( (int)Math.min( n, Integer.MAX_VALUE ) );
+      return n;
+   }
+
+   /**
+    * Transforms len bytes from src at off.  Returns the number of bytes
+    * they turned into, which are at the start of getBuffer().
+    */
+   public int forward( byte[] src, int off, int len ) {
+      int room = (int)Math.min( maxLength( len ), Integer.MAX_VALUE - 8 );
+      if( buffer.length < room ) {
+         buffer = new byte[room];
+         spare = new byte[room];
+      }
+
+      for( Transform t : stages ) {
+         t.reset();
+         int n = t.forward( src, off, len, spare, 0 );
+         n += t.finish( spare, n );
+
+         byte[] b = buffer;
+         buffer = spare;
+         spare = b;
+         src = buffer;
+         off = 0;
+         len = n;
+      }
+      return len;
+   }
+
+   /**
+    * Returns the buffer holding the output of forward().
+    */
+   public byte[] getBuffer() {
+      return buffer;
+   }
+
+   /**
+    * Undoes forward() for len bytes from src at off, writing to dst from
+    * dstOff on.  Returns the number of bytes written, or throws an
+    * IOException if there would be more than limit of them.
+    */
+   public int inverse( byte[] src, int off, int len, byte[] dst, int dstOff, int limit ) throws IOException {
+      // Each stage between gets as much room as it could have had going
+      // forward.
+      if( stages.length > 1 ) {
+         int room = (int)Math.min( maxLength( limit ), Integer.MAX_VALUE - 8 );
+         if( buffer.length < room ) {
+            buffer = new byte[room];
+            spare = new byte[room];
+         }
+      }
+
+      for( int i = stages.length - 1; i >= 0; i-- ) {
+         Transform t = stages[i];
+         t.reset();
+         if( i == 0 )
+            return t.inverse( src, off, len, dst, dstOff, limit );
+
+         int n = t.inverse( src, off, len, spare, 0, spare.length );
+         byte[] b = buffer;
+         buffer = spare;
+         spare = b;
+         src = buffer;
+         off = 0;
+         len = n;
+      }
+      return len;
+   }
+
+   /**
+    * Returns the names of the transforms, separated by commas.
+    */
+   public String toString() {
+      StringBuilder sb = new StringBuilder();
+      for( Transform t : stages )
+         sb.append( sb.length() > 0 ? "," : "" ).append( NAMES[t.getId()] );
+      return sb.toString();
+   }
+}
@@ -0,0 +1,136 @@
+import java.io.*;
+
+/**
+ * Class to write to a stream on a thread of its own, behind whoever writes
+ * to this stream, so that waiting for the output overlaps with working on
+ * what comes next.
+ *
+ * Bytes are collected in the buffers of a BlockRing and written out by the
+ * writer thread as each fills up.  When all buffers are waiting to be
+ * written, writing here waits, so a slow output holds up the writer rather
+ * than using more memory.  flush() waits until everything so far has been
+ * written and flushed.  An error on the writer thread is thrown by the next
+ * write, flush() or close().
+ */
+class WriteBehindOutputStream extends OutputStream {
+   private OutputStream out;
+   private BlockRing ring;
+   private Thread writer;
+   private byte[] block;         // The buffer being filled, if any.
+   private int count;            // Bytes in it.
+   private Boolean closed = false;
+
+   /**
+    * Creates a stream writing behind to out with the default buffers.
+    */
+   public WriteBehindOutputStream( OutputStream out ) {
+      this( out, BlockRing.DEFAULT_BUFFERS, BlockRing.DEFAULT_BUFFER_SIZE );
+   }
+
+   /**
+    * Creates a stream writing behind to out, through buffers buffers of
+    * size bytes.
+    */
+   public WriteBehindOutputStream( final OutputStream out, int buffers, int size ) {
+      this.out = out;
+      ring = new BlockRing( buffers, size );
+
+      writer = new Thread( new Runnable() {
+         public void run() {
+            try {
+               int n;
+               while( ( n = ring.next() ) >= 0 ) {
+                  // An empty buffer asks for a flush.
+                  if( n > 0 )
+                     out.write( ring.current(), 0, n );
+                  else
+                     out.flush();
+                  ring.release();
+               }
+            }
+            catch( IOException e ) {
+               ring.close( e );
+            }
+            catch( RuntimeException e ) {
+               ring.close( new IOException( e ) );
+            }
+         }
+      }, "huffman-writer" );
+      writer.setDaemon( true );
+      writer.start();
+   }
+
+   /**
+    * Passes the buffer being filled on to the writer thread.
+    */
+   private void publish() {
+      if( block != null ) {
+         ring.publish( count );
+         block = null;
+      }
+   }
+
+   public void write( int b ) throws IOException {
+      if( block == null ) {
+         block = ring.claim();
+         count = 0;
+      }
+      block[count++] = (byte)b;
+      if( count == block.length )
+         publish();
+   }
+
+   public void write( byte[] b, int off, int len ) throws IOException {
+      if( off < 0 || len < 0 || len > b.length - off )
+         throw new IndexOutOfBoundsException();
+
+      while( len > 0 ) {
+         if( block == null ) {
+            block = ring.claim();
+            count = 0;
+         }
+         int n = Math.min( len, block.length - count );
+         System.arraycopy( b, off, block, count, n );
+         count += n;
+         off += n;
+         len -= n;
+         if( count == block.length )
+            publish();
+      }
+   }
+
+   /**
+    * Waits until everything written so far has been written out, and the
+    * underlying stream flushed.
+    */
+   public void flush() throws IOException {
+      publish();
+      ring.claim();
+      ring.publish( 0 );
+      ring.drain();
+   }
+
+   /**
+    * Writes out everything, stops the writer thread and closes the
+    * underlying stream.
+    */
+   public void close() throws IOException {
+      if( closed )
+         return;
+      closed = true;
+
+      try {
+         flush();
+         ring.end( null );
+         writer.join();
+      }
+      catch( InterruptedException e ) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException( "Interrupted." );
+      }
+      finally {
+         ring.close( null );
+         out.close();
+      }
+   }
+}
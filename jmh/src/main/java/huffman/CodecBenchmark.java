@@ -0,0 +1,117 @@
+package huffman;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * The benchmarks of BenchmarkSuite under JMH, over the same corpus.
+ *
+ * JMH won't take benchmarks in the default package, where the codec is, and
+ * code in a package can't name it; so the benchmarks are fetched from
+ * BenchmarkSuite.callables() by reflection, once per trial.
+ *
+ * Throughput is reported as operations per second, and in the "bytes"
+ * counter as bytes of input per second.  main() adds the GC profiler, which
+ * reports the allocation rate (gc.alloc.rate) and bytes allocated per
+ * operation (gc.alloc.rate.norm).  Save results for a baseline with
+ * -rf csv -rff <file>.
+ *
+ * Usage: java -jar jmh/target/benchmarks.jar [JMH options]
+ *    eg. java -jar jmh/target/benchmarks.jar -p benchmark=HuffmanEncode,HuffmanDecode -p input=text-256K
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class CodecBenchmark {
+   @Param( { "random-4K", "random-256K", "random-4096K", "text-4K", "text-256K", "text-4096K",
+             "skewed-4K", "skewed-256K", "skewed-4096K", "single-4K", "single-256K", "single-4096K", "empty" } )
+   public String input;
+
+   @Param( { "HuffmanEncode", "HuffmanDecode", "ByteHistogram", "ByteHistogram.of", "HuffmanTree.build",
+             "getDictionary", "BlockEncoder", "BlockDecoder", "BlockDecoder.4streams",
+             "BitFileWriter.writeBit", "BitFileWriter.writeByte", "BitFileReader.readBit", "BitFileReader.readByte" } )
+   public String benchmark;
+
+   private File dir;                 // Where the corpus file and outputs go.
+   private Callable<Object> task;
+   private long size;                // Bytes of input per operation.
+
+   private static final Callable<Object> NOTHING = new Callable<Object>() {
+      public Object call() {
+         return null;
+      }
+   };
+
+   /**
+    * Counts the bytes of input coded, which JMH reports per second.
+    */
+   @State( Scope.Thread )
+   @AuxCounters( AuxCounters.Type.OPERATIONS )
+   public static class Bytes {
+      public long bytes;
+
+      @Setup( Level.Iteration )
+      public void clear() {
+         bytes = 0;
+      }
+   }
+
+   @Setup( Level.Trial )
+   @SuppressWarnings( "unchecked" )
+   public void setUp() throws Exception {
+      String kind = input;
+      int kib = 0;
+      int dash = input.lastIndexOf( '-' );
+      if( dash >= 0 ) {
+         kind = input.substring( 0, dash );
+         kib = Integer.parseInt( input.substring( dash + 1, input.length() - 1 ) );
+      }
+      size = (long)kib << 10;
+
+      dir = Files.createTempDirectory( "huffjmh" ).toFile();
+      Method callables = Class.forName( "BenchmarkSuite" ).getDeclaredMethod( "callables", String.class, int.class, File.class );
+      callables.setAccessible( true );
+      Map<String, Callable<Object>> tasks = (Map<String, Callable<Object>>)callables.invoke( null, kind, kib << 10, dir );
+      task = tasks.get( benchmark );
+      if( task == null && size == 0 ) {
+         // Some benchmarks have nothing to work on in the empty file, but
+         // JMH runs every input with every benchmark.
+         task = NOTHING;
+      }
+      if( task == null )
+         throw new IllegalArgumentException( "No " + benchmark + " benchmark on " + input + " input." );
+   }
+
+   @TearDown( Level.Trial )
+   public void tearDown() {
+      for( File f : dir.listFiles() )
+         f.delete();
+      dir.delete();
+   }
+
+   @Benchmark
+   public Object run( Bytes counter ) throws Exception {
+      counter.bytes += size;
+      return task.call();
+   }
+
+   public static void main( String[] args ) throws Exception {
+      Options options = new OptionsBuilder()
+         .parent( new CommandLineOptions( args ) )
+         .addProfiler( GCProfiler.class )
+         .build();
+      new Runner( options ).run();
+   }
+}